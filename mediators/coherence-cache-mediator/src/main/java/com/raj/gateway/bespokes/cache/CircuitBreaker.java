@@ -0,0 +1,88 @@
+package com.raj.gateway.bespokes.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A circuit breaker around the calls of a mediator to the Coherence cluster, so that a sick cluster costs the
+ * requests nothing but a skipped cache. The circuit opens after a number of consecutive failed calls, and the calls
+ * are skipped while it is open. Once the retry interval has passed a single call is let through as a probe: the
+ * circuit closes if the probe succeeds and opens again for another interval if it fails.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final int failureThreshold;
+
+    private final long retryIntervalMillis;
+
+    /**
+     * The time after which a probe is let through, while the circuit is open
+     */
+    private volatile long retryTimeMillis;
+
+    /**
+     * Creates a closed circuit breaker
+     *
+     * @param failureThreshold    number of consecutive failures which open the circuit
+     * @param retryIntervalMillis time for which the circuit stays open before it is probed
+     */
+    CircuitBreaker(int failureThreshold, long retryIntervalMillis) {
+        this.failureThreshold = failureThreshold;
+        this.retryIntervalMillis = retryIntervalMillis;
+    }
+
+    /**
+     * Tells whether a call may be made. While the circuit is open this lets the first call after the retry
+     * interval through as the probe, which must then be reported as any other call.
+     *
+     * @return true if the call is to be made, false if it is to be skipped
+     */
+    boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        return current == State.OPEN && System.currentTimeMillis() >= retryTimeMillis &&
+               state.compareAndSet(State.OPEN, State.HALF_OPEN);
+    }
+
+    /**
+     * Reports a successful call
+     *
+     * @return true if the call closed the circuit
+     */
+    boolean onSuccess() {
+        failures.set(0);
+        return state.get() != State.CLOSED && state.getAndSet(State.CLOSED) != State.CLOSED;
+    }
+
+    /**
+     * Reports a failed call
+     *
+     * @return true if the call opened the circuit
+     */
+    boolean onFailure() {
+        State current = state.get();
+        if (current == State.HALF_OPEN || (current == State.CLOSED && failures.incrementAndGet() >= failureThreshold)) {
+            retryTimeMillis = System.currentTimeMillis() + retryIntervalMillis;
+            return state.compareAndSet(current, State.OPEN);
+        }
+        return false;
+    }
+
+    /**
+     * Reports a call which was let through but not made, such as one refused by a busy caller, so that it counts
+     * neither as a success nor as a failure. A probe which is not made is given back, and the next call is the probe.
+     */
+    void onSkipped() {
+        state.compareAndSet(State.HALF_OPEN, State.OPEN);
+    }
+}
@@ -3,13 +3,9 @@ package com.raj.gateway.bespokes.cache;
 import com.tangosol.net.CacheFactory;
 import com.tangosol.net.NamedCache;
 import com.raj.gateway.bespokes.cache.digest.DigestGenerator;
-import com.raj.gateway.bespokes.cache.util.RequestHash;
-import org.apache.axiom.om.OMElement;
-import org.apache.axiom.om.util.AXIOMUtil;
-import org.apache.axiom.soap.SOAPEnvelope;
-import org.apache.axiom.soap.SOAPFactory;
-import org.apache.axiom.soap.SOAPHeader;
-import org.apache.axiom.soap.SOAPHeaderBlock;
+import org.apache.axiom.om.util.StAXUtils;
+import org.apache.axiom.soap.impl.builder.StAXSOAPModelBuilder;
+import org.apache.axis2.AxisFault;
 import org.apache.axis2.Constants;
 import org.apache.axis2.context.ConfigurationContext;
 import org.apache.axis2.context.OperationContext;
@@ -17,6 +13,7 @@ import org.apache.synapse.ManagedLifecycle;
 import org.apache.synapse.MessageContext;
 import org.apache.synapse.SynapseException;
 import org.apache.synapse.SynapseLog;
+import org.apache.synapse.commons.json.JsonUtil;
 import org.apache.synapse.continuation.ContinuationStackManager;
 import org.apache.synapse.core.SynapseEnvironment;
 import org.apache.synapse.core.axis2.Axis2MessageContext;
@@ -27,14 +24,45 @@ import org.apache.synapse.util.FixedByteArrayOutputStream;
 import org.apache.synapse.util.MessageHelper;
 
 import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CoherenceCacheMediator extends AbstractMediator implements ManagedLifecycle {
 
+    /**
+     * The maximum number of calls to the coherence cache in flight at once, when they have a deadline.
+     */
+    private static final int MAX_CACHE_CALLS = 64;
+
+    /**
+     * The bounds of the pause between two checks for a response being fetched by another node, in milliseconds.
+     */
+    private static final long MIN_COALESCE_PAUSE = 5;
+
+    private static final long MAX_COALESCE_PAUSE = 100;
+
+    /**
+     * The maximum number of requests of a mediator waiting at once for responses being fetched by other nodes. A
+     * waiting request holds its worker thread, so the requests beyond this fetch their responses without waiting.
+     */
+    private static final int MAX_COALESCE_WAITERS = 32;
+
     /**
      * Cache configuration ID.
      */
@@ -73,16 +101,156 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
      */
     private DigestGenerator digestGenerator = CoherenceCachingConstants.DEFAULT_XML_IDENTIFIER;
 
+    /**
+     * The maximum number of responses kept in the near cache of this node, 0 if there is no near cache.
+     */
+    private int nearCacheSize = 0;
+
+    /**
+     * The time in seconds after which a near cached response expires, even if no change of it has been seen.
+     */
+    private long nearCacheTimeout = CoherenceCachingConstants.DEFAULT_NEAR_CACHE_TIMEOUT;
+
+    /**
+     * The local cache of the responses read from the coherence cache, which serves the hot keys without a network
+     * hop.
+     */
+    private NearResponseCache nearCache = null;
+
+    /**
+     * The time in milliseconds a request waits for an answer of the coherence cache before it skips caching, 0 to
+     * wait as long as coherence does. A timeout hands every call to the cache over to another thread, which adds to
+     * the cost of each hit, so it is off by default.
+     */
+    private long lookupTimeout = CoherenceCachingConstants.DEFAULT_LOOKUP_TIMEOUT;
+
+    /**
+     * The number of consecutive failed calls to the coherence cache after which it is bypassed.
+     */
+    private int failureThreshold = CoherenceCachingConstants.DEFAULT_FAILURE_THRESHOLD;
+
+    /**
+     * The time in seconds for which the coherence cache is bypassed before it is probed again.
+     */
+    private long retryInterval = CoherenceCachingConstants.DEFAULT_RETRY_INTERVAL;
+
+    /**
+     * The handle of the coherence cache, resolved at init and again only if it is no longer active.
+     */
+    private volatile NamedCache namedCache = null;
+
+    private CircuitBreaker circuitBreaker = null;
+
+    /**
+     * The threads making the calls to the coherence cache which have a deadline, so that the requests can stop
+     * waiting for them.
+     */
+    private ExecutorService cacheCallExecutor = null;
+
+    /**
+     * The maximum number of responses waiting to be stored in the coherence cache, 0 to store them while the
+     * response is sent.
+     */
+    private int writeBehindQueueSize = 0;
+
+    /**
+     * The maximum number of responses stored in the coherence cache at once.
+     */
+    private int writeBehindBatchSize = CoherenceCachingConstants.DEFAULT_WRITE_BEHIND_BATCH_SIZE;
+
+    private WriteBehindQueue writeBehindQueue = null;
+
+    /**
+     * The time in milliseconds a request waits for the response of an equivalent request being fetched by another
+     * gateway node, 0 to fetch it without checking for one.
+     * <p/>
+     * A waiting request parks its worker thread for up to this time, which a slow backend turns into a shortage of
+     * worker threads. Only MAX_COALESCE_WAITERS requests of a mediator wait at once, and the timeout should be kept
+     * well below the response time of the backend.
+     */
+    private long coalesceTimeout = 0;
+
+    private final Semaphore coalesceWaiters = new Semaphore(MAX_COALESCE_WAITERS);
+
     public void init(SynapseEnvironment synapseEnvironment) {
         if (onCacheHitSequence != null) {
             onCacheHitSequence.init(synapseEnvironment);
         }
+        circuitBreaker = new CircuitBreaker(failureThreshold, retryInterval * 1000);
+        if (lookupTimeout > 0) {
+            final String threadName = "coherence-cache-" + coherenceCacheName + "-";
+            cacheCallExecutor = new ThreadPoolExecutor(0, MAX_CACHE_CALLS, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, threadName + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        try {
+            getMediatorCache();
+        } catch (CoherenceCachingException ex) {
+            // resolved again by the calls to the cache, once the circuit breaker lets them through
+            circuitBreaker.onFailure();
+            log.warn(ex.getMessage() + ". Skipping caching until it can be reached", ex);
+        }
+        if (collector && writeBehindQueueSize > 0) {
+            writeBehindQueue = new WriteBehindQueue(coherenceCacheName, writeBehindQueueSize, writeBehindBatchSize,
+                    new WriteBehindQueue.Writer() {
+                public boolean storeAll(Map<String, CoherenceCacheableResponse> batch) {
+                    if (!circuitBreaker.allowRequest()) {
+                        return false;
+                    }
+                    try {
+                        getMediatorCache().putAll(batch);
+                    } catch (RuntimeException ex) {
+                        onCacheFailure();
+                        throw ex;
+                    }
+                    onCacheSuccess();
+                    return true;
+                }
+            });
+        }
+        if (!collector && nearCacheSize > 0) {
+            nearCache = new NearResponseCache(nearCacheSize, nearCacheTimeout * 1000);
+            if (namedCache != null) {
+                try {
+                    nearCache.attach(namedCache);
+                } catch (Exception ex) {
+                    // attached again on the next request
+                    log.warn("Unable to listen to the cache " + coherenceCacheName + " from oracle coherence. The "
+                            + "near cache is not used until it can. " + ex.getMessage());
+                }
+            }
+        }
     }
 
     public void destroy() {
         if (onCacheHitSequence != null) {
             onCacheHitSequence.destroy();
         }
+        if (nearCache != null) {
+            try {
+                nearCache.detach();
+            } catch (Exception ex) {
+                log.warn("Unable to stop listening to the cache " + coherenceCacheName + " from oracle coherence. "
+                        + ex.getMessage());
+            }
+            nearCache = null;
+        }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.shutdown();
+            writeBehindQueue = null;
+        }
+        if (cacheCallExecutor != null) {
+            cacheCallExecutor.shutdownNow();
+            cacheCallExecutor = null;
+        }
+        namedCache = null;
     }
 
     @Override
@@ -178,27 +346,17 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
             synLog.traceOrDebug("Generated request hash : " + requestHash);
         }
 
-        RequestHash hash = new RequestHash(requestHash);
-
-        CoherenceCacheableResponse cachedResponse = null;
-        try {
-            if (getMediatorCache() != null) {
-                try {
-                    cachedResponse = (CoherenceCacheableResponse) getMediatorCache().get(requestHash);
-                } catch (ClassCastException ex) {
-                    synLog.auditWarn("Unable to cast the cached response retrieved from the cache : "
-                            + coherenceCacheName + " : " + ex.getMessage());
-                } catch (Exception ex) {
-                    synLog.auditWarn("Unable to get the cache "
-                            + coherenceCacheName + " from oracle coherence. " + ex.getMessage());
-                }
-            } else {
-                synLog.auditWarn("Unable to get the cache "
-                        + coherenceCacheName + " from oracle coherence. Skipping caching");
+        NearResponseCache localCache = getNearCache(synLog);
+        CoherenceCacheableResponse cachedResponse = localCache != null ? localCache.get(requestHash) : null;
+        if (cachedResponse != null) {
+            if (synLog.isTraceOrDebugEnabled()) {
+                synLog.traceOrDebug("Near cache hit for request hash : " + requestHash);
+            }
+        } else {
+            cachedResponse = getCachedResponse(requestHash, localCache, synLog);
+            if (coalesceTimeout > 0 && (cachedResponse == null || cachedResponse.getResponseEnvelope() == null)) {
+                cachedResponse = awaitSharedResponse(requestHash, synLog);
             }
-        } catch (CoherenceCachingException ex) {
-            synLog.auditWarn("Unable to get the cache "
-                    + coherenceCacheName + " from oracle coherence. Skipping caching. " + ex.getMessage());
         }
 
 
@@ -216,61 +374,24 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
             synCtx.setResponse(true);
             opCtx.setProperty(CoherenceCachingConstants.CACHED_OBJECT, cachedResponse);
 
-            OMElement response = null;
             try {
                 if (msgCtx.isDoingREST()) {
                     if ((headerProperties = cachedResponse.getHeaderProperties()) != null) {
-                        String replacementValue = new String(cachedResponse.getResponseEnvelope());
-                        try {
-                            response = AXIOMUtil.stringToOM(replacementValue);
-                        } catch (XMLStreamException e) {
-                            handleException("Error creating response OM from cache : " + coherenceCacheName, synCtx);
-                        }
                         msgCtx.removeProperty("NO_ENTITY_BODY");
                         msgCtx.removeProperty(Constants.Configuration.CONTENT_TYPE);
-                        msgCtx.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, headerProperties);
+                        // the cached headers may be shared with other requests through the near cache
+                        msgCtx.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS,
+                                new HashMap<String, Object>(headerProperties));
                         msgCtx.setProperty(Constants.Configuration.MESSAGE_TYPE,
                                 headerProperties.get(Constants.Configuration.MESSAGE_TYPE));
+                        setCachedEnvelope(synCtx, msgCtx, cachedResponse);
                     }
                 } else {
-                    String replacementValue = new String(cachedResponse.getResponseEnvelope());
-                    try {
-                        response = AXIOMUtil.stringToOM(replacementValue);
-                    } catch (XMLStreamException e) {
-                        handleException("Error creating response OM from cache : " + coherenceCacheName, synCtx);
-                    }
-                }
-
-                if (response != null) {
-                    // Set the headers of the message
-                    if (response.getFirstElement().getLocalName().contains("Header")) {
-                        Iterator childElements = msgCtx.getEnvelope().getHeader().getChildElements();
-                        while (childElements.hasNext()) {
-                            ((OMElement) childElements.next()).detach();
-                        }
-                        SOAPEnvelope env = synCtx.getEnvelope();
-                        SOAPHeader header = env.getHeader();
-                        SOAPFactory fac = (SOAPFactory) env.getOMFactory();
-
-                        Iterator headers = response.getFirstElement().getChildElements();
-                        while (headers.hasNext()) {
-                            OMElement soapHeader = (OMElement) headers.next();
-                            SOAPHeaderBlock hb = header.addHeaderBlock(soapHeader.getLocalName(),
-                                    fac.createOMNamespace(soapHeader.getNamespace().getNamespaceURI(),
-                                            soapHeader.getNamespace().getPrefix()));
-                            hb.setText(soapHeader.getText());
-                        }
-                        response.getFirstElement().detach();
-                    }
-                    // Set the body of the message
-                    if (msgCtx.getEnvelope().getBody().getFirstElement() != null) {
-                        msgCtx.getEnvelope().getBody().getFirstElement().detach();
-                    }
-                    msgCtx.getEnvelope().getBody().addChild(response.getFirstElement().getFirstElement());
+                    setCachedEnvelope(synCtx, msgCtx, cachedResponse);
                 }
             } catch (Exception ex) {
                 handleException("Error setting response envelope from cache : "
-                        + coherenceCacheName, synCtx);
+                        + coherenceCacheName, ex, synCtx);
             }
 
             // take specified action on cache hit
@@ -304,7 +425,7 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
             // stop any following mediators from executing
             return false;
         } else {
-            cacheNewResponse(msgCtx, hash, synLog);
+            cacheNewResponse(msgCtx, requestHash, synLog);
         }
 
         return true;
@@ -328,7 +449,13 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
         CoherenceCacheableResponse response =
                 (CoherenceCacheableResponse) operationContext.getProperty(CoherenceCachingConstants.CACHED_OBJECT);
 
-        if (response != null) {
+        if (response != null && response.getResponseEnvelope() != null) {
+            // the response has been served from the cache, and may be shared through the near cache
+            if (synLog.isTraceOrDebugEnabled()) {
+                synLog.traceOrDebug("The response for the request hash : " + response.getRequestHash()
+                        + " has been served from the cache : " + coherenceCacheName + ". Skipping caching.");
+            }
+        } else if (response != null) {
             if (synLog.isTraceOrDebugEnabled()) {
                 synLog.traceOrDebug("Storing the response message into the cache with name : "
                         + coherenceCacheName + " for request hash : " + response.getRequestHash());
@@ -341,7 +468,25 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
 
             ByteArrayOutputStream outStream = new ByteArrayOutputStream();
             try {
-                synCtx.getEnvelope().serialize(outStream);
+                if (msgCtx.isDoingREST() && JsonUtil.hasAJsonPayload(msgCtx)) {
+                    // the JSON payload is stored as it is, to be handed back to the transport on a hit
+                    InputStream jsonStream = JsonUtil.getJsonPayload(msgCtx);
+                    try {
+                        byte[] buffer = new byte[4096];
+                        int read;
+                        while ((read = jsonStream.read(buffer)) >= 0) {
+                            outStream.write(buffer, 0, read);
+                        }
+                    } finally {
+                        // the stream is read again when the response is sent to the client
+                        if (jsonStream.markSupported()) {
+                            jsonStream.reset();
+                        }
+                    }
+                    response.setJson(true);
+                } else {
+                    synCtx.getEnvelope().serialize(outStream);
+                }
                 response.setResponseEnvelope(outStream.toByteArray());
                 if (msgCtx.isDoingREST()) {
                     Map<String, String> headers =
@@ -355,6 +500,8 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
 
             } catch (XMLStreamException e) {
                 handleException("Unable to set the response to the Cache", e, synCtx);
+            } catch (IOException e) {
+                handleException("Unable to read the JSON payload of the response", e, synCtx);
             } finally {
                 try {
                     outStream.close();
@@ -363,12 +510,13 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
                 }
             }
 
+            WriteBehindQueue storeQueue = writeBehindQueue;
             try {
-                if (getMediatorCache() != null) {
-                    getMediatorCache().put(response.getRequestHash(), response);
-                } else {
-                    synLog.auditWarn("Unable to get the cache "
-                            + coherenceCacheName + " from oracle coherence. Skipping caching.");
+                if (storeQueue == null) {
+                    callCache(new Put(response.getRequestHash(), response), synLog);
+                } else if (!storeQueue.offer(response) && synLog.isTraceOrDebugEnabled()) {
+                    synLog.traceOrDebug("The queue of the responses to be stored in the cache : "
+                            + coherenceCacheName + " is full. Skipping caching.");
                 }
             } catch (CoherenceCachingException ex) {
                 synLog.auditWarn("Unable to get the cache "
@@ -382,42 +530,314 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
     }
 
     /**
-     * Caches the CoherenceCacheableResponse object with currently available attributes against the requestHash
+     * Keeps a CoherenceCacheableResponse object with currently available attributes in the operation context, for
+     * the collector to store the response against the requestHash. Nothing is written to the coherence cache until
+     * the response is stored.
      *
      * @param msgContext  axis2 message context of the request message
      * @param requestHash the request hash that has already been computed
      */
-    private void cacheNewResponse(org.apache.axis2.context.MessageContext msgContext, RequestHash requestHash,
+    private void cacheNewResponse(org.apache.axis2.context.MessageContext msgContext, String requestHash,
                                   SynapseLog synLog) {
+        OperationContext opCtx = msgContext.getOperationContext();
+        CoherenceCacheableResponse response = new CoherenceCacheableResponse();
+        response.setRequestHash(requestHash);
+        opCtx.setProperty(CoherenceCachingConstants.CACHED_OBJECT, response);
+        if (synLog.isTraceOrDebugEnabled()) {
+            synLog.traceOrDebug("The response for the request hash : " + requestHash
+                    + " is to be stored in the cache : " + coherenceCacheName);
+        }
+    }
+
+    /**
+     * Replaces the envelope of the message by the cached response. A JSON payload is handed to the transport as it
+     * was stored, and an XML envelope is built lazily by a StAX reader over the stored bytes, so the parts of it
+     * which are passed through are never parsed into a tree.
+     *
+     * @param synCtx         the request message, which is turned into the response
+     * @param msgCtx         axis2 message context of the request message
+     * @param cachedResponse the cached response, whose bytes are shared and never modified
+     * @throws AxisFault          if the envelope cannot be set
+     * @throws XMLStreamException if the stored envelope cannot be read
+     */
+    private void setCachedEnvelope(MessageContext synCtx, org.apache.axis2.context.MessageContext msgCtx,
+                                   CoherenceCacheableResponse cachedResponse) throws AxisFault, XMLStreamException {
+        InputStream in = new ByteArrayInputStream(cachedResponse.getResponseEnvelope());
+        if (cachedResponse.isJson()) {
+            // the JSON payload is set as a data source over the stored bytes, which is never built into a tree.
+            // JsonUtil takes no buildAll flag, the data source is what keeps it lazy.
+            JsonUtil.getNewJsonPayload(msgCtx, in, true, true);
+        } else {
+            // the encoding is detected from the stored bytes rather than taken from the platform
+            StAXSOAPModelBuilder builder = new StAXSOAPModelBuilder(StAXUtils.createXMLStreamReader(in));
+            synCtx.setEnvelope(builder.getSOAPEnvelope());
+        }
+    }
+
+    /**
+     * Claims the fetching of a missing response for this node, or waits for the response of the gateway node which
+     * claimed it before, until the coalesce timeout. The claim is made atomically on the storage member of the
+     * request hash by a MissClaimProcessor, and is replaced by the response once it is stored. The request fetches
+     * its response without waiting if MAX_COALESCE_WAITERS requests are waiting already.
+     *
+     * @param requestHash the request hash that has already been computed
+     * @param synLog      the Synapse log to use
+     * @return the response stored in the meantime, or null if it is to be fetched by this node
+     */
+    private CoherenceCacheableResponse awaitSharedResponse(final String requestHash, SynapseLog synLog) {
+        if (!coalesceWaiters.tryAcquire()) {
+            if (synLog.isTraceOrDebugEnabled()) {
+                synLog.traceOrDebug("Too many requests are waiting for responses fetched by other nodes. Fetching "
+                        + "the response for the request hash : " + requestHash + " from this node.");
+            }
+            return null;
+        }
+        Object current;
         try {
-            if (getMediatorCache() != null) {
-                OperationContext opCtx = msgContext.getOperationContext();
-                CoherenceCacheableResponse response = new CoherenceCacheableResponse();
-                response.setRequestHash(requestHash.getRequestHash());
-                getMediatorCache().put(requestHash.getRequestHash(), response);
-                opCtx.setProperty(CoherenceCachingConstants.CACHED_OBJECT, response);
-            } else {
-                synLog.auditWarn("Unable to get the cache "
-                        + coherenceCacheName + " from oracle coherence. Skipping caching.");
+            current = callCache(new CacheCall() {
+                public Object call(NamedCache cache) {
+                    return cache.invoke(requestHash, new MissClaimProcessor(coalesceTimeout));
+                }
+            }, synLog);
+            long deadline = System.currentTimeMillis() + coalesceTimeout;
+            long pause = MIN_COALESCE_PAUSE;
+            while (current instanceof MissClaimProcessor.Claim) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    if (synLog.isTraceOrDebugEnabled()) {
+                        synLog.traceOrDebug("The response for the request hash : " + requestHash
+                                + " is still being fetched by another node. Fetching it from this node.");
+                    }
+                    return null;
+                }
+                Thread.sleep(Math.min(pause, remaining));
+                pause = Math.min(pause * 2, MAX_COALESCE_PAUSE);
+                current = callCache(new Get(requestHash), synLog);
             }
         } catch (CoherenceCachingException ex) {
             synLog.auditWarn("Unable to get the cache "
                     + coherenceCacheName + " from oracle coherence. Skipping caching. " + ex.getMessage());
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            coalesceWaiters.release();
+        }
+        if (current instanceof CoherenceCacheableResponse) {
+            if (synLog.isTraceOrDebugEnabled()) {
+                synLog.traceOrDebug("The response for the request hash : " + requestHash
+                        + " has been fetched by another node");
+            }
+            return (CoherenceCacheableResponse) current;
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the response cached for the given request hash in the coherence cache, and keeps it in the near cache
+     * if there is one
+     *
+     * @param requestHash the request hash that has already been computed
+     * @param localCache  the near cache of this node, or null
+     * @param synLog      the Synapse log to use
+     * @return the cached response, or null if there is none or the cache cannot be reached
+     */
+    private CoherenceCacheableResponse getCachedResponse(String requestHash, NearResponseCache localCache,
+                                                         SynapseLog synLog) {
+        // taken first, so that a response changed while it is read is not near cached
+        long stamp = localCache != null ? localCache.getStamp(requestHash) : 0;
+        CoherenceCacheableResponse cachedResponse = null;
+        try {
+            Object cached = callCache(new Get(requestHash), synLog);
+            // the claims of the responses being fetched are misses
+            if (!(cached instanceof MissClaimProcessor.Claim)) {
+                try {
+                    cachedResponse = (CoherenceCacheableResponse) cached;
+                } catch (ClassCastException ex) {
+                    synLog.auditWarn("Unable to cast the cached response retrieved from the cache : "
+                            + coherenceCacheName + " : " + ex.getMessage());
+                }
+            }
+        } catch (CoherenceCachingException ex) {
+            synLog.auditWarn("Unable to get the cache "
+                    + coherenceCacheName + " from oracle coherence. Skipping caching. " + ex.getMessage());
+        }
+
+        // the placeholders stored by earlier versions of this mediator are not near cached
+        if (localCache != null && cachedResponse != null && cachedResponse.getResponseEnvelope() != null) {
+            localCache.put(requestHash, cachedResponse, stamp);
+        }
+        return cachedResponse;
+    }
+
+    /**
+     * Gives the near cache of this node once it listens to the changes of the coherence cache, registering its
+     * listener if that failed before
+     *
+     * @param synLog the Synapse log to use
+     * @return the near cache, or null if there is none or it cannot be kept coherent yet
+     */
+    private NearResponseCache getNearCache(SynapseLog synLog) {
+        final NearResponseCache localCache = nearCache;
+        // the listener moves to the named cache which replaces an inactive one
+        if (localCache == null || localCache.isAttachedTo(namedCache)) {
+            return localCache;
+        }
+        try {
+            callCache(new CacheCall() {
+                public Object call(NamedCache cache) {
+                    localCache.attach(cache);
+                    return null;
+                }
+            }, synLog);
+        } catch (CoherenceCachingException ex) {
+            synLog.auditWarn("Unable to listen to the cache " + coherenceCacheName
+                    + " from oracle coherence. Skipping the near cache. " + ex.getMessage());
+        }
+        return localCache.isAttachedTo(namedCache) ? localCache : null;
+    }
+
+    /**
+     * Makes a call to the coherence cache through the circuit breaker of this mediator, within the lookup timeout
+     * if there is one. The calls are skipped while the circuit is open, so that a sick cache cluster does not hold
+     * up the requests.
+     *
+     * @param call   the call to be made
+     * @param synLog the Synapse log to use
+     * @return the result of the call, or null if it has been skipped
+     * @throws CoherenceCachingException if the call failed or did not return in time
+     */
+    private Object callCache(CacheCall call, SynapseLog synLog) throws CoherenceCachingException {
+        if (!circuitBreaker.allowRequest()) {
+            if (synLog.isTraceOrDebugEnabled()) {
+                synLog.traceOrDebug("The cache " + coherenceCacheName + " is bypassed after repeated failures. "
+                        + "Skipping caching.");
+            }
+            return null;
+        }
+        Future<Object> future = null;
+        if (cacheCallExecutor != null) {
+            try {
+                future = submitCall(call);
+            } catch (RejectedExecutionException ex) {
+                // all the callers are busy, which says nothing about the health of the cluster
+                circuitBreaker.onSkipped();
+                if (synLog.isTraceOrDebugEnabled()) {
+                    synLog.traceOrDebug("Too many calls to the cache " + coherenceCacheName
+                            + " are waiting for an answer. Skipping caching.");
+                }
+                return null;
+            }
+        }
+        Object result;
+        try {
+            result = future != null ? awaitCall(future) : call.call(getMediatorCache());
+        } catch (RuntimeException ex) {
+            onCacheFailure();
+            throw ex instanceof CoherenceCachingException ? (CoherenceCachingException) ex :
+                    new CoherenceCachingException("Unable to call the cache " + coherenceCacheName
+                            + " from oracle coherence", ex);
+        }
+        onCacheSuccess();
+        return result;
+    }
+
+    private void onCacheSuccess() {
+        if (circuitBreaker.onSuccess()) {
+            log.info("The cache " + coherenceCacheName + " from oracle coherence can be reached again");
+        }
+    }
+
+    private void onCacheFailure() {
+        if (circuitBreaker.onFailure()) {
+            log.warn("Bypassing the cache " + coherenceCacheName + " from oracle coherence for "
+                    + retryInterval + " seconds after repeated failures");
+        }
+    }
+
+    private Future<Object> submitCall(final CacheCall call) {
+        return cacheCallExecutor.submit(new Callable<Object>() {
+            public Object call() {
+                return call.call(getMediatorCache());
+            }
+        });
+    }
+
+    private Object awaitCall(Future<Object> future) {
+        try {
+            return future.get(lookupTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            throw new CoherenceCachingException("The cache " + coherenceCacheName + " did not answer within "
+                    + lookupTimeout + " ms", ex);
+        } catch (ExecutionException ex) {
+            throw new CoherenceCachingException("Unable to call the cache " + coherenceCacheName
+                    + " from oracle coherence", ex.getCause());
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new CoherenceCachingException("Interrupted while calling the cache " + coherenceCacheName, ex);
         }
     }
 
     private NamedCache getMediatorCache() {
-        NamedCache cache;
+        NamedCache cache = namedCache;
+        if (cache != null && cache.isActive()) {
+            return cache;
+        }
         try {
             cache = CacheFactory.getCache(coherenceCacheName);
         } catch (Throwable ex) {
             throw new CoherenceCachingException("Unable to get the cache "
                     + coherenceCacheName + " from oracle coherence", ex);
         }
-
+        if (cache == null) {
+            throw new CoherenceCachingException("Unable to get the cache "
+                    + coherenceCacheName + " from oracle coherence");
+        }
+        namedCache = cache;
         return cache;
     }
 
+    /**
+     * A call to the coherence cache, made by {@link #callCache(CacheCall, SynapseLog)}
+     */
+    private interface CacheCall {
+
+        Object call(NamedCache cache);
+    }
+
+    private static final class Get implements CacheCall {
+
+        private final String requestHash;
+
+        Get(String requestHash) {
+            this.requestHash = requestHash;
+        }
+
+        public Object call(NamedCache cache) {
+            return cache.get(requestHash);
+        }
+    }
+
+    private static final class Put implements CacheCall {
+
+        private final String requestHash;
+
+        private final CoherenceCacheableResponse response;
+
+        Put(String requestHash, CoherenceCacheableResponse response) {
+            this.requestHash = requestHash;
+            this.response = response;
+        }
+
+        public Object call(NamedCache cache) {
+            cache.put(requestHash, response);
+            return null;
+        }
+    }
+
     public SequenceMediator getOnCacheHitSequence() {
         return onCacheHitSequence;
     }
@@ -466,6 +886,91 @@ public class CoherenceCacheMediator extends AbstractMediator implements ManagedL
         this.id = id;
     }
 
+    public int getNearCacheSize() {
+        return nearCacheSize;
+    }
+
+    public void setNearCacheSize(int nearCacheSize) {
+        this.nearCacheSize = nearCacheSize;
+    }
+
+    public long getNearCacheTimeout() {
+        return nearCacheTimeout;
+    }
+
+    public void setNearCacheTimeout(long nearCacheTimeout) {
+        this.nearCacheTimeout = nearCacheTimeout;
+    }
+
+    public long getLookupTimeout() {
+        return lookupTimeout;
+    }
+
+    public void setLookupTimeout(long lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getRetryInterval() {
+        return retryInterval;
+    }
+
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    public int getWriteBehindQueueSize() {
+        return writeBehindQueueSize;
+    }
+
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        this.writeBehindQueueSize = writeBehindQueueSize;
+    }
+
+    public int getWriteBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    /**
+     * Gives the number of responses which have not been stored in the coherence cache because the write-behind
+     * queue was full, or because their batch could not be stored.
+     *
+     * @return the dropped count, 0 if there is no write-behind queue
+     */
+    public long getDroppedStoreCount() {
+        WriteBehindQueue storeQueue = writeBehindQueue;
+        return storeQueue != null ? storeQueue.getDroppedCount() : 0;
+    }
+
+    /**
+     * Gives the number of responses waiting to be stored in the coherence cache.
+     *
+     * @return the queued count, 0 if there is no write-behind queue
+     */
+    public int getPendingStoreCount() {
+        WriteBehindQueue storeQueue = writeBehindQueue;
+        return storeQueue != null ? storeQueue.size() : 0;
+    }
+
+    public long getCoalesceTimeout() {
+        return coalesceTimeout;
+    }
+
+    public void setCoalesceTimeout(long coalesceTimeout) {
+        this.coalesceTimeout = coalesceTimeout;
+    }
+
     public String getCoherenceCacheName() {
         return coherenceCacheName;
     }
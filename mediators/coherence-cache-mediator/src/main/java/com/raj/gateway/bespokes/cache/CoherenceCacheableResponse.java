@@ -9,6 +9,7 @@ public class CoherenceCacheableResponse implements Serializable {
     private byte[] responseEnvelope;
     private String requestHash;
     private Map<String, Object> headerProperties;
+    private boolean json;
 
     public CoherenceCacheableResponse() {
     }
@@ -36,4 +37,12 @@ public class CoherenceCacheableResponse implements Serializable {
     public void setHeaderProperties(Map<String, Object> headerProperties) {
         this.headerProperties = headerProperties;
     }
+
+    public boolean isJson() {
+        return this.json;
+    }
+
+    public void setJson(boolean json) {
+        this.json = json;
+    }
 }
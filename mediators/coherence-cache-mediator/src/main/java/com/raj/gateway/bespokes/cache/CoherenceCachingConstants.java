@@ -11,4 +11,9 @@ public class CoherenceCachingConstants {
     public static final DigestGenerator DEFAULT_XML_IDENTIFIER = new DomHashGenerator();
     public static final String CACHED_OBJECT = "CoherenceCacheableResponse";
     public static final QName CACHE_Q = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "coherence");
+    public static final long DEFAULT_NEAR_CACHE_TIMEOUT = 60;
+    public static final long DEFAULT_LOOKUP_TIMEOUT = 0;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_RETRY_INTERVAL = 10;
+    public static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 100;
 }
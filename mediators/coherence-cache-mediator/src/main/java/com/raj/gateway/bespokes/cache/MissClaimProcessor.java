@@ -0,0 +1,81 @@
+package com.raj.gateway.bespokes.cache;
+
+import com.tangosol.util.BinaryEntry;
+import com.tangosol.util.InvocableMap;
+import com.tangosol.util.processor.AbstractProcessor;
+
+import java.io.Serializable;
+
+/**
+ * An entry processor which claims the fetching of a missing response for the gateway node invoking it, so that only
+ * one node of the cluster sends a given request to the backend while the others wait for the response it stores.
+ * The claim is an entry of its own kind which lives for a lease, so a node which never stores the response only
+ * holds up the others until the lease has passed. The claim entry expires with its lease, so an abandoned claim does
+ * not stay in the cache until it is evicted.
+ * <p/>
+ * The processor runs on the storage members, which need this class and CoherenceCacheableResponse on their class
+ * path.
+ */
+public class MissClaimProcessor extends AbstractProcessor {
+
+    private static final long serialVersionUID = -3551813283045237315L;
+
+    private long leaseMillis;
+
+    public MissClaimProcessor() {
+    }
+
+    /**
+     * @param leaseMillis time for which the claim holds
+     */
+    public MissClaimProcessor(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Claims the entry unless it holds a response or a live claim of another node
+     *
+     * @param entry the entry of the request hash
+     * @return the response or the live claim found in the entry, or null if the entry has been claimed
+     */
+    public Object process(InvocableMap.Entry entry) {
+        // the time of the storage member, which is the same for all the claims of the entry
+        long now = System.currentTimeMillis();
+        if (entry.isPresent()) {
+            Object value = entry.getValue();
+            if (value instanceof CoherenceCacheableResponse &&
+                ((CoherenceCacheableResponse) value).getResponseEnvelope() != null) {
+                return value;
+            }
+            if (value instanceof Claim && ((Claim) value).getExpireTimeMillis() > now) {
+                return value;
+            }
+        }
+        entry.setValue(new Claim(now + leaseMillis));
+        if (entry instanceof BinaryEntry) {
+            ((BinaryEntry) entry).expire(leaseMillis);
+        }
+        return null;
+    }
+
+    /**
+     * The value of an entry whose response is being fetched by a gateway node
+     */
+    public static class Claim implements Serializable {
+
+        private static final long serialVersionUID = 1484420962606745961L;
+
+        private long expireTimeMillis;
+
+        public Claim() {
+        }
+
+        public Claim(long expireTimeMillis) {
+            this.expireTimeMillis = expireTimeMillis;
+        }
+
+        public long getExpireTimeMillis() {
+            return expireTimeMillis;
+        }
+    }
+}
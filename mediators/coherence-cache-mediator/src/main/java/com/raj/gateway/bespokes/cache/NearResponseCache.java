@@ -0,0 +1,218 @@
+package com.raj.gateway.bespokes.cache;
+
+import com.tangosol.net.NamedCache;
+import com.tangosol.util.AbstractMapListener;
+import com.tangosol.util.MapEvent;
+import com.tangosol.util.filter.MapEventFilter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded local cache of the responses read from a Coherence named cache, which serves the hot keys of a gateway
+ * node without a network hop. It is kept coherent by a lite map listener on the named cache: a key updated or
+ * removed anywhere in the cluster is dropped from every near cache. The entries also expire after a timeout, which
+ * bounds the staleness of a response whose event was lost while the node was disconnected from the cluster.
+ * <p/>
+ * The entries are spread over segments, each a synchronized map in least recently used order with its share of the
+ * capacity. Every segment counts the invalidations it has seen, so a response read from the named cache is not put
+ * into the near cache if one of its keys was invalidated while it was being read.
+ */
+final class NearResponseCache extends AbstractMapListener {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    /**
+     * Only the events which make a near cached response stale are delivered, without their values
+     */
+    private final MapEventFilter filter =
+            new MapEventFilter(MapEventFilter.E_UPDATED | MapEventFilter.E_DELETED);
+
+    private final Segment[] segments;
+
+    private final long timeoutMillis;
+
+    /**
+     * The named cache this is listening to, or null until the listener is registered
+     */
+    private volatile NamedCache namedCache;
+
+    /**
+     * Creates a near cache which is not listening to a named cache yet
+     *
+     * @param capacity      maximum number of responses
+     * @param timeoutMillis time after which a response expires, 0 for never
+     */
+    NearResponseCache(int capacity, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        int segmentCount = Math.min(SEGMENT_COUNT, capacity);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // the first segments take the remainder of the capacity
+            segments[i] = new Segment(capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0));
+        }
+    }
+
+    /**
+     * Starts listening to the given named cache. The near cache is emptied, since the events of the time it was not
+     * listening have been missed.
+     *
+     * @param cache named cache whose responses are near cached
+     */
+    synchronized void attach(NamedCache cache) {
+        if (namedCache == cache) {
+            return;
+        }
+        detach();
+        cache.addMapListener(this, filter, true);
+        clear();
+        namedCache = cache;
+    }
+
+    /**
+     * Stops listening to the named cache and empties the near cache
+     */
+    synchronized void detach() {
+        NamedCache cache = namedCache;
+        namedCache = null;
+        clear();
+        if (cache != null) {
+            try {
+                cache.removeMapListener(this, filter);
+            } catch (RuntimeException ex) {
+                // a cache which is no longer active has dropped its listeners already
+            }
+        }
+    }
+
+    /**
+     * Tells whether this is listening to the given named cache, rather than to none or to one it has replaced
+     *
+     * @param cache named cache of the mediator
+     * @return true if the listener is registered on the given named cache, and that cache is active
+     */
+    boolean isAttachedTo(NamedCache cache) {
+        return cache != null && namedCache == cache && cache.isActive();
+    }
+
+    /**
+     * Gives the response cached for the given key, if it has not expired
+     *
+     * @param key request hash
+     * @return the response or null
+     */
+    CoherenceCacheableResponse get(String key) {
+        return getSegment(key).get(key);
+    }
+
+    /**
+     * Gives the stamp to be passed to {@link #put(String, CoherenceCacheableResponse, long)}, taken before the
+     * response is read from the named cache
+     *
+     * @param key request hash
+     * @return the number of invalidations seen by the segment of the key
+     */
+    long getStamp(String key) {
+        return getSegment(key).invalidations;
+    }
+
+    /**
+     * Caches a response read from the named cache, unless the segment of its key has been invalidated since the
+     * given stamp was taken, in which case the response may be stale already
+     *
+     * @param key      request hash
+     * @param response response read from the named cache, which must not be modified afterwards
+     * @param stamp    stamp taken before the response was read
+     */
+    void put(String key, CoherenceCacheableResponse response, long stamp) {
+        long expireTimeMillis = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        getSegment(key).put(key, new NearEntry(response, expireTimeMillis), stamp);
+    }
+
+    @Override
+    public void entryUpdated(MapEvent event) {
+        invalidate(event.getKey());
+    }
+
+    @Override
+    public void entryDeleted(MapEvent event) {
+        invalidate(event.getKey());
+    }
+
+    private void invalidate(Object key) {
+        if (key instanceof String) {
+            getSegment((String) key).invalidate((String) key);
+        }
+    }
+
+    private void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment getSegment(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private static final class NearEntry {
+
+        final CoherenceCacheableResponse response;
+
+        final long expireTimeMillis;
+
+        NearEntry(CoherenceCacheableResponse response, long expireTimeMillis) {
+            this.response = response;
+            this.expireTimeMillis = expireTimeMillis;
+        }
+    }
+
+    private static final class Segment {
+
+        private final Map<String, NearEntry> entries;
+
+        /**
+         * Number of invalidations of the keys of this segment, only changed while holding the segment
+         */
+        volatile long invalidations;
+
+        Segment(final int capacity) {
+            entries = new LinkedHashMap<String, NearEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, NearEntry> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized CoherenceCacheableResponse get(String key) {
+            NearEntry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expireTimeMillis <= System.currentTimeMillis()) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.response;
+        }
+
+        synchronized void put(String key, NearEntry entry, long stamp) {
+            if (invalidations == stamp) {
+                entries.put(key, entry);
+            }
+        }
+
+        synchronized void invalidate(String key) {
+            invalidations++;
+            entries.remove(key);
+        }
+
+        synchronized void clear() {
+            invalidations++;
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.raj.gateway.bespokes.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of the responses to be stored in a Coherence named cache, which a background thread writes in
+ * batches, so that the responses are sent to the clients without waiting for the cluster. A response offered while
+ * the queue is full is dropped rather than blocking the request, and so is a batch which cannot be stored; both are
+ * counted. The responses queued for the same request hash are stored once, with the latest one.
+ */
+final class WriteBehindQueue implements Runnable {
+
+    private static final Log log = LogFactory.getLog(WriteBehindQueue.class);
+
+    /**
+     * Minimum time between two warnings about dropped responses
+     */
+    private static final long DROP_WARNING_INTERVAL = 60000;
+
+    /**
+     * Time given to the writer to store the queued responses when the queue is shut down
+     */
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    /**
+     * Stores a batch of responses, such as through NamedCache.putAll
+     */
+    interface Writer {
+
+        /**
+         * @param batch responses by request hash
+         * @return false if the batch has been skipped
+         * @throws RuntimeException if the batch could not be stored
+         */
+        boolean storeAll(Map<String, CoherenceCacheableResponse> batch);
+    }
+
+    private final BlockingQueue<CoherenceCacheableResponse> queue;
+
+    private final int batchSize;
+
+    private final Writer writer;
+
+    private final String cacheName;
+
+    private final Thread thread;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private long reportedDroppedCount;
+
+    private long lastDropWarning;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates the queue and starts its writer
+     *
+     * @param cacheName name of the cache, for the thread name and the log
+     * @param capacity  maximum number of queued responses
+     * @param batchSize maximum number of responses stored at once
+     * @param writer    stores the batches
+     */
+    WriteBehindQueue(String cacheName, int capacity, int batchSize, Writer writer) {
+        this.queue = new ArrayBlockingQueue<CoherenceCacheableResponse>(capacity);
+        this.batchSize = batchSize;
+        this.writer = writer;
+        this.cacheName = cacheName;
+        thread = new Thread(this, "coherence-cache-" + cacheName + "-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a response to be stored under its request hash
+     *
+     * @param response response which is not modified afterwards
+     * @return false if the queue is full and the response has been dropped
+     */
+    boolean offer(CoherenceCacheableResponse response) {
+        if (running && queue.offer(response)) {
+            return true;
+        }
+        droppedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Gives the number of responses which have been dropped since the queue was created, because the queue was
+     * full or they could not be stored
+     *
+     * @return the dropped count
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Stops the writer once it has stored the responses queued so far, waiting for it for a while
+     */
+    void shutdown() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        List<CoherenceCacheableResponse> drained = new ArrayList<CoherenceCacheableResponse>(batchSize);
+        while (running) {
+            try {
+                CoherenceCacheableResponse first = queue.poll(DROP_WARNING_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    drained.add(first);
+                    queue.drainTo(drained, batchSize - 1);
+                    store(drained);
+                }
+            } catch (InterruptedException e) {
+                // shut down
+            }
+            warnDropped();
+        }
+        // the responses queued before the shut down are still stored
+        Thread.interrupted();
+        while (queue.drainTo(drained, batchSize) > 0) {
+            store(drained);
+        }
+    }
+
+    private void store(List<CoherenceCacheableResponse> drained) {
+        Map<String, CoherenceCacheableResponse> batch =
+                new LinkedHashMap<String, CoherenceCacheableResponse>(drained.size() * 2);
+        for (CoherenceCacheableResponse response : drained) {
+            batch.put(response.getRequestHash(), response);
+        }
+        drained.clear();
+        try {
+            if (!writer.storeAll(batch)) {
+                droppedCount.addAndGet(batch.size());
+            }
+        } catch (RuntimeException e) {
+            droppedCount.addAndGet(batch.size());
+            log.warn("Unable to store " + batch.size() + " responses in the cache " + cacheName
+                    + " from oracle coherence. " + e.getMessage());
+        }
+    }
+
+    private void warnDropped() {
+        long dropped = droppedCount.get();
+        long now = System.currentTimeMillis();
+        if (dropped != reportedDroppedCount && now - lastDropWarning >= DROP_WARNING_INTERVAL) {
+            log.warn("Dropped " + (dropped - reportedDroppedCount) + " responses to be stored in the cache "
+                    + cacheName + " from oracle coherence, " + dropped + " in total");
+            reportedDroppedCount = dropped;
+            lastDropWarning = now;
+        }
+    }
+}
@@ -17,7 +17,10 @@ import java.util.Properties;
 * Creates an instance of a Cache mediator using XML configuration specified
 * <p/>
 * <pre>
-* &lt;coherence [id="string"] [cacheName="coherence-cache-name"] [hashGenerator="class"] collector=(true | false) [maxMessageSize="in-bytes"]&gt;
+* &lt;coherence [id="string"] [cacheName="coherence-cache-name"] [hashGenerator="class"] collector=(true | false) [maxMessageSize="in-bytes"]
+*            [nearCacheSize="entries"] [nearCacheTimeout="in-seconds"] [lookupTimeout="in-milliseconds"]
+*            [failureThreshold="failures"] [retryInterval="in-seconds"] [writeBehindQueueSize="entries"]
+*            [writeBehindBatchSize="entries"] [coalesceTimeout="in-milliseconds"]&gt;
 *   &lt;onCacheHit [sequence="key"]&gt;
 *     (mediator)+
 *   &lt;/onCacheHit&gt;?
@@ -51,6 +54,46 @@ public class CoherenceCacheMediatorFactory extends AbstractMediatorFactory {
 	 */
 	private static final QName ATT_MAX_MSG_SIZE = new QName("maxMessageSize");
 
+	/**
+	 * QName of the maximum number of responses in the near cache
+	 */
+	private static final QName ATT_NEAR_CACHE_SIZE = new QName("nearCacheSize");
+
+	/**
+	 * QName of the near cache timeout
+	 */
+	private static final QName ATT_NEAR_CACHE_TIMEOUT = new QName("nearCacheTimeout");
+
+	/**
+	 * QName of the time a request waits for the coherence cache
+	 */
+	private static final QName ATT_LOOKUP_TIMEOUT = new QName("lookupTimeout");
+
+	/**
+	 * QName of the number of consecutive failures after which the coherence cache is bypassed
+	 */
+	private static final QName ATT_FAILURE_THRESHOLD = new QName("failureThreshold");
+
+	/**
+	 * QName of the time for which the coherence cache is bypassed before it is probed again
+	 */
+	private static final QName ATT_RETRY_INTERVAL = new QName("retryInterval");
+
+	/**
+	 * QName of the maximum number of responses waiting to be stored
+	 */
+	private static final QName ATT_WRITE_BEHIND_QUEUE_SIZE = new QName("writeBehindQueueSize");
+
+	/**
+	 * QName of the maximum number of responses stored at once
+	 */
+	private static final QName ATT_WRITE_BEHIND_BATCH_SIZE = new QName("writeBehindBatchSize");
+
+	/**
+	 * QName of the time a request waits for the response being fetched by another node
+	 */
+	private static final QName ATT_COALESCE_TIMEOUT = new QName("coalesceTimeout");
+
 	/**
 	 * QName of the mediator sequence
 	 */
@@ -88,6 +131,33 @@ public class CoherenceCacheMediatorFactory extends AbstractMediatorFactory {
 			coherence.setCoherenceCacheName(coherenceCacheNameAttr.getAttributeValue());
 		}
 
+		OMAttribute lookupTimeoutAttr = elem.getAttribute(ATT_LOOKUP_TIMEOUT);
+		if (lookupTimeoutAttr != null && lookupTimeoutAttr.getAttributeValue() != null) {
+			long lookupTimeout = Long.parseLong(lookupTimeoutAttr.getAttributeValue().trim());
+			if (lookupTimeout < 0) {
+				handleException("The lookupTimeout of the coherence mediator cannot be negative");
+			}
+			coherence.setLookupTimeout(lookupTimeout);
+		}
+
+		OMAttribute failureThresholdAttr = elem.getAttribute(ATT_FAILURE_THRESHOLD);
+		if (failureThresholdAttr != null && failureThresholdAttr.getAttributeValue() != null) {
+			int failureThreshold = Integer.parseInt(failureThresholdAttr.getAttributeValue().trim());
+			if (failureThreshold < 1) {
+				handleException("The failureThreshold of the coherence mediator must be at least 1");
+			}
+			coherence.setFailureThreshold(failureThreshold);
+		}
+
+		OMAttribute retryIntervalAttr = elem.getAttribute(ATT_RETRY_INTERVAL);
+		if (retryIntervalAttr != null && retryIntervalAttr.getAttributeValue() != null) {
+			long retryInterval = Long.parseLong(retryIntervalAttr.getAttributeValue().trim());
+			if (retryInterval < 0) {
+				handleException("The retryInterval of the coherence mediator cannot be negative");
+			}
+			coherence.setRetryInterval(retryInterval);
+		}
+
 		OMAttribute collectorAttr = elem.getAttribute(ATT_COLLECTOR);
 		if (collectorAttr != null && collectorAttr.getAttributeValue() != null &&
 		    "true".equals(collectorAttr.getAttributeValue())) {
@@ -99,6 +169,24 @@ public class CoherenceCacheMediatorFactory extends AbstractMediatorFactory {
 				coherence.setMaxMessageSize(Integer.parseInt(maxMessageSizeAttr.getAttributeValue()));
 			}
 
+			OMAttribute queueSizeAttr = elem.getAttribute(ATT_WRITE_BEHIND_QUEUE_SIZE);
+			if (queueSizeAttr != null && queueSizeAttr.getAttributeValue() != null) {
+				int queueSize = Integer.parseInt(queueSizeAttr.getAttributeValue().trim());
+				if (queueSize < 0) {
+					handleException("The writeBehindQueueSize of the coherence mediator cannot be negative");
+				}
+				coherence.setWriteBehindQueueSize(queueSize);
+			}
+
+			OMAttribute batchSizeAttr = elem.getAttribute(ATT_WRITE_BEHIND_BATCH_SIZE);
+			if (batchSizeAttr != null && batchSizeAttr.getAttributeValue() != null) {
+				int batchSize = Integer.parseInt(batchSizeAttr.getAttributeValue().trim());
+				if (batchSize < 1) {
+					handleException("The writeBehindBatchSize of the coherence mediator must be at least 1");
+				}
+				coherence.setWriteBehindBatchSize(batchSize);
+			}
+
 		} else {
 
 			coherence.setCollector(false);
@@ -124,6 +212,33 @@ public class CoherenceCacheMediatorFactory extends AbstractMediatorFactory {
 				}
 			}
 
+			OMAttribute nearCacheSizeAttr = elem.getAttribute(ATT_NEAR_CACHE_SIZE);
+			if (nearCacheSizeAttr != null && nearCacheSizeAttr.getAttributeValue() != null) {
+				int nearCacheSize = Integer.parseInt(nearCacheSizeAttr.getAttributeValue().trim());
+				if (nearCacheSize < 0) {
+					handleException("The nearCacheSize of the coherence mediator cannot be negative");
+				}
+				coherence.setNearCacheSize(nearCacheSize);
+			}
+
+			OMAttribute nearCacheTimeoutAttr = elem.getAttribute(ATT_NEAR_CACHE_TIMEOUT);
+			if (nearCacheTimeoutAttr != null && nearCacheTimeoutAttr.getAttributeValue() != null) {
+				long nearCacheTimeout = Long.parseLong(nearCacheTimeoutAttr.getAttributeValue().trim());
+				if (nearCacheTimeout < 0) {
+					handleException("The nearCacheTimeout of the coherence mediator cannot be negative");
+				}
+				coherence.setNearCacheTimeout(nearCacheTimeout);
+			}
+
+			OMAttribute coalesceTimeoutAttr = elem.getAttribute(ATT_COALESCE_TIMEOUT);
+			if (coalesceTimeoutAttr != null && coalesceTimeoutAttr.getAttributeValue() != null) {
+				long coalesceTimeout = Long.parseLong(coalesceTimeoutAttr.getAttributeValue().trim());
+				if (coalesceTimeout < 0) {
+					handleException("The coalesceTimeout of the coherence mediator cannot be negative");
+				}
+				coherence.setCoalesceTimeout(coalesceTimeout);
+			}
+
 			OMElement onCacheHitElem = elem.getFirstChildWithName(ON_CACHE_HIT_Q);
 			if (onCacheHitElem != null) {
 				OMAttribute sequenceAttr = onCacheHitElem.getAttribute(ATT_SEQUENCE);
@@ -1,6 +1,7 @@
 package com.raj.gateway.bespokes.cache.config.xml;
 
 import com.raj.gateway.bespokes.cache.CoherenceCacheMediator;
+import com.raj.gateway.bespokes.cache.CoherenceCachingConstants;
 import org.apache.axiom.om.OMElement;
 import org.apache.synapse.Mediator;
 import org.apache.synapse.config.xml.AbstractMediatorSerializer;
@@ -13,7 +14,10 @@ import java.util.List;
  * Serializes the Cache mediator to the XML configuration specified
  * <p/>
  * <pre>
- * &lt;coherence [id="string"] [cacheName="coherence-cache-name"] [hashGenerator="class"] collector=(true | false) [maxMessageSize="in-bytes"]&gt;
+ * &lt;coherence [id="string"] [cacheName="coherence-cache-name"] [hashGenerator="class"] collector=(true | false) [maxMessageSize="in-bytes"]
+ *            [nearCacheSize="entries"] [nearCacheTimeout="in-seconds"] [lookupTimeout="in-milliseconds"]
+ *            [failureThreshold="failures"] [retryInterval="in-seconds"] [writeBehindQueueSize="entries"]
+ *            [writeBehindBatchSize="entries"] [coalesceTimeout="in-milliseconds"]&gt;
  *   &lt;onCacheHit [sequence="key"]&gt;
  *     (mediator)+
  *   &lt;/onCacheHit&gt;?
@@ -40,6 +44,21 @@ public class CoherenceCacheMediatorSerializer extends AbstractMediatorSerializer
 			coherence.addAttribute(fac.createOMAttribute("cacheName", nullNS, mediator.getCoherenceCacheName()));
 		}
 
+		if (mediator.getLookupTimeout() != CoherenceCachingConstants.DEFAULT_LOOKUP_TIMEOUT) {
+			coherence.addAttribute(fac.createOMAttribute("lookupTimeout", nullNS,
+			                                         Long.toString(mediator.getLookupTimeout())));
+		}
+
+		if (mediator.getFailureThreshold() != CoherenceCachingConstants.DEFAULT_FAILURE_THRESHOLD) {
+			coherence.addAttribute(fac.createOMAttribute("failureThreshold", nullNS,
+			                                         Integer.toString(mediator.getFailureThreshold())));
+		}
+
+		if (mediator.getRetryInterval() != CoherenceCachingConstants.DEFAULT_RETRY_INTERVAL) {
+			coherence.addAttribute(fac.createOMAttribute("retryInterval", nullNS,
+			                                         Long.toString(mediator.getRetryInterval())));
+		}
+
 		if (mediator.isCollector()) {
 			coherence.addAttribute(fac.createOMAttribute("collector", nullNS, "true"));
 
@@ -48,6 +67,13 @@ public class CoherenceCacheMediatorSerializer extends AbstractMediatorSerializer
 						fac.createOMAttribute("maxMessageSize", nullNS,
 								Integer.toString(mediator.getMaxMessageSize())));
 			}
+
+			if (mediator.getWriteBehindQueueSize() > 0) {
+				coherence.addAttribute(fac.createOMAttribute("writeBehindQueueSize", nullNS,
+				                                         Integer.toString(mediator.getWriteBehindQueueSize())));
+				coherence.addAttribute(fac.createOMAttribute("writeBehindBatchSize", nullNS,
+				                                         Integer.toString(mediator.getWriteBehindBatchSize())));
+			}
 		} else {
 
 			coherence.addAttribute(fac.createOMAttribute("collector", nullNS, "false"));
@@ -57,6 +83,18 @@ public class CoherenceCacheMediatorSerializer extends AbstractMediatorSerializer
 				                                         mediator.getDigestGenerator().getClass().getName()));
 			}
 
+			if (mediator.getNearCacheSize() > 0) {
+				coherence.addAttribute(fac.createOMAttribute("nearCacheSize", nullNS,
+				                                         Integer.toString(mediator.getNearCacheSize())));
+				coherence.addAttribute(fac.createOMAttribute("nearCacheTimeout", nullNS,
+				                                         Long.toString(mediator.getNearCacheTimeout())));
+			}
+
+			if (mediator.getCoalesceTimeout() > 0) {
+				coherence.addAttribute(fac.createOMAttribute("coalesceTimeout", nullNS,
+				                                         Long.toString(mediator.getCoalesceTimeout())));
+			}
+
 			if (mediator.getOnCacheHitRef() != null) {
 				OMElement onCacheHit = fac.createOMElement("onCacheHit", synNS);
 				onCacheHit.addAttribute(
@@ -0,0 +1,87 @@
+package com.raj.gateway.bespokes.cache.digest;
+
+import com.raj.gateway.bespokes.cache.CoherenceCachingException;
+import org.apache.axiom.om.OMAttribute;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNode;
+import org.apache.axiom.om.OMProcessingInstruction;
+import org.apache.axiom.om.OMText;
+import org.apache.axis2.context.MessageContext;
+
+/**
+ * A DigestGenerator which identifies a request by its To address and the normalized XML of its SOAP body, using
+ * the 128 bit MurmurHash3 of the UTF-8 encoded nodes instead of the MD5 DOMHASH. The nodes are normalized as the
+ * DOMHASH does, but they are streamed into a single hash rather than hashed one by one, and every name and value is
+ * prefixed with its length, so different messages never feed the same bytes. The digest is a fixed width string of
+ * 32 hex digits.
+ * <p/>
+ * Select it with hashGenerator="com.raj.gateway.bespokes.cache.digest.Murmur3HashGenerator".
+ */
+public class Murmur3HashGenerator extends DomHashGenerator {
+
+    private static final long serialVersionUID = -4733925620434185514L;
+
+    private static final byte TO_ADDRESS = 0;
+
+    private static final byte ELEMENT = 1;
+
+    private static final byte ATTRIBUTE = 2;
+
+    private static final byte TEXT = 3;
+
+    private static final byte PROCESSING_INSTRUCTION = 7;
+
+    private static final byte END_ELEMENT = 8;
+
+    private static final ThreadLocal<Murmur3Hasher> HASHER = new ThreadLocal<Murmur3Hasher>() {
+        @Override
+        protected Murmur3Hasher initialValue() {
+            return new Murmur3Hasher();
+        }
+    };
+
+    public String getDigest(MessageContext msgContext) throws CoherenceCachingException {
+
+        OMNode body = msgContext.getEnvelope().getBody();
+        if (body == null) {
+            return null;
+        }
+        Murmur3Hasher hasher = HASHER.get().reset();
+        if (msgContext.getTo() != null && msgContext.getTo().getAddress() != null) {
+            hasher.update(TO_ADDRESS);
+            update(hasher, msgContext.getTo().getAddress());
+        }
+        update(hasher, body);
+        return hasher.finishHex();
+    }
+
+    private void update(Murmur3Hasher hasher, OMNode node) {
+        if (node.getType() == OMNode.ELEMENT_NODE) {
+            OMElement element = (OMElement) node;
+            hasher.update(ELEMENT);
+            update(hasher, getExpandedName(element));
+            for (Object attribute : getAttributesWithoutNS(element)) {
+                hasher.update(ATTRIBUTE);
+                update(hasher, getExpandedName((OMAttribute) attribute));
+                update(hasher, ((OMAttribute) attribute).getAttributeValue());
+            }
+            for (OMNode child = element.getFirstOMChild(); child != null; child = child.getNextOMSibling()) {
+                update(hasher, child);
+            }
+            hasher.update(END_ELEMENT);
+        } else if (node.getType() == OMNode.TEXT_NODE) {
+            hasher.update(TEXT);
+            update(hasher, ((OMText) node).getText());
+        } else if (node.getType() == OMNode.PI_NODE) {
+            OMProcessingInstruction pi = (OMProcessingInstruction) node;
+            hasher.update(PROCESSING_INSTRUCTION);
+            update(hasher, pi.getTarget());
+            update(hasher, pi.getValue());
+        }
+        // comments and the other nodes do not take part in the digest
+    }
+
+    private static void update(Murmur3Hasher hasher, String value) {
+        hasher.update(value.length()).update(value);
+    }
+}
@@ -0,0 +1,150 @@
+package com.raj.gateway.bespokes.cache;
+
+import com.tangosol.util.ObservableHashMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NearResponseCacheTest {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    @Test
+    public void testUpdateEventInvalidatesTheEntry() {
+        NearResponseCache nearCache = new NearResponseCache(100, 0);
+        ObservableHashMap namedCache = new ObservableHashMap();
+        namedCache.addMapListener(nearCache);
+        namedCache.put("a", newResponse("a"));
+        namedCache.put("b", newResponse("b"));
+        nearCache.put("a", (CoherenceCacheableResponse) namedCache.get("a"), nearCache.getStamp("a"));
+        nearCache.put("b", (CoherenceCacheableResponse) namedCache.get("b"), nearCache.getStamp("b"));
+
+        namedCache.put("a", newResponse("a"));
+
+        assertNull(nearCache.get("a"));
+        assertNotNull("the other keys are kept", nearCache.get("b"));
+    }
+
+    @Test
+    public void testDeleteEventInvalidatesTheEntry() {
+        NearResponseCache nearCache = new NearResponseCache(100, 0);
+        ObservableHashMap namedCache = new ObservableHashMap();
+        namedCache.addMapListener(nearCache);
+        namedCache.put("a", newResponse("a"));
+        nearCache.put("a", (CoherenceCacheableResponse) namedCache.get("a"), nearCache.getStamp("a"));
+
+        namedCache.remove("a");
+
+        assertNull(nearCache.get("a"));
+    }
+
+    @Test
+    public void testPutIsRejectedAfterAnInvalidationRace() {
+        NearResponseCache nearCache = new NearResponseCache(100, 0);
+        ObservableHashMap namedCache = new ObservableHashMap();
+        namedCache.addMapListener(nearCache);
+        namedCache.put("a", newResponse("a"));
+
+        // the response is read, and changed by another node before it is near cached
+        long stamp = nearCache.getStamp("a");
+        CoherenceCacheableResponse stale = (CoherenceCacheableResponse) namedCache.get("a");
+        namedCache.put("a", newResponse("a"));
+        nearCache.put("a", stale, stamp);
+
+        assertNull("the stale response is not near cached", nearCache.get("a"));
+
+        CoherenceCacheableResponse fresh = (CoherenceCacheableResponse) namedCache.get("a");
+        nearCache.put("a", fresh, nearCache.getStamp("a"));
+        assertSame(fresh, nearCache.get("a"));
+    }
+
+    @Test
+    public void testEntriesExpire() throws InterruptedException {
+        NearResponseCache nearCache = new NearResponseCache(100, 50);
+        CoherenceCacheableResponse response = newResponse("a");
+        nearCache.put("a", response, nearCache.getStamp("a"));
+
+        assertSame(response, nearCache.get("a"));
+        Thread.sleep(100);
+        assertNull(nearCache.get("a"));
+    }
+
+    @Test
+    public void testEntriesWithoutTimeoutDoNotExpire() throws InterruptedException {
+        NearResponseCache nearCache = new NearResponseCache(100, 0);
+        CoherenceCacheableResponse response = newResponse("a");
+        nearCache.put("a", response, nearCache.getStamp("a"));
+
+        Thread.sleep(20);
+        assertSame(response, nearCache.get("a"));
+    }
+
+    @Test
+    public void testSizeIsBoundedByTheCapacity() {
+        int capacity = 40;
+        NearResponseCache nearCache = new NearResponseCache(capacity, 0);
+        for (int i = 0; i < 1000; i++) {
+            String key = "key-" + i;
+            nearCache.put(key, newResponse(key), nearCache.getStamp(key));
+        }
+
+        int cached = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (nearCache.get("key-" + i) != null) {
+                cached++;
+            }
+        }
+        assertTrue("cached " + cached, cached > 0 && cached <= capacity);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        // two entries per segment
+        NearResponseCache nearCache = new NearResponseCache(2 * SEGMENT_COUNT, 0);
+        List<String> keys = keysOfOneSegment(3);
+        String first = keys.get(0);
+        String second = keys.get(1);
+        String third = keys.get(2);
+        nearCache.put(first, newResponse(first), nearCache.getStamp(first));
+        nearCache.put(second, newResponse(second), nearCache.getStamp(second));
+
+        // the first entry is used, so the second one is the least recently used
+        assertNotNull(nearCache.get(first));
+        nearCache.put(third, newResponse(third), nearCache.getStamp(third));
+
+        assertNotNull(nearCache.get(first));
+        assertNull(nearCache.get(second));
+        assertNotNull(nearCache.get(third));
+    }
+
+    private static CoherenceCacheableResponse newResponse(String requestHash) {
+        CoherenceCacheableResponse response = new CoherenceCacheableResponse();
+        response.setRequestHash(requestHash);
+        response.setResponseEnvelope(new byte[]{'{', '}'});
+        response.setJson(true);
+        return response;
+    }
+
+    /**
+     * Gives keys which fall into the same segment of a near cache of SEGMENT_COUNT segments, spread as the near
+     * cache spreads them
+     */
+    private static List<String> keysOfOneSegment(int count) {
+        List<String> keys = new ArrayList<String>(count);
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "key-" + i;
+            int hash = key.hashCode();
+            hash ^= hash >>> 16;
+            if ((hash & Integer.MAX_VALUE) % SEGMENT_COUNT == 0) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
@@ -18,53 +18,109 @@
 
 package org.wso2.carbon.mediator.cache.json;
 
-import java.io.Serializable;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import org.wso2.carbon.mediator.cache.json.store.PayloadArena;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+import org.wso2.carbon.mediator.cache.json.util.PayloadCompression;
+import org.wso2.carbon.mediator.cache.json.util.ResponseCodec;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * This object holds the cached response and the related properties of the cache
  * per request and will be stored in to the cache. This holds the response envelope
  * together with the request hash and the response hash. Apart from that this object
  * holds the refresh time of the cache and the timeout period. This implements the
- * Serializable interface to support the clustered caching.
+ * Externalizable interface to support the clustered caching, writing itself in the
+ * compact form of the ResponseCodec rather than through reflection.
  *
- * @see Serializable
+ * @see ResponseCodec
  */
-public class CachableResponse implements Serializable {
+public class CachableResponse implements Externalizable {
+
+	private static final AtomicIntegerFieldUpdater<CachableResponse> REF_COUNT =
+			AtomicIntegerFieldUpdater.newUpdater(CachableResponse.class, "refCount");
+
+	private static final AtomicLongFieldUpdater<CachableResponse> REFRESH_STARTED_MILLIS =
+			AtomicLongFieldUpdater.newUpdater(CachableResponse.class, "refreshStartedMillis");
+
+	/**
+	 * This holds the raw bytes of the response payload as received from the backend, which will be
+	 * written back as it is on a cache hit. The buffer is on the heap, in an off heap arena chunk or a
+	 * slice of a memory mapped segment of the disk cache
+	 */
+	private transient ByteBuffer responsePayload;
+
+	/**
+	 * This specifies whether the cached payload is a JSON stream or a serialized XML element
+	 */
+	private boolean json;
+
+	/**
+	 * This specifies how the cached payload is compressed
+	 */
+	private PayloadCompression compression = PayloadCompression.NONE;
 
-	private String responsePayload;
+	/**
+	 * This holds the names of the request headers by which the response of the request varies, if this object
+	 * marks a request whose responses are cached per variant rather than a cached response
+	 */
+	private String[] varyHeaders;
 
 	/**
-	 * This boolean value defines whether this cached object is in use or not
-	 * Cache cleanup method will not remove cached object if cached object is in use
-	 * Upon cache hit, cached object will set inUse as true and set inUse as false after response
-	 * is served by cached object
+	 * This holds the number of references to this cached object. The cache holds the first reference,
+	 * and each cache hit takes one more until the response has been written to the client. The off heap
+	 * chunk of the response is freed only once all the references are released, so eviction never frees
+	 * a payload which is still being written. It is updated through REF_COUNT, so no atomic object is kept per
+	 * cached response
 	 */
-	private AtomicBoolean inUse = new AtomicBoolean(false);
+	private transient volatile int refCount = 1;
 
 	/**
-	 * This holds the hash value of the request payload which is calculated form
-	 * the specified DigestGenerator, and is used to index the cached response
+	 * This holds the arena which owns the chunk of this response, if the response is kept off heap
 	 */
-	private String requestHash;
+	private transient PayloadArena arena;
+
+	/**
+	 * This holds the time at which a background refresh of this expired response was started, or 0 if none has
+	 * been started. This makes sure a single refresh is in progress while the stale response is served
+	 */
+	private transient volatile long refreshStartedMillis;
+
+	/**
+	 * This holds the off heap chunk in which the headers and the payload of this response are kept
+	 */
+	private transient ByteBuffer chunk;
+
+	/**
+	 * This holds the key of the request which is calculated from the digest of the specified DigestGenerator,
+	 * and is used to index the cached response. It is the same instance as the key of the store
+	 */
+	private CacheKey key;
 
 	/**
 	 * This holds the time at which this particular cached response expires, in
-	 * the standard java system time format (i.e. System.currentTimeMillis())
+	 * the standard java system time format (i.e. System.currentTimeMillis()). It is
+	 * extended in place when the cached response is revalidated
 	 */
-	private long expireTimeMillis;
+	private volatile long expireTimeMillis;
 
 	/**
 	 * This holds the timeout period of the cached response which will be used
 	 * at the next refresh time in order to generate the expireTimeMillis
 	 */
-	private long timeout;
+	private volatile long timeout;
 
 	/**
-	 * This holds the HTTP Header Properties of the response.
+	 * This holds the HTTP Header Properties of the response encoded with the HeaderCodec. The headers are
+	 * kept in the same buffer as the payload, right in front of it.
 	 * */
-	private Map<String,Object> headerProperties;
+	private transient ByteBuffer headerProperties;
 
 	/**
 	 * This method checks whether this cached response is expired or not
@@ -75,6 +131,32 @@ public class CachableResponse implements Serializable {
 		return timeout <= 0 || expireTimeMillis < System.currentTimeMillis();
 	}
 
+	/**
+	 * This method checks whether this cached response is expired beyond the given grace period, during which
+	 * an expired response may still be served while it is refreshed
+	 *
+	 * @param graceMillis - grace period after the expiry in milliseconds
+	 * @return boolean true if the grace period is over as well and false if not
+	 */
+	public boolean isExpired(long graceMillis) {
+		return timeout <= 0 || expireTimeMillis + graceMillis < System.currentTimeMillis();
+	}
+
+	/**
+	 * This method claims the background refresh of this expired response. Only one caller succeeds until the
+	 * given retry period has passed, after which a refresh which has not replaced this response yet is considered
+	 * failed and may be claimed again
+	 *
+	 * @param retryMillis - period after which a refresh may be started again
+	 * @return true if the caller should refresh the response, false if a refresh is already in progress
+	 */
+	public boolean startRefresh(long retryMillis) {
+		long now = System.currentTimeMillis();
+		long started = refreshStartedMillis;
+		return (started == 0 || started + retryMillis < now) &&
+		       REFRESH_STARTED_MILLIS.compareAndSet(this, started, now);
+	}
+
 	/**
 	 * This method will refresh the cached response stored in this object.
 	 * If further explained this method will set the response envelope and the
@@ -93,30 +175,218 @@ public class CachableResponse implements Serializable {
 		setTimeout(timeout);
 	}
 
-	public String getResponsePayload() {
+	/**
+	 * This method takes a reference to this cached response, which keeps its payload from being freed
+	 * until the reference is released
+	 *
+	 * @return true if the reference was taken, false if the response has already been freed
+	 */
+	public boolean retain() {
+		int count;
+		do {
+			count = refCount;
+			if (count <= 0) {
+				return false;
+			}
+		} while (!REF_COUNT.compareAndSet(this, count, count + 1));
+		return true;
+	}
+
+	/**
+	 * This method releases a reference to this cached response. The off heap chunk of the response is
+	 * returned to its arena when the last reference is released
+	 */
+	public void release() {
+		int count = REF_COUNT.decrementAndGet(this);
+		if (count == 0 && chunk != null) {
+			responsePayload = null;
+			headerProperties = null;
+			arena.free(chunk);
+			chunk = null;
+		} else if (count < 0) {
+			throw new IllegalStateException("Cached response for request key " + key +
+			                                " has been released more times than it was retained");
+		}
+	}
+
+	/**
+	 * This method gives the number of bytes of the encoded headers and the payload of this response
+	 *
+	 * @return length of the response block in bytes
+	 */
+	public int getBlockLength() {
+		return (headerProperties != null ? headerProperties.remaining() : 0) +
+		       (responsePayload != null ? responsePayload.remaining() : 0);
+	}
+
+	/**
+	 * This method writes the encoded headers followed by the payload of this response into the given buffer
+	 *
+	 * @param target - buffer with at least getBlockLength() bytes remaining
+	 */
+	public void writeBlock(ByteBuffer target) {
+		if (headerProperties != null) {
+			target.put(headerProperties.duplicate());
+		}
+		if (responsePayload != null) {
+			target.put(responsePayload.duplicate());
+		}
+	}
+
+	/**
+	 * This method creates a copy of this cached response which refers to the given block instead, which holds
+	 * the headers and the payload as written by writeBlock. This is used to move a response between the memory
+	 * and disk tiers of the cache
+	 *
+	 * @param block - buffer holding the headers and the payload of the copy
+	 * @return CachableResponse copy referring to the given block
+	 */
+	public CachableResponse duplicate(ByteBuffer block) {
+		CachableResponse copy = new CachableResponse();
+		copy.setBlock(block, headerProperties != null ? headerProperties.remaining() : 0);
+		copy.json = json;
+		copy.compression = compression;
+		copy.varyHeaders = varyHeaders;
+		copy.key = key;
+		copy.expireTimeMillis = expireTimeMillis;
+		copy.timeout = timeout;
+		return copy;
+	}
+
+	/**
+	 * This method moves the headers and the payload of this response into a chunk of the given arena, so that
+	 * they are kept off the heap from then on
+	 *
+	 * @param arena - arena from which the chunk is allocated
+	 * @return true if the response was moved, false if it is already off heap or the arena has no room for it
+	 */
+	public boolean moveToArena(PayloadArena arena) {
+		if (chunk != null) {
+			return false;
+		}
+		ByteBuffer allocated = arena.allocate(getBlockLength());
+		if (allocated == null) {
+			return false;
+		}
+		int headerLength = headerProperties != null ? headerProperties.remaining() : 0;
+		ByteBuffer target = allocated.duplicate();
+		writeBlock(target);
+		this.arena = arena;
+		this.chunk = allocated;
+		setBlock(allocated.duplicate(), headerLength);
+		return true;
+	}
+
+	/**
+	 * This method gives whether the headers and the payload of this response are kept off the heap
+	 *
+	 * @return true if the response is held in an arena chunk
+	 */
+	public boolean isOffHeap() {
+		return chunk != null;
+	}
+
+	private void setBlock(ByteBuffer block, int headerLength) {
+		ByteBuffer view = block.duplicate();
+		int start = view.position();
+		int end = view.limit();
+		view.limit(start + headerLength);
+		ByteBuffer headers = view.slice();
+		view.limit(end);
+		view.position(start + headerLength);
+		this.headerProperties = headers;
+		this.responsePayload = view.slice();
+	}
+
+	/**
+	 * This method gives how the cached payload is compressed
+	 *
+	 * @return compression of the payload
+	 */
+	public PayloadCompression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * This method sets how the cached payload is compressed
+	 *
+	 * @param compression - compression of the payload
+	 */
+	public void setCompression(PayloadCompression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * This method gives the names of the request headers by which the responses of the request vary
+	 *
+	 * @return lower cased header names, or null if this is a cached response
+	 */
+	public String[] getVaryHeaders() {
+		return varyHeaders;
+	}
+
+	/**
+	 * This method marks this object as the entry of a request whose responses are cached per variant
+	 *
+	 * @param varyHeaders - lower cased names of the request headers by which the responses vary
+	 */
+	public void setVaryHeaders(String[] varyHeaders) {
+		this.varyHeaders = varyHeaders;
+	}
+
+	/**
+	 * This method gives the raw bytes of the cached response payload. The returned buffer is shared,
+	 * so it should be duplicated before it is read
+	 *
+	 * @return ByteBuffer of the response payload
+	 */
+	public ByteBuffer getResponsePayload() {
 		return responsePayload;
 	}
 
-	public void setResponsePayload(String responsePayload) {
+	/**
+	 * This method sets the raw bytes of the response payload to the cache
+	 *
+	 * @param responsePayload - bytes of the response payload
+	 */
+	public void setResponsePayload(ByteBuffer responsePayload) {
 		this.responsePayload = responsePayload;
 	}
 
 	/**
-	 * This method gives the hash value of the request payload stored in the cache
+	 * This method gives whether the cached payload is a JSON stream
+	 *
+	 * @return true if the payload is JSON and false if it is a serialized XML element
+	 */
+	public boolean isJson() {
+		return json;
+	}
+
+	/**
+	 * This method sets whether the cached payload is a JSON stream
+	 *
+	 * @param json - true if the payload is JSON
+	 */
+	public void setJson(boolean json) {
+		this.json = json;
+	}
+
+	/**
+	 * This method gives the key of the request under which this response is cached
 	 *
-	 * @return String hash of the request payload
+	 * @return CacheKey of the request
 	 */
-	public String getRequestHash() {
-		return requestHash;
+	public CacheKey getKey() {
+		return key;
 	}
 
 	/**
-	 * This method sets the hash of the request to the cache
+	 * This method sets the key of the request under which this response is cached
 	 *
-	 * @param requestHash   - hash of the request payload to be set as an String
+	 * @param key   - key of the request
 	 */
-	public void setRequestHash(String requestHash) {
-		this.requestHash = requestHash;
+	public void setKey(CacheKey key) {
+		this.key = key;
 	}
 
 	/**
@@ -156,37 +426,32 @@ public class CachableResponse implements Serializable {
 	}
 
 	/**
-	 * This method sets referred cache object is in used
-	 *
-	 * @param inUse - boolean value inUse to be set
-	 */
-	public void setInUse(boolean inUse) { this.inUse.getAndSet(inUse); }
-
-	/**
-	 * This method gives the referred cache object is in used or not
+	 * This method gives the encoded HTTP Header Properties of the response. The returned buffer is
+	 * shared, so it should be duplicated before it is read
 	 *
-	 * @return inUse status as a boolean value
+	 * @return ByteBuffer representing the HTTP Header Properties
 	 */
-	public boolean isInUse() {
-		return inUse.get();
-	}
-
-	/**
-	 * This method gives the HTTP Header Properties of the response
-	 *
-	 * @return Map<String, Object> representing the HTTP Header Properties
-	 */
-	public Map<String, Object> getHeaderProperties() {
+	public ByteBuffer getHeaderProperties() {
 		return headerProperties;
 	}
 
 	/**
-	 * This method sets the HTTP Header Properties of the response
+	 * This method sets the encoded HTTP Header Properties of the response
 	 *
-	 * @param headerProperties HTTP Header Properties to be stored in to cache as a map
+	 * @param headerProperties HTTP Header Properties encoded with the HeaderCodec
 	 */
-	public void setHeaderProperties(Map<String, Object> headerProperties) {
+	public void setHeaderProperties(ByteBuffer headerProperties) {
 		this.headerProperties = headerProperties;
 	}
 
-}
\ No newline at end of file
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		ResponseCodec.encode(this, out, System.currentTimeMillis());
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		// the replicated state comes from the members of the cluster, and the codec has no bound to check against
+		ResponseCodec.decode(in, System.currentTimeMillis(), Integer.MAX_VALUE, this);
+	}
+}
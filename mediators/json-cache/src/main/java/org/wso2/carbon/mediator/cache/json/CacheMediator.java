@@ -17,28 +17,64 @@
  */
 package org.wso2.carbon.mediator.cache.json;
 
-import org.apache.axis2.clustering.ClusteringFault;
-import org.apache.axis2.clustering.state.Replicator;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.axiom.soap.SOAPBody;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
 import org.apache.axis2.context.ConfigurationContext;
 import org.apache.axis2.context.OperationContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.ContinuationState;
 import org.apache.synapse.ManagedLifecycle;
 import org.apache.synapse.Mediator;
 import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseException;
 import org.apache.synapse.SynapseLog;
+import org.apache.synapse.commons.json.JsonUtil;
 import org.apache.synapse.config.SynapseConfiguration;
 import org.apache.synapse.continuation.ContinuationStackManager;
+import org.apache.synapse.continuation.SeqContinuationState;
 import org.apache.synapse.core.SynapseEnvironment;
 import org.apache.synapse.core.axis2.Axis2MessageContext;
 import org.apache.synapse.core.axis2.Axis2Sender;
 import org.apache.synapse.debug.constructs.EnclosedInlinedSequence;
 import org.apache.synapse.mediators.AbstractMediator;
 import org.apache.synapse.mediators.base.SequenceMediator;
-import org.wso2.carbon.mediator.cache.json.util.RequestHash;
+import org.apache.synapse.util.MessageHelper;
+import org.wso2.carbon.mediator.cache.json.store.DiskCacheTier;
+import org.wso2.carbon.mediator.cache.json.store.EvictionListener;
+import org.wso2.carbon.mediator.cache.json.store.EvictionPolicy;
+import org.wso2.carbon.mediator.cache.json.store.MemoryCacheStore;
+import org.wso2.carbon.mediator.cache.json.store.PayloadArena;
+import org.wso2.carbon.mediator.cache.json.util.ByteBufferInputStream;
+import org.wso2.carbon.mediator.cache.json.util.CacheControlPolicy;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+import org.wso2.carbon.mediator.cache.json.util.CappedOutputStream;
+import org.wso2.carbon.mediator.cache.json.util.HeaderCodec;
+import org.wso2.carbon.mediator.cache.json.util.HttpCacheHeaders;
+import org.wso2.carbon.mediator.cache.json.util.PayloadCompression;
 import org.wso2.carbon.mediator.cache.json.digest.DigestGenerator;
-
-import javax.cache.*;
+import org.wso2.carbon.mediator.cache.json.digest.Murmur3HashGenerator;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -72,21 +108,126 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 	private DigestGenerator digestGenerator = CachingConstants.DEFAULT_XML_IDENTIFIER;
 
 	/**
-	 * The size of the messages to be cached in memory. If this is 0 then no disk cache,
+	 * The number of the messages to be cached in memory. If this is 0 then no disk cache,
 	 * and if there is no size specified in the config  factory will asign a default value to enable disk based caching.
 	 */
 	private int inMemoryCacheSize = CachingConstants.DEFAULT_CACHE_SIZE;
 
 	/**
-	 * The size of the messages to be cached in memory. Disk based and hirearchycal caching is not implemented yet.
+	 * The policy used to evict responses from memory once inMemoryCacheSize responses are cached.
+	 */
+	private EvictionPolicy evictionPolicy = CachingConstants.DEFAULT_EVICTION_POLICY;
+
+	/**
+	 * The size of the disk cache in bytes. If this and diskCacheSizeMB are 0 then responses are cached in memory
+	 * only, otherwise responses evicted from memory and large responses are kept in memory mapped files of this total
+	 * size.
 	 */
 	private int diskCacheSize = 0;
 
+	/**
+	 * The size of the disk cache in megabytes, which takes precedence over diskCacheSize if it is not 0.
+	 */
+	private int diskCacheSizeMB = 0;
+
+	/**
+	 * The directory which holds the files of the disk cache.
+	 */
+	private String diskCacheDirectory = null;
+
+	/**
+	 * Responses with a payload of at least this many bytes are stored on disk directly instead of in memory.
+	 */
+	private int largePayloadSize = CachingConstants.DEFAULT_LARGE_PAYLOAD_SIZE;
+
+	/**
+	 * The size of the off heap arena in megabytes. If this is 0 then the cached responses are kept on the heap,
+	 * otherwise their headers and payloads are kept in direct memory of this total size.
+	 */
+	private int offHeapSize = 0;
+
+	/**
+	 * The directory of the snapshots of the cache partitions, which are restored at init. If this is null then the
+	 * cache starts empty.
+	 */
+	private String snapshotDirectory = null;
+
+	/**
+	 * The time in milliseconds between two snapshots of the cache partitions. If this is 0 then a partition is
+	 * written only when its mediators are destroyed.
+	 */
+	private long snapshotInterval = 0;
+
 	/**
 	 * The time duration for which the cache is kept.
 	 */
 	private long timeout = 0L;
 
+	/**
+	 * The time in milliseconds for which requests missing the cache wait for an identical request already sent to
+	 * the backend, instead of being sent to the backend themselves. If this is 0 then requests are not coalesced.
+	 * The waiting requests are only released early by a cached response, so a backend fault holds them for the
+	 * whole timeout.
+	 */
+	private long coalescingTimeout = 0L;
+
+	/**
+	 * The grace period after the expiry of a cached response during which the expired response is still served,
+	 * while a single request refreshes it in the background. If this is 0 then expired responses are not served.
+	 */
+	private long staleWhileRevalidate = 0L;
+
+	/**
+	 * How the Cache-Control and Expires headers of the backend responses are combined with the timeout.
+	 */
+	private CacheControlPolicy cacheControlPolicy = CacheControlPolicy.IGNORE;
+
+	/**
+	 * The flag to revalidate expired responses with the ETag and Last-Modified validators they were cached with,
+	 * instead of fetching them again.
+	 */
+	private boolean revalidate = true;
+
+	/**
+	 * The time in milliseconds between two flushes of the cache changes to be replicated among the cluster.
+	 */
+	private long replicationInterval = CachingConstants.DEFAULT_REPLICATION_INTERVAL;
+
+	/**
+	 * The maximum number of changed contexts replicated among the cluster together.
+	 */
+	private int replicationBatchSize = CachingConstants.DEFAULT_REPLICATION_BATCH_SIZE;
+
+	/**
+	 * How the payloads of the cached responses are compressed.
+	 */
+	private PayloadCompression compression = PayloadCompression.NONE;
+
+	/**
+	 * Payloads smaller than this many bytes are cached uncompressed.
+	 */
+	private int compressionThreshold = CachingConstants.DEFAULT_COMPRESSION_THRESHOLD;
+
+	/**
+	 * The host:port on which a distributed cache receives the responses cached and invalidated by its peers.
+	 */
+	private String peerBindAddress = null;
+
+	/**
+	 * The comma separated host:port addresses of the peers of a distributed cache.
+	 */
+	private String peers = null;
+
+	/**
+	 * The time in milliseconds between two broadcasts of the changes of a distributed cache to its peers.
+	 */
+	private long peerFlushInterval = CachingConstants.DEFAULT_PEER_FLUSH_INTERVAL;
+
+	/**
+	 * The secret shared by the peers of a distributed cache to authenticate the changes they broadcast.
+	 */
+	private String peerSecret = null;
+
 	/**
 	 * The SequenceMediator to the onCacheHit sequence to be executed when an incoming message is identified as an
 	 * equivalent to a previously received message based on the value defined for the Hash Generator field.
@@ -114,21 +255,217 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 	 */
 	private static final String CACHE_KEY_PREFIX = "mediation.cache_key_";
 
+	/**
+	 * Cache key of the partition shared by the per-host and distributed cache mediators
+	 */
+	private static final String HOST_CACHE_KEY = "mediation.cache_key";
+
 	/**
 	 * Key to use in cache configuration
 	 */
-	private String cacheKey = "mediation.cache_key";
+	private String cacheKey = HOST_CACHE_KEY;
+
+	/**
+	 * The partition of the cache used by this mediator, resolved at init
+	 */
+	private volatile CachePartition partition = null;
+
+	/**
+	 * Property which marks a message without an entity body
+	 */
+	private static final String NO_ENTITY_BODY = "NO_ENTITY_BODY";
+
+	/**
+	 * Property which carries the cache partition of the finder to the collector
+	 */
+	private static final String PARTITION = "json-cache.partition";
+
+	/**
+	 * Property which marks a request which has been parked on an identical request and resumed
+	 */
+	private static final String COALESCED = "json-cache.coalesced";
+
+	/**
+	 * Property which holds the response to be filled by a background refresh of an expired response
+	 */
+	private static final String REFRESHED_OBJECT = "json-cache.refreshedObject";
+
+	/**
+	 * Property which carries the cache control policy of the finder to the collector
+	 */
+	private static final String CACHE_CONTROL_POLICY = "json-cache.cacheControlPolicy";
+
+	/**
+	 * Property which holds the expired response revalidated by a conditional request
+	 */
+	private static final String REVALIDATED_OBJECT = "json-cache.revalidatedObject";
+
+	/**
+	 * Property which carries the maximum size of the responses to be cached from the finder to the collector
+	 */
+	private static final String MAX_MESSAGE_SIZE = "json-cache.maxMessageSize";
+
+	/**
+	 * Property which carries the payload compression of the finder to the collector
+	 */
+	private static final String COMPRESSION = "json-cache.compression";
+
+	/**
+	 * Property which carries the minimum size of the payloads to be compressed from the finder to the collector
+	 */
+	private static final String COMPRESSION_THRESHOLD = "json-cache.compressionThreshold";
+
+	/**
+	 * Property which carries the headers of the request to the collector
+	 */
+	private static final String REQUEST_HEADERS = "json-cache.requestHeaders";
+
+	/**
+	 * Property which holds the HTTP status code of a message
+	 */
+	private static final String HTTP_SC = "HTTP_SC";
+
+	private static final String ETAG = "ETag";
+
+	private static final String LAST_MODIFIED = "Last-Modified";
+
+	private static final String IF_NONE_MATCH = "If-None-Match";
+
+	private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+	private static final String CONTENT_LENGTH = "Content-Length";
+
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+
+	private static final String VARY = "Vary";
+
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+	/**
+	 * Hop-by-hop and framing headers of the backend response which should not be replayed from the cache
+	 */
+	private static final Set<String> HOP_BY_HOP_HEADERS = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+	static {
+		HOP_BY_HOP_HEADERS.addAll(Arrays.asList("Connection", "Keep-Alive", "Proxy-Connection", "Transfer-Encoding",
+		                                        "TE", "Trailer", "Upgrade", "Content-Length"));
+	}
+
+	/**
+	 * Headers of the backend response which are meant for a single client. Responses which set cookies are not
+	 * cached at all, and the other headers are not replayed from the cache
+	 */
+	private static final Set<String> PER_USER_HEADERS = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+	static {
+		PER_USER_HEADERS.addAll(Arrays.asList("Set-Cookie", "Set-Cookie2", "Authentication-Info",
+		                                      "Proxy-Authentication-Info", "WWW-Authenticate", "Proxy-Authenticate"));
+	}
+
+	private static final String SET_COOKIE = "Set-Cookie";
+
+	private static final String SET_COOKIE2 = "Set-Cookie2";
+
+	/**
+	 * Largest buffer allocated up front for a response without a size limit, whatever its Content-Length claims
+	 */
+	private static final int MAX_INITIAL_CAPTURE_SIZE = 64 * 1024;
+
+	/**
+	 * Log object to use when logging is required in this class.
+	 */
+	private static final Log log = LogFactory.getLog(CacheMediator.class);
+
+	/**
+	 * The partitions of the cache of the host, by their cache key. Each keeps its responses in a memory store
+	 * bounded by the number of entries.
+	 */
+	private static final ConcurrentMap<String, CachePartition> partitions =
+			new ConcurrentHashMap<String, CachePartition>();
+
+	/**
+	 * The global disk tier which keeps responses evicted from memory and large responses, or null if disk based
+	 * caching is not configured.
+	 */
+	private static volatile DiskCacheTier<CacheKey> diskCache;
+
+	/**
+	 * Payload size from which responses are stored in the disk tier directly.
+	 */
+	private static volatile int diskCacheLargePayloadSize = CachingConstants.DEFAULT_LARGE_PAYLOAD_SIZE;
+
+	/**
+	 * The global off heap arena which keeps the headers and payloads of the cached responses, or null if the
+	 * responses are kept on the heap.
+	 */
+	private static volatile PayloadArena payloadArena;
+
+	/**
+	 * The global registry of the requests being served by the backend, on which identical requests are parked, or
+	 * null if no mediator coalesces requests.
+	 */
+	private static volatile RequestCoalescer coalescer;
+
+	/**
+	 * The global queue of the contexts to be replicated among the cluster.
+	 */
+	private static volatile ReplicationQueue replicationQueue;
+
+	/**
+	 * The global bus which broadcasts the changes of the cache to the peers of a distributed cache, or null if the
+	 * cache is not distributed.
+	 */
+	private static volatile InvalidationBus invalidationBus;
 
 	/**
-	 * This holds whether the global cache already initialized or not.
+	 * The global snapshots of the cache partitions, or null if the partitions are not kept across restarts.
 	 */
-	private static AtomicBoolean mediatorCacheInit = new AtomicBoolean(false);
+	private static volatile CacheSnapshots snapshots;
+
+	/**
+	 * The number of initialized mediators sharing the global resources above, which are shut down when the last of
+	 * them is destroyed
+	 */
+	private static int activeMediators = 0;
+
+	/**
+	 * The flag telling whether this mediator is counted in activeMediators
+	 */
+	private boolean initialized = false;
 
 	@Override
 	public void init(SynapseEnvironment se) {
 		if (onCacheHitSequence != null) {
 			onCacheHitSequence.init(se);
 		}
+		if (!initialized) {
+			initialized = true;
+			acquireSharedResources();
+		}
+		if (!collector) {
+			initReplicationQueue(replicationInterval, replicationBatchSize);
+			if (coalescingTimeout > 0) {
+				initCoalescer();
+			}
+			if (offHeapSize > 0) {
+				initPayloadArena(offHeapSize);
+			}
+			if (diskCacheSizeMB > 0 || diskCacheSize > 0) {
+				initDiskCache(diskCacheSizeMB > 0 ? diskCacheSizeMB * 1024L * 1024L : diskCacheSize,
+				              diskCacheDirectory, largePayloadSize);
+			}
+			// the stores the responses are restored into are set up before the partition is created
+			if (snapshotDirectory != null) {
+				initSnapshots(snapshotDirectory, snapshotInterval);
+			}
+			if (partition == null) {
+				partition = initPartition(cacheKey, !CachingConstants.SCOPE_PER_MEDIATOR.equals(scope),
+				                          inMemoryCacheSize, evictionPolicy);
+			}
+			if (CachingConstants.SCOPE_DISTRIBUTED.equals(scope)) {
+				initInvalidationBus(peerBindAddress, peers, peerSecret, peerFlushInterval);
+			}
+		}
 	}
 
 	@Override
@@ -136,6 +473,63 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 		if (onCacheHitSequence != null) {
 			onCacheHitSequence.destroy();
 		}
+		if (!collector && partition != null) {
+			releasePartition(partition);
+			partition = null;
+		}
+		if (initialized) {
+			initialized = false;
+			releaseSharedResources();
+		}
+	}
+
+	/**
+	 * Counts a mediator which uses the global resources of the cache
+	 */
+	private static synchronized void acquireSharedResources() {
+		activeMediators++;
+	}
+
+	/**
+	 * Uncounts a destroyed mediator, and shuts the global resources of the cache down once no mediator uses them, so
+	 * that their threads do not outlive an undeployment. The resources are created again by the mediators which are
+	 * initialized afterwards.
+	 */
+	private static synchronized void releaseSharedResources() {
+		if (--activeMediators > 0) {
+			return;
+		}
+		RequestCoalescer currentCoalescer = coalescer;
+		coalescer = null;
+		if (currentCoalescer != null) {
+			// the parked requests are sent to the backend
+			currentCoalescer.shutdown();
+		}
+		ReplicationQueue queue = replicationQueue;
+		replicationQueue = null;
+		if (queue != null) {
+			queue.shutdown();
+		}
+		InvalidationBus bus = invalidationBus;
+		invalidationBus = null;
+		if (bus != null) {
+			// frees the bind address for the bus of the next deployment
+			bus.shutdown();
+		}
+		CacheSnapshots currentSnapshots = snapshots;
+		snapshots = null;
+		if (currentSnapshots != null) {
+			// the partitions shared by several mediators, such as the host partition, are written once, here
+			for (CachePartition remaining : partitions.values()) {
+				currentSnapshots.write(remaining);
+			}
+			currentSnapshots.shutdown();
+		}
+		DiskCacheTier<CacheKey> disk = diskCache;
+		diskCache = null;
+		if (disk != null) {
+			disk.close();
+		}
 	}
 
 	@Override
@@ -162,11 +556,6 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 			}
 		}
 
-		// if maxMessageSize is specified check for the message size before processing
-		if (maxMessageSize > 0) {
-			// need to check request's size is exceeding maxMessageSize and skip caching if so
-		}
-
 		ConfigurationContext cfgCtx = ((Axis2MessageContext) synCtx).getAxis2MessageContext().getConfigurationContext();
 
 		if (cfgCtx == null) {
@@ -178,17 +567,12 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 			synLog.traceOrDebug("Looking up cache at scope : " + scope + " with ID : " + cacheKey);
 		}
 
-		boolean result = true;
-		try {
-			if (synCtx.isResponse()) {
-				processResponseMessage(synCtx, cfgCtx, synLog);
-
-			} else {
-				result = processRequestMessage(synCtx, synLog);
-			}
+		boolean result;
+		if (synCtx.isResponse()) {
+			result = processResponseMessage(synCtx, cfgCtx, synLog);
 
-		} catch (ClusteringFault clusteringFault) {
-			synLog.traceOrDebug("Unable to replicate Cache mediator state among the cluster");
+		} else {
+			result = processRequestMessage(synCtx, synLog);
 		}
 
 		synLog.traceOrDebug("End : Cache mediator");
@@ -203,43 +587,152 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 	 * @param synLog the Synapse log to use
 	 * @param synCtx the current message (response)
 	 * @param cfgCtx the abstract context in which the cache will be kept
-	 * @throws ClusteringFault is there is an error in replicating the cfgCtx
+	 * @return false if the response is of a background refresh and should not be mediated further
 	 */
-	private void processResponseMessage(MessageContext synCtx, ConfigurationContext cfgCtx,
-	                                    SynapseLog synLog) throws ClusteringFault {
+	private boolean processResponseMessage(MessageContext synCtx, ConfigurationContext cfgCtx,
+	                                       SynapseLog synLog) {
 
 		if (!collector) {
 			handleException("Response messages cannot be handled in a non collector cache", synCtx);
 		}
 		org.apache.axis2.context.MessageContext msgCtx = ((Axis2MessageContext) synCtx).getAxis2MessageContext();
-		OperationContext operationContext = msgCtx.getOperationContext();
-		CachableResponse response = (CachableResponse) operationContext.getProperty(CachingConstants.CACHED_OBJECT);
+		CachePartition partition = (CachePartition) synCtx.getProperty(PARTITION);
+		if (partition == null) {
+			partition = getPartition();
+		}
+		// the response of a background refresh is only cached, since the client has been served already
+		CachableResponse response = (CachableResponse) synCtx.getProperty(REFRESHED_OBJECT);
+		boolean refresh = response != null;
+		if (!refresh) {
+			OperationContext operationContext = msgCtx.getOperationContext();
+			response = (CachableResponse) operationContext.getProperty(CachingConstants.CACHED_OBJECT);
+		}
 
 		if (response != null) {
 			if (synLog.isTraceOrDebugEnabled()) {
 				synLog.traceOrDebug("Storing the response message into the cache at scope : " + scope + " with ID : "
-				                    + cacheKey + " for request hash : " + response.getRequestHash());
+				                    + cacheKey + " for request hash : " + response.getKey());
 			}
 			if (synLog.isTraceOrDebugEnabled()) {
 				synLog.traceOrDebug("Storing the response for the message with ID : " + synCtx.getMessageID() + " " +
-				                    "with request hash ID : " + response.getRequestHash() + " in the cache : " +
+				                    "with request hash ID : " + response.getKey() + " in the cache : " +
 				                    cacheKey);
 			}
 
-			// get response string and header properties and set them to CachableResponse
+			CacheControlPolicy policy = (CacheControlPolicy) synCtx.getProperty(CACHE_CONTROL_POLICY);
+			CachableResponse revalidated = (CachableResponse) synCtx.getProperty(REVALIDATED_OBJECT);
+			if (isNotModified(msgCtx)) {
+				if (revalidated != null) {
+					extendRevalidatedResponse(synCtx, partition, response, revalidated, policy, refresh, synLog);
+				} else {
+					// a 304 to the conditional request of a client has no payload to be cached
+					if (synLog.isTraceOrDebugEnabled()) {
+						synLog.traceOrDebug("Not caching the 304 response for request hash : " +
+						                    response.getKey());
+					}
+					if (partition.getStore().remove(response.getKey(), response)) {
+						response.release();
+					}
+				}
+				landFlight(partition.qualify(response.getKey()));
+				return !refresh;
+			}
+
+			if (!isShareable(msgCtx)) {
+				if (synLog.isTraceOrDebugEnabled()) {
+					synLog.traceOrDebug("Response for request hash : " + response.getKey() + " has the status code " +
+					                    msgCtx.getProperty(HTTP_SC) + " or sets cookies. Skipping caching");
+				}
+				discardResponse(partition, response, refresh);
+				landFlight(partition.qualify(response.getKey()));
+				return !refresh;
+			}
+
+			if (!applyCacheControl(msgCtx, response, policy)) {
+				if (synLog.isTraceOrDebugEnabled()) {
+					synLog.traceOrDebug("Response for request hash : " + response.getKey() + " is not " +
+					                    "cacheable according to its cache control headers");
+				}
+				discardResponse(partition, response, refresh);
+				landFlight(partition.qualify(response.getKey()));
+				return !refresh;
+			}
+
+			if (HttpCacheHeaders.isVaryAny(
+					(Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS))) {
+				if (synLog.isTraceOrDebugEnabled()) {
+					synLog.traceOrDebug("Response for request hash : " + response.getKey() + " varies by " +
+					                    "more than the request headers. Skipping caching");
+				}
+				discardResponse(partition, response, refresh);
+				landFlight(partition.qualify(response.getKey()));
+				return !refresh;
+			}
+
+			// the declared length rejects large responses before they are read, the capture stream catches the rest
+			Integer sizeLimit = (Integer) synCtx.getProperty(MAX_MESSAGE_SIZE);
+			int limit = sizeLimit != null ? sizeLimit : 0;
+			boolean captured = false;
+			if (limit <= 0 || getContentLength(msgCtx) <= limit) {
+				try {
+					captured = captureResponse(msgCtx, response, limit);
+				} catch (CachingException e) {
+					synLog.auditWarn("Unable to capture the response for request hash : " +
+					                 response.getKey() + ". Skipping caching. " + e.getMessage());
+					discardResponse(partition, response, refresh);
+					landFlight(partition.qualify(response.getKey()));
+					return !refresh;
+				}
+			}
+			if (!captured) {
+				if (synLog.isTraceOrDebugEnabled()) {
+					synLog.traceOrDebug("Response for request hash : " + response.getKey() + " exceeds the " +
+					                    "maxMessageSize of " + limit + " bytes. Skipping caching");
+				}
+				discardResponse(partition, response, refresh);
+				landFlight(partition.qualify(response.getKey()));
+				return !refresh;
+			}
+
+			PayloadCompression compression = (PayloadCompression) synCtx.getProperty(COMPRESSION);
+			if (compression != null) {
+				Integer threshold = (Integer) synCtx.getProperty(COMPRESSION_THRESHOLD);
+				compressResponse(response, compression, threshold != null ? threshold : 0, synLog);
+			}
 
 			if (response.getTimeout() > 0) {
 				response.setExpireTimeMillis(System.currentTimeMillis() + response.getTimeout());
 			}
 
-			getMediatorCache().put(response.getRequestHash(), response);
+			CacheKey placeholderKey = response.getKey();
+			selectVariant(synCtx, partition, response, synLog);
+
+			// the response is broadcast before it is stored, since it is released if it is stored on disk
+			InvalidationBus bus = invalidationBus;
+			if (bus != null && partition.isHost()) {
+				bus.publishPut(response.getKey(), response);
+			}
+			if (storeCachedResponse(partition, response) && synLog.isTraceOrDebugEnabled()) {
+				synLog.traceOrDebug("Stored the large response for request hash : " + response.getKey() +
+				                    " in the disk cache");
+			}
+			partition.recordStore();
+			landFlight(partition.qualify(response.getKey()));
+			if (!placeholderKey.equals(response.getKey())) {
+				landFlight(partition.qualify(placeholderKey));
+			}
 			// Finally, we may need to replicate the changes in the cache
-			Replicator.replicate(cfgCtx);
+			getReplicationQueue().replicate(cfgCtx);
 		} else {
 			synLog.auditWarn("A response message without a valid mapping to the " +
 			                 "request hash found. Unable to store the response in cache");
 		}
 
+		if (refresh && synLog.isTraceOrDebugEnabled()) {
+			synLog.traceOrDebug("Refreshed the expired response for request hash : " + response.getKey() +
+			                    ". Dropping the response message");
+		}
+		return !refresh;
 	}
 
 	/**
@@ -250,49 +743,88 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 	 * @param synCtx incoming request message
 	 * @param synLog the Synapse log to use
 	 * @return should this mediator terminate further processing?
-	 * @throws ClusteringFault if there is an error in replicating the cfgCtx
 	 */
 	private boolean processRequestMessage(MessageContext synCtx,
-	                                      SynapseLog synLog) throws ClusteringFault {
+	                                      SynapseLog synLog) {
 
 		if (collector) {
 			handleException("Request messages cannot be handled in a collector cache", synCtx);
 		}
 
-		OperationContext opCtx = ((Axis2MessageContext) synCtx).getAxis2MessageContext().getOperationContext();
-		String requestHash = null;
+		org.apache.axis2.context.MessageContext msgCtx = ((Axis2MessageContext) synCtx).getAxis2MessageContext();
+		OperationContext opCtx = msgCtx.getOperationContext();
+		CacheKey requestKey = null;
 
 		try {
-			requestHash = digestGenerator.getDigest(((Axis2MessageContext) synCtx).getAxis2MessageContext());
-			synCtx.setProperty(CachingConstants.REQUEST_HASH, requestHash);
+			requestKey = generateKey(msgCtx);
 		} catch (CachingException e) {
 			handleException("Error in calculating the hash value of the request", e, synCtx);
 		}
+		if (requestKey == null) {
+			handleException("Unable to calculate the hash value of the request", synCtx);
+		}
+		synCtx.setProperty(CachingConstants.REQUEST_HASH, requestKey);
 
 		if (synLog.isTraceOrDebugEnabled()) {
-			synLog.traceOrDebug("Generated request hash : " + requestHash);
+			synLog.traceOrDebug("Generated request hash : " + requestKey);
 		}
 
-		RequestHash hash = new RequestHash(requestHash);
-		CachableResponse cachedResponse = getMediatorCache().get(requestHash);
-		org.apache.axis2.context.MessageContext msgCtx = ((Axis2MessageContext) synCtx).getAxis2MessageContext();
-		opCtx.setProperty(CachingConstants.REQUEST_HASH, requestHash);
+		CachePartition partition = getPartition();
+		synCtx.setProperty(PARTITION, partition);
+		CachableResponse expiredResponse = null;
+		CachableResponse cachedResponse = partition.getStore().get(requestKey);
+		if (cachedResponse != null && cachedResponse.getVaryHeaders() != null) {
+			// the responses of the request vary by request headers, the headers of this request select the variant
+			Map requestHeaders = (Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+			requestKey = HttpCacheHeaders.getVariantKey(requestKey, cachedResponse.getVaryHeaders(), requestHeaders);
+			if (synLog.isTraceOrDebugEnabled()) {
+				synLog.traceOrDebug("Looking up the variant : " + requestKey);
+			}
+			cachedResponse = partition.getStore().get(requestKey);
+		}
+		DiskCacheTier<CacheKey> disk = diskCache;
+		if (cachedResponse == null && disk != null) {
+			cachedResponse = disk.get(partition.qualify(requestKey));
+		}
+		opCtx.setProperty(CachingConstants.REQUEST_HASH, requestKey);
 
-		String responsePayload;
-		Map<String, Object> headerProperties;
-		if (cachedResponse != null && (responsePayload = cachedResponse.getResponsePayload()) != null) {
+		// the reference taken here keeps the payload from being freed by an eviction until it has been written
+		if (cachedResponse != null && cachedResponse.getResponsePayload() != null && cachedResponse.retain()) {
 			// get the response from the cache and attach to the context and change the
 			// direction of the message
-			if (!cachedResponse.isExpired()) {
+			boolean expired = cachedResponse.isExpired();
+			if (expired && staleWhileRevalidate > 0 && !cachedResponse.isExpired(staleWhileRevalidate) &&
+			    canResumeMediation(synCtx)) {
+				if (synLog.isTraceOrDebugEnabled()) {
+					synLog.traceOrDebug("Serving the expired response for request hash : " + requestKey +
+					                    " within the stale-while-revalidate period");
+				}
+				// a refresh which has not landed within the coalescing timeout is considered failed and retried
+				long retry = coalescingTimeout > 0 ? coalescingTimeout : CachingConstants.DEFAULT_REFRESH_TIMEOUT;
+				if (cachedResponse.startRefresh(retry)) {
+					refreshInBackground(synCtx, partition, cachedResponse, synLog);
+				}
+				expired = false;
+			}
+			if (!expired) {
+				partition.recordHit();
 				if (synLog.isTraceOrDebugEnabled()) {
 					synLog.traceOrDebug("Cache-hit for message ID : " + synCtx.getMessageID());
 				}
-				cachedResponse.setInUse(true);
 				// mark as a response and replace envelope from cache
 				synCtx.setResponse(true);
 				opCtx.setProperty(CachingConstants.CACHED_OBJECT, cachedResponse);
 
-				// get responsePayload and set it to current transaction
+				// the payload is streamed from the cache only if it is sent back right away, otherwise it may be
+				// read by the mediators of the onCacheHit sequence long after the entry has been evicted
+				InputStream payloadStream = null;
+				try {
+					payloadStream = replayResponse(msgCtx, cachedResponse,
+					                               onCacheHitSequence == null && onCacheHitRef == null);
+				} catch (AxisFault e) {
+					cachedResponse.release();
+					handleException("Error setting response payload from cache : " + cacheKey, e, synCtx);
+				}
 
 				// take specified action on cache hit
 				if (onCacheHitSequence != null) {
@@ -320,67 +852,1221 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 					}
 					// send the response back if there is not onCacheHit is specified
 					synCtx.setTo(null);
-					Axis2Sender.sendBack(synCtx);
+					try {
+						Axis2Sender.sendBack(synCtx);
+					} finally {
+						closePayloadStream(payloadStream);
+					}
 
 				}
 				// continue or stop any following mediators from executing
 				return continueExecution;
 
 			} else {
-				cachedResponse.reincarnate(timeout);
 				if (synLog.isTraceOrDebugEnabled()) {
 					synLog.traceOrDebug("Existing cached response has expired. Resetting cache element");
 				}
-				getMediatorCache().put(hash.getRequestHash(), cachedResponse);
-				opCtx.setProperty(CachingConstants.CACHED_OBJECT, cachedResponse);
-				Replicator.replicate(opCtx);
+				expiredResponse = cachedResponse;
 			}
-		} else {
-			cacheNewResponse(msgCtx, hash);
 		}
 
+		if (parkOnInFlightRequest(synCtx, partition.qualify(requestKey), synLog)) {
+			if (expiredResponse != null) {
+				expiredResponse.release();
+			}
+			return false;
+		}
+		partition.recordMiss();
+
+		// the expired response is kept in the cache while it is revalidated, so that it can be served on a 304
+		boolean revalidating = false;
+		if (expiredResponse != null) {
+			revalidating = prepareRevalidation(synCtx, expiredResponse, synLog);
+			expiredResponse.release();
+			if (!revalidating && disk != null) {
+				disk.remove(partition.qualify(requestKey));
+			}
+		}
+		setCollectorProperties(synCtx);
+		// an expired response may still be served by other threads, so it is replaced rather than reincarnated
+		cacheNewResponse(msgCtx, partition, requestKey, !revalidating);
+
 		return true;
 	}
 
 	/**
-	 * Caches the CachableResponse object with currently available attributes against the requestHash in Cache<String,
-	 * CachableResponse>
+	 * Adds the validators of the given expired response to the request as If-None-Match and If-Modified-Since
+	 * headers, so that the backend may answer with a 304 instead of the full response. Requests which already carry
+	 * conditional headers of the client are sent as they are.
 	 *
-	 * @param msgContext axis2 message context of the request message
-	 * @param requestHash the request hash that has already been computed
-	 * @throws ClusteringFault if there is an error in replicating the cfgCtx
+	 * @param synCtx          the request message
+	 * @param expiredResponse the expired response, retained by the caller
+	 * @param synLog          the Synapse log to use
+	 * @return true if the request has been made conditional
 	 */
-	private void cacheNewResponse(org.apache.axis2.context.MessageContext msgContext, RequestHash requestHash)
-			throws ClusteringFault {
-		OperationContext opCtx = msgContext.getOperationContext();
-		CachableResponse response = new CachableResponse();
-		response.setRequestHash(requestHash.getRequestHash());
-		response.setTimeout(timeout);
-		getMediatorCache().put(requestHash.getRequestHash(), response);
-		opCtx.setProperty(CachingConstants.CACHED_OBJECT, response);
-		Replicator.replicate(opCtx);
-	}
+	private boolean prepareRevalidation(MessageContext synCtx, CachableResponse expiredResponse, SynapseLog synLog) {
+		if (!revalidate) {
+			return false;
+		}
+		Map<String, Object> cachedHeaders;
+		try {
+			cachedHeaders = HeaderCodec.decode(expiredResponse.getHeaderProperties());
+		} catch (CachingException e) {
+			synLog.auditWarn("Unable to read the validators of the expired response for request hash : " +
+			                 expiredResponse.getKey() + ". " + e.getMessage());
+			return false;
+		}
+		Object etag = cachedHeaders.get(ETAG);
+		Object lastModified = cachedHeaders.get(LAST_MODIFIED);
+		if (etag == null && lastModified == null) {
+			return false;
+		}
 
+		org.apache.axis2.context.MessageContext msgCtx = ((Axis2MessageContext) synCtx).getAxis2MessageContext();
+		Map headers = (Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+		if (headers == null) {
+			headers = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+			msgCtx.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, headers);
+		} else if (headers.containsKey(IF_NONE_MATCH) || headers.containsKey(IF_MODIFIED_SINCE)) {
+			return false;
+		}
+		if (etag != null) {
+			headers.put(IF_NONE_MATCH, etag.toString());
+		}
+		if (lastModified != null) {
+			headers.put(IF_MODIFIED_SINCE, lastModified.toString());
+		}
+		synCtx.setProperty(REVALIDATED_OBJECT, expiredResponse);
+		if (synLog.isTraceOrDebugEnabled()) {
+			synLog.traceOrDebug("Revalidating the expired response for request hash : " +
+			                    expiredResponse.getKey() + " with the backend");
+		}
+		return true;
+	}
 
 	/**
-	 * Creates default cache to keep mediator cache
+	 * Checks whether the given response message is a 304 Not Modified
+	 *
+	 * @param msgCtx axis2 message context of the response message
+	 * @return true if the status code of the response is 304
+	 */
+	private boolean isNotModified(org.apache.axis2.context.MessageContext msgCtx) {
+		Object statusCode = msgCtx.getProperty(HTTP_SC);
+		return statusCode != null && "304".equals(statusCode.toString().trim());
+	}
+
+	/**
+	 * Checks whether the given response message may be served to other clients from the cache. Only successful
+	 * responses other than partial content are, and only if they do not set cookies. A message without a status code
+	 * is taken as successful.
+	 *
+	 * @param msgCtx axis2 message context of the response message
+	 * @return true if the response may be cached
+	 */
+	private boolean isShareable(org.apache.axis2.context.MessageContext msgCtx) {
+		Object statusCode = msgCtx.getProperty(HTTP_SC);
+		if (statusCode != null) {
+			int status;
+			try {
+				status = Integer.parseInt(statusCode.toString().trim());
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			if (status < 200 || status >= 300 || status == 206) {
+				return false;
+			}
+		}
+		Map headers = (Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+		if (headers != null) {
+			for (Object name : headers.keySet()) {
+				if (SET_COOKIE.equalsIgnoreCase(String.valueOf(name)) ||
+				    SET_COOKIE2.equalsIgnoreCase(String.valueOf(name))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Extends the lifetime of an expired response which the backend has reported as not modified, and turns the
+	 * 304 response message into the cached response, unless it is the response of a background refresh which is
+	 * dropped anyway.
+	 *
+	 * @param synCtx      the 304 response message
+	 * @param partition   the cache partition of the finder
+	 * @param response    the response placeholder of the request, holding the configured timeout
+	 * @param revalidated the expired response which has been revalidated
+	 * @param policy      cache control policy of the finder, or null
+	 * @param refresh     whether the response message is of a background refresh
+	 * @param synLog      the Synapse log to use
+	 */
+	private void extendRevalidatedResponse(MessageContext synCtx, CachePartition partition,
+	                                       CachableResponse response, CachableResponse revalidated,
+	                                       CacheControlPolicy policy, boolean refresh, SynapseLog synLog) {
+		org.apache.axis2.context.MessageContext msgCtx = ((Axis2MessageContext) synCtx).getAxis2MessageContext();
+		if (!revalidated.retain()) {
+			// the expired response has been evicted meanwhile, it may have been spilled to disk
+			DiskCacheTier<CacheKey> disk = diskCache;
+			revalidated = disk != null ? disk.get(partition.qualify(response.getKey())) : null;
+			if (revalidated == null || !revalidated.retain()) {
+				synLog.auditWarn("Expired response for request hash : " + response.getKey() + " was " +
+				                 "evicted while it was revalidated. Passing the 304 response through");
+				return;
+			}
+		}
+
+		boolean cacheable = applyCacheControl(msgCtx, response, policy);
+		if (cacheable) {
+			revalidated.setTimeout(response.getTimeout());
+			revalidated.setExpireTimeMillis(System.currentTimeMillis() + response.getTimeout());
+			InvalidationBus bus = invalidationBus;
+			if (bus != null && partition.isHost()) {
+				bus.publishPut(response.getKey(), revalidated);
+			}
+			if (synLog.isTraceOrDebugEnabled()) {
+				synLog.traceOrDebug("Backend reported the response for request hash : " + response.getKey() +
+				                    " as not modified. Extended the cached response");
+			}
+		} else {
+			invalidateCachedResponse(partition, response.getKey());
+		}
+
+		if (refresh) {
+			revalidated.release();
+			return;
+		}
+		try {
+			replayResponse(msgCtx, revalidated, false);
+		} catch (AxisFault e) {
+			handleException("Error setting the revalidated response payload from cache : " + cacheKey, e, synCtx);
+		}
+	}
+
+	/**
+	 * Gives the key of the given request. The Murmur3HashGenerator hashes the request into a key directly, while
+	 * the digests of the other generators are turned into a key.
+	 *
+	 * @param msgCtx axis2 message context of the request message
+	 * @return key of the request, or null if the digest generator gives no digest for it
+	 */
+	private CacheKey generateKey(org.apache.axis2.context.MessageContext msgCtx) {
+		if (digestGenerator instanceof Murmur3HashGenerator) {
+			return ((Murmur3HashGenerator) digestGenerator).getKey(msgCtx);
+		}
+		String digest = digestGenerator.getDigest(msgCtx);
+		return digest != null ? CacheKey.of(digest) : null;
+	}
+
+	/**
+	 * Parks the given request on an identical request which is already being served by the backend, if there is
+	 * one. Otherwise the given request leads the requests which arrive while it is served. Requests which have
+	 * already been parked once and requests whose mediation cannot be resumed later are never parked.
+	 *
+	 * @param synCtx     the request message
+	 * @param requestKey key of the request
+	 * @param synLog     the Synapse log to use
+	 * @return true if the request has been parked, false if it should be sent to the backend
+	 */
+	private boolean parkOnInFlightRequest(MessageContext synCtx, CacheKey requestKey, SynapseLog synLog) {
+		if (coalescingTimeout <= 0 || synCtx.getProperty(COALESCED) != null || !canResumeMediation(synCtx)) {
+			return false;
+		}
+		RequestCoalescer currentCoalescer = coalescer;
+		if (currentCoalescer == null) {
+			return false;
+		}
+		ContinuationStackManager.updateSeqContinuationState(synCtx, getMediatorPosition());
+		if (currentCoalescer.join(requestKey, synCtx, this, coalescingTimeout)) {
+			if (synLog.isTraceOrDebugEnabled()) {
+				synLog.traceOrDebug("Request message " + synCtx.getMessageID() + " is waiting for the response of " +
+				                    "an identical request with request hash : " + requestKey);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Resumes a request parked on an identical request once the response of that request has been cached, or the
+	 * wait has timed out. The request is served from the cache if the response is there, otherwise it is sent to
+	 * the backend by resuming the mediation after this mediator.
+	 *
+	 * @param synCtx the parked request message
+	 */
+	void resume(MessageContext synCtx) {
+		SynapseLog synLog = getLog(synCtx);
+		synCtx.setProperty(COALESCED, Boolean.TRUE);
+		try {
+			if (processRequestMessage(synCtx, synLog)) {
+				resumeMediation(synCtx);
+			}
+		} catch (SynapseException e) {
+			if (synCtx.getFaultStack() != null && !synCtx.getFaultStack().isEmpty()) {
+				synCtx.getFaultStack().pop().handleFault(synCtx, e);
+			} else {
+				log.error("Error while resuming the coalesced request : " + synCtx.getMessageID(), e);
+			}
+		}
+	}
+
+	/**
+	 * Sends a copy of the given request to the backend in the background, so that the expired response of the
+	 * request is replaced by a fresh one. The copy resumes the mediation after this mediator on a Synapse worker
+	 * thread, and its response is cached by the collector and dropped.
+	 *
+	 * @param synCtx          the request message, which is served from the cache
+	 * @param partition       the cache partition of the request
+	 * @param expiredResponse the expired response to be refreshed, retained by the caller
+	 * @param synLog          the Synapse log to use
+	 */
+	private void refreshInBackground(MessageContext synCtx, CachePartition partition,
+	                                 CachableResponse expiredResponse, SynapseLog synLog) {
+		CacheKey requestKey = expiredResponse.getKey();
+		ContinuationStackManager.updateSeqContinuationState(synCtx, getMediatorPosition());
+		final MessageContext refreshCtx;
+		try {
+			refreshCtx = MessageHelper.cloneMessageContext(synCtx);
+		} catch (AxisFault e) {
+			synLog.auditWarn("Unable to refresh the expired response for request hash : " + requestKey + ". " +
+			                 e.getMessage());
+			return;
+		}
+		CachableResponse response = new CachableResponse();
+		response.setKey(requestKey);
+		response.setTimeout(timeout);
+		refreshCtx.setProperty(REFRESHED_OBJECT, response);
+		refreshCtx.setProperty(PARTITION, partition);
+		refreshCtx.setProperty(COALESCED, Boolean.TRUE);
+		setCollectorProperties(refreshCtx);
+		prepareRevalidation(refreshCtx, expiredResponse, synLog);
+		synCtx.getEnvironment().getExecutorService().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					resumeMediation(refreshCtx);
+				} catch (SynapseException e) {
+					log.warn("Error while refreshing the expired response for message : " +
+					         refreshCtx.getMessageID(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets the settings of this finder which the collector applies to the response of the given request, together
+	 * with the request headers which select the variant of the response if it turns out to vary by them
+	 *
+	 * @param synCtx the request message
+	 */
+	private void setCollectorProperties(MessageContext synCtx) {
+		org.apache.axis2.context.MessageContext msgCtx = ((Axis2MessageContext) synCtx).getAxis2MessageContext();
+		Map headers = (Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+		if (headers != null) {
+			// the request headers may be changed by the mediators which follow
+			Map<String, Object> requestHeaders = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+			requestHeaders.putAll(headers);
+			synCtx.setProperty(REQUEST_HEADERS, requestHeaders);
+		}
+		if (cacheControlPolicy != CacheControlPolicy.IGNORE) {
+			synCtx.setProperty(CACHE_CONTROL_POLICY, cacheControlPolicy);
+		}
+		if (maxMessageSize > 0) {
+			synCtx.setProperty(MAX_MESSAGE_SIZE, maxMessageSize);
+		}
+		if (compression != PayloadCompression.NONE) {
+			synCtx.setProperty(COMPRESSION, compression);
+			synCtx.setProperty(COMPRESSION_THRESHOLD, compressionThreshold);
+		}
+	}
+
+	/**
+	 * Checks whether the mediation of the given message can be resumed after this mediator from another thread,
+	 * which needs the continuation state of the message
+	 *
+	 * @param synCtx the request message
+	 * @return true if the mediation can be resumed
+	 */
+	private boolean canResumeMediation(MessageContext synCtx) {
+		return synCtx.isContinuationEnabled() && synCtx.getContinuationStateStack() != null &&
+		       !synCtx.getContinuationStateStack().isEmpty();
+	}
+
+	/**
+	 * Resumes the mediation of the given message after this mediator, from the continuation state recorded
+	 * for this mediator
+	 *
+	 * @param synCtx the message to be mediated
+	 */
+	private void resumeMediation(MessageContext synCtx) {
+		ContinuationState state = ContinuationStackManager.peakContinuationStateStack(synCtx);
+		SequenceMediator sequence = state instanceof SeqContinuationState ?
+		                            ContinuationStackManager.retrieveSequence(synCtx, (SeqContinuationState) state) :
+		                            null;
+		if (sequence == null) {
+			handleException("Unable to resume the mediation of the message : " + synCtx.getMessageID(), synCtx);
+		}
+		sequence.mediate(synCtx, state);
+	}
+
+	/**
+	 * Sets the timeout of the given response from the Cache-Control and Expires headers of the response message,
+	 * bounded by the timeout configured on the finder according to the given policy. Responses marked no-store or
+	 * private are never cached, whatever the policy is.
+	 *
+	 * @param msgCtx   axis2 message context of the response message
+	 * @param response the CachableResponse holding the configured timeout
+	 * @param policy   how the lifetime given by the headers is bounded by the configured timeout, or null to ignore
+	 *                 the lifetime
+	 * @return false if the response must not be cached
+	 */
+	private boolean applyCacheControl(org.apache.axis2.context.MessageContext msgCtx, CachableResponse response,
+	                                  CacheControlPolicy policy) {
+		Map headers = (Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+		if (!HttpCacheHeaders.isStorable(headers)) {
+			return false;
+		}
+		if (policy == null || policy == CacheControlPolicy.IGNORE) {
+			return true;
+		}
+		if (HttpCacheHeaders.isNoCache(headers)) {
+			// a response to be revalidated on every use is not stretched to the configured timeout by a floor
+			return false;
+		}
+		long lifetime = HttpCacheHeaders.getFreshnessLifetime(headers, System.currentTimeMillis());
+		if (lifetime != HttpCacheHeaders.UNKNOWN_LIFETIME) {
+			response.setTimeout(policy == CacheControlPolicy.CEILING ? Math.min(lifetime, response.getTimeout()) :
+			                    Math.max(lifetime, response.getTimeout()));
+		}
+		return response.getTimeout() > 0;
+	}
+
+	/**
+	 * Captures the payload of the response message as raw bytes together with the transport headers, the message
+	 * type and the status code, and sets them to the given CachableResponse. Hop-by-hop headers and the headers meant
+	 * for a single client are left out. JSON payloads are taken directly from the JSON stream without building the
+	 * XML infoset.
+	 * <p/>
+	 * The payload is collected into a stream capped at the given size, so the capture of a response which turns out
+	 * to be too large is given up as soon as the size is crossed.
+	 *
+	 * @param msgCtx   axis2 message context of the response message
+	 * @param response the CachableResponse to be filled
+	 * @param limit    maximum size of the payload in bytes, or 0 for no limit
+	 * @return false if the payload exceeds the limit, in which case the response is left unfilled
+	 * @throws CachingException if the payload or headers cannot be captured
+	 */
+	private boolean captureResponse(org.apache.axis2.context.MessageContext msgCtx, CachableResponse response,
+	                                int limit) throws CachingException {
+		long contentLength = getContentLength(msgCtx);
+		int expectedSize = contentLength > 0 ?
+		                   (int) Math.min(contentLength, limit > 0 ? limit : MAX_INITIAL_CAPTURE_SIZE) : 0;
+		CappedOutputStream outStream = new CappedOutputStream(limit, expectedSize);
+		boolean json = JsonUtil.hasAJsonPayload(msgCtx);
+		try {
+			if (json) {
+				InputStream jsonStream = JsonUtil.getJsonPayload(msgCtx);
+				try {
+					outStream.readFrom(jsonStream);
+				} finally {
+					// the stream is read again when the response is sent to the client
+					if (jsonStream.markSupported()) {
+						jsonStream.reset();
+					}
+				}
+			} else {
+				OMElement payload = msgCtx.getEnvelope().getBody().getFirstElement();
+				if (payload != null) {
+					payload.serialize(outStream);
+				}
+			}
+		} catch (IOException e) {
+			if (outStream.isExceeded()) {
+				return false;
+			}
+			throw new CachingException("Unable to read the response payload", e);
+		} catch (XMLStreamException e) {
+			if (outStream.isExceeded()) {
+				return false;
+			}
+			throw new CachingException("Unable to serialize the response payload", e);
+		}
+		response.setResponsePayload(outStream.toByteBuffer());
+		response.setJson(json);
+
+		Map<String, Object> headerProperties = new HashMap<String, Object>();
+		Map headers = (Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+		if (headers != null) {
+			for (Object entry : headers.entrySet()) {
+				Map.Entry header = (Map.Entry) entry;
+				if (!HOP_BY_HOP_HEADERS.contains(header.getKey()) && !PER_USER_HEADERS.contains(header.getKey())) {
+					headerProperties.put((String) header.getKey(), header.getValue());
+				}
+			}
+		}
+		Object messageType = msgCtx.getProperty(Constants.Configuration.MESSAGE_TYPE);
+		if (messageType != null) {
+			headerProperties.put(Constants.Configuration.MESSAGE_TYPE, messageType);
+		}
+		Object statusCode = msgCtx.getProperty(HTTP_SC);
+		if (statusCode != null) {
+			headerProperties.put(HTTP_SC, statusCode.toString().trim());
+		}
+		response.setHeaderProperties(ByteBuffer.wrap(HeaderCodec.encode(headerProperties)));
+		return true;
+	}
+
+	/**
+	 * Moves a response which varies by request headers, according to its Vary header, to the variant of the request
+	 * hash selected by the headers of its request. The request hash itself is mapped to the names of the headers the
+	 * response varies by, so that the finder selects the variant of each request which follows. The first response
+	 * of a request is moved away from the placeholder under the request hash, the ones which follow are already
+	 * under their variant. The mapping expires with the longest lived of the variants stored through it.
+	 * <p/>
+	 * A response which no longer varies, but was requested through the mapping, is moved back to the request hash,
+	 * where it replaces the mapping once it is stored.
+	 *
+	 * @param synCtx    the response message
+	 * @param partition cache partition of the request
+	 * @param response  the captured response
+	 * @param synLog    the Synapse log to use
+	 */
+	private void selectVariant(MessageContext synCtx, CachePartition partition, CachableResponse response,
+	                           SynapseLog synLog) {
+		org.apache.axis2.context.MessageContext msgCtx = ((Axis2MessageContext) synCtx).getAxis2MessageContext();
+		String[] varyHeaders = HttpCacheHeaders.getVaryHeaders(
+				(Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS));
+		CacheKey requestKey = (CacheKey) synCtx.getProperty(CachingConstants.REQUEST_HASH);
+		if (requestKey == null) {
+			return;
+		}
+		CacheKey placeholderKey = response.getKey();
+		if (varyHeaders == null) {
+			if (!requestKey.equals(placeholderKey)) {
+				// the reference of the store to the placeholder is kept for the response which replaces the mapping
+				partition.getStore().remove(placeholderKey, response);
+				response.setKey(requestKey);
+				if (synLog.isTraceOrDebugEnabled()) {
+					synLog.traceOrDebug("Response for request hash : " + requestKey + " no longer varies. Caching " +
+					                    "it in place of its variants");
+				}
+			}
+			return;
+		}
+		CacheKey variantKey = HttpCacheHeaders.getVariantKey(requestKey, varyHeaders,
+		                                                     (Map) synCtx.getProperty(REQUEST_HEADERS));
+		if (!variantKey.equals(placeholderKey)) {
+			// the reference of the store to the placeholder is kept for the variant
+			partition.getStore().remove(placeholderKey, response);
+			response.setKey(variantKey);
+		}
+		CachableResponse variants = new CachableResponse();
+		variants.setKey(requestKey);
+		variants.setVaryHeaders(varyHeaders);
+		variants.setTimeout(response.getTimeout());
+		variants.setExpireTimeMillis(response.getExpireTimeMillis());
+		CachableResponse previous = partition.getStore().get(requestKey);
+		if (previous != null && Arrays.equals(varyHeaders, previous.getVaryHeaders()) &&
+		    previous.getExpireTimeMillis() > variants.getExpireTimeMillis()) {
+			// the variants stored earlier are still reachable until they expire
+			variants.setTimeout(Math.max(previous.getTimeout(), variants.getTimeout()));
+			variants.setExpireTimeMillis(previous.getExpireTimeMillis());
+		}
+		putCachedResponse(partition, requestKey, variants);
+		InvalidationBus bus = invalidationBus;
+		if (bus != null && partition.isHost()) {
+			bus.publishPut(requestKey, variants);
+		}
+		if (synLog.isTraceOrDebugEnabled()) {
+			synLog.traceOrDebug("Response for request hash : " + requestKey + " varies by " +
+			                    Arrays.toString(varyHeaders) + ". Caching it as the variant : " + variantKey);
+		}
+	}
+
+	/**
+	 * Compresses the captured payload of the given response, unless it is smaller than the given threshold or does
+	 * not get any smaller
+	 *
+	 * @param response    the captured response
+	 * @param compression how the payload is compressed
+	 * @param threshold   size in bytes from which payloads are compressed
+	 * @param synLog      the Synapse log to use
+	 */
+	private void compressResponse(CachableResponse response, PayloadCompression compression, int threshold,
+	                              SynapseLog synLog) {
+		ByteBuffer payload = response.getResponsePayload();
+		if (compression == PayloadCompression.NONE || payload.remaining() < threshold) {
+			return;
+		}
+		try {
+			ByteBuffer compressed = compression.compress(payload);
+			if (compressed.remaining() < payload.remaining()) {
+				response.setResponsePayload(compressed);
+				response.setCompression(compression);
+				if (synLog.isTraceOrDebugEnabled()) {
+					synLog.traceOrDebug("Compressed the response for request hash : " + response.getKey() +
+					                    " from " + payload.remaining() + " to " + compressed.remaining() + " bytes");
+				}
+			}
+		} catch (IOException e) {
+			synLog.auditWarn("Unable to compress the response for request hash : " + response.getKey() +
+			                 ". Caching it uncompressed. " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Gives the length of the payload of the given message as declared by its Content-Length header
+	 *
+	 * @param msgCtx axis2 message context of the message
+	 * @return payload length in bytes, or -1 if the length is not declared
+	 */
+	private long getContentLength(org.apache.axis2.context.MessageContext msgCtx) {
+		Map headers = (Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+		Object contentLength = headers != null ? headers.get(CONTENT_LENGTH) : null;
+		if (contentLength != null) {
+			try {
+				return Long.parseLong(contentLength.toString().trim());
+			} catch (NumberFormatException e) {
+				log.debug("Invalid Content-Length header : " + contentLength);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes the cached payload, headers and status code into the given message. JSON payloads are handed over to
+	 * the JSON stream of the message as they are, so no XML or JSON tree is built on a cache hit.
+	 * <p/>
+	 * The reference to the cached response taken by the caller is released once the payload has been read. If
+	 * streaming is requested, a JSON payload is read from the cache while it is written to the client and the stream
+	 * returned should be closed once the response has been sent. Otherwise an off heap payload is copied onto the
+	 * heap, and the reference is released before this method returns.
+	 * <p/>
+	 * A compressed JSON payload which is streamed to a client accepting its content coding is sent compressed, with
+	 * a Content-Encoding header. Compressed payloads are decompressed onto the heap in every other case.
+	 *
+	 * @param msgCtx         axis2 message context of the request message which is turned into the response
+	 * @param cachedResponse the cached response to be served, retained by the caller
+	 * @param stream         whether the payload is written to the client right after this call
+	 * @return the stream reading the payload from the cache, or null if the reference has already been released
+	 * @throws AxisFault if the payload cannot be set to the message
+	 */
+	private InputStream replayResponse(org.apache.axis2.context.MessageContext msgCtx,
+	                                   CachableResponse cachedResponse, boolean stream) throws AxisFault {
+		PayloadCompression compression = cachedResponse.getCompression();
+		boolean compressed = compression != PayloadCompression.NONE;
+		boolean sendCompressed = false;
+		if (compressed && stream && cachedResponse.isJson()) {
+			Map requestHeaders =
+					(Map) msgCtx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+			sendCompressed = HttpCacheHeaders.acceptsEncoding(requestHeaders, compression.getContentEncoding());
+		}
+
+		Map<String, Object> headerProperties = HeaderCodec.decode(cachedResponse.getHeaderProperties());
+		Object messageType = headerProperties.remove(Constants.Configuration.MESSAGE_TYPE);
+		Object statusCode = headerProperties.remove(HTTP_SC);
+		if (compressed) {
+			// the response differs by the codings the client accepts
+			Object vary = headerProperties.get(VARY);
+			if (vary == null) {
+				headerProperties.put(VARY, ACCEPT_ENCODING);
+			} else if (!vary.toString().toLowerCase().contains(ACCEPT_ENCODING.toLowerCase())) {
+				headerProperties.put(VARY, vary + ", " + ACCEPT_ENCODING);
+			}
+			if (sendCompressed) {
+				headerProperties.put(CONTENT_ENCODING, compression.getContentEncoding());
+			} else {
+				headerProperties.remove(CONTENT_ENCODING);
+			}
+		}
+
+		msgCtx.removeProperty(NO_ENTITY_BODY);
+		msgCtx.removeProperty(Constants.Configuration.CONTENT_TYPE);
+		msgCtx.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, headerProperties);
+		if (messageType != null) {
+			msgCtx.setProperty(Constants.Configuration.MESSAGE_TYPE, messageType);
+		}
+		// responses cached without their status code were successful ones
+		msgCtx.setProperty(HTTP_SC, statusCode != null ? Integer.valueOf(statusCode.toString()) : 200);
+
+		ByteBuffer payload = cachedResponse.getResponsePayload().duplicate();
+		if (cachedResponse.isJson()) {
+			// the JSON payload is set as a data source over the stream, which is never built into a tree. JsonUtil
+			// takes no buildAll flag, the data source is what keeps it lazy.
+			if (stream && (!compressed || sendCompressed)) {
+				InputStream payloadStream = new CachedPayloadInputStream(payload, cachedResponse);
+				JsonUtil.getNewJsonPayload(msgCtx, payloadStream, true, true);
+				return payloadStream;
+			}
+			if (compressed) {
+				payload = decompressPayload(compression, payload);
+			} else if (cachedResponse.isOffHeap()) {
+				ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+				copy.put(payload).flip();
+				payload = copy;
+			}
+			cachedResponse.release();
+			JsonUtil.getNewJsonPayload(msgCtx, new ByteBufferInputStream(payload), true, true);
+		} else {
+			if (compressed) {
+				payload = decompressPayload(compression, payload);
+			}
+			SOAPBody body = msgCtx.getEnvelope().getBody();
+			if (body.getFirstElement() != null) {
+				body.getFirstElement().detach();
+			}
+			try {
+				if (payload.hasRemaining()) {
+					// the element is built right away, since the tree holds its own copy of the payload
+					OMElement element = OMXMLBuilderFactory.createOMBuilder(new ByteBufferInputStream(payload))
+					                                       .getDocumentElement();
+					element.build();
+					body.addChild(element);
+				}
+			} finally {
+				cachedResponse.release();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decompresses a cached payload onto the heap
+	 *
+	 * @param compression how the payload is compressed
+	 * @param payload     the compressed payload
+	 * @return buffer of the decompressed payload
+	 * @throws AxisFault if the payload cannot be decompressed
+	 */
+	private static ByteBuffer decompressPayload(PayloadCompression compression, ByteBuffer payload)
+			throws AxisFault {
+		// the ratio of a compressed JSON payload is about four, which is not trusted beyond the initial capture size
+		CappedOutputStream decompressed = new CappedOutputStream(
+				0, (int) Math.min(payload.remaining() * 4L, MAX_INITIAL_CAPTURE_SIZE));
+		try {
+			decompressed.readFrom(compression.decompress(new ByteBufferInputStream(payload)));
+		} catch (IOException e) {
+			throw new AxisFault("Unable to decompress the cached payload", e);
+		}
+		return decompressed.toByteBuffer();
+	}
+
+	/**
+	 * Closes the stream returned by replayResponse, which releases the cached response it reads from
+	 *
+	 * @param payloadStream stream to be closed, or null
+	 */
+	private void closePayloadStream(InputStream payloadStream) {
+		if (payloadStream != null) {
+			try {
+				payloadStream.close();
+			} catch (IOException e) {
+				log.debug("Error while closing the cached payload stream", e);
+			}
+		}
+	}
+
+	/**
+	 * Caches the CachableResponse object with currently available attributes against the request key in the
+	 * mediator cache
+	 *
+	 * @param msgContext axis2 message context of the request message
+	 * @param partition  the cache partition of the request
+	 * @param requestKey the request key that has already been computed
+	 * @param store      whether the placeholder replaces the cached response, which is not the case while an
+	 *                   expired response is revalidated
+	 */
+	private void cacheNewResponse(org.apache.axis2.context.MessageContext msgContext, CachePartition partition,
+	                              CacheKey requestKey, boolean store) {
+		OperationContext opCtx = msgContext.getOperationContext();
+		CachableResponse response = new CachableResponse();
+		response.setKey(requestKey);
+		response.setTimeout(timeout);
+		if (store) {
+			putCachedResponse(partition, requestKey, response);
+		}
+		opCtx.setProperty(CachingConstants.CACHED_OBJECT, response);
+		getReplicationQueue().replicate(opCtx);
+	}
+
+
+	/**
+	 * Drops the response placeholder of a response which is not to be cached. If the response is of a background
+	 * refresh, the expired response it was meant to replace is invalidated instead.
+	 *
+	 * @param partition cache partition of the request
+	 * @param response  the response placeholder
+	 * @param refresh   whether the response is of a background refresh
+	 */
+	private static void discardResponse(CachePartition partition, CachableResponse response, boolean refresh) {
+		if (refresh) {
+			invalidateCachedResponse(partition, response.getKey());
+		} else if (partition.getStore().remove(response.getKey(), response)) {
+			response.release();
+		}
+	}
+
+	/**
+	 * Puts the given response into the memory store of the given partition and releases the reference of the store
+	 * to the response it replaces
+	 *
+	 * @param partition  cache partition of the request
+	 * @param requestKey key of the request
+	 * @param response   response to be cached
+	 */
+	private static void putCachedResponse(CachePartition partition, CacheKey requestKey, CachableResponse response) {
+		CachableResponse previous = partition.getStore().put(requestKey, response);
+		if (previous != null && previous != response) {
+			previous.release();
+		}
+	}
+
+	/**
+	 * Removes the response of the given request from the memory store of the given partition and releases the
+	 * reference of the store to it
+	 *
+	 * @param partition  cache partition of the request
+	 * @param requestKey key of the request
+	 */
+	private static void removeCachedResponse(CachePartition partition, CacheKey requestKey) {
+		CachableResponse previous = partition.getStore().remove(requestKey);
+		if (previous != null) {
+			previous.release();
+		}
+	}
+
+	/**
+	 * Stores a captured response in the given partition. Large responses are stored in the disk tier directly, and
+	 * the others are moved into the off heap arena if there is one and put into the memory store.
+	 *
+	 * @param partition cache partition of the request
+	 * @param response  the response to be stored, on the heap
+	 * @return true if the response has been stored in the disk tier
+	 */
+	private static boolean storeCachedResponse(CachePartition partition, CachableResponse response) {
+		DiskCacheTier<CacheKey> disk = diskCache;
+		if (disk != null && response.getResponsePayload().remaining() >= diskCacheLargePayloadSize &&
+		    disk.put(partition.qualify(response.getKey()), response)) {
+			removeCachedResponse(partition, response.getKey());
+			return true;
+		}
+		PayloadArena arena = payloadArena;
+		if (arena != null && !response.moveToArena(arena) && log.isDebugEnabled()) {
+			log.debug("Off heap arena has no room for the response for request hash : " +
+			          response.getKey() + ". Keeping it on the heap");
+		}
+		putCachedResponse(partition, response.getKey(), response);
+		return false;
+	}
+
+	/**
+	 * Removes the response of the given request from the memory store of the given partition and the disk tier,
+	 * and from the caches of the peers if the cache is distributed
+	 *
+	 * @param partition  cache partition of the request
+	 * @param requestKey key of the request
+	 */
+	private static void invalidateCachedResponse(CachePartition partition, CacheKey requestKey) {
+		removeCachedResponse(partition, requestKey);
+		DiskCacheTier<CacheKey> disk = diskCache;
+		if (disk != null) {
+			disk.remove(partition.qualify(requestKey));
+		}
+		InvalidationBus bus = invalidationBus;
+		if (bus != null && partition.isHost()) {
+			bus.publishInvalidate(requestKey);
+		}
+	}
+
+	/**
+	 * Gives the cache partition of this mediator. The partition is resolved at init, but a mediator which has not
+	 * been initialized, such as a collector, resolves it by its cache key on first use.
+	 *
+	 * @return cache partition
+	 */
+	private CachePartition getPartition() {
+		CachePartition resolved = partition;
+		if (resolved == null) {
+			resolved = resolvePartition(cacheKey, !CachingConstants.SCOPE_PER_MEDIATOR.equals(scope));
+			partition = resolved;
+		}
+		return resolved;
+	}
+
+	/**
+	 * Gives the store which keeps the responses of the per-host and distributed cache mediators, creating it with
+	 * the default bounds if it has not been initialized by a cache mediator yet
 	 *
 	 * @return global cache
 	 */
-	public static Cache<String, CachableResponse> getMediatorCache() {
-		if (mediatorCacheInit.get()) {
-			return Caching.getCacheManagerFactory().getCacheManager(CachingConstants.CACHE_MANAGER)
-			              .getCache(CachingConstants.MEDIATOR_CACHE);
-		} else {
-			CacheManager cacheManager = Caching.getCacheManagerFactory().getCacheManager(CachingConstants.CACHE_MANAGER);
-			mediatorCacheInit.getAndSet(true);
-			CacheBuilder<String, CachableResponse> mediatorCacheBuilder = cacheManager.createCacheBuilder(CachingConstants.MEDIATOR_CACHE);
-			Cache<String, CachableResponse> cache = mediatorCacheBuilder.setExpiry(CacheConfiguration.ExpiryType.MODIFIED,
-			                                        new CacheConfiguration.Duration(TimeUnit.SECONDS, CachingConstants.CACHE_INVALIDATION_TIME))
-			                                        .setExpiry(CacheConfiguration.ExpiryType.ACCESSED,
-					                        new CacheConfiguration.Duration(TimeUnit.SECONDS, CachingConstants.CACHE_INVALIDATION_TIME))
-			                                        .setStoreByValue(false).build();
-			return cache;
+	public static MemoryCacheStore<CacheKey, CachableResponse> getMediatorCache() {
+		return resolvePartition(HOST_CACHE_KEY, true).getStore();
+	}
+
+	/**
+	 * Gives the cache partition with the given cache key, which is the cache key of a per-mediator cache mediator
+	 * or mediation.cache_key for the partition shared by the host
+	 *
+	 * @param cacheKey cache key of the partition
+	 * @return the partition, or null if no mediator of the partition has been initialized
+	 */
+	public static CachePartition getCachePartition(String cacheKey) {
+		return partitions.get(cacheKey);
+	}
+
+	/**
+	 * Gives the cache partition with the given cache key, creating it with the default bounds if it does not exist
+	 *
+	 * @param cacheKey cache key of the partition
+	 * @param host     whether this is the partition shared by the host
+	 * @return cache partition
+	 */
+	private static CachePartition resolvePartition(String cacheKey, boolean host) {
+		CachePartition resolved = partitions.get(cacheKey);
+		if (resolved == null) {
+			resolved = initPartition(cacheKey, host, CachingConstants.DEFAULT_CACHE_SIZE,
+			                         CachingConstants.DEFAULT_EVICTION_POLICY, false);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Creates the cache partition with the given cache key if it has not been created yet. The bounds of the first
+	 * mediator which initializes the partition are used, since the host partition is shared by all the per-host
+	 * mediators. Responses evicted from the partition are spilled into the disk tier if there is one, and are then
+	 * released.
+	 *
+	 * @param cacheKey       cache key of the partition
+	 * @param host           whether this is the partition shared by the host
+	 * @param maxSize        maximum number of responses held in memory
+	 * @param evictionPolicy policy used to evict responses once the store is full
+	 * @return cache partition
+	 */
+	private static CachePartition initPartition(String cacheKey, boolean host, int maxSize,
+	                                            EvictionPolicy evictionPolicy) {
+		return initPartition(cacheKey, host, maxSize, evictionPolicy, true);
+	}
+
+	private static synchronized CachePartition initPartition(String cacheKey, boolean host, int maxSize,
+	                                                         EvictionPolicy evictionPolicy, boolean warn) {
+		CachePartition resolved = resolveOrCreatePartition(cacheKey, host, maxSize, evictionPolicy, warn);
+		if (warn) {
+			resolved.addMediator();
+		}
+		return resolved;
+	}
+
+	private static CachePartition resolveOrCreatePartition(String cacheKey, boolean host, int maxSize,
+	                                                       EvictionPolicy evictionPolicy, boolean warn) {
+		CachePartition existing = partitions.get(cacheKey);
+		if (existing == null) {
+			final CachePartition created = new CachePartition(cacheKey, host, maxSize, evictionPolicy);
+			created.getStore().setEvictionListener(new EvictionListener<CacheKey, CachableResponse>() {
+				@Override
+				public void onEviction(CacheKey key, CachableResponse value) {
+					DiskCacheTier<CacheKey> disk = diskCache;
+					if (disk != null && value.getResponsePayload() != null && !value.isExpired()) {
+						disk.put(created.qualify(key), value);
+					}
+					value.release();
+				}
+			});
+			partitions.put(cacheKey, created);
+			if (snapshots != null) {
+				snapshots.restore(created);
+			}
+			return created;
+		}
+		MemoryCacheStore<CacheKey, CachableResponse> store = existing.getStore();
+		if (warn && (store.getMaxSize() != maxSize || store.getEvictionPolicy() != evictionPolicy)) {
+			log.warn("Cache partition : " + cacheKey + " is already initialized with maxSize : " +
+			         store.getMaxSize() + " and evictionPolicy : " + store.getEvictionPolicy() +
+			         ". Ignoring maxSize : " + maxSize + " and evictionPolicy : " + evictionPolicy);
+		}
+		return existing;
+	}
+
+	/**
+	 * Uncounts a destroyed mediator of the given partition. A per-mediator partition is written to its snapshot and
+	 * removed once its last mediator is destroyed, so that its next mediators get the bounds they declare, and the
+	 * responses it holds in memory are released. The host partition is kept, since it is also used by the components
+	 * which reach the store of the host directly, and is written when the shared resources are released.
+	 *
+	 * @param released partition of the destroyed mediator
+	 */
+	private static synchronized void releasePartition(CachePartition released) {
+		if (!released.removeMediator() || released.isHost()) {
+			return;
+		}
+		CacheSnapshots currentSnapshots = snapshots;
+		if (currentSnapshots != null) {
+			currentSnapshots.write(released);
+		}
+		if (!partitions.remove(released.getName(), released)) {
+			return;
+		}
+		MemoryCacheStore<CacheKey, CachableResponse> store = released.getStore();
+		for (int i = 0; i < store.getSegmentCount(); i++) {
+			for (Map.Entry<CacheKey, CachableResponse> entry : store.copySegment(i).entrySet()) {
+				if (store.remove(entry.getKey(), entry.getValue())) {
+					entry.getValue().release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives the global queue of the contexts to be replicated among the cluster, creating it with the default
+	 * settings if it has not been initialized by a cache mediator yet
+	 *
+	 * @return global replication queue
+	 */
+	private static ReplicationQueue getReplicationQueue() {
+		ReplicationQueue queue = replicationQueue;
+		if (queue == null) {
+			queue = initReplicationQueue(CachingConstants.DEFAULT_REPLICATION_INTERVAL,
+			                             CachingConstants.DEFAULT_REPLICATION_BATCH_SIZE);
+		}
+		return queue;
+	}
+
+	/**
+	 * Creates the global request coalescer if it has not been created yet
+	 */
+	private static synchronized void initCoalescer() {
+		if (coalescer == null) {
+			coalescer = new RequestCoalescer();
+		}
+	}
+
+	/**
+	 * Lands the flight of the given request key, if requests are coalesced
+	 *
+	 * @param requestKey qualified key of the request
+	 */
+	private static void landFlight(CacheKey requestKey) {
+		RequestCoalescer currentCoalescer = coalescer;
+		if (currentCoalescer != null) {
+			currentCoalescer.land(requestKey);
+		}
+	}
+
+	/**
+	 * Creates the global replication queue if it has not been created yet. The settings of the first mediator
+	 * which initializes the queue are used.
+	 *
+	 * @param flushInterval time in milliseconds between two flushes
+	 * @param batchSize     maximum number of contexts replicated together
+	 * @return global replication queue
+	 */
+	private static synchronized ReplicationQueue initReplicationQueue(long flushInterval, int batchSize) {
+		if (replicationQueue == null) {
+			replicationQueue = new ReplicationQueue(flushInterval, batchSize);
+		} else if (replicationQueue.getFlushInterval() != flushInterval ||
+		           replicationQueue.getBatchSize() != batchSize) {
+			log.warn("Replication queue of the mediator cache is already initialized with replicationInterval : " +
+			         replicationQueue.getFlushInterval() + " and replicationBatchSize : " +
+			         replicationQueue.getBatchSize() + ". Ignoring replicationInterval : " + flushInterval +
+			         " and replicationBatchSize : " + batchSize);
+		}
+		return replicationQueue;
+	}
+
+	/**
+	 * Gives the number of replication batches of the mediator cache which failed with a clustering fault
+	 *
+	 * @return clustering fault count
+	 */
+	public static long getReplicationFaultCount() {
+		return getReplicationQueue().getFaultCount();
+	}
+
+	/**
+	 * Gives the number of changes of the mediator cache which were not replicated because the replication queue
+	 * was full
+	 *
+	 * @return dropped replication count
+	 */
+	public static long getReplicationDroppedCount() {
+		return getReplicationQueue().getDroppedCount();
+	}
+
+	/**
+	 * Creates the global bus of the distributed cache if it has not been created yet. The responses cached by the
+	 * peers are stored in the local cache as they are received, and the responses invalidated by the peers are
+	 * removed from it. If the bus cannot be created, the cache stays local to this node.
+	 *
+	 * @param bindAddress   host:port on which the changes of the peers are received
+	 * @param peers         comma separated host:port addresses of the peers
+	 * @param secret        secret shared by the peers, or null if their changes are not authenticated
+	 * @param flushInterval time in milliseconds between two broadcasts of the local changes
+	 */
+	private static synchronized void initInvalidationBus(String bindAddress, String peers, String secret,
+	                                                     long flushInterval) {
+		if (invalidationBus != null) {
+			if (bindAddress != null && !toSocketAddress(bindAddress).equals(invalidationBus.getBindAddress())) {
+				log.warn("Invalidation bus of the distributed cache is already bound to : " +
+				         invalidationBus.getBindAddress() + ". Ignoring peerBindAddress : " + bindAddress);
+			}
+			return;
+		}
+		if (bindAddress == null) {
+			log.error("No peer bind address is given for the distributed cache. Responses will be cached on this " +
+			          "node only");
+			return;
+		}
+		try {
+			List<InetSocketAddress> peerAddresses = new ArrayList<InetSocketAddress>();
+			if (peers != null) {
+				for (String peer : peers.split(",")) {
+					if (!peer.trim().isEmpty()) {
+						peerAddresses.add(toSocketAddress(peer.trim()));
+					}
+				}
+			}
+			InvalidationBus.Listener listener = new InvalidationBus.Listener() {
+				@Override
+				public void onPut(CacheKey requestKey, CachableResponse response) {
+					if (response.getVaryHeaders() != null) {
+						// the variants of a request are looked up through the names of the headers they vary by
+						putCachedResponse(resolvePartition(HOST_CACHE_KEY, true), requestKey, response);
+					} else if (!response.isExpired()) {
+						storeCachedResponse(resolvePartition(HOST_CACHE_KEY, true), response);
+					}
+				}
+
+				@Override
+				public void onInvalidate(CacheKey requestKey) {
+					CachePartition host = resolvePartition(HOST_CACHE_KEY, true);
+					removeCachedResponse(host, requestKey);
+					DiskCacheTier<CacheKey> disk = diskCache;
+					if (disk != null) {
+						disk.remove(host.qualify(requestKey));
+					}
+				}
+			};
+			if (secret == null) {
+				log.warn("No secret is given for the peers of the distributed cache at : " + bindAddress + ". Their " +
+				         "changes are accepted from their hosts without being authenticated");
+			}
+			invalidationBus = new InvalidationBus(toSocketAddress(bindAddress), peerAddresses,
+			                                      secret != null ? secret.getBytes(Charset.forName("UTF-8")) : null,
+			                                      flushInterval, listener);
+		} catch (IOException e) {
+			log.error("Unable to bind the invalidation bus of the distributed cache to : " + bindAddress +
+			          ". Responses will be cached on this node only", e);
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid configuration of the distributed cache. Responses will be cached on this node only",
+			          e);
+		}
+	}
+
+	/**
+	 * Parses a host:port address
+	 *
+	 * @param address host:port address
+	 * @return the socket address
+	 */
+	private static InetSocketAddress toSocketAddress(String address) {
+		int separator = address.lastIndexOf(':');
+		if (separator <= 0) {
+			throw new IllegalArgumentException("Address : " + address + " is not of the form host:port");
+		}
+		try {
+			return new InetSocketAddress(address.substring(0, separator),
+			                             Integer.parseInt(address.substring(separator + 1)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid port in the address : " + address, e);
+		}
+	}
+
+	/**
+	 * Creates the global snapshots of the cache partitions if they have not been created yet, and restores the
+	 * partitions which exist already. The settings of the first mediator which initializes the snapshots are used.
+	 * Restored responses never replace the responses cached since the partition was created.
+	 *
+	 * @param directory directory of the snapshot files
+	 * @param interval  time in milliseconds between two snapshots, or 0 to write them when destroyed only
+	 */
+	private static synchronized void initSnapshots(String directory, long interval) {
+		if (snapshots != null) {
+			if (!new File(directory).getAbsoluteFile().equals(snapshots.getDirectory().getAbsoluteFile()) ||
+			    snapshots.getInterval() != interval) {
+				log.warn("Snapshots of the mediator cache are already initialized with snapshotDirectory : " +
+				         snapshots.getDirectory() + " and snapshotInterval : " + snapshots.getInterval() +
+				         ". Ignoring snapshotDirectory : " + directory + " and snapshotInterval : " + interval);
+			}
+			return;
+		}
+		CacheSnapshots.Loader loader = new CacheSnapshots.Loader() {
+			@Override
+			public void onRestore(CachePartition partition, CachableResponse response) {
+				ByteBuffer payload = response.getResponsePayload();
+				DiskCacheTier<CacheKey> disk = diskCache;
+				if (disk != null && payload != null && payload.remaining() >= diskCacheLargePayloadSize) {
+					disk.put(partition.qualify(response.getKey()), response);
+					return;
+				}
+				PayloadArena arena = payloadArena;
+				if (arena != null && payload != null) {
+					response.moveToArena(arena);
+				}
+				if (partition.getStore().putIfAbsent(response.getKey(), response) != null) {
+					response.release();
+				}
+			}
+		};
+		try {
+			snapshots = new CacheSnapshots(new File(directory), interval, partitions.values(), loader);
+		} catch (IOException e) {
+			log.error("Unable to use the snapshot directory : " + directory + ". The mediator cache will start " +
+			          "empty after a restart", e);
+			return;
+		}
+		for (CachePartition existing : partitions.values()) {
+			snapshots.restore(existing);
+		}
+	}
+
+	/**
+	 * Creates the global off heap arena of the mediator cache if it has not been created yet.
+	 *
+	 * @param sizeInMegabytes total size of the direct memory reserved by the arena
+	 */
+	private static synchronized void initPayloadArena(int sizeInMegabytes) {
+		if (payloadArena == null) {
+			try {
+				payloadArena = new PayloadArena(sizeInMegabytes * 1024L * 1024L);
+			} catch (IllegalArgumentException e) {
+				log.error("Unable to create the off heap arena of the mediator cache. Responses will be cached on " +
+				          "the heap", e);
+			}
+		} else if (payloadArena.getCapacity() != sizeInMegabytes * 1024L * 1024L) {
+			log.warn("Off heap arena of the mediator cache is already initialized with capacity : " +
+			         payloadArena.getCapacity() + " bytes. Ignoring offHeapSize : " + sizeInMegabytes);
+		}
+	}
+
+	/**
+	 * Creates the global disk tier of the mediator cache if it has not been created yet. The memory store spills
+	 * the responses it evicts into it.
+	 *
+	 * @param sizeInBytes      total size of the disk cache files
+	 * @param directory        directory of the disk cache files, or null to use the default directory
+	 * @param largePayloadSize payload size from which responses are stored on disk directly
+	 */
+	private static synchronized void initDiskCache(long sizeInBytes, String directory, int largePayloadSize) {
+		if (diskCache != null) {
+			return;
+		}
+		File dir = directory != null ? new File(directory) :
+		           new File(System.getProperty("java.io.tmpdir"), CachingConstants.DEFAULT_DISK_CACHE_DIRECTORY);
+		try {
+			DiskCacheTier<CacheKey> disk = new DiskCacheTier<CacheKey>(dir, sizeInBytes);
+			diskCacheLargePayloadSize = largePayloadSize;
+			diskCache = disk;
+		} catch (CachingException e) {
+			log.error("Unable to create the disk cache at : " + dir + ". Responses will be cached in memory only", e);
 		}
 	}
 
@@ -460,23 +2146,41 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 	}
 
 	/**
-	 * This method gives the size of the messages to be cached in memory.
+	 * This method gives the maximum number of the messages to be cached in memory.
 	 *
-	 * @return memory cache size in bytes.
+	 * @return memory cache size as a number of messages.
 	 */
 	public int getInMemoryCacheSize() {
 		return inMemoryCacheSize;
 	}
 
 	/**
-	 * This method sets the size of the messages to be cached in memory.
+	 * This method sets the maximum number of the messages to be cached in memory.
 	 *
-	 * @param inMemoryCacheSize value(number of bytes) to be set as memory cache size.
+	 * @param inMemoryCacheSize value(number of messages) to be set as memory cache size.
 	 */
 	public void setInMemoryCacheSize(int inMemoryCacheSize) {
 		this.inMemoryCacheSize = inMemoryCacheSize;
 	}
 
+	/**
+	 * This method gives the policy used to evict responses from memory.
+	 *
+	 * @return eviction policy of the in memory cache.
+	 */
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * This method sets the policy used to evict responses from memory.
+	 *
+	 * @param evictionPolicy eviction policy to be set.
+	 */
+	public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+	}
+
 	/**
 	 * This method gives the size of the messages to be cached in disk.
 	 *
@@ -495,6 +2199,330 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 		this.diskCacheSize = diskCacheSize;
 	}
 
+	/**
+	 * This method gives the size of the disk cache in megabytes.
+	 *
+	 * @return disk cache size in megabytes, or 0 if the size is given in bytes.
+	 */
+	public int getDiskCacheSizeMB() {
+		return diskCacheSizeMB;
+	}
+
+	/**
+	 * This method sets the size of the disk cache in megabytes, which takes precedence over the size in bytes.
+	 *
+	 * @param diskCacheSizeMB value(number of megabytes) to be set as disk cache size.
+	 */
+	public void setDiskCacheSizeMB(int diskCacheSizeMB) {
+		this.diskCacheSizeMB = diskCacheSizeMB;
+	}
+
+	/**
+	 * This method gives the directory which holds the files of the disk cache.
+	 *
+	 * @return disk cache directory, or null if the default directory is used.
+	 */
+	public String getDiskCacheDirectory() {
+		return diskCacheDirectory;
+	}
+
+	/**
+	 * This method sets the directory which holds the files of the disk cache.
+	 *
+	 * @param diskCacheDirectory disk cache directory to be set.
+	 */
+	public void setDiskCacheDirectory(String diskCacheDirectory) {
+		this.diskCacheDirectory = diskCacheDirectory;
+	}
+
+	/**
+	 * This method gives the payload size from which responses are stored on disk directly.
+	 *
+	 * @return large payload size in bytes.
+	 */
+	public int getLargePayloadSize() {
+		return largePayloadSize;
+	}
+
+	/**
+	 * This method sets the payload size from which responses are stored on disk directly.
+	 *
+	 * @param largePayloadSize large payload size in bytes to be set.
+	 */
+	public void setLargePayloadSize(int largePayloadSize) {
+		this.largePayloadSize = largePayloadSize;
+	}
+
+	/**
+	 * This method gives the time for which requests wait for an identical request already sent to the backend.
+	 *
+	 * @return coalescing timeout in milliseconds, or 0 if requests are not coalesced.
+	 */
+	public long getCoalescingTimeout() {
+		return coalescingTimeout;
+	}
+
+	/**
+	 * This method sets the time for which requests wait for an identical request already sent to the backend.
+	 *
+	 * @param coalescingTimeout millisecond timeout to be set, or 0 to disable coalescing.
+	 */
+	public void setCoalescingTimeout(long coalescingTimeout) {
+		this.coalescingTimeout = coalescingTimeout;
+	}
+
+	/**
+	 * This method gives the period after the expiry of a cached response during which it is still served.
+	 *
+	 * @return stale-while-revalidate period in seconds.
+	 */
+	public long getStaleWhileRevalidate() {
+		return staleWhileRevalidate / 1000;
+	}
+
+	/**
+	 * This method sets the period after the expiry of a cached response during which it is still served.
+	 *
+	 * @param staleWhileRevalidate period in seconds to be set, or 0 to disable serving expired responses.
+	 */
+	public void setStaleWhileRevalidate(long staleWhileRevalidate) {
+		this.staleWhileRevalidate = staleWhileRevalidate * 1000;
+	}
+
+	/**
+	 * This method gives how the Cache-Control and Expires headers of the responses are combined with the timeout.
+	 *
+	 * @return cache control policy.
+	 */
+	public CacheControlPolicy getCacheControlPolicy() {
+		return cacheControlPolicy;
+	}
+
+	/**
+	 * This method sets how the Cache-Control and Expires headers of the responses are combined with the timeout.
+	 *
+	 * @param cacheControlPolicy cache control policy to be set.
+	 */
+	public void setCacheControlPolicy(CacheControlPolicy cacheControlPolicy) {
+		this.cacheControlPolicy = cacheControlPolicy;
+	}
+
+	/**
+	 * This method gives whether expired responses are revalidated with their ETag and Last-Modified validators.
+	 *
+	 * @return true if expired responses are revalidated.
+	 */
+	public boolean isRevalidate() {
+		return revalidate;
+	}
+
+	/**
+	 * This method sets whether expired responses are revalidated with their ETag and Last-Modified validators.
+	 *
+	 * @param revalidate true to revalidate expired responses.
+	 */
+	public void setRevalidate(boolean revalidate) {
+		this.revalidate = revalidate;
+	}
+
+	/**
+	 * This method gives the time between two flushes of the changes replicated among the cluster.
+	 *
+	 * @return replication interval in milliseconds.
+	 */
+	public long getReplicationInterval() {
+		return replicationInterval;
+	}
+
+	/**
+	 * This method sets the time between two flushes of the changes replicated among the cluster.
+	 *
+	 * @param replicationInterval millisecond interval to be set.
+	 */
+	public void setReplicationInterval(long replicationInterval) {
+		this.replicationInterval = replicationInterval;
+	}
+
+	/**
+	 * This method gives the maximum number of changed contexts replicated among the cluster together.
+	 *
+	 * @return replication batch size.
+	 */
+	public int getReplicationBatchSize() {
+		return replicationBatchSize;
+	}
+
+	/**
+	 * This method sets the maximum number of changed contexts replicated among the cluster together.
+	 *
+	 * @param replicationBatchSize batch size to be set.
+	 */
+	public void setReplicationBatchSize(int replicationBatchSize) {
+		this.replicationBatchSize = replicationBatchSize;
+	}
+
+	/**
+	 * This method gives the host:port on which a distributed cache receives the changes of its peers.
+	 *
+	 * @return peer bind address.
+	 */
+	public String getPeerBindAddress() {
+		return peerBindAddress;
+	}
+
+	/**
+	 * This method sets the host:port on which a distributed cache receives the changes of its peers.
+	 *
+	 * @param peerBindAddress host:port address to be set.
+	 */
+	public void setPeerBindAddress(String peerBindAddress) {
+		this.peerBindAddress = peerBindAddress;
+	}
+
+	/**
+	 * This method gives the comma separated host:port addresses of the peers of a distributed cache.
+	 *
+	 * @return peer addresses.
+	 */
+	public String getPeers() {
+		return peers;
+	}
+
+	/**
+	 * This method sets the comma separated host:port addresses of the peers of a distributed cache.
+	 *
+	 * @param peers peer addresses to be set.
+	 */
+	public void setPeers(String peers) {
+		this.peers = peers;
+	}
+
+	/**
+	 * This method gives the time between two broadcasts of the changes of a distributed cache to its peers.
+	 *
+	 * @return peer flush interval in milliseconds.
+	 */
+	public long getPeerFlushInterval() {
+		return peerFlushInterval;
+	}
+
+	/**
+	 * This method sets the time between two broadcasts of the changes of a distributed cache to its peers.
+	 *
+	 * @param peerFlushInterval millisecond interval to be set.
+	 */
+	public void setPeerFlushInterval(long peerFlushInterval) {
+		this.peerFlushInterval = peerFlushInterval;
+	}
+
+	/**
+	 * This method gives the secret shared by the peers of a distributed cache.
+	 *
+	 * @return peer secret, or null if the changes of the peers are not authenticated.
+	 */
+	public String getPeerSecret() {
+		return peerSecret;
+	}
+
+	/**
+	 * This method sets the secret shared by the peers of a distributed cache.
+	 *
+	 * @param peerSecret secret to be set.
+	 */
+	public void setPeerSecret(String peerSecret) {
+		this.peerSecret = peerSecret;
+	}
+
+	/**
+	 * This method gives how the payloads of the cached responses are compressed.
+	 *
+	 * @return payload compression.
+	 */
+	public PayloadCompression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * This method sets how the payloads of the cached responses are compressed.
+	 *
+	 * @param compression payload compression to be set.
+	 */
+	public void setCompression(PayloadCompression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * This method gives the size from which the payloads of the cached responses are compressed.
+	 *
+	 * @return compression threshold in bytes.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * This method sets the size from which the payloads of the cached responses are compressed.
+	 *
+	 * @param compressionThreshold threshold in bytes to be set.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * This method gives the size of the off heap arena which keeps the cached responses.
+	 *
+	 * @return off heap arena size in megabytes, or 0 if the responses are kept on the heap.
+	 */
+	public int getOffHeapSize() {
+		return offHeapSize;
+	}
+
+	/**
+	 * This method sets the size of the off heap arena which keeps the cached responses.
+	 *
+	 * @param offHeapSize value(number of megabytes) to be set as off heap arena size.
+	 */
+	public void setOffHeapSize(int offHeapSize) {
+		this.offHeapSize = offHeapSize;
+	}
+
+	/**
+	 * This method gives the directory of the snapshots of the cache partitions.
+	 *
+	 * @return snapshot directory, or null if the cache is not kept across restarts.
+	 */
+	public String getSnapshotDirectory() {
+		return snapshotDirectory;
+	}
+
+	/**
+	 * This method sets the directory of the snapshots of the cache partitions.
+	 *
+	 * @param snapshotDirectory directory to be set, or null to start with an empty cache.
+	 */
+	public void setSnapshotDirectory(String snapshotDirectory) {
+		this.snapshotDirectory = snapshotDirectory;
+	}
+
+	/**
+	 * This method gives the time between two snapshots of the cache partitions.
+	 *
+	 * @return snapshot interval in milliseconds, or 0 if the partitions are written when destroyed only.
+	 */
+	public long getSnapshotInterval() {
+		return snapshotInterval;
+	}
+
+	/**
+	 * This method sets the time between two snapshots of the cache partitions.
+	 *
+	 * @param snapshotInterval value(in milliseconds) to be set as the snapshot interval.
+	 */
+	public void setSnapshotInterval(long snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
+	}
+
 	/**
 	 * This method gives the timeout period in milliseconds.
 	 *
@@ -579,4 +2607,44 @@ public class CacheMediator extends AbstractMediator implements ManagedLifecycle,
 		return null;
 	}
 
+	/**
+	 * Stream over a cached payload which releases the reference to the cached response once the payload has been
+	 * read to the end or the stream is closed, whichever comes first
+	 */
+	private static final class CachedPayloadInputStream extends ByteBufferInputStream {
+
+		private final CachableResponse cachedResponse;
+
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		CachedPayloadInputStream(ByteBuffer payload, CachableResponse cachedResponse) {
+			super(payload);
+			this.cachedResponse = cachedResponse;
+		}
+
+		@Override
+		public int read() {
+			int value = super.read();
+			if (value < 0) {
+				close();
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			int count = super.read(bytes, offset, length);
+			if (count < 0) {
+				close();
+			}
+			return count;
+		}
+
+		@Override
+		public void close() {
+			if (released.compareAndSet(false, true)) {
+				cachedResponse.release();
+			}
+		}
+	}
 }
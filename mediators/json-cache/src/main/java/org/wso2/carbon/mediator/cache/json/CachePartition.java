@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json;
+
+import org.wso2.carbon.mediator.cache.json.store.EvictionPolicy;
+import org.wso2.carbon.mediator.cache.json.store.MemoryCacheStore;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An isolated part of the mediator cache with its own memory store and statistics. The cache mediators of the
+ * per-host and distributed scopes share the host partition, while each cache mediator of the per-mediator scope
+ * gets a partition of its own, so that the responses of one mediator never evict the responses of another.
+ * <p/>
+ * The partitions share the disk tier and the off heap arena of the host. Their entries are told apart there by the
+ * qualified request key of the partition.
+ */
+public final class CachePartition {
+
+	private final String name;
+
+	private final MemoryCacheStore<CacheKey, CachableResponse> store;
+
+	/**
+	 * Salt of the qualified request keys, or null for the host partition whose request keys are used as they are
+	 */
+	private final CacheKey salt;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong storeCount = new AtomicLong();
+
+	/**
+	 * Number of the initialized mediators of this partition, which is guarded by the lock of the CacheMediator class
+	 */
+	private int mediatorCount;
+
+	/**
+	 * Creates a partition with a memory store of the given bounds
+	 *
+	 * @param name           name of the partition, which is the cache key of its mediators
+	 * @param host           whether this is the partition shared by the host
+	 * @param maxSize        maximum number of responses held in memory
+	 * @param evictionPolicy policy used to evict responses once the store is full
+	 */
+	CachePartition(String name, boolean host, int maxSize, EvictionPolicy evictionPolicy) {
+		this.name = name;
+		this.salt = host ? null : CacheKey.of(name);
+		this.store = new MemoryCacheStore<CacheKey, CachableResponse>(maxSize, evictionPolicy);
+	}
+
+	/**
+	 * Gives the request key under which the response of the given request is kept outside the memory store of
+	 * this partition, such as in the disk tier
+	 *
+	 * @param requestKey key of the request
+	 * @return request key qualified by this partition
+	 */
+	CacheKey qualify(CacheKey requestKey) {
+		return salt == null ? requestKey : requestKey.salt(salt);
+	}
+
+	/**
+	 * Gives whether this is the partition shared by the per-host and distributed cache mediators
+	 *
+	 * @return true for the host partition
+	 */
+	public boolean isHost() {
+		return salt == null;
+	}
+
+	/**
+	 * Gives the name of this partition
+	 *
+	 * @return cache key of the mediators of this partition
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gives the memory store of this partition
+	 *
+	 * @return memory store
+	 */
+	public MemoryCacheStore<CacheKey, CachableResponse> getStore() {
+		return store;
+	}
+
+	/**
+	 * Counts an initialized mediator of this partition
+	 */
+	void addMediator() {
+		mediatorCount++;
+	}
+
+	/**
+	 * Uncounts a destroyed mediator of this partition
+	 *
+	 * @return true if no initialized mediator uses this partition any more
+	 */
+	boolean removeMediator() {
+		return --mediatorCount <= 0;
+	}
+
+	void recordHit() {
+		hitCount.incrementAndGet();
+	}
+
+	void recordMiss() {
+		missCount.incrementAndGet();
+	}
+
+	void recordStore() {
+		storeCount.incrementAndGet();
+	}
+
+	/**
+	 * Gives the number of requests served from this partition
+	 *
+	 * @return hit count
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Gives the number of requests which missed this partition, including those which found an expired response
+	 *
+	 * @return miss count
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Gives the number of backend responses stored in this partition
+	 *
+	 * @return store count
+	 */
+	public long getStoreCount() {
+		return storeCount.get();
+	}
+
+	/**
+	 * Gives the number of responses evicted from the memory store of this partition
+	 *
+	 * @return eviction count
+	 */
+	public long getEvictionCount() {
+		return store.getEvictionCount();
+	}
+
+	/**
+	 * Gives the number of responses held in the memory store of this partition
+	 *
+	 * @return size of the memory store
+	 */
+	public int getSize() {
+		return store.size();
+	}
+}
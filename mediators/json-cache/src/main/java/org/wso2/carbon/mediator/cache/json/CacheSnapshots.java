@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+import org.wso2.carbon.mediator.cache.json.util.ResponseCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This keeps the memory stores of the cache partitions warm across restarts, by writing them to snapshot files when
+ * the cache mediators are destroyed, and optionally once per snapshot interval, and restoring them when the
+ * partitions are created again. A partition is restored in the background, so the mediators serve requests while
+ * their responses are loaded, and responses cached in the meantime are never replaced by older ones.
+ * <p/>
+ * Each partition is written to a file of its own, which is streamed sequentially: a header of the format magic, the
+ * format version, the partition name and the time of the snapshot, followed by the segments of the memory store and
+ * an end marker. A segment is a segment marker followed by its responses in their eviction order, and a response is
+ * in the form of the ResponseCodec, with its expiry time relative to the time of the snapshot. The file is written
+ * aside and moved in place once complete, so a crash never leaves a partial snapshot behind. Responses which have
+ * expired by the time they are read are skipped.
+ * <p/>
+ * The segments are restored in parallel, each by a single thread in the order of the file, so the restored store
+ * evicts its responses in the same order as the store which was written.
+ */
+final class CacheSnapshots {
+
+	private static final Log log = LogFactory.getLog(CacheSnapshots.class);
+
+	private static final int MAGIC = 0x4A43534E;
+
+	private static final int VERSION = 1;
+
+	private static final byte END = 0;
+
+	private static final byte ENTRY = 1;
+
+	private static final byte SEGMENT = 2;
+
+	private static final String HOST_FILE = "host";
+
+	private static final String FILE_SUFFIX = ".snapshot";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * Receives the responses read from a snapshot, which are not expired
+	 */
+	interface Loader {
+
+		/**
+		 * Called for each response read from the snapshot of the given partition, from a restoring thread
+		 *
+		 * @param partition partition of the snapshot
+		 * @param response  restored response, on the heap
+		 */
+		void onRestore(CachePartition partition, CachableResponse response);
+	}
+
+	private final File directory;
+
+	private final long interval;
+
+	private final Loader loader;
+
+	private final ScheduledExecutorService writer;
+
+	private final ExecutorService restorers;
+
+	/**
+	 * Names of the partitions which have been restored already, as a partition is restored once per process
+	 */
+	private final Set<String> restored = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Number of unfinished restoring tasks, the reading one and its segments, by the name of the partition. A
+	 * partition is not written until all of its snapshot has been loaded.
+	 */
+	private final ConcurrentMap<String, AtomicInteger> restoring = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * Creates the snapshots of the given directory
+	 *
+	 * @param directory  directory of the snapshot files
+	 * @param interval   time in milliseconds between two snapshots of all the partitions, or 0 to write them only
+	 *                   when the mediators are destroyed
+	 * @param partitions live partitions, written once per interval
+	 * @param loader     receiver of the restored responses
+	 * @throws IOException if the directory cannot be created
+	 */
+	CacheSnapshots(File directory, long interval, final Collection<CachePartition> partitions, Loader loader)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create the snapshot directory : " + directory);
+		}
+		this.directory = directory;
+		this.interval = interval;
+		this.loader = loader;
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "json-cache-snapshot-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (interval > 0) {
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					for (CachePartition partition : partitions) {
+						write(partition);
+					}
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		this.writer = executor;
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		final AtomicInteger threadCount = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+		                                                 new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable,
+				                           "json-cache-snapshot-restorer-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		this.restorers = pool;
+	}
+
+	/**
+	 * Gives the directory of the snapshot files
+	 *
+	 * @return snapshot directory
+	 */
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Gives the time between two snapshots of all the partitions
+	 *
+	 * @return snapshot interval in milliseconds, or 0 if the partitions are written when destroyed only
+	 */
+	long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Restores the given partition from its snapshot in the background, unless it has been restored already. The
+	 * snapshot file is read by one thread, which hands the responses of each segment over to another one.
+	 *
+	 * @param partition partition to be restored
+	 */
+	void restore(final CachePartition partition) {
+		final File file = getFile(partition);
+		if (!file.isFile() || !restored.add(partition.getName())) {
+			return;
+		}
+		restoring.put(partition.getName(), new AtomicInteger(1));
+		restorers.execute(new Runnable() {
+			@Override
+			public void run() {
+				long started = System.currentTimeMillis();
+				try {
+					int count = read(file, partition);
+					if (log.isInfoEnabled()) {
+						log.info("Restored " + count + " responses of the cache partition : " + partition.getName() +
+						         " from : " + file + " in " + (System.currentTimeMillis() - started) + " ms");
+					}
+				} catch (IOException e) {
+					log.warn("Unable to restore the cache partition : " + partition.getName() + " from : " + file, e);
+				} finally {
+					finishRestoring(partition);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the snapshot of the given partition, replacing its previous snapshot. Only one snapshot is written at
+	 * a time.
+	 *
+	 * @param partition partition to be written
+	 */
+	synchronized void write(CachePartition partition) {
+		if (restoring.containsKey(partition.getName())) {
+			// the snapshot holds responses which have not been restored yet
+			return;
+		}
+		File file = getFile(partition);
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		try {
+			int count = write(temp, partition);
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				           StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Wrote " + count + " responses of the cache partition : " + partition.getName() +
+				          " to : " + file);
+			}
+		} catch (IOException e) {
+			log.warn("Unable to write the snapshot of the cache partition : " + partition.getName() + " to : " +
+			         file, e);
+			if (temp.exists() && !temp.delete()) {
+				log.debug("Unable to delete the partial snapshot : " + temp);
+			}
+		}
+	}
+
+	/**
+	 * Stops writing the periodic snapshots and restoring the partitions
+	 */
+	void shutdown() {
+		writer.shutdown();
+		restorers.shutdownNow();
+	}
+
+	private int write(File file, CachePartition partition) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		long snapshotTime = System.currentTimeMillis();
+		int count = 0;
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeUTF(partition.getName());
+			out.writeLong(snapshotTime);
+			for (int i = 0; i < partition.getStore().getSegmentCount(); i++) {
+				out.writeByte(SEGMENT);
+				for (CachableResponse response : partition.getStore().copySegment(i).values()) {
+					// placeholders of the responses being fetched have neither a payload nor vary headers, and the
+					// responses are restored under their own keys
+					if ((response.getResponsePayload() == null && response.getVaryHeaders() == null) ||
+					    response.getKey() == null || response.isExpired() || !response.retain()) {
+						continue;
+					}
+					try {
+						out.writeByte(ENTRY);
+						ResponseCodec.encode(response, out, snapshotTime);
+						count++;
+					} finally {
+						response.release();
+					}
+				}
+			}
+			out.writeByte(END);
+		} finally {
+			out.close();
+		}
+		return count;
+	}
+
+	private int read(File file, final CachePartition partition) throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		} catch (FileNotFoundException e) {
+			return 0;
+		}
+		int count = 0;
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a cache snapshot");
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported cache snapshot version : " + version);
+			}
+			String name = in.readUTF();
+			if (!name.equals(partition.getName())) {
+				throw new IOException("Snapshot is of the cache partition : " + name);
+			}
+			long snapshotTime = in.readLong();
+			int maxLength = (int) Math.min(Integer.MAX_VALUE, file.length());
+
+			List<CachableResponse> segment = new ArrayList<CachableResponse>();
+			while (true) {
+				byte type = in.readByte();
+				if (type == END) {
+					break;
+				} else if (type == SEGMENT) {
+					if (!segment.isEmpty()) {
+						load(partition, segment);
+						segment = new ArrayList<CachableResponse>();
+					}
+					continue;
+				} else if (type != ENTRY) {
+					throw new IOException("Unknown snapshot record : " + type);
+				}
+				CachableResponse response = ResponseCodec.decode(in, snapshotTime, maxLength);
+				if (response.getKey() == null) {
+					throw new IOException("Snapshot response without a request key");
+				}
+				if (response.isExpired()) {
+					continue;
+				}
+				segment.add(response);
+				count++;
+			}
+			// the last segment is loaded by the reading thread itself
+			for (CachableResponse response : segment) {
+				loader.onRestore(partition, response);
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated cache snapshot after " + count + " responses", e);
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	private void load(final CachePartition partition, final List<CachableResponse> segment) throws IOException {
+		restoring.get(partition.getName()).incrementAndGet();
+		try {
+			restorers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (CachableResponse response : segment) {
+							loader.onRestore(partition, response);
+						}
+					} finally {
+						finishRestoring(partition);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			finishRestoring(partition);
+			throw new IOException("Snapshots are shut down", e);
+		}
+	}
+
+	private void finishRestoring(CachePartition partition) {
+		AtomicInteger tasks = restoring.get(partition.getName());
+		if (tasks != null && tasks.decrementAndGet() == 0) {
+			restoring.remove(partition.getName());
+		}
+	}
+
+	private File getFile(CachePartition partition) {
+		// the names of the per-mediator partitions are hashed, as they need not be valid file names
+		String name = partition.isHost() ? HOST_FILE : "partition-" + CacheKey.of(partition.getName());
+		return new File(directory, name + FILE_SUFFIX);
+	}
+}
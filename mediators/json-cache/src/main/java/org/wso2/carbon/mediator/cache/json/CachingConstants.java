@@ -21,6 +21,7 @@ package org.wso2.carbon.mediator.cache.json;
 import org.apache.synapse.config.xml.XMLConfigConstants;
 import org.wso2.carbon.mediator.cache.json.digest.ReqUrlHashGenerator;
 import org.wso2.carbon.mediator.cache.json.digest.DigestGenerator;
+import org.wso2.carbon.mediator.cache.json.store.EvictionPolicy;
 
 import javax.xml.namespace.QName;
 
@@ -62,6 +63,30 @@ public final class CachingConstants {
 	/** Default cache size (in-memory) */
 	public static final int DEFAULT_CACHE_SIZE = 1000;
 
+	/** Default eviction policy of the in-memory cache */
+	public static final EvictionPolicy DEFAULT_EVICTION_POLICY = EvictionPolicy.LRU;
+
+	/** Default payload size in bytes from which responses are stored in the disk cache directly */
+	public static final int DEFAULT_LARGE_PAYLOAD_SIZE = 256 * 1024;
+
+	/** Default directory of the disk cache files, relative to the temporary directory */
+	public static final String DEFAULT_DISK_CACHE_DIRECTORY = "json-cache";
+
+	/** Default time in milliseconds after which a background refresh which has not landed is retried */
+	public static final long DEFAULT_REFRESH_TIMEOUT = 10000;
+
+	/** Default time in milliseconds between two flushes of the changes replicated among the cluster */
+	public static final long DEFAULT_REPLICATION_INTERVAL = 100;
+
+	/** Default maximum number of changed contexts replicated among the cluster together */
+	public static final int DEFAULT_REPLICATION_BATCH_SIZE = 256;
+
+	/** Default time in milliseconds between two broadcasts of the changes of a distributed cache to its peers */
+	public static final long DEFAULT_PEER_FLUSH_INTERVAL = 10;
+
+	/** Default payload size in bytes from which cached payloads are compressed */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
 	/** Primary cache name */
 	public static final String MEDIATOR_CACHE = "mediatorCache";
 
@@ -0,0 +1,731 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+import org.wso2.carbon.mediator.cache.json.util.ResponseCodec;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This keeps the local caches of the gateway nodes of a distributed cache consistent, by broadcasting the responses
+ * cached and invalidated by this node to its peers over plain TCP connections, and applying the ones broadcast by
+ * the peers to the local cache. Each node keeps serving from its own store, so a cache hit never leaves the node.
+ * <p/>
+ * Changes are not sent one by one. They are collected per request key and flushed to every peer in a single frame
+ * once per flush interval, so a key changed several times within an interval is sent once, with its latest state.
+ * Peers which cannot be reached are retried on a later flush, and the changes they missed expire from their caches
+ * on their own.
+ * <p/>
+ * A frame is a 4 byte length followed by the id of the sending node, the sequence number of the frame, the number
+ * of changes and the changes. A put carries the response in the form of the ResponseCodec, with its remaining
+ * lifetime rather than its expiry time, so the clocks of the nodes need not be in sync. An invalidation carries the
+ * request key alone.
+ * <p/>
+ * The bus is bound to a single interface and only accepts connections from the hosts of its peers. If the nodes share
+ * a secret, every frame ends with an HMAC-SHA256 of its content under that secret, and frames whose MAC does not match
+ * are rejected together with their connection. The sequence numbers of a node only grow, so a frame whose sequence
+ * number is not above the last one received from its node is a replay, and is rejected the same way.
+ */
+final class InvalidationBus {
+
+	private static final Log log = LogFactory.getLog(InvalidationBus.class);
+
+	private static final byte PUT = 1;
+
+	private static final byte INVALIDATE = 2;
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private static final int MAC_LENGTH = 32;
+
+	/**
+	 * Largest frame accepted from a peer
+	 */
+	private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Largest number of puts waiting for a flush, after which puts are dropped. Invalidations are never dropped.
+	 */
+	private static final int MAX_PENDING_PUTS = 64 * 1024;
+
+	private static final int CONNECT_TIMEOUT = 1000;
+
+	/**
+	 * Time in milliseconds given to a running flush to finish when the bus is shut down
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
+	/**
+	 * Time in milliseconds before a peer which could not be reached is connected to again
+	 */
+	private static final long RECONNECT_DELAY = 1000;
+
+	/**
+	 * Largest number of sending nodes whose last sequence number is remembered. The nodes which have not sent for
+	 * the longest time, such as the earlier runs of a restarted peer, are forgotten first.
+	 */
+	private static final int MAX_TRACKED_NODES = 1024;
+
+	/**
+	 * Applies the changes received from the peers to the local cache
+	 */
+	interface Listener {
+
+		/**
+		 * Called when a peer has cached a response
+		 *
+		 * @param requestKey key of the request
+		 * @param response   the response cached by the peer, on the heap
+		 */
+		void onPut(CacheKey requestKey, CachableResponse response);
+
+		/**
+		 * Called when a peer has invalidated a response
+		 *
+		 * @param requestKey key of the request
+		 */
+		void onInvalidate(CacheKey requestKey);
+	}
+
+	private final long nodeId = UUID.randomUUID().getMostSignificantBits();
+
+	/**
+	 * Sequence number of the last frame encoded by this node
+	 */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Last sequence number received from each node, which is only used by the receiver thread
+	 */
+	private final Map<Long, Long> lastSequences = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			return size() > MAX_TRACKED_NODES;
+		}
+	};
+
+	private final InetSocketAddress bindAddress;
+
+	private final List<Peer> peers = new ArrayList<Peer>();
+
+	/**
+	 * Hosts from which connections are accepted
+	 */
+	private final Set<InetAddress> peerHosts = new HashSet<InetAddress>();
+
+	/**
+	 * Key of the MAC of the frames, or null if the frames are not authenticated
+	 */
+	private final SecretKeySpec macKey;
+
+	private final long flushInterval;
+
+	private final Listener listener;
+
+	private final Object pendingLock = new Object();
+
+	private Map<CacheKey, Change> pending = new LinkedHashMap<CacheKey, Change>();
+
+	private int pendingPuts;
+
+	private final Selector selector;
+
+	private final ServerSocketChannel server;
+
+	private final Thread receiver;
+
+	/**
+	 * Connections accepted from the peers, which are closed when the bus is shut down
+	 */
+	private final Set<SocketChannel> connections =
+			Collections.newSetFromMap(new ConcurrentHashMap<SocketChannel, Boolean>());
+
+	private final ScheduledExecutorService sender;
+
+	private final AtomicLong sentCount = new AtomicLong();
+
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	private final AtomicLong receivedCount = new AtomicLong();
+
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * Binds the bus to the given address and starts sending to the given peers. Peers equal to the bind address are
+	 * skipped, so every node of the cluster may be given the same peer list.
+	 *
+	 * @param bindAddress   address of the interface on which the changes of the peers are received
+	 * @param peerAddresses addresses of the peers, which are the only hosts allowed to connect
+	 * @param secret        secret shared by the nodes to authenticate the frames, or null to send them as they are
+	 * @param flushInterval time in milliseconds between two flushes of the local changes
+	 * @param listener      applies the changes of the peers to the local cache
+	 * @throws IOException if the bind address cannot be bound
+	 */
+	InvalidationBus(InetSocketAddress bindAddress, List<InetSocketAddress> peerAddresses, byte[] secret,
+	                long flushInterval, Listener listener) throws IOException {
+		if (flushInterval <= 0) {
+			throw new IllegalArgumentException("Flush interval of the invalidation bus must be positive : " +
+			                                   flushInterval);
+		}
+		if (bindAddress.isUnresolved() || bindAddress.getAddress().isAnyLocalAddress()) {
+			throw new IllegalArgumentException("Bind address of the invalidation bus must name a resolvable " +
+			                                   "interface : " + bindAddress);
+		}
+		this.bindAddress = bindAddress;
+		this.flushInterval = flushInterval;
+		this.listener = listener;
+		for (InetSocketAddress address : peerAddresses) {
+			if (address.isUnresolved()) {
+				throw new IllegalArgumentException("Unable to resolve the cache peer : " + address);
+			}
+			if (!address.equals(bindAddress)) {
+				peers.add(new Peer(address, bindAddress.getAddress()));
+				peerHosts.add(address.getAddress());
+			}
+		}
+		this.macKey = secret != null && secret.length > 0 ? new SecretKeySpec(secret, MAC_ALGORITHM) : null;
+
+		this.selector = Selector.open();
+		try {
+			this.server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(bindAddress);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			selector.close();
+			throw e;
+		}
+
+		this.receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, "json-cache-bus-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "json-cache-bus-sender");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		this.sender = executor;
+	}
+
+	/**
+	 * Broadcasts the given cached response to the peers. The headers and the payload are copied right away, so the
+	 * response may be released or moved by the caller once this returns.
+	 *
+	 * @param requestKey key of the request
+	 * @param response   the cached response, retained by the caller
+	 */
+	void publishPut(CacheKey requestKey, CachableResponse response) {
+		if (peers.isEmpty()) {
+			return;
+		}
+		Change change = new Change(PUT);
+		ByteBuffer block = ByteBuffer.allocate(response.getBlockLength());
+		response.writeBlock(block.duplicate());
+		change.response = response.duplicate(block);
+		change.response.setKey(requestKey);
+		synchronized (pendingLock) {
+			Change previous = pending.get(requestKey);
+			if (previous == null && pendingPuts >= MAX_PENDING_PUTS) {
+				if (log.isDebugEnabled()) {
+					log.debug("Too many changes are waiting to be sent. Dropped the put of : " + requestKey);
+				}
+				return;
+			}
+			enqueue(requestKey, change);
+		}
+	}
+
+	/**
+	 * Broadcasts the invalidation of the response of the given request to the peers
+	 *
+	 * @param requestKey key of the request
+	 */
+	void publishInvalidate(CacheKey requestKey) {
+		if (peers.isEmpty()) {
+			return;
+		}
+		synchronized (pendingLock) {
+			enqueue(requestKey, new Change(INVALIDATE));
+		}
+	}
+
+	private void enqueue(CacheKey requestKey, Change change) {
+		// the key is moved to the end, so that the changes of different keys reach the peers in order
+		Change previous = pending.remove(requestKey);
+		if (previous != null) {
+			coalescedCount.incrementAndGet();
+			if (previous.type == PUT) {
+				pendingPuts--;
+			}
+		}
+		pending.put(requestKey, change);
+		if (change.type == PUT) {
+			pendingPuts++;
+		}
+	}
+
+	/**
+	 * Sends the pending changes to every peer in a single frame
+	 */
+	void flush() {
+		Map<CacheKey, Change> changes;
+		synchronized (pendingLock) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			changes = pending;
+			pending = new LinkedHashMap<CacheKey, Change>();
+			pendingPuts = 0;
+		}
+
+		ByteBuffer frame;
+		try {
+			frame = encode(changes);
+		} catch (IOException e) {
+			// never thrown by the in memory stream
+			log.error("Unable to encode the changes of the cache", e);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Peer peer : peers) {
+			if (peer.send(frame.duplicate(), now)) {
+				sentCount.addAndGet(changes.size());
+			} else {
+				failedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Stops the bus after flushing the pending changes, and closes the connections
+	 */
+	void shutdown() {
+		sender.shutdown();
+		try {
+			// the connections to the peers are only used by one flush at a time
+			sender.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		for (Peer peer : peers) {
+			peer.close();
+		}
+		for (SocketChannel channel : connections) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+				// the connection is dropped anyway
+			}
+		}
+		connections.clear();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.debug("Error while closing the selector of the invalidation bus", e);
+		}
+		try {
+			server.close();
+		} catch (IOException e) {
+			log.debug("Error while closing the invalidation bus at : " + bindAddress, e);
+		}
+	}
+
+	private ByteBuffer encode(Map<CacheKey, Change> changes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeLong(nodeId);
+		out.writeLong(sequence.incrementAndGet());
+		out.writeInt(changes.size());
+		long now = System.currentTimeMillis();
+		for (Map.Entry<CacheKey, Change> entry : changes.entrySet()) {
+			Change change = entry.getValue();
+			out.writeByte(change.type);
+			if (change.type == PUT) {
+				// the encoded response carries the request key
+				ResponseCodec.encode(change.response, out, now);
+			} else {
+				out.writeLong(entry.getKey().getHigh());
+				out.writeLong(entry.getKey().getLow());
+			}
+		}
+		out.flush();
+		if (macKey != null) {
+			// the MAC covers the content of the frame, after its length
+			out.write(mac(bytes.toByteArray(), 4, bytes.size() - 4));
+		}
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		frame.putInt(0, frame.remaining() - 4);
+		return frame;
+	}
+
+	private void decode(ByteBuffer frame) throws IOException {
+		int length = frame.limit();
+		if (macKey != null) {
+			length -= MAC_LENGTH;
+			if (length < 0) {
+				throw new IOException("Frame without a MAC");
+			}
+			byte[] expected = mac(frame.array(), 0, length);
+			byte[] actual = new byte[MAC_LENGTH];
+			System.arraycopy(frame.array(), length, actual, 0, MAC_LENGTH);
+			if (!MessageDigest.isEqual(expected, actual)) {
+				throw new IOException("Frame with an invalid MAC");
+			}
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.array(), 0, length));
+		long senderId = in.readLong();
+		if (senderId == nodeId) {
+			return;
+		}
+		long senderSequence = in.readLong();
+		Long lastSequence = lastSequences.get(senderId);
+		if (lastSequence != null && senderSequence <= lastSequence) {
+			throw new IOException("Replayed frame " + senderSequence + " of the node : " + senderId +
+			                      ", which has already sent frame " + lastSequence);
+		}
+		lastSequences.put(senderId, senderSequence);
+		int count = in.readInt();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			byte type = in.readByte();
+			if (type == PUT) {
+				CachableResponse response = ResponseCodec.decode(in, now, length);
+				if (response.getKey() == null ||
+				    (response.getResponsePayload() == null && response.getVaryHeaders() == null)) {
+					throw new IOException("Broadcast response without a request key or a payload");
+				}
+				listener.onPut(response.getKey(), response);
+			} else if (type == INVALIDATE) {
+				listener.onInvalidate(new CacheKey(in.readLong(), in.readLong()));
+			} else {
+				throw new IOException("Unknown change type : " + type);
+			}
+			receivedCount.incrementAndGet();
+		}
+	}
+
+	private byte[] mac(byte[] data, int offset, int length) throws IOException {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(macKey);
+			mac.update(data, offset, length);
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to compute the MAC of a frame", e);
+		}
+	}
+
+	private void receive() {
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						SocketChannel channel = server.accept();
+						if (channel != null) {
+							accept(channel);
+						}
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (IOException e) {
+				if (selector.isOpen()) {
+					log.warn("Error while receiving the changes of the peers at : " + bindAddress, e);
+				}
+			}
+		}
+	}
+
+	private void accept(SocketChannel channel) throws IOException {
+		InetAddress remote = channel.socket().getInetAddress();
+		if (!peerHosts.contains(remote)) {
+			log.warn("Rejected the connection of : " + remote + " to the invalidation bus at : " + bindAddress +
+			         ", which is not a cache peer");
+			channel.close();
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new FrameReader());
+		connections.add(channel);
+	}
+
+	private void read(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		FrameReader reader = (FrameReader) key.attachment();
+		try {
+			ByteBuffer frame;
+			while ((frame = reader.read(channel)) != null) {
+				decode(frame);
+			}
+		} catch (IOException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Closing the connection of the peer : " + channel.socket().getRemoteSocketAddress(), e);
+			}
+			key.cancel();
+			connections.remove(channel);
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+				// the connection is dropped anyway
+			}
+		} catch (RuntimeException e) {
+			log.error("Error while applying the changes of the peer : " +
+			          channel.socket().getRemoteSocketAddress(), e);
+		}
+	}
+
+	/**
+	 * Gives the address on which the changes of the peers are received
+	 *
+	 * @return bind address
+	 */
+	InetSocketAddress getBindAddress() {
+		return bindAddress;
+	}
+
+	/**
+	 * Gives the time between two flushes of the local changes
+	 *
+	 * @return flush interval in milliseconds
+	 */
+	long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * Gives the number of changes sent, counted once per peer
+	 *
+	 * @return sent count
+	 */
+	long getSentCount() {
+		return sentCount.get();
+	}
+
+	/**
+	 * Gives the number of changes replaced by a later change of the same key before they were sent
+	 *
+	 * @return coalesced count
+	 */
+	long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * Gives the number of changes received from the peers
+	 *
+	 * @return received count
+	 */
+	long getReceivedCount() {
+		return receivedCount.get();
+	}
+
+	/**
+	 * Gives the number of frames which could not be sent to a peer
+	 *
+	 * @return failed count
+	 */
+	long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * A change of a key, waiting to be sent
+	 */
+	private static final class Change {
+
+		final byte type;
+
+		/**
+		 * Copy of the cached response on the heap, for a put
+		 */
+		CachableResponse response;
+
+		Change(byte type) {
+			this.type = type;
+		}
+	}
+
+	/**
+	 * The outgoing connection to a peer. It is only used by the sender thread.
+	 */
+	private static final class Peer {
+
+		final InetSocketAddress address;
+
+		final InetAddress localAddress;
+
+		SocketChannel channel;
+
+		long nextAttemptMillis;
+
+		Peer(InetSocketAddress address, InetAddress localAddress) {
+			this.address = address;
+			this.localAddress = localAddress;
+		}
+
+		boolean send(ByteBuffer frame, long now) {
+			if (channel == null) {
+				if (now < nextAttemptMillis) {
+					return false;
+				}
+				try {
+					channel = SocketChannel.open();
+					channel.socket().setTcpNoDelay(true);
+					// connects from the bus interface, which is the host the peer allows
+					channel.socket().bind(new InetSocketAddress(localAddress, 0));
+					channel.socket().connect(address, CONNECT_TIMEOUT);
+				} catch (IOException e) {
+					close();
+					nextAttemptMillis = now + RECONNECT_DELAY;
+					if (log.isDebugEnabled()) {
+						log.debug("Unable to connect to the cache peer : " + address, e);
+					}
+					return false;
+				}
+			}
+			try {
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+				return true;
+			} catch (IOException e) {
+				log.warn("Unable to send the changes of the cache to the peer : " + address + ". " +
+				         e.getMessage());
+				close();
+				nextAttemptMillis = now + RECONNECT_DELAY;
+				return false;
+			}
+		}
+
+		void close() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+					// the connection is dropped anyway
+				}
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads the length prefixed frames of a peer connection without blocking
+	 */
+	private static final class FrameReader {
+
+		private final ByteBuffer length = ByteBuffer.allocate(4);
+
+		private ByteBuffer frame;
+
+		/**
+		 * Reads from the channel until a frame is complete or no more bytes are available
+		 *
+		 * @return the complete frame, or null if it is not complete yet
+		 * @throws IOException if the connection is closed or broken
+		 */
+		ByteBuffer read(SocketChannel channel) throws IOException {
+			if (frame == null) {
+				if (channel.read(length) < 0) {
+					throw new IOException("Connection closed by the peer");
+				}
+				if (length.hasRemaining()) {
+					return null;
+				}
+				int size = length.getInt(0);
+				if (size < 0 || size > MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame size : " + size);
+				}
+				frame = ByteBuffer.allocate(size);
+			}
+			if (channel.read(frame) < 0) {
+				throw new IOException("Connection closed by the peer");
+			}
+			if (frame.hasRemaining()) {
+				return null;
+			}
+			ByteBuffer complete = frame;
+			complete.flip();
+			frame = null;
+			length.clear();
+			return complete;
+		}
+	}
+}
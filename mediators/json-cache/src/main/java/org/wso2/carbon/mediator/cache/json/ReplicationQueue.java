@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json;
+
+import org.apache.axis2.clustering.ClusteringAgent;
+import org.apache.axis2.clustering.ClusteringFault;
+import org.apache.axis2.clustering.state.StateManager;
+import org.apache.axis2.context.AbstractContext;
+import org.apache.axis2.context.ConfigurationContext;
+import org.apache.axis2.context.OperationContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This replicates the contexts changed by the cache mediator among the cluster off the request path. Changed
+ * contexts are queued by the request threads and a background thread hands them over to the state manager of the
+ * cluster in batches, once per flush interval. A context queued several times within a batch is replicated once.
+ * <p/>
+ * Request threads never wait on clustering. When the queue is full the change is dropped, and replication failures
+ * are counted rather than propagated, since the next change of the same context replicates its latest state.
+ */
+final class ReplicationQueue {
+
+	private static final Log log = LogFactory.getLog(ReplicationQueue.class);
+
+	/**
+	 * Number of batches which may be queued before changes are dropped
+	 */
+	private static final int QUEUED_BATCHES = 64;
+
+	private final BlockingQueue<AbstractContext> queue;
+
+	private final int batchSize;
+
+	private final long flushInterval;
+
+	private final ScheduledExecutorService flusher;
+
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private final AtomicLong faultCount = new AtomicLong();
+
+	/**
+	 * Creates a queue flushed by a background thread
+	 *
+	 * @param flushInterval time in milliseconds between two flushes
+	 * @param batchSize     maximum number of contexts replicated together
+	 */
+	ReplicationQueue(long flushInterval, int batchSize) {
+		if (flushInterval <= 0 || batchSize <= 0) {
+			throw new IllegalArgumentException("Flush interval and batch size of the replication queue must be " +
+			                                   "positive : " + flushInterval + ", " + batchSize);
+		}
+		this.flushInterval = flushInterval;
+		this.batchSize = batchSize;
+		this.queue = new LinkedBlockingQueue<AbstractContext>(batchSize * QUEUED_BATCHES);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "json-cache-replicator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		this.flusher = executor;
+	}
+
+	/**
+	 * Queues the given context to be replicated. Nothing is queued if clustering is not enabled.
+	 *
+	 * @param context changed context
+	 */
+	void replicate(AbstractContext context) {
+		if (context == null || getStateManager(context) == null) {
+			return;
+		}
+		if (!queue.offer(context)) {
+			droppedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Replicates the queued contexts in batches until the queue is empty
+	 */
+	void flush() {
+		List<AbstractContext> drained = new ArrayList<AbstractContext>(batchSize);
+		while (queue.drainTo(drained, batchSize) > 0) {
+			// group the batch by the state manager replicating it, dropping the duplicates
+			Map<StateManager, Set<AbstractContext>> batches =
+					new IdentityHashMap<StateManager, Set<AbstractContext>>();
+			for (AbstractContext context : drained) {
+				StateManager stateManager = getStateManager(context);
+				if (stateManager != null) {
+					Set<AbstractContext> batch = batches.get(stateManager);
+					if (batch == null) {
+						batch = Collections.newSetFromMap(new IdentityHashMap<AbstractContext, Boolean>());
+						batches.put(stateManager, batch);
+					}
+					batch.add(context);
+				}
+			}
+			drained.clear();
+
+			for (Map.Entry<StateManager, Set<AbstractContext>> batch : batches.entrySet()) {
+				AbstractContext[] contexts = batch.getValue().toArray(new AbstractContext[batch.getValue().size()]);
+				try {
+					batch.getKey().updateContexts(contexts);
+				} catch (ClusteringFault e) {
+					faultCount.incrementAndGet();
+					if (log.isDebugEnabled()) {
+						log.debug("Unable to replicate " + contexts.length + " cache contexts", e);
+					}
+				} catch (RuntimeException e) {
+					faultCount.incrementAndGet();
+					log.warn("Error while replicating " + contexts.length + " cache contexts", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the background flushes, after flushing the queued contexts
+	 */
+	void shutdown() {
+		flusher.shutdown();
+		flush();
+	}
+
+	/**
+	 * Gives the time between two flushes
+	 *
+	 * @return flush interval in milliseconds
+	 */
+	long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * Gives the maximum number of contexts replicated together
+	 *
+	 * @return batch size
+	 */
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Gives the number of changes dropped because the queue was full
+	 *
+	 * @return dropped count
+	 */
+	long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Gives the number of batches which failed to replicate
+	 *
+	 * @return clustering fault count
+	 */
+	long getFaultCount() {
+		return faultCount.get();
+	}
+
+	private static StateManager getStateManager(AbstractContext context) {
+		ConfigurationContext cfgCtx;
+		if (context instanceof ConfigurationContext) {
+			cfgCtx = (ConfigurationContext) context;
+		} else if (context instanceof OperationContext) {
+			cfgCtx = ((OperationContext) context).getConfigurationContext();
+		} else {
+			return null;
+		}
+		if (cfgCtx == null || cfgCtx.getAxisConfiguration() == null) {
+			return null;
+		}
+		ClusteringAgent clusteringAgent = cfgCtx.getAxisConfiguration().getClusteringAgent();
+		return clusteringAgent != null ? clusteringAgent.getStateManager() : null;
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This keeps track of the requests which have missed the cache and are being served by the backend, so that
+ * identical requests arriving in the meantime are not sent to the backend as well. The first request of a request
+ * hash leads the flight, and the requests which follow are parked on it until the response of the leader has been
+ * cached. Parked requests do not hold a thread; they are handed back to their cache mediator on a Synapse worker
+ * thread once the flight lands.
+ * <p/>
+ * A flight which does not land within its timeout, because the backend failed or did not answer in time, releases
+ * its waiters to go to the backend on their own.
+ */
+final class RequestCoalescer {
+
+	private static final Log log = LogFactory.getLog(RequestCoalescer.class);
+
+	private final ConcurrentMap<CacheKey, Flight> flights = new ConcurrentHashMap<CacheKey, Flight>();
+
+	private final ScheduledExecutorService timer;
+
+	RequestCoalescer() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "json-cache-coalescer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		this.timer = executor;
+	}
+
+	/**
+	 * Joins the flight of the given request key. If there is no flight for the key a new one is started, led by
+	 * the caller, which is expected to send the request to the backend. Otherwise the given message is parked on the
+	 * existing flight.
+	 *
+	 * @param requestKey key of the request
+	 * @param synCtx     the request message
+	 * @param mediator   cache mediator which resumes the message once the flight lands
+	 * @param timeout    time in milliseconds after which the flight started by this call is given up
+	 * @return true if the message has been parked, false if the caller leads the flight
+	 */
+	boolean join(final CacheKey requestKey, MessageContext synCtx, CacheMediator mediator, long timeout) {
+		while (true) {
+			Flight flight = flights.get(requestKey);
+			if (flight == null) {
+				final Flight started = new Flight();
+				if (flights.putIfAbsent(requestKey, started) == null) {
+					started.setTimeoutTask(timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							if (flights.remove(requestKey, started)) {
+								log.warn("Response for request key : " + requestKey + " was not cached within " +
+								         "the coalescing timeout. Releasing the waiting requests to the backend");
+								dispatch(started.land());
+							}
+						}
+					}, timeout, TimeUnit.MILLISECONDS));
+					return false;
+				}
+			} else if (flight.park(new Waiter(synCtx, mediator))) {
+				return true;
+			} else {
+				// the flight has just landed, its entry is being removed
+				flights.remove(requestKey, flight);
+			}
+		}
+	}
+
+	/**
+	 * Lands the flight of the given request key and hands the parked messages back to their cache mediators, which
+	 * serve them from the cache if the response of the leader has been cached, or send them to the backend otherwise
+	 *
+	 * @param requestKey key of the request
+	 */
+	void land(CacheKey requestKey) {
+		Flight flight = flights.remove(requestKey);
+		if (flight != null) {
+			dispatch(flight.land());
+		}
+	}
+
+	/**
+	 * Stops the timer of the flights and releases the messages parked on them to the backend, as when their flights
+	 * time out
+	 */
+	void shutdown() {
+		timer.shutdownNow();
+		for (CacheKey requestKey : flights.keySet()) {
+			Flight flight = flights.remove(requestKey);
+			if (flight != null) {
+				dispatch(flight.land());
+			}
+		}
+	}
+
+	private void dispatch(List<Waiter> waiters) {
+		for (final Waiter waiter : waiters) {
+			try {
+				waiter.synCtx.getEnvironment().getExecutorService().execute(new Runnable() {
+					@Override
+					public void run() {
+						waiter.mediator.resume(waiter.synCtx);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				log.warn("Unable to resume the coalesced request : " + waiter.synCtx.getMessageID() +
+				         ". Resuming it on the calling thread", e);
+				waiter.mediator.resume(waiter.synCtx);
+			}
+		}
+	}
+
+	/**
+	 * A request being served by the backend, together with the messages parked on it
+	 */
+	private static final class Flight {
+
+		private List<Waiter> waiters = new ArrayList<Waiter>();
+
+		private ScheduledFuture<?> timeoutTask;
+
+		synchronized void setTimeoutTask(ScheduledFuture<?> timeoutTask) {
+			if (waiters == null) {
+				timeoutTask.cancel(false);
+			} else {
+				this.timeoutTask = timeoutTask;
+			}
+		}
+
+		synchronized boolean park(Waiter waiter) {
+			if (waiters == null) {
+				return false;
+			}
+			waiters.add(waiter);
+			return true;
+		}
+
+		synchronized List<Waiter> land() {
+			List<Waiter> landed = waiters;
+			waiters = null;
+			if (timeoutTask != null) {
+				timeoutTask.cancel(false);
+				timeoutTask = null;
+			}
+			return landed != null ? landed : Collections.<Waiter>emptyList();
+		}
+	}
+
+	/**
+	 * A parked message and the cache mediator which parked it
+	 */
+	private static final class Waiter {
+
+		final MessageContext synCtx;
+
+		final CacheMediator mediator;
+
+		Waiter(MessageContext synCtx, CacheMediator mediator) {
+			this.synCtx = synCtx;
+			this.mediator = mediator;
+		}
+	}
+}
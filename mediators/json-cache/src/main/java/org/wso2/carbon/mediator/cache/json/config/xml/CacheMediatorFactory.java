@@ -29,9 +29,17 @@ import org.apache.synapse.config.xml.XMLConfigConstants;
 import org.wso2.carbon.mediator.cache.json.CacheMediator;
 import org.wso2.carbon.mediator.cache.json.CachingConstants;
 import org.wso2.carbon.mediator.cache.json.digest.DigestGenerator;
+import org.wso2.carbon.mediator.cache.json.digest.JsonBodyHashGenerator;
+import org.wso2.carbon.mediator.cache.json.digest.KeySpecHashGenerator;
+import org.wso2.carbon.mediator.cache.json.store.EvictionPolicy;
+import org.wso2.carbon.mediator.cache.json.util.CacheControlPolicy;
+import org.wso2.carbon.mediator.cache.json.util.PayloadCompression;
 
 import javax.xml.namespace.QName;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
 
 public class CacheMediatorFactory extends AbstractMediatorFactory {
@@ -66,6 +74,36 @@ public class CacheMediatorFactory extends AbstractMediatorFactory {
 	 */
 	private static final QName ATT_TIMEOUT = new QName("timeout");
 
+	/**
+	 * QName of the policy combining the cache control headers of the responses with the timeout
+	 */
+	private static final QName ATT_CACHE_CONTROL = new QName("cacheControl");
+
+	/**
+	 * QName of the flag to revalidate expired responses with their validators
+	 */
+	private static final QName ATT_REVALIDATE = new QName("revalidate");
+
+	/**
+	 * QName of the time between two flushes of the changes replicated among the cluster
+	 */
+	private static final QName ATT_REPLICATION_INTERVAL = new QName("replicationInterval");
+
+	/**
+	 * QName of the maximum number of changes replicated among the cluster together
+	 */
+	private static final QName ATT_REPLICATION_BATCH_SIZE = new QName("replicationBatchSize");
+
+	/**
+	 * QName of the period after the expiry during which expired responses are served while they are refreshed
+	 */
+	private static final QName ATT_STALE_WHILE_REVALIDATE = new QName("staleWhileRevalidate");
+
+	/**
+	 * QName of the time for which a request waits for an identical request sent to the backend
+	 */
+	private static final QName ATT_COALESCING_TIMEOUT = new QName("coalescingTimeout");
+
 	/**
 	 * QName of the cache scope
 	 */
@@ -86,6 +124,41 @@ public class CacheMediatorFactory extends AbstractMediatorFactory {
 	 */
 	private static final QName ATT_SIZE = new QName("maxSize");
 
+	/**
+	 * QName of the eviction policy of the in-memory cache
+	 */
+	private static final QName ATT_EVICTION_POLICY = new QName("evictionPolicy");
+
+	/**
+	 * QName of the size of the off heap arena of the in-memory cache
+	 */
+	private static final QName ATT_OFF_HEAP_SIZE = new QName("offHeapSize");
+
+	/**
+	 * QName of the directory of the snapshots of the in-memory cache, which are restored on a restart
+	 */
+	private static final QName ATT_SNAPSHOT_DIRECTORY = new QName("snapshotDirectory");
+
+	/**
+	 * QName of the time between two snapshots of the in-memory cache
+	 */
+	private static final QName ATT_SNAPSHOT_INTERVAL = new QName("snapshotInterval");
+
+	/**
+	 * QName of the size of the disk cache in megabytes
+	 */
+	private static final QName ATT_SIZE_MB = new QName("maxSizeMB");
+
+	/**
+	 * QName of the directory of the disk cache
+	 */
+	private static final QName ATT_DIRECTORY = new QName("directory");
+
+	/**
+	 * QName of the payload size from which responses are stored on disk directly
+	 */
+	private static final QName ATT_LARGE_PAYLOAD_SIZE = new QName("largePayloadSize");
+
 	/**
 	 * QName of the onCacheHit mediator sequence reference
 	 */
@@ -96,13 +169,94 @@ public class CacheMediatorFactory extends AbstractMediatorFactory {
 	 */
 	private static final QName IMPLEMENTATION_Q = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "implementation");
 
+	/**
+	 * QName of the compression of the cached payloads
+	 */
+	private static final QName ATT_COMPRESSION = new QName("compression");
+
+	/**
+	 * QName of the size from which the cached payloads are compressed
+	 */
+	private static final QName ATT_COMPRESSION_THRESHOLD = new QName("compressionThreshold");
+
+	/**
+	 * QName of the peer configuration of a distributed cache
+	 */
+	private static final QName DISTRIBUTED_Q = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "distributed");
+
+	/**
+	 * QName of the host:port on which a distributed cache receives the changes of its peers
+	 */
+	private static final QName ATT_BIND = new QName("bind");
+
+	/**
+	 * QName of the comma separated host:port addresses of the peers of a distributed cache
+	 */
+	private static final QName ATT_PEERS = new QName("peers");
+
+	/**
+	 * QName of the time between two broadcasts of the changes of a distributed cache
+	 */
+	private static final QName ATT_FLUSH_INTERVAL = new QName("flushInterval");
+
+	/**
+	 * QName of the secret shared by the peers of a distributed cache
+	 */
+	private static final QName ATT_SECRET = new QName("secret");
+
+	/**
+	 * QName of the declarative composition of the key of a request
+	 */
+	private static final QName KEY_Q = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "key");
+
+	/**
+	 * QName of the comma separated query parameters which make up the key, all of them if not given
+	 */
+	private static final QName ATT_INCLUDE_PARAMETERS = new QName("includeParameters");
+
+	/**
+	 * QName of the comma separated query parameters which are left out of the key
+	 */
+	private static final QName ATT_EXCLUDE_PARAMETERS = new QName("excludeParameters");
+
+	/**
+	 * QName of the comma separated request headers which make up the key
+	 */
+	private static final QName ATT_HEADERS = new QName("headers");
+
+	/**
+	 * QName of whether the case of the path is ignored in the key
+	 */
+	private static final QName ATT_IGNORE_PATH_CASE = new QName("ignorePathCase");
+
+	/**
+	 * QName of whether a trailing slash of the path is ignored in the key
+	 */
+	private static final QName ATT_IGNORE_TRAILING_SLASH = new QName("ignoreTrailingSlash");
+
+	/**
+	 * QName of whether the canonical hash of the JSON payload makes up the key
+	 */
+	private static final QName ATT_BODY = new QName("body");
+
+	/**
+	 * QName of a JSON path which the JsonBodyHashGenerator leaves out of the hash of a request
+	 */
+	private static final QName EXCLUDE_FROM_HASH_Q = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE,
+	                                                           "excludeFromHash");
+
+	/**
+	 * QName of the path of an excluded JSON value
+	 */
+	private static final QName ATT_PATH = new QName("path");
+
 	/**
 	 * This holds the default timeout of the mediator cache
 	 */
 	private static final long DEFAULT_TIMEOUT = 5000L;
 
 	/**
-	 * This holds the default disk cache size used in cache mediator
+	 * This holds the default disk cache size in megabytes used in cache mediator
 	 */
 	private static final int DEFAULT_DISK_CACHE_SIZE = 200;
 
@@ -163,6 +317,37 @@ public class CacheMediatorFactory extends AbstractMediatorFactory {
 				}
 			}
 
+			OMElement keyElem = elem.getFirstChildWithName(KEY_Q);
+			if (keyElem != null) {
+				if (hashGeneratorAttr != null) {
+					handleException("The key of the cache mediator is given either by a hashGenerator or by a " +
+					                "key element, not both");
+				}
+				cache.setDigestGenerator(createKeySpec(keyElem));
+			}
+
+			List<String> excludedPaths = new ArrayList<String>();
+			for (Iterator<OMElement> itr = elem.getChildrenWithName(EXCLUDE_FROM_HASH_Q); itr.hasNext(); ) {
+				OMAttribute pathAttr = itr.next().getAttribute(ATT_PATH);
+				if (pathAttr != null && pathAttr.getAttributeValue() != null) {
+					excludedPaths.add(pathAttr.getAttributeValue().trim());
+				} else {
+					handleException("JSON path is required for an excludeFromHash element");
+				}
+			}
+			if (!excludedPaths.isEmpty()) {
+				if (cache.getDigestGenerator() instanceof JsonBodyHashGenerator) {
+					try {
+						((JsonBodyHashGenerator) cache.getDigestGenerator()).setExcludedPaths(excludedPaths);
+					} catch (IllegalArgumentException e) {
+						handleException(e.getMessage(), e);
+					}
+				} else {
+					handleException("JSON paths can only be excluded from the hash by the " +
+					                JsonBodyHashGenerator.class.getName());
+				}
+			}
+
 			OMAttribute timeoutAttr = elem.getAttribute(ATT_TIMEOUT);
 			if (timeoutAttr != null && timeoutAttr.getAttributeValue() != null) {
 				cache.setTimeout(Long.parseLong(timeoutAttr.getAttributeValue()));
@@ -170,6 +355,57 @@ public class CacheMediatorFactory extends AbstractMediatorFactory {
 				cache.setTimeout(DEFAULT_TIMEOUT);
 			}
 
+			OMAttribute cacheControlAttr = elem.getAttribute(ATT_CACHE_CONTROL);
+			if (cacheControlAttr != null && cacheControlAttr.getAttributeValue() != null) {
+				try {
+					cache.setCacheControlPolicy(CacheControlPolicy.valueOf(
+							cacheControlAttr.getAttributeValue().toUpperCase(Locale.ENGLISH)));
+				} catch (IllegalArgumentException e) {
+					handleException("Unknown cache control policy " + cacheControlAttr.getAttributeValue() +
+					                " for the Cache mediator. It should be one of ignore, ceiling or floor");
+				}
+			}
+
+			OMAttribute revalidateAttr = elem.getAttribute(ATT_REVALIDATE);
+			if (revalidateAttr != null && revalidateAttr.getAttributeValue() != null) {
+				cache.setRevalidate(Boolean.parseBoolean(revalidateAttr.getAttributeValue()));
+			}
+
+			OMAttribute staleWhileRevalidateAttr = elem.getAttribute(ATT_STALE_WHILE_REVALIDATE);
+			if (staleWhileRevalidateAttr != null && staleWhileRevalidateAttr.getAttributeValue() != null) {
+				cache.setStaleWhileRevalidate(Long.parseLong(staleWhileRevalidateAttr.getAttributeValue()));
+			}
+
+			OMAttribute coalescingTimeoutAttr = elem.getAttribute(ATT_COALESCING_TIMEOUT);
+			if (coalescingTimeoutAttr != null && coalescingTimeoutAttr.getAttributeValue() != null) {
+				cache.setCoalescingTimeout(Long.parseLong(coalescingTimeoutAttr.getAttributeValue()));
+			}
+
+			OMAttribute replicationIntervalAttr = elem.getAttribute(ATT_REPLICATION_INTERVAL);
+			if (replicationIntervalAttr != null && replicationIntervalAttr.getAttributeValue() != null) {
+				cache.setReplicationInterval(Long.parseLong(replicationIntervalAttr.getAttributeValue()));
+			}
+
+			OMAttribute replicationBatchSizeAttr = elem.getAttribute(ATT_REPLICATION_BATCH_SIZE);
+			if (replicationBatchSizeAttr != null && replicationBatchSizeAttr.getAttributeValue() != null) {
+				cache.setReplicationBatchSize(Integer.parseInt(replicationBatchSizeAttr.getAttributeValue()));
+			}
+
+			OMAttribute compressionAttr = elem.getAttribute(ATT_COMPRESSION);
+			if (compressionAttr != null && compressionAttr.getAttributeValue() != null) {
+				try {
+					cache.setCompression(PayloadCompression.fromName(compressionAttr.getAttributeValue()));
+				} catch (IllegalArgumentException e) {
+					handleException("Unknown compression " + compressionAttr.getAttributeValue() +
+					                " for the Cache mediator. It should be one of none, gzip or deflate");
+				}
+			}
+
+			OMAttribute compressionThresholdAttr = elem.getAttribute(ATT_COMPRESSION_THRESHOLD);
+			if (compressionThresholdAttr != null && compressionThresholdAttr.getAttributeValue() != null) {
+				cache.setCompressionThreshold(Integer.parseInt(compressionThresholdAttr.getAttributeValue()));
+			}
+
 			OMAttribute maxMessageSizeAttr = elem.getAttribute(ATT_MAX_MSG_SIZE);
 			if (maxMessageSizeAttr != null && maxMessageSizeAttr.getAttributeValue() != null) {
 				cache.setMaxMessageSize(Integer.parseInt(maxMessageSizeAttr.getAttributeValue()));
@@ -186,21 +422,76 @@ public class CacheMediatorFactory extends AbstractMediatorFactory {
 				}
 			}
 
+			OMElement distributedElem = elem.getFirstChildWithName(DISTRIBUTED_Q);
+			if (distributedElem != null) {
+				OMAttribute bindAttr = distributedElem.getAttribute(ATT_BIND);
+				if (bindAttr != null && bindAttr.getAttributeValue() != null) {
+					cache.setPeerBindAddress(bindAttr.getAttributeValue());
+				} else {
+					handleException("Bind address is required for the peer configuration of a distributed cache");
+				}
+				OMAttribute peersAttr = distributedElem.getAttribute(ATT_PEERS);
+				if (peersAttr != null && peersAttr.getAttributeValue() != null) {
+					cache.setPeers(peersAttr.getAttributeValue());
+				}
+				OMAttribute flushIntervalAttr = distributedElem.getAttribute(ATT_FLUSH_INTERVAL);
+				if (flushIntervalAttr != null && flushIntervalAttr.getAttributeValue() != null) {
+					cache.setPeerFlushInterval(Long.parseLong(flushIntervalAttr.getAttributeValue()));
+				}
+				OMAttribute secretAttr = distributedElem.getAttribute(ATT_SECRET);
+				if (secretAttr != null && secretAttr.getAttributeValue() != null) {
+					cache.setPeerSecret(secretAttr.getAttributeValue());
+				}
+			}
+
 			for (Iterator<OMElement> itr = elem.getChildrenWithName(IMPLEMENTATION_Q); itr.hasNext(); ) {
 				OMElement implElem = itr.next();
 				OMAttribute typeAttr = implElem.getAttribute(ATT_TYPE);
 				OMAttribute sizeAttr = implElem.getAttribute(ATT_SIZE);
 				if (typeAttr != null && typeAttr.getAttributeValue() != null) {
 					String type = typeAttr.getAttributeValue();
-					if (CachingConstants.TYPE_MEMORY.equals(type) && sizeAttr != null &&
-					    sizeAttr.getAttributeValue() != null) {
-						cache.setInMemoryCacheSize(Integer.parseInt(sizeAttr.getAttributeValue()));
-					} else if (CachingConstants.TYPE_DISK.equals(type)) {
-						log.warn("Disk based and hierarchical caching is not implemented yet");
+					if (CachingConstants.TYPE_MEMORY.equals(type)) {
 						if (sizeAttr != null && sizeAttr.getAttributeValue() != null) {
+							cache.setInMemoryCacheSize(Integer.parseInt(sizeAttr.getAttributeValue()));
+						}
+						OMAttribute evictionPolicyAttr = implElem.getAttribute(ATT_EVICTION_POLICY);
+						if (evictionPolicyAttr != null && evictionPolicyAttr.getAttributeValue() != null) {
+							try {
+								cache.setEvictionPolicy(EvictionPolicy.valueOf(
+										evictionPolicyAttr.getAttributeValue().toUpperCase(Locale.ENGLISH)));
+							} catch (IllegalArgumentException e) {
+								handleException("Unknown eviction policy " + evictionPolicyAttr.getAttributeValue() +
+								                " for the Cache mediator. It should be one of LRU, LFU or FIFO");
+							}
+						}
+						OMAttribute offHeapSizeAttr = implElem.getAttribute(ATT_OFF_HEAP_SIZE);
+						if (offHeapSizeAttr != null && offHeapSizeAttr.getAttributeValue() != null) {
+							cache.setOffHeapSize(Integer.parseInt(offHeapSizeAttr.getAttributeValue()));
+						}
+						OMAttribute snapshotDirectoryAttr = implElem.getAttribute(ATT_SNAPSHOT_DIRECTORY);
+						if (snapshotDirectoryAttr != null && snapshotDirectoryAttr.getAttributeValue() != null) {
+							cache.setSnapshotDirectory(snapshotDirectoryAttr.getAttributeValue());
+						}
+						OMAttribute snapshotIntervalAttr = implElem.getAttribute(ATT_SNAPSHOT_INTERVAL);
+						if (snapshotIntervalAttr != null && snapshotIntervalAttr.getAttributeValue() != null) {
+							cache.setSnapshotInterval(Long.parseLong(snapshotIntervalAttr.getAttributeValue()));
+						}
+					} else if (CachingConstants.TYPE_DISK.equals(type)) {
+						OMAttribute sizeMBAttr = implElem.getAttribute(ATT_SIZE_MB);
+						if (sizeMBAttr != null && sizeMBAttr.getAttributeValue() != null) {
+							cache.setDiskCacheSizeMB(Integer.parseInt(sizeMBAttr.getAttributeValue()));
+						} else if (sizeAttr != null && sizeAttr.getAttributeValue() != null) {
 							cache.setDiskCacheSize(Integer.parseInt(sizeAttr.getAttributeValue()));
 						} else {
-							cache.setDiskCacheSize(DEFAULT_DISK_CACHE_SIZE);
+							cache.setDiskCacheSizeMB(DEFAULT_DISK_CACHE_SIZE);
+						}
+						OMAttribute directoryAttr = implElem.getAttribute(ATT_DIRECTORY);
+						if (directoryAttr != null && directoryAttr.getAttributeValue() != null) {
+							cache.setDiskCacheDirectory(directoryAttr.getAttributeValue());
+						}
+						OMAttribute largePayloadSizeAttr = implElem.getAttribute(ATT_LARGE_PAYLOAD_SIZE);
+						if (largePayloadSizeAttr != null && largePayloadSizeAttr.getAttributeValue() != null) {
+							cache.setLargePayloadSize(Integer.parseInt(largePayloadSizeAttr.getAttributeValue()));
 						}
 					} else {
 						handleException("unknown implementation type for the Cache mediator");
@@ -237,5 +528,44 @@ public class CacheMediatorFactory extends AbstractMediatorFactory {
 		}
 	}
 
+	/**
+	 * Creates the generator of the keys composed as the given key element declares
+	 *
+	 * @param keyElem key element of the mediator configuration
+	 * @return the key generator
+	 */
+	private KeySpecHashGenerator createKeySpec(OMElement keyElem) {
+		KeySpecHashGenerator keySpec = new KeySpecHashGenerator();
+		OMAttribute includeParametersAttr = keyElem.getAttribute(ATT_INCLUDE_PARAMETERS);
+		if (includeParametersAttr != null && includeParametersAttr.getAttributeValue() != null) {
+			keySpec.setIncludedParameters(splitList(includeParametersAttr.getAttributeValue()));
+		}
+		OMAttribute excludeParametersAttr = keyElem.getAttribute(ATT_EXCLUDE_PARAMETERS);
+		if (excludeParametersAttr != null && excludeParametersAttr.getAttributeValue() != null) {
+			keySpec.setExcludedParameters(splitList(excludeParametersAttr.getAttributeValue()));
+		}
+		OMAttribute headersAttr = keyElem.getAttribute(ATT_HEADERS);
+		if (headersAttr != null && headersAttr.getAttributeValue() != null) {
+			keySpec.setHeaders(splitList(headersAttr.getAttributeValue()));
+		}
+		OMAttribute ignorePathCaseAttr = keyElem.getAttribute(ATT_IGNORE_PATH_CASE);
+		keySpec.setIgnorePathCase(ignorePathCaseAttr != null &&
+		                          "true".equals(ignorePathCaseAttr.getAttributeValue()));
+		OMAttribute ignoreTrailingSlashAttr = keyElem.getAttribute(ATT_IGNORE_TRAILING_SLASH);
+		keySpec.setIgnoreTrailingSlash(ignoreTrailingSlashAttr != null &&
+		                               "true".equals(ignoreTrailingSlashAttr.getAttributeValue()));
+		OMAttribute bodyAttr = keyElem.getAttribute(ATT_BODY);
+		keySpec.setIncludeBody(bodyAttr != null && "true".equals(bodyAttr.getAttributeValue()));
+		return keySpec;
+	}
 
+	private static List<String> splitList(String value) {
+		List<String> items = new ArrayList<String>();
+		for (String item : value.split(",")) {
+			if (!item.trim().isEmpty()) {
+				items.add(item.trim());
+			}
+		}
+		return items;
+	}
 }
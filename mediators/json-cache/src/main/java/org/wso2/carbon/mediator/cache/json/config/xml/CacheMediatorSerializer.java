@@ -24,6 +24,10 @@ import org.apache.synapse.config.xml.AbstractMediatorSerializer;
 import org.apache.synapse.config.xml.MediatorSerializer;
 import org.apache.synapse.config.xml.MediatorSerializerFinder;
 import org.wso2.carbon.mediator.cache.json.CacheMediator;
+import org.wso2.carbon.mediator.cache.json.digest.JsonBodyHashGenerator;
+import org.wso2.carbon.mediator.cache.json.digest.KeySpecHashGenerator;
+import org.wso2.carbon.mediator.cache.json.util.CacheControlPolicy;
+import org.wso2.carbon.mediator.cache.json.util.PayloadCompression;
 
 import java.util.List;
 
@@ -53,7 +57,8 @@ public class CacheMediatorSerializer extends AbstractMediatorSerializer {
 
 			cache.addAttribute(fac.createOMAttribute("collector", nullNS, "false"));
 
-			if (mediator.getDigestGenerator() != null) {
+			if (mediator.getDigestGenerator() != null &&
+			    !(mediator.getDigestGenerator() instanceof KeySpecHashGenerator)) {
 				cache.addAttribute(fac.createOMAttribute("hashGenerator", nullNS,
 				                                         mediator.getDigestGenerator().getClass().getName()));
 			}
@@ -63,6 +68,38 @@ public class CacheMediatorSerializer extends AbstractMediatorSerializer {
 						fac.createOMAttribute("timeout", nullNS, Long.toString(mediator.getTimeout())));
 			}
 
+			if (mediator.getCacheControlPolicy() != null &&
+			    mediator.getCacheControlPolicy() != CacheControlPolicy.IGNORE) {
+				cache.addAttribute(fac.createOMAttribute("cacheControl", nullNS,
+				                                         mediator.getCacheControlPolicy().name().toLowerCase()));
+			}
+
+			if (!mediator.isRevalidate()) {
+				cache.addAttribute(fac.createOMAttribute("revalidate", nullNS, "false"));
+			}
+
+			if (mediator.getStaleWhileRevalidate() != 0) {
+				cache.addAttribute(fac.createOMAttribute("staleWhileRevalidate", nullNS,
+				                                         Long.toString(mediator.getStaleWhileRevalidate())));
+			}
+
+			if (mediator.getCoalescingTimeout() != 0) {
+				cache.addAttribute(fac.createOMAttribute("coalescingTimeout", nullNS,
+				                                         Long.toString(mediator.getCoalescingTimeout())));
+			}
+
+			cache.addAttribute(fac.createOMAttribute("replicationInterval", nullNS,
+			                                         Long.toString(mediator.getReplicationInterval())));
+			cache.addAttribute(fac.createOMAttribute("replicationBatchSize", nullNS,
+			                                         Integer.toString(mediator.getReplicationBatchSize())));
+
+			if (mediator.getCompression() != null && mediator.getCompression() != PayloadCompression.NONE) {
+				cache.addAttribute(fac.createOMAttribute("compression", nullNS,
+				                                         mediator.getCompression().name().toLowerCase()));
+				cache.addAttribute(fac.createOMAttribute("compressionThreshold", nullNS,
+				                                         Integer.toString(mediator.getCompressionThreshold())));
+			}
+
 			if (mediator.getMaxMessageSize() != 0) {
 				cache.addAttribute(
 						fac.createOMAttribute("maxMessageSize", nullNS,
@@ -86,16 +123,69 @@ public class CacheMediatorSerializer extends AbstractMediatorSerializer {
 				implElem.addAttribute(fac.createOMAttribute("type", nullNS, "memory"));
 				implElem.addAttribute(fac.createOMAttribute("maxSize", nullNS,
 				                                            Integer.toString(mediator.getInMemoryCacheSize())));
+				if (mediator.getEvictionPolicy() != null) {
+					implElem.addAttribute(fac.createOMAttribute("evictionPolicy", nullNS,
+					                                            mediator.getEvictionPolicy().name()));
+				}
+				if (mediator.getOffHeapSize() != 0) {
+					implElem.addAttribute(fac.createOMAttribute("offHeapSize", nullNS,
+					                                            Integer.toString(mediator.getOffHeapSize())));
+				}
+				if (mediator.getSnapshotDirectory() != null) {
+					implElem.addAttribute(fac.createOMAttribute("snapshotDirectory", nullNS,
+					                                            mediator.getSnapshotDirectory()));
+				}
+				if (mediator.getSnapshotInterval() != 0) {
+					implElem.addAttribute(fac.createOMAttribute("snapshotInterval", nullNS,
+					                                            Long.toString(mediator.getSnapshotInterval())));
+				}
 				cache.addChild(implElem);
 			}
 
-			if (mediator.getDiskCacheSize() != 0) {
+			if (mediator.getDiskCacheSizeMB() != 0 || mediator.getDiskCacheSize() != 0) {
 				OMElement implElem = fac.createOMElement("implementation", synNS);
 				implElem.addAttribute(fac.createOMAttribute("type", nullNS, "disk"));
-				implElem.addAttribute(fac.createOMAttribute("maxSize", nullNS,
-				                                            Integer.toString(mediator.getDiskCacheSize())));
+				if (mediator.getDiskCacheSizeMB() != 0) {
+					implElem.addAttribute(fac.createOMAttribute("maxSizeMB", nullNS,
+					                                            Integer.toString(mediator.getDiskCacheSizeMB())));
+				} else {
+					implElem.addAttribute(fac.createOMAttribute("maxSize", nullNS,
+					                                            Integer.toString(mediator.getDiskCacheSize())));
+				}
+				if (mediator.getDiskCacheDirectory() != null) {
+					implElem.addAttribute(fac.createOMAttribute("directory", nullNS,
+					                                            mediator.getDiskCacheDirectory()));
+				}
+				implElem.addAttribute(fac.createOMAttribute("largePayloadSize", nullNS,
+				                                            Integer.toString(mediator.getLargePayloadSize())));
 				cache.addChild(implElem);
 			}
+
+			if (mediator.getPeerBindAddress() != null) {
+				OMElement distributedElem = fac.createOMElement("distributed", synNS);
+				distributedElem.addAttribute(fac.createOMAttribute("bind", nullNS, mediator.getPeerBindAddress()));
+				if (mediator.getPeers() != null) {
+					distributedElem.addAttribute(fac.createOMAttribute("peers", nullNS, mediator.getPeers()));
+				}
+				distributedElem.addAttribute(fac.createOMAttribute("flushInterval", nullNS,
+				                                                   Long.toString(mediator.getPeerFlushInterval())));
+				if (mediator.getPeerSecret() != null) {
+					distributedElem.addAttribute(fac.createOMAttribute("secret", nullNS, mediator.getPeerSecret()));
+				}
+				cache.addChild(distributedElem);
+			}
+
+			if (mediator.getDigestGenerator() instanceof KeySpecHashGenerator) {
+				cache.addChild(serializeKeySpec((KeySpecHashGenerator) mediator.getDigestGenerator()));
+			}
+
+			if (mediator.getDigestGenerator() instanceof JsonBodyHashGenerator) {
+				for (String path : ((JsonBodyHashGenerator) mediator.getDigestGenerator()).getExcludedPaths()) {
+					OMElement excludeElem = fac.createOMElement("excludeFromHash", synNS);
+					excludeElem.addAttribute(fac.createOMAttribute("path", nullNS, path));
+					cache.addChild(excludeElem);
+				}
+			}
 		}
 
 		return cache;
@@ -106,6 +196,48 @@ public class CacheMediatorSerializer extends AbstractMediatorSerializer {
 		return CacheMediator.class.getName();
 	}
 
+	/**
+	 * Creates the XML representation of the declarative composition of the keys
+	 *
+	 * @param keySpec generator of the keys
+	 * @return the key element
+	 */
+	private OMElement serializeKeySpec(KeySpecHashGenerator keySpec) {
+		OMElement keyElem = fac.createOMElement("key", synNS);
+		if (keySpec.getIncludedParameters() != null) {
+			keyElem.addAttribute(fac.createOMAttribute("includeParameters", nullNS,
+			                                           joinList(keySpec.getIncludedParameters())));
+		}
+		if (!keySpec.getExcludedParameters().isEmpty()) {
+			keyElem.addAttribute(fac.createOMAttribute("excludeParameters", nullNS,
+			                                           joinList(keySpec.getExcludedParameters())));
+		}
+		if (!keySpec.getHeaders().isEmpty()) {
+			keyElem.addAttribute(fac.createOMAttribute("headers", nullNS, joinList(keySpec.getHeaders())));
+		}
+		if (keySpec.isIgnorePathCase()) {
+			keyElem.addAttribute(fac.createOMAttribute("ignorePathCase", nullNS, "true"));
+		}
+		if (keySpec.isIgnoreTrailingSlash()) {
+			keyElem.addAttribute(fac.createOMAttribute("ignoreTrailingSlash", nullNS, "true"));
+		}
+		if (keySpec.isIncludeBody()) {
+			keyElem.addAttribute(fac.createOMAttribute("body", nullNS, "true"));
+		}
+		return keyElem;
+	}
+
+	private static String joinList(List<String> items) {
+		StringBuilder joined = new StringBuilder();
+		for (String item : items) {
+			if (joined.length() > 0) {
+				joined.append(',');
+			}
+			joined.append(item);
+		}
+		return joined.toString();
+	}
+
 	/**
 	 * Creates XML representation of the child mediators
 	 *
@@ -0,0 +1,658 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json.digest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashes a JSON document in a canonical form while it is read from a stream, without building a tree or a string
+ * of the document. Two documents get the same hash if they differ only in:
+ * <ul>
+ * <li>whitespace between the tokens,</li>
+ * <li>the order of the members of their objects,</li>
+ * <li>the escaping of the characters of their strings,</li>
+ * <li>the values of the excluded paths, which are left out together with their member or element.</li>
+ * </ul>
+ * Numbers are compared as they are written. Each value is hashed into 128 bits with MurmurHash3; an array hashes
+ * the sequence of its elements, while an object adds up the hashes of its members, which does not depend on their
+ * order.
+ * <p/>
+ * Excluded paths are written as $.name.name, where a name may be given as ['name'], an array element as [index],
+ * and * or [*] matches any member or element. At most 64 paths may be excluded.
+ * <p/>
+ * A hasher keeps its read buffer and the state of the document being read, so it is not thread safe, but it may be
+ * reused for any number of documents.
+ */
+public final class CanonicalJsonHasher {
+
+	/**
+	 * Deepest nesting of the arrays and objects of a document
+	 */
+	private static final int MAX_DEPTH = 512;
+
+	private static final int MAX_PATHS = 64;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte OBJECT = 1;
+
+	private static final byte ARRAY = 2;
+
+	private static final byte STRING = 3;
+
+	private static final byte NUMBER = 4;
+
+	private static final byte TRUE = 5;
+
+	private static final byte FALSE = 6;
+
+	private static final byte NULL = 7;
+
+	private static final byte MEMBER = 8;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Segment of an excluded path which matches any member or element
+	 */
+	private static final Object ANY = new Object();
+
+	/**
+	 * Segments of the excluded paths, each of which is the UTF-8 encoded name of a member, the Integer index of an
+	 * element or ANY
+	 */
+	private final Object[][] paths;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int position;
+
+	private int limit;
+
+	private InputStream in;
+
+	/**
+	 * One hasher per nesting level, since an array keeps hashing its elements while they are hashed themselves
+	 */
+	private Murmur3Hasher[] hashers = new Murmur3Hasher[16];
+
+	/**
+	 * UTF-8 encoded name of the member being read, collected only if it may match an excluded path
+	 */
+	private byte[] name = new byte[64];
+
+	private int nameLength;
+
+	/**
+	 * Hash of the value read last
+	 */
+	private long resultHigh;
+
+	private long resultLow;
+
+	private final long[] finished = new long[2];
+
+	/**
+	 * Creates a hasher which leaves out the values of the given paths
+	 *
+	 * @param excludedPaths paths of the values to be left out, may be empty
+	 * @throws IllegalArgumentException if a path is malformed or there are too many of them
+	 */
+	public CanonicalJsonHasher(List<String> excludedPaths) {
+		if (excludedPaths.size() > MAX_PATHS) {
+			throw new IllegalArgumentException("At most " + MAX_PATHS + " JSON paths may be excluded from the " +
+			                                   "hash : " + excludedPaths.size());
+		}
+		this.paths = new Object[excludedPaths.size()][];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = compile(excludedPaths.get(i));
+		}
+	}
+
+	/**
+	 * Reads a JSON document from the given stream and hashes it. The stream is read to its end but not closed.
+	 *
+	 * @param stream stream of the JSON document
+	 * @param hash   array receiving the two 64 bit halves of the hash
+	 * @return true if the document has been hashed, false if the stream holds nothing but whitespace
+	 * @throws IOException if the stream cannot be read, or does not hold a well formed JSON document
+	 */
+	public boolean hash(InputStream stream, long[] hash) throws IOException {
+		this.in = stream;
+		this.position = 0;
+		this.limit = 0;
+		for (Murmur3Hasher hasher : hashers) {
+			// a document which failed to be read may have left some input behind
+			if (hasher != null) {
+				hasher.reset();
+			}
+		}
+		try {
+			int c = nextToken();
+			if (c < 0) {
+				return false;
+			}
+			readValue(c, 0, paths.length == 0 ? 0 : -1L >>> (64 - paths.length), false);
+			if (nextToken() >= 0) {
+				throw syntaxError("Unexpected data after the JSON document");
+			}
+			hash[0] = resultHigh;
+			hash[1] = resultLow;
+			return true;
+		} finally {
+			this.in = null;
+		}
+	}
+
+	/**
+	 * Reads the value starting with the given character and hashes it into resultHigh and resultLow
+	 *
+	 * @param c     first character of the value
+	 * @param depth nesting level of the value
+	 * @param mask  excluded paths matched by the path of the value so far
+	 * @param skip  whether the value is excluded, in which case it is only read
+	 */
+	private void readValue(int c, int depth, long mask, boolean skip) throws IOException {
+		if (depth >= MAX_DEPTH) {
+			throw syntaxError("JSON document is nested deeper than " + MAX_DEPTH + " levels");
+		}
+		Murmur3Hasher hasher = skip ? null : hasher(depth);
+		switch (c) {
+			case '{':
+				readObject(depth, mask, skip);
+				return;
+			case '[':
+				readArray(depth, mask, skip);
+				return;
+			case '"':
+				if (hasher != null) {
+					hasher.update(STRING);
+				}
+				readString(hasher, false);
+				break;
+			case 't':
+				readLiteral("rue", hasher, TRUE);
+				break;
+			case 'f':
+				readLiteral("alse", hasher, FALSE);
+				break;
+			case 'n':
+				readLiteral("ull", hasher, NULL);
+				break;
+			default:
+				if (c != '-' && (c < '0' || c > '9')) {
+					throw syntaxError("Unexpected character '" + (char) c + "'");
+				}
+				readNumber(c, hasher);
+		}
+		if (hasher != null) {
+			finish(hasher);
+		}
+	}
+
+	private void readObject(int depth, long mask, boolean skip) throws IOException {
+		long sumHigh = 0;
+		long sumLow = 0;
+		int count = 0;
+		int c = nextToken();
+		if (c == '}') {
+			c = -1;
+		} else if (c < 0) {
+			throw syntaxError("Unterminated object");
+		}
+		while (c >= 0) {
+			if (c != '"') {
+				throw syntaxError("Expected the name of a member");
+			}
+			Murmur3Hasher hasher = skip ? null : hasher(depth);
+			nameLength = 0;
+			readString(hasher, mask != 0);
+			long nameHigh = 0;
+			long nameLow = 0;
+			if (hasher != null) {
+				finish(hasher);
+				nameHigh = resultHigh;
+				nameLow = resultLow;
+			}
+			if (nextToken() != ':') {
+				throw syntaxError("Expected ':' after the name of a member");
+			}
+
+			long matched = 0;
+			boolean excluded = false;
+			for (long candidates = mask; candidates != 0; candidates &= candidates - 1) {
+				int path = Long.numberOfTrailingZeros(candidates);
+				Object segment = paths[path][depth];
+				if (segment == ANY || (segment instanceof byte[] && nameEquals((byte[]) segment))) {
+					if (paths[path].length == depth + 1) {
+						excluded = true;
+					} else {
+						matched |= 1L << path;
+					}
+				}
+			}
+			readValue(nextToken(), depth + 1, matched, skip || excluded);
+			if (!skip && !excluded) {
+				// the members are added up, so that their order does not change the hash of the object
+				hasher.update(MEMBER).update(nameHigh).update(nameLow).update(resultHigh).update(resultLow);
+				finish(hasher);
+				sumHigh += resultHigh;
+				sumLow += resultLow;
+				count++;
+			}
+
+			c = nextToken();
+			if (c == ',') {
+				c = nextToken();
+			} else if (c == '}') {
+				c = -1;
+			} else {
+				throw syntaxError("Expected ',' or '}' after a member");
+			}
+		}
+		if (!skip) {
+			Murmur3Hasher hasher = hasher(depth);
+			hasher.update(OBJECT).update(count).update(sumHigh).update(sumLow);
+			finish(hasher);
+		}
+	}
+
+	private void readArray(int depth, long mask, boolean skip) throws IOException {
+		Murmur3Hasher hasher = skip ? null : hasher(depth);
+		if (hasher != null) {
+			hasher.update(ARRAY);
+		}
+		int index = 0;
+		int count = 0;
+		int c = nextToken();
+		if (c == ']') {
+			c = -1;
+		} else if (c < 0) {
+			throw syntaxError("Unterminated array");
+		}
+		while (c >= 0) {
+			long matched = 0;
+			boolean excluded = false;
+			for (long candidates = mask; candidates != 0; candidates &= candidates - 1) {
+				int path = Long.numberOfTrailingZeros(candidates);
+				Object segment = paths[path][depth];
+				if (segment == ANY || (segment instanceof Integer && (Integer) segment == index)) {
+					if (paths[path].length == depth + 1) {
+						excluded = true;
+					} else {
+						matched |= 1L << path;
+					}
+				}
+			}
+			readValue(c, depth + 1, matched, skip || excluded);
+			if (!skip && !excluded) {
+				hasher.update(resultHigh).update(resultLow);
+				count++;
+			}
+			index++;
+
+			c = nextToken();
+			if (c == ',') {
+				c = nextToken();
+			} else if (c == ']') {
+				c = -1;
+			} else {
+				throw syntaxError("Expected ',' or ']' after an element");
+			}
+		}
+		if (hasher != null) {
+			hasher.update(count);
+			finish(hasher);
+		}
+	}
+
+	/**
+	 * Reads the rest of a string, after its opening quote, feeding its UTF-8 encoded characters to the given
+	 * hasher. Escaped characters are fed as the characters they stand for.
+	 *
+	 * @param hasher      hasher of the string, or null if it is skipped
+	 * @param collectName whether the characters are collected as the name of a member
+	 */
+	private void readString(Murmur3Hasher hasher, boolean collectName) throws IOException {
+		int highSurrogate = -1;
+		while (true) {
+			int c = next();
+			if (c < 0) {
+				throw syntaxError("Unterminated string");
+			}
+			if (c < 0x20) {
+				throw syntaxError("Unescaped control character in a string");
+			}
+			if (c == '\\') {
+				c = next();
+				int codePoint;
+				switch (c) {
+					case '"':
+					case '\\':
+					case '/':
+						codePoint = c;
+						break;
+					case 'b':
+						codePoint = '\b';
+						break;
+					case 'f':
+						codePoint = '\f';
+						break;
+					case 'n':
+						codePoint = '\n';
+						break;
+					case 'r':
+						codePoint = '\r';
+						break;
+					case 't':
+						codePoint = '\t';
+						break;
+					case 'u':
+						codePoint = readHex();
+						break;
+					default:
+						throw syntaxError("Invalid escape sequence in a string");
+				}
+				if (highSurrogate >= 0) {
+					if (Character.isLowSurrogate((char) codePoint)) {
+						emitCodePoint(Character.toCodePoint((char) highSurrogate, (char) codePoint), hasher,
+						              collectName);
+						highSurrogate = -1;
+						continue;
+					}
+					// an unpaired surrogate is encoded as '?', as String.getBytes does
+					emit('?', hasher, collectName);
+					highSurrogate = -1;
+				}
+				if (Character.isHighSurrogate((char) codePoint)) {
+					highSurrogate = codePoint;
+				} else if (Character.isLowSurrogate((char) codePoint)) {
+					emit('?', hasher, collectName);
+				} else {
+					emitCodePoint(codePoint, hasher, collectName);
+				}
+				continue;
+			}
+			if (highSurrogate >= 0) {
+				emit('?', hasher, collectName);
+				highSurrogate = -1;
+			}
+			if (c == '"') {
+				return;
+			}
+			// the other bytes are UTF-8 already
+			emit(c, hasher, collectName);
+		}
+	}
+
+	private int readHex() throws IOException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int digit = Character.digit(next(), 16);
+			if (digit < 0) {
+				throw syntaxError("Invalid unicode escape in a string");
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	private void emitCodePoint(int codePoint, Murmur3Hasher hasher, boolean collectName) {
+		if (codePoint < 0x80) {
+			emit(codePoint, hasher, collectName);
+		} else if (codePoint < 0x800) {
+			emit(0xC0 | (codePoint >> 6), hasher, collectName);
+			emit(0x80 | (codePoint & 0x3F), hasher, collectName);
+		} else if (codePoint < 0x10000) {
+			emit(0xE0 | (codePoint >> 12), hasher, collectName);
+			emit(0x80 | ((codePoint >> 6) & 0x3F), hasher, collectName);
+			emit(0x80 | (codePoint & 0x3F), hasher, collectName);
+		} else {
+			emit(0xF0 | (codePoint >> 18), hasher, collectName);
+			emit(0x80 | ((codePoint >> 12) & 0x3F), hasher, collectName);
+			emit(0x80 | ((codePoint >> 6) & 0x3F), hasher, collectName);
+			emit(0x80 | (codePoint & 0x3F), hasher, collectName);
+		}
+	}
+
+	private void emit(int b, Murmur3Hasher hasher, boolean collectName) {
+		if (hasher != null) {
+			hasher.update((byte) b);
+		}
+		if (collectName) {
+			if (nameLength == name.length) {
+				byte[] grown = new byte[name.length * 2];
+				System.arraycopy(name, 0, grown, 0, nameLength);
+				name = grown;
+			}
+			name[nameLength++] = (byte) b;
+		}
+	}
+
+	private boolean nameEquals(byte[] segment) {
+		if (segment.length != nameLength) {
+			return false;
+		}
+		for (int i = 0; i < nameLength; i++) {
+			if (segment[i] != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void readLiteral(String rest, Murmur3Hasher hasher, byte type) throws IOException {
+		for (int i = 0; i < rest.length(); i++) {
+			if (next() != rest.charAt(i)) {
+				throw syntaxError("Invalid literal");
+			}
+		}
+		if (hasher != null) {
+			hasher.update(type);
+		}
+	}
+
+	/**
+	 * Reads the rest of a number, which must follow the JSON grammar: an optional minus, an integer part without
+	 * leading zeros, an optional fraction and an optional exponent
+	 *
+	 * @param first  first character of the number, a minus or a digit
+	 * @param hasher hasher of the number, or null if it is skipped
+	 */
+	private void readNumber(int first, Murmur3Hasher hasher) throws IOException {
+		if (hasher != null) {
+			hasher.update(NUMBER).update((byte) first);
+		}
+		int c = first;
+		if (c == '-') {
+			c = next();
+			if (c < '0' || c > '9') {
+				throw syntaxError("Expected a digit after '-' in a number");
+			}
+			if (hasher != null) {
+				hasher.update((byte) c);
+			}
+		}
+		if (c != '0') {
+			readDigits(hasher);
+		}
+		if (peek() == '.') {
+			position++;
+			if (hasher != null) {
+				hasher.update((byte) '.');
+			}
+			if (readDigits(hasher) == 0) {
+				throw syntaxError("Expected a digit after '.' in a number");
+			}
+		}
+		c = peek();
+		if (c == 'e' || c == 'E') {
+			position++;
+			if (hasher != null) {
+				hasher.update((byte) c);
+			}
+			c = peek();
+			if (c == '+' || c == '-') {
+				position++;
+				if (hasher != null) {
+					hasher.update((byte) c);
+				}
+			}
+			if (readDigits(hasher) == 0) {
+				throw syntaxError("Expected a digit in the exponent of a number");
+			}
+		}
+	}
+
+	/**
+	 * Reads the digits which follow
+	 *
+	 * @param hasher hasher of the number, or null if it is skipped
+	 * @return number of digits read
+	 */
+	private int readDigits(Murmur3Hasher hasher) throws IOException {
+		int count = 0;
+		for (int c = peek(); c >= '0' && c <= '9'; c = peek()) {
+			position++;
+			if (hasher != null) {
+				hasher.update((byte) c);
+			}
+			count++;
+		}
+		return count;
+	}
+
+	private void finish(Murmur3Hasher hasher) {
+		hasher.finish(finished);
+		resultHigh = finished[0];
+		resultLow = finished[1];
+	}
+
+	private Murmur3Hasher hasher(int depth) {
+		if (depth >= hashers.length) {
+			Murmur3Hasher[] grown = new Murmur3Hasher[Math.max(depth + 1, hashers.length * 2)];
+			System.arraycopy(hashers, 0, grown, 0, hashers.length);
+			hashers = grown;
+		}
+		if (hashers[depth] == null) {
+			hashers[depth] = new Murmur3Hasher();
+		}
+		return hashers[depth];
+	}
+
+	/**
+	 * Gives the next character which is not whitespace
+	 *
+	 * @return the character, or -1 at the end of the stream
+	 */
+	private int nextToken() throws IOException {
+		while (true) {
+			int c = next();
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return c;
+			}
+		}
+	}
+
+	private int next() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position++] & 0xFF;
+	}
+
+	private int peek() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position] & 0xFF;
+	}
+
+	private boolean fill() throws IOException {
+		int read = in.read(buffer, 0, buffer.length);
+		while (read == 0) {
+			read = in.read(buffer, 0, buffer.length);
+		}
+		position = 0;
+		limit = Math.max(read, 0);
+		return read > 0;
+	}
+
+	private static IOException syntaxError(String message) {
+		return new IOException("Malformed JSON payload. " + message);
+	}
+
+	/**
+	 * Splits an excluded path into its segments
+	 *
+	 * @param path path of the form $.name[index].*
+	 * @return segments of the path
+	 */
+	private static Object[] compile(String path) {
+		if (!path.startsWith("$") || path.length() == 1) {
+			throw new IllegalArgumentException("Excluded JSON path must start with $ and select a member or an " +
+			                                   "element : " + path);
+		}
+		List<Object> segments = new ArrayList<Object>();
+		int i = 1;
+		while (i < path.length()) {
+			char c = path.charAt(i);
+			if (c == '.') {
+				int end = i + 1;
+				while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+					end++;
+				}
+				String name = path.substring(i + 1, end);
+				if (name.isEmpty()) {
+					throw new IllegalArgumentException("Empty member name in the excluded JSON path : " + path);
+				}
+				segments.add("*".equals(name) ? ANY : name.getBytes(UTF_8));
+				i = end;
+			} else if (c == '[') {
+				int end = path.indexOf(']', i);
+				if (end < 0) {
+					throw new IllegalArgumentException("Unterminated [ in the excluded JSON path : " + path);
+				}
+				String selector = path.substring(i + 1, end).trim();
+				if ("*".equals(selector)) {
+					segments.add(ANY);
+				} else if (selector.length() >= 2 && selector.charAt(0) == '\'' &&
+				           selector.charAt(selector.length() - 1) == '\'') {
+					segments.add(selector.substring(1, selector.length() - 1).getBytes(UTF_8));
+				} else {
+					try {
+						segments.add(Integer.valueOf(selector));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid selector [" + selector + "] in the excluded " +
+						                                   "JSON path : " + path);
+					}
+				}
+				i = end + 1;
+			} else {
+				throw new IllegalArgumentException("Unexpected character '" + c + "' in the excluded JSON path : " +
+				                                   path);
+			}
+		}
+		return segments.toArray();
+	}
+}
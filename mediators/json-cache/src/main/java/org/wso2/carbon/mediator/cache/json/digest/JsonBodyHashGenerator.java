@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json.digest;
+
+import org.apache.axis2.context.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.wso2.carbon.mediator.cache.json.CachingException;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A DigestGenerator which identifies a request by its To address and its JSON payload, for query APIs which take
+ * their parameters in the body of a POST. The payload is hashed in a canonical form while it is streamed, see
+ * CanonicalJsonHasher, so requests whose bodies differ only in whitespace or in the order of the members of their
+ * objects share their cached response. Volatile fields such as timestamps or request ids are left out of the hash
+ * by excluding their JSON paths.
+ * <p/>
+ * A payload which is not well formed JSON is hashed as it is. Requests without a JSON payload are identified by
+ * their To address alone.
+ * <p/>
+ * Select it with hashGenerator="org.wso2.carbon.mediator.cache.json.digest.JsonBodyHashGenerator".
+ */
+public class JsonBodyHashGenerator extends Murmur3HashGenerator {
+
+	private static final long serialVersionUID = -2204906251350811378L;
+
+	private static final byte TO_ADDRESS = 0;
+
+	private static final byte CANONICAL_BODY = 1;
+
+	private static final byte RAW_BODY = 2;
+
+	private static final ThreadLocal<Murmur3Hasher> HASHER = new ThreadLocal<Murmur3Hasher>() {
+		@Override
+		protected Murmur3Hasher initialValue() {
+			return new Murmur3Hasher();
+		}
+	};
+
+	/**
+	 * JSON paths of the values which are left out of the hash
+	 */
+	private List<String> excludedPaths = Collections.emptyList();
+
+	/**
+	 * Per thread canonical hashers, which hold the compiled excluded paths and a read buffer
+	 */
+	private transient volatile ThreadLocal<CanonicalJsonHasher> bodyHashers;
+
+	@Override
+	public String getDigest(MessageContext msgContext) throws CachingException {
+		CacheKey key = getKey(msgContext);
+		return key != null ? key.toString() : null;
+	}
+
+	@Override
+	public CacheKey getKey(MessageContext msgContext) {
+		Murmur3Hasher hasher = HASHER.get().reset();
+		return update(hasher, msgContext) ? CacheKey.of(hasher) : null;
+	}
+
+	/**
+	 * Feeds the identity of the given request to the given hasher
+	 *
+	 * @param hasher     hasher of the key of the request
+	 * @param msgContext message context of the request
+	 * @return false if the request has nothing to be identified by, in which case nothing has been fed
+	 */
+	protected boolean update(Murmur3Hasher hasher, MessageContext msgContext) {
+		boolean identified = false;
+		if (msgContext.getTo() != null && msgContext.getTo().getAddress() != null) {
+			String address = msgContext.getTo().getAddress();
+			hasher.update(TO_ADDRESS).update(address.length()).update(address);
+			identified = true;
+		}
+		if (JsonUtil.hasAJsonPayload(msgContext)) {
+			updateBody(hasher, msgContext);
+			identified = true;
+		}
+		return identified;
+	}
+
+	/**
+	 * Feeds the canonical hash of the JSON payload of the given request to the given hasher. The payload stream is
+	 * reset afterwards, so that it can be read again.
+	 *
+	 * @param hasher     hasher of the key of the request
+	 * @param msgContext message context of a request with a JSON payload
+	 */
+	protected void updateBody(Murmur3Hasher hasher, MessageContext msgContext) {
+		InputStream jsonStream = JsonUtil.getJsonPayload(msgContext);
+		try {
+			long[] hash = new long[2];
+			if (getBodyHasher().hash(jsonStream, hash)) {
+				hasher.update(CANONICAL_BODY).update(hash[0]).update(hash[1]);
+			}
+		} catch (IOException e) {
+			if (!jsonStream.markSupported()) {
+				throw new CachingException("Unable to hash the JSON payload of the request", e);
+			}
+			hashRaw(hasher, jsonStream);
+		} finally {
+			// the stream is read again when the request is sent to the backend
+			resetQuietly(jsonStream);
+		}
+	}
+
+	/**
+	 * Gives the JSON paths of the values which are left out of the hash
+	 *
+	 * @return the excluded paths
+	 */
+	public List<String> getExcludedPaths() {
+		return excludedPaths;
+	}
+
+	/**
+	 * Sets the JSON paths of the values which are left out of the hash, such as $.requestId or $.items[*].timestamp
+	 *
+	 * @param excludedPaths the excluded paths
+	 * @throws IllegalArgumentException if a path is malformed
+	 */
+	public void setExcludedPaths(List<String> excludedPaths) {
+		// compiled once here, so that a malformed path is reported with the configuration
+		new CanonicalJsonHasher(excludedPaths);
+		this.excludedPaths = Collections.unmodifiableList(new ArrayList<String>(excludedPaths));
+		this.bodyHashers = null;
+	}
+
+	private CanonicalJsonHasher getBodyHasher() {
+		ThreadLocal<CanonicalJsonHasher> hashers = bodyHashers;
+		if (hashers == null) {
+			final List<String> paths = excludedPaths;
+			hashers = new ThreadLocal<CanonicalJsonHasher>() {
+				@Override
+				protected CanonicalJsonHasher initialValue() {
+					return new CanonicalJsonHasher(paths);
+				}
+			};
+			bodyHashers = hashers;
+		}
+		return hashers.get();
+	}
+
+	/**
+	 * Hashes a payload which is not well formed JSON byte by byte, from its beginning
+	 */
+	private static void hashRaw(Murmur3Hasher hasher, InputStream jsonStream) {
+		hasher.update(RAW_BODY);
+		byte[] buffer = new byte[4096];
+		try {
+			jsonStream.reset();
+			int read;
+			while ((read = jsonStream.read(buffer)) >= 0) {
+				hasher.update(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			throw new CachingException("Unable to hash the payload of the request", e);
+		}
+	}
+
+	private static void resetQuietly(InputStream jsonStream) {
+		if (jsonStream.markSupported()) {
+			try {
+				jsonStream.reset();
+			} catch (IOException ignored) {
+				// the payload could not be read either, which has been reported already
+			}
+		}
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json.digest;
+
+import org.apache.axis2.context.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A DigestGenerator which builds the key of a request from the parts named by the key element of the mediator
+ * configuration, so that equivalent requests share one cached response:
+ * <ul>
+ * <li>the To address, canonicalized: the scheme and the host are lower cased, the default port is dropped,
+ * percent-encoded unreserved characters are decoded and the other escapes are upper cased,</li>
+ * <li>optionally the path case and its trailing slash are ignored,</li>
+ * <li>the query parameters are sorted by name, the included ones only if some are named, less the excluded ones,</li>
+ * <li>the values of the named request headers,</li>
+ * <li>optionally the canonical hash of the JSON payload, less the paths excluded from the hash.</li>
+ * </ul>
+ * Parameter names ending with * match every parameter with the same prefix, such as utm_*.
+ */
+public class KeySpecHashGenerator extends JsonBodyHashGenerator {
+
+	private static final long serialVersionUID = 7750127453961370281L;
+
+	private static final byte AUTHORITY = 3;
+
+	private static final byte PATH = 4;
+
+	private static final byte QUERY_PARAMETER = 5;
+
+	private static final byte HEADER = 6;
+
+	private static final String WILDCARD = "*";
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Orders the query parameters by name, then by value
+	 */
+	private static final Comparator<String[]> PARAMETER_ORDER = new Comparator<String[]>() {
+		@Override
+		public int compare(String[] p1, String[] p2) {
+			int result = p1[0].compareTo(p2[0]);
+			if (result != 0 || p1[1] == p2[1]) {
+				return result;
+			}
+			if (p1[1] == null || p2[1] == null) {
+				return p1[1] == null ? -1 : 1;
+			}
+			return p1[1].compareTo(p2[1]);
+		}
+	};
+
+	/**
+	 * Query parameters which make up the key, or null to take all of them
+	 */
+	private List<String> includedParameters;
+
+	/**
+	 * Query parameters which are left out of the key, such as cache busters
+	 */
+	private List<String> excludedParameters = Collections.emptyList();
+
+	/**
+	 * Request headers which make up the key
+	 */
+	private List<String> headers = Collections.emptyList();
+
+	private boolean ignorePathCase;
+
+	private boolean ignoreTrailingSlash;
+
+	private boolean includeBody;
+
+	@Override
+	protected boolean update(Murmur3Hasher hasher, MessageContext msgContext) {
+		boolean identified = false;
+		if (msgContext.getTo() != null && msgContext.getTo().getAddress() != null) {
+			updateAddress(hasher, msgContext.getTo().getAddress());
+			identified = true;
+		}
+		if (!headers.isEmpty()) {
+			Map<?, ?> transportHeaders = (Map<?, ?>) msgContext.getProperty(MessageContext.TRANSPORT_HEADERS);
+			for (String name : headers) {
+				Object value = transportHeaders != null ? getHeader(transportHeaders, name) : null;
+				hasher.update(HEADER).update(name.length()).update(name);
+				// an absent header gives a different key than an empty one
+				if (value != null) {
+					String trimmed = value.toString().trim();
+					hasher.update(trimmed.length()).update(trimmed);
+				} else {
+					hasher.update(-1);
+				}
+			}
+		}
+		if (includeBody && JsonUtil.hasAJsonPayload(msgContext)) {
+			updateBody(hasher, msgContext);
+			identified = true;
+		}
+		return identified;
+	}
+
+	/**
+	 * Gives the value of the named header, whatever the case of its name in the transport headers
+	 */
+	private static Object getHeader(Map<?, ?> transportHeaders, String name) {
+		for (Map.Entry<?, ?> entry : transportHeaders.entrySet()) {
+			if (name.equalsIgnoreCase(String.valueOf(entry.getKey()))) {
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	private void updateAddress(Murmur3Hasher hasher, String address) {
+		int end = address.indexOf('#');
+		if (end < 0) {
+			end = address.length();
+		}
+		int queryStart = address.indexOf('?');
+		if (queryStart < 0 || queryStart > end) {
+			queryStart = end;
+		}
+
+		int pathStart = 0;
+		int schemeEnd = address.indexOf("://");
+		if (schemeEnd > 0 && schemeEnd < queryStart) {
+			int authorityStart = schemeEnd + 3;
+			pathStart = address.indexOf('/', authorityStart);
+			if (pathStart < 0 || pathStart > queryStart) {
+				pathStart = queryStart;
+			}
+			String authority = getAuthority(address.substring(0, schemeEnd).toLowerCase(Locale.ENGLISH),
+			                                address.substring(authorityStart, pathStart));
+			hasher.update(AUTHORITY).update(authority.length()).update(authority);
+		}
+
+		StringBuilder path = new StringBuilder(queryStart - pathStart + 1);
+		appendNormalized(path, address, pathStart, queryStart, ignorePathCase);
+		if (ignoreTrailingSlash && path.length() > 1 && path.charAt(path.length() - 1) == '/') {
+			path.setLength(path.length() - 1);
+		}
+		if (path.length() == 0) {
+			path.append('/');
+		}
+		hasher.update(PATH).update(path.length()).update(path);
+
+		if (queryStart < end) {
+			for (String[] parameter : getParameters(address, queryStart + 1, end)) {
+				hasher.update(QUERY_PARAMETER).update(parameter[0].length()).update(parameter[0]);
+				if (parameter[1] != null) {
+					hasher.update(parameter[1].length()).update(parameter[1]);
+				} else {
+					hasher.update(-1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives the authority of an address with its host lower cased and without the default port of its scheme
+	 */
+	private static String getAuthority(String scheme, String authority) {
+		int hostStart = authority.lastIndexOf('@') + 1;
+		int portStart = authority.lastIndexOf(':');
+		if (portStart < hostStart || authority.indexOf(']', portStart) >= 0) {
+			// no port, the colons of an IPv6 literal do not count
+			portStart = authority.length();
+		}
+		String port = authority.substring(Math.min(portStart + 1, authority.length()));
+		if (("http".equals(scheme) && "80".equals(port)) || ("https".equals(scheme) && "443".equals(port)) ||
+		    port.isEmpty()) {
+			port = null;
+		}
+		return scheme + "://" + authority.substring(0, hostStart) +
+		       authority.substring(hostStart, portStart).toLowerCase(Locale.ENGLISH) +
+		       (port != null ? ":" + port : "");
+	}
+
+	/**
+	 * Gives the query parameters which make up the key, with their names and values normalized, in order
+	 */
+	private List<String[]> getParameters(String address, int start, int end) {
+		List<String[]> parameters = new ArrayList<String[]>();
+		while (start < end) {
+			int parameterEnd = address.indexOf('&', start);
+			if (parameterEnd < 0 || parameterEnd > end) {
+				parameterEnd = end;
+			}
+			if (parameterEnd > start) {
+				int separator = address.indexOf('=', start);
+				int nameEnd = separator >= 0 && separator < parameterEnd ? separator : parameterEnd;
+				StringBuilder name = new StringBuilder(nameEnd - start);
+				appendNormalized(name, address, start, nameEnd, false);
+				String parameterName = name.toString();
+				if (isKeyParameter(parameterName)) {
+					String value = null;
+					if (nameEnd < parameterEnd) {
+						StringBuilder valueBuilder = new StringBuilder(parameterEnd - nameEnd);
+						appendNormalized(valueBuilder, address, nameEnd + 1, parameterEnd, false);
+						value = valueBuilder.toString();
+					}
+					parameters.add(new String[] { parameterName, value });
+				}
+			}
+			start = parameterEnd + 1;
+		}
+		Collections.sort(parameters, PARAMETER_ORDER);
+		return parameters;
+	}
+
+	private boolean isKeyParameter(String name) {
+		return (includedParameters == null || matches(includedParameters, name)) &&
+		       !matches(excludedParameters, name);
+	}
+
+	private static boolean matches(List<String> patterns, String name) {
+		for (String pattern : patterns) {
+			if (pattern.endsWith(WILDCARD) ?
+			    name.startsWith(pattern.substring(0, pattern.length() - 1)) : pattern.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Appends a part of an address with its percent-encoding normalized: escaped unreserved characters are decoded
+	 * and the other escapes are upper cased, so that equivalent addresses give the same key
+	 */
+	private static void appendNormalized(StringBuilder out, String address, int start, int end, boolean lowerCase) {
+		for (int i = start; i < end; i++) {
+			char c = address.charAt(i);
+			if (c == '%' && i + 2 < end) {
+				int high = Character.digit(address.charAt(i + 1), 16);
+				int low = Character.digit(address.charAt(i + 2), 16);
+				if (high >= 0 && low >= 0) {
+					char decoded = (char) ((high << 4) | low);
+					if (isUnreserved(decoded)) {
+						out.append(lowerCase ? Character.toLowerCase(decoded) : decoded);
+					} else {
+						out.append('%').append(HEX_DIGITS[high]).append(HEX_DIGITS[low]);
+					}
+					i += 2;
+					continue;
+				}
+			}
+			out.append(lowerCase ? Character.toLowerCase(c) : c);
+		}
+	}
+
+	private static boolean isUnreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' ||
+		       c == '.' || c == '_' || c == '~';
+	}
+
+	public List<String> getIncludedParameters() {
+		return includedParameters;
+	}
+
+	/**
+	 * Sets the query parameters which make up the key
+	 *
+	 * @param includedParameters names of the parameters, or null to take all of them
+	 */
+	public void setIncludedParameters(List<String> includedParameters) {
+		this.includedParameters = includedParameters != null ?
+		                          Collections.unmodifiableList(new ArrayList<String>(includedParameters)) : null;
+	}
+
+	public List<String> getExcludedParameters() {
+		return excludedParameters;
+	}
+
+	public void setExcludedParameters(List<String> excludedParameters) {
+		this.excludedParameters = Collections.unmodifiableList(new ArrayList<String>(excludedParameters));
+	}
+
+	public List<String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Sets the request headers which make up the key. They are taken in the order of their lower cased names, so
+	 * that the order in which they are configured does not change the key, and a name given twice in different
+	 * cases is taken once.
+	 *
+	 * @param headers names of the headers
+	 */
+	public void setHeaders(List<String> headers) {
+		List<String> names = new ArrayList<String>(headers.size());
+		for (String header : headers) {
+			String name = header.toLowerCase(Locale.ENGLISH);
+			if (!names.contains(name)) {
+				names.add(name);
+			}
+		}
+		Collections.sort(names);
+		this.headers = Collections.unmodifiableList(names);
+	}
+
+	public boolean isIgnorePathCase() {
+		return ignorePathCase;
+	}
+
+	public void setIgnorePathCase(boolean ignorePathCase) {
+		this.ignorePathCase = ignorePathCase;
+	}
+
+	public boolean isIgnoreTrailingSlash() {
+		return ignoreTrailingSlash;
+	}
+
+	public void setIgnoreTrailingSlash(boolean ignoreTrailingSlash) {
+		this.ignoreTrailingSlash = ignoreTrailingSlash;
+	}
+
+	public boolean isIncludeBody() {
+		return includeBody;
+	}
+
+	public void setIncludeBody(boolean includeBody) {
+		this.includeBody = includeBody;
+	}
+}
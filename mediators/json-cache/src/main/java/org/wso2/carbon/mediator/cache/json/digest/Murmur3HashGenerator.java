@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json.digest;
+
+import org.apache.axis2.context.MessageContext;
+import org.wso2.carbon.mediator.cache.json.CachingException;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+
+/**
+ * A DigestGenerator which identifies a request by its To address, like ReqUrlHashGenerator, using the 128 bit
+ * MurmurHash3 of the UTF-8 encoded address instead of MD5. The digest is a fixed width string of 32 hex digits, so
+ * distinct hashes always give distinct keys. MurmurHash3 is not a cryptographic hash, which is not needed to key a
+ * cache, and it is much cheaper to compute.
+ * <p/>
+ * Select it with hashGenerator="org.wso2.carbon.mediator.cache.json.digest.Murmur3HashGenerator".
+ */
+public class Murmur3HashGenerator implements DigestGenerator {
+
+	private static final long serialVersionUID = 3605841377290611475L;
+
+	private static final ThreadLocal<Murmur3Hasher> HASHER = new ThreadLocal<Murmur3Hasher>() {
+		@Override
+		protected Murmur3Hasher initialValue() {
+			return new Murmur3Hasher();
+		}
+	};
+
+	public String getDigest(MessageContext msgContext) throws CachingException {
+
+		if (msgContext.getTo() == null || msgContext.getTo().getAddress() == null) {
+			return null;
+		}
+		return getDigest(msgContext.getTo().getAddress());
+	}
+
+	/**
+	 * Gives the key of the request of the given message context, without building the digest string
+	 *
+	 * @param msgContext message context of the request
+	 * @return key of the To address, or null if the request has none
+	 */
+	public CacheKey getKey(MessageContext msgContext) {
+		if (msgContext.getTo() == null || msgContext.getTo().getAddress() == null) {
+			return null;
+		}
+		return CacheKey.of(HASHER.get().reset().update(msgContext.getTo().getAddress()));
+	}
+
+	/**
+	 * Gives the digest of the given To address
+	 *
+	 * @param toAddress address of the request
+	 * @return string of 32 hex digits
+	 */
+	public String getDigest(String toAddress) {
+		return HASHER.get().reset().update(toAddress).finishHex();
+	}
+}
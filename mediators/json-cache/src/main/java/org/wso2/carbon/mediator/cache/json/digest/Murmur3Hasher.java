@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json.digest;
+
+/**
+ * Computes the 128 bit, x64 variant of the MurmurHash3 hash incrementally. The input is fed in pieces, strings being
+ * encoded to UTF-8 on the fly, so no intermediate byte arrays are built. A hasher is not thread safe, but it may be
+ * reused for several hashes once it is reset.
+ */
+public final class Murmur3Hasher {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private static final int BLOCK_SIZE = 16;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final long seed;
+
+	private final byte[] block = new byte[BLOCK_SIZE];
+
+	private int blockLength;
+
+	private long length;
+
+	private long h1;
+
+	private long h2;
+
+	/**
+	 * Creates a hasher with a seed of 0
+	 */
+	public Murmur3Hasher() {
+		this(0);
+	}
+
+	/**
+	 * Creates a hasher with the given seed
+	 *
+	 * @param seed seed of the hash
+	 */
+	public Murmur3Hasher(long seed) {
+		this.seed = seed;
+		reset();
+	}
+
+	/**
+	 * Discards the input fed so far, so that a new hash can be computed
+	 *
+	 * @return this hasher
+	 */
+	public Murmur3Hasher reset() {
+		h1 = seed;
+		h2 = seed;
+		blockLength = 0;
+		length = 0;
+		return this;
+	}
+
+	/**
+	 * Feeds a byte
+	 *
+	 * @param b byte to hash
+	 * @return this hasher
+	 */
+	public Murmur3Hasher update(byte b) {
+		block[blockLength++] = b;
+		length++;
+		if (blockLength == BLOCK_SIZE) {
+			mixBlock(block, 0);
+			blockLength = 0;
+		}
+		return this;
+	}
+
+	/**
+	 * Feeds a range of bytes
+	 *
+	 * @param bytes  array holding the bytes to hash
+	 * @param offset offset of the first byte
+	 * @param count  number of bytes
+	 * @return this hasher
+	 */
+	public Murmur3Hasher update(byte[] bytes, int offset, int count) {
+		int end = offset + count;
+		// complete a partially filled block first, then mix the whole blocks in place
+		while (blockLength != 0 && offset < end) {
+			update(bytes[offset++]);
+		}
+		while (end - offset >= BLOCK_SIZE) {
+			mixBlock(bytes, offset);
+			offset += BLOCK_SIZE;
+			length += BLOCK_SIZE;
+		}
+		while (offset < end) {
+			update(bytes[offset++]);
+		}
+		return this;
+	}
+
+	/**
+	 * Feeds an int as 4 big endian bytes, such as the length of a following string
+	 *
+	 * @param value int to hash
+	 * @return this hasher
+	 */
+	public Murmur3Hasher update(int value) {
+		update((byte) (value >>> 24));
+		update((byte) (value >>> 16));
+		update((byte) (value >>> 8));
+		return update((byte) value);
+	}
+
+	/**
+	 * Feeds a long as 8 big endian bytes
+	 *
+	 * @param value long to hash
+	 * @return this hasher
+	 */
+	public Murmur3Hasher update(long value) {
+		update((int) (value >>> 32));
+		return update((int) value);
+	}
+
+	/**
+	 * Feeds the UTF-8 encoding of the given characters. Unpaired surrogates are encoded as '?', as String.getBytes
+	 * does.
+	 *
+	 * @param chars characters to hash
+	 * @return this hasher
+	 */
+	public Murmur3Hasher update(CharSequence chars) {
+		int count = chars.length();
+		for (int i = 0; i < count; i++) {
+			char c = chars.charAt(i);
+			if (c < 0x80) {
+				update((byte) c);
+			} else if (c < 0x800) {
+				update((byte) (0xC0 | (c >> 6)));
+				update((byte) (0x80 | (c & 0x3F)));
+			} else if (!Character.isSurrogate(c)) {
+				update((byte) (0xE0 | (c >> 12)));
+				update((byte) (0x80 | ((c >> 6) & 0x3F)));
+				update((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(chars.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+				update((byte) (0xF0 | (codePoint >> 18)));
+				update((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				update((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				update((byte) (0x80 | (codePoint & 0x3F)));
+			} else {
+				update((byte) '?');
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Completes the hash of the input fed since the last reset. The hasher is reset afterwards.
+	 *
+	 * @param hash array receiving the two 64 bit halves of the hash
+	 * @return the given array
+	 */
+	public long[] finish(long[] hash) {
+		long k1 = 0;
+		long k2 = 0;
+		for (int i = blockLength - 1; i >= 8; i--) {
+			k2 ^= (block[i] & 0xFFL) << ((i - 8) * 8);
+		}
+		if (blockLength > 8) {
+			h2 ^= mixK2(k2);
+		}
+		for (int i = Math.min(blockLength, 8) - 1; i >= 0; i--) {
+			k1 ^= (block[i] & 0xFFL) << (i * 8);
+		}
+		if (blockLength > 0) {
+			h1 ^= mixK1(k1);
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+
+		hash[0] = h1;
+		hash[1] = h2;
+		reset();
+		return hash;
+	}
+
+	/**
+	 * Completes the hash of the input fed since the last reset, as a string of 32 hex digits. The hasher is reset
+	 * afterwards.
+	 *
+	 * @return hex string of the hash
+	 */
+	public String finishHex() {
+		long[] hash = finish(new long[2]);
+		return toHex(hash[0], hash[1]);
+	}
+
+	/**
+	 * Gives the fixed width string representation of a 128 bit hash
+	 *
+	 * @param high first half of the hash
+	 * @param low  second half of the hash
+	 * @return string of 32 hex digits
+	 */
+	public static String toHex(long high, long low) {
+		char[] hex = new char[32];
+		for (int i = 15; i >= 0; i--) {
+			hex[i] = HEX_DIGITS[(int) (high & 0xF)];
+			high >>>= 4;
+			hex[i + 16] = HEX_DIGITS[(int) (low & 0xF)];
+			low >>>= 4;
+		}
+		return new String(hex);
+	}
+
+	private void mixBlock(byte[] bytes, int offset) {
+		h1 ^= mixK1(getLong(bytes, offset));
+		h1 = Long.rotateLeft(h1, 27);
+		h1 += h2;
+		h1 = h1 * 5 + 0x52dce729;
+
+		h2 ^= mixK2(getLong(bytes, offset + 8));
+		h2 = Long.rotateLeft(h2, 31);
+		h2 += h1;
+		h2 = h2 * 5 + 0x38495ab5;
+	}
+
+	private static long getLong(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFFL) | (bytes[offset + 1] & 0xFFL) << 8 | (bytes[offset + 2] & 0xFFL) << 16 |
+		       (bytes[offset + 3] & 0xFFL) << 24 | (bytes[offset + 4] & 0xFFL) << 32 |
+		       (bytes[offset + 5] & 0xFFL) << 40 | (bytes[offset + 6] & 0xFFL) << 48 |
+		       (bytes[offset + 7] & 0xFFL) << 56;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.mediator.cache.json.CachableResponse;
+import org.wso2.carbon.mediator.cache.json.CachingException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The disk tier of the mediator cache. Payloads are appended to a ring of memory mapped segment files and the
+ * cached responses handed out by this tier hold read only slices of those mappings, so a hit is streamed straight
+ * from the page cache without copying the payload onto the heap. Only the small response metadata is kept on the
+ * heap, in the index of the tier.
+ * <p/>
+ * When the ring wraps around, the oldest segment is dropped together with the index entries pointing into it. The
+ * segment file is deleted and a new file is mapped in its place rather than overwriting it, so the slices still
+ * being read from the old mapping stay valid until they are garbage collected.
+ *
+ * @param <K> type of the keys
+ */
+public class DiskCacheTier<K> {
+
+	private static final Log log = LogFactory.getLog(DiskCacheTier.class);
+
+	/**
+	 * Upper bound of the size of a segment file, which is kept well below the 2GB limit of a mapping
+	 */
+	private static final long MAX_SEGMENT_SIZE = 1024L * 1024 * 1024;
+
+	/**
+	 * Minimum number of segments in the ring
+	 */
+	private static final int MIN_SEGMENT_COUNT = 4;
+
+	private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+	private static final String SEGMENT_FILE_SUFFIX = ".dat";
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	private final Segment<K>[] segments;
+
+	private final ConcurrentMap<K, Slot<K>> index = new ConcurrentHashMap<K, Slot<K>>();
+
+	private int activeSegment;
+
+	private long generation;
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Creates a disk tier in the given directory. Any segment files left in the directory by a previous run are
+	 * removed.
+	 *
+	 * @param directory directory in which the segment files are created
+	 * @param capacity  total size of the segment files in bytes
+	 * @throws CachingException if the directory or the segment files cannot be created
+	 */
+	@SuppressWarnings("unchecked")
+	public DiskCacheTier(File directory, long capacity) throws CachingException {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity of the disk cache must be positive : " + capacity);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new CachingException("Unable to create the disk cache directory : " + directory);
+		}
+		deleteSegmentFiles(directory);
+		this.directory = directory;
+		this.segmentSize = (int) Math.min(MAX_SEGMENT_SIZE, Math.max(1, capacity / MIN_SEGMENT_COUNT));
+		int segmentCount = (int) Math.max(MIN_SEGMENT_COUNT, (capacity + segmentSize - 1) / segmentSize);
+		this.segments = new Segment[segmentCount];
+		segments[0] = mapSegment(0);
+	}
+
+	/**
+	 * Writes the headers and the payload of the given response to disk and indexes a copy of the response which
+	 * refers to the written bytes. Placeholders without a payload and responses larger than a segment are not stored.
+	 *
+	 * @param key      key of the response
+	 * @param response response to be stored
+	 * @return true if the response was stored, false otherwise
+	 */
+	public boolean put(K key, CachableResponse response) {
+		if (response.getResponsePayload() == null || response.getBlockLength() > segmentSize) {
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+		try {
+			append(key, response);
+			return true;
+		} catch (CachingException e) {
+			log.warn("Unable to write the response of " + key + " to the disk cache", e);
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Gives the response stored for the given key. The headers and the payload of the returned response are read only
+	 * slices of the segment mapping.
+	 *
+	 * @param key key to be looked up
+	 * @return the stored response or null
+	 */
+	public CachableResponse get(K key) {
+		Slot<K> slot = index.get(key);
+		return slot != null ? slot.response : null;
+	}
+
+	/**
+	 * Removes the response stored for the given key. The bytes on disk are reclaimed when the segment is recycled.
+	 *
+	 * @param key key to be removed
+	 */
+	public void remove(K key) {
+		index.remove(key);
+	}
+
+	/**
+	 * Gives the number of responses held by the tier
+	 *
+	 * @return number of responses
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Gives the number of responses which could not be stored in the tier
+	 *
+	 * @return rejected count
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Drops all the responses and deletes the segment files
+	 */
+	public synchronized void close() {
+		index.clear();
+		for (int i = 0; i < segments.length; i++) {
+			if (segments[i] != null) {
+				deleteFile(segments[i].file);
+				segments[i] = null;
+			}
+		}
+	}
+
+	private synchronized void append(K key, CachableResponse response) throws CachingException {
+		int length = response.getBlockLength();
+		Segment<K> segment = segments[activeSegment];
+		if (segment == null) {
+			throw new CachingException("Disk cache is closed");
+		}
+		if (segment.position + length > segmentSize) {
+			activeSegment = (activeSegment + 1) % segments.length;
+			recycle(activeSegment);
+			segment = segments[activeSegment];
+		}
+		ByteBuffer target = segment.buffer.duplicate();
+		target.position(segment.position);
+		response.writeBlock(target);
+		target.position(segment.position);
+		target.limit(segment.position + length);
+		segment.position += length;
+
+		Slot<K> slot = new Slot<K>(key, response.duplicate(target.slice().asReadOnlyBuffer()));
+		segment.slots.add(slot);
+		index.put(key, slot);
+	}
+
+	private void recycle(int segmentIndex) throws CachingException {
+		Segment<K> old = segments[segmentIndex];
+		if (old != null) {
+			for (Slot<K> slot : old.slots) {
+				// the key may have been rewritten into a newer segment since, which is kept
+				index.remove(slot.key, slot);
+			}
+			deleteFile(old.file);
+			segments[segmentIndex] = null;
+		}
+		segments[segmentIndex] = mapSegment(segmentIndex);
+	}
+
+	private Segment<K> mapSegment(int segmentIndex) throws CachingException {
+		File file = new File(directory, SEGMENT_FILE_PREFIX + segmentIndex + "-" + (generation++) + SEGMENT_FILE_SUFFIX);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(segmentSize);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			return new Segment<K>(file, buffer);
+		} catch (IOException e) {
+			throw new CachingException("Unable to map the disk cache segment : " + file, e);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					log.debug("Error while closing the disk cache segment : " + file, e);
+				}
+			}
+		}
+	}
+
+	private static void deleteSegmentFiles(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(SEGMENT_FILE_PREFIX) && file.getName().endsWith(SEGMENT_FILE_SUFFIX)) {
+					deleteFile(file);
+				}
+			}
+		}
+	}
+
+	private static void deleteFile(File file) {
+		if (!file.delete() && file.exists()) {
+			log.warn("Unable to delete the disk cache segment : " + file);
+		}
+	}
+
+	/**
+	 * A mapped segment file and the slots written into it
+	 */
+	private static final class Segment<K> {
+
+		final File file;
+
+		final MappedByteBuffer buffer;
+
+		final List<Slot<K>> slots = new ArrayList<Slot<K>>();
+
+		int position;
+
+		Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Index entry of a response written into a segment
+	 */
+	private static final class Slot<K> {
+
+		final K key;
+
+		final CachableResponse response;
+
+		Slot(K key, CachableResponse response) {
+			this.key = key;
+			this.response = response;
+		}
+	}
+}
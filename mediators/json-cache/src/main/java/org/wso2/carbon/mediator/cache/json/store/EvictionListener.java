@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.store;
+
+/**
+ * Receives the entries evicted from a MemoryCacheStore. The listener is called by the thread which caused the
+ * eviction, after the lock of the segment has been released.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+public interface EvictionListener<K, V> {
+
+	/**
+	 * Called when an entry is evicted to make room for a new one
+	 *
+	 * @param key   key of the evicted entry
+	 * @param value value of the evicted entry
+	 */
+	void onEviction(K key, V value);
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.store;
+
+/**
+ * The policies which can be used by the MemoryCacheStore to select the entry to be evicted when a segment of the
+ * store is full.
+ */
+public enum EvictionPolicy {
+
+	/**
+	 * Evicts the least recently used entry
+	 */
+	LRU,
+
+	/**
+	 * Evicts the least frequently used entry out of a small sample of the oldest entries
+	 */
+	LFU,
+
+	/**
+	 * Evicts the oldest entry regardless of how it was used
+	 */
+	FIFO
+}
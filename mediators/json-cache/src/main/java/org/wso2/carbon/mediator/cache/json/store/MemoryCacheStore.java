@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.store;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent in memory store bounded by the number of entries. The store is split into lock striped segments,
+ * each of which keeps its entries in a hash map threaded with an access ordered list, and evicts entries according
+ * to the configured EvictionPolicy once it holds more than its share of the maximum size.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+public class MemoryCacheStore<K, V> {
+
+	/**
+	 * Default number of segments of the store
+	 */
+	public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	/**
+	 * Number of the oldest entries inspected when selecting an LFU victim
+	 */
+	private static final int LFU_SAMPLE_SIZE = 8;
+
+	private final Segment<K, V>[] segments;
+
+	private final int segmentMask;
+
+	private final int maxSize;
+
+	private final EvictionPolicy evictionPolicy;
+
+	private volatile EvictionListener<K, V> evictionListener;
+
+	/**
+	 * Creates a store with the default concurrency level
+	 *
+	 * @param maxSize        maximum number of entries held in the store
+	 * @param evictionPolicy policy used to select the entries to be evicted
+	 */
+	public MemoryCacheStore(int maxSize, EvictionPolicy evictionPolicy) {
+		this(maxSize, evictionPolicy, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * Creates a store split into the next power of two segments of the given concurrency level. The number of
+	 * segments never exceeds the maximum size, so that each segment can hold at least one entry.
+	 *
+	 * @param maxSize          maximum number of entries held in the store
+	 * @param evictionPolicy   policy used to select the entries to be evicted
+	 * @param concurrencyLevel expected number of threads updating the store concurrently
+	 */
+	@SuppressWarnings("unchecked")
+	public MemoryCacheStore(int maxSize, EvictionPolicy evictionPolicy, int concurrencyLevel) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Maximum size of the cache store must be positive : " + maxSize);
+		}
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel && segmentCount < maxSize) {
+			segmentCount <<= 1;
+		}
+		if (segmentCount > maxSize) {
+			segmentCount >>= 1;
+		}
+		// spread the remainder over the first segments so that the capacities add up to the maximum size
+		int segmentSize = maxSize / segmentCount;
+		int remainder = maxSize % segmentCount;
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment<K, V>(i < remainder ? segmentSize + 1 : segmentSize, evictionPolicy);
+		}
+		this.segmentMask = segmentCount - 1;
+		this.maxSize = maxSize;
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * Gives the value mapped to the given key and records the access for the eviction policy
+	 *
+	 * @param key key to be looked up
+	 * @return the mapped value or null if there is no mapping
+	 */
+	public V get(K key) {
+		return segmentFor(key).get(key);
+	}
+
+	/**
+	 * Maps the given value to the key, evicting an entry of the same segment if it is full
+	 *
+	 * @param key   key of the entry
+	 * @param value value of the entry
+	 * @return the previously mapped value or null
+	 */
+	public V put(K key, V value) {
+		if (value == null) {
+			throw new NullPointerException("Null values cannot be cached");
+		}
+		return segmentFor(key).put(key, value, evictionListener);
+	}
+
+	/**
+	 * Maps the given value to the key unless the key is mapped already, evicting an entry of the same segment if it
+	 * is full
+	 *
+	 * @param key   key of the entry
+	 * @param value value of the entry
+	 * @return the value already mapped to the key, or null if the given value has been mapped
+	 */
+	public V putIfAbsent(K key, V value) {
+		if (value == null) {
+			throw new NullPointerException("Null values cannot be cached");
+		}
+		return segmentFor(key).putIfAbsent(key, value, evictionListener);
+	}
+
+	/**
+	 * Removes the mapping of the given key
+	 *
+	 * @param key key to be removed
+	 * @return the removed value or null
+	 */
+	public V remove(K key) {
+		return segmentFor(key).remove(key);
+	}
+
+	/**
+	 * Removes the mapping of the given key only if it is mapped to the given value
+	 *
+	 * @param key   key to be removed
+	 * @param value value expected to be mapped to the key
+	 * @return true if the mapping was removed
+	 */
+	public boolean remove(K key, V value) {
+		return segmentFor(key).remove(key, value);
+	}
+
+	/**
+	 * Gives the number of entries in the store. The value is a sum over the segments and is not an atomic snapshot.
+	 *
+	 * @return number of entries
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			size += segment.map.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Gives the number of segments of the store, which can be copied one at a time with copySegment
+	 *
+	 * @return segment count
+	 */
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * Copies the entries of a segment in their eviction order, the first to be evicted first. Only the given segment
+	 * is locked while it is copied, so copying all the segments does not give an atomic snapshot of the store.
+	 *
+	 * @param index index of the segment, below getSegmentCount()
+	 * @return the entries of the segment
+	 */
+	public Map<K, V> copySegment(int index) {
+		return segments[index].copy();
+	}
+
+	/**
+	 * Gives the number of entries evicted from the store since it was created
+	 *
+	 * @return eviction count
+	 */
+	public long getEvictionCount() {
+		long count = 0;
+		for (Segment<K, V> segment : segments) {
+			count += segment.evictionCount;
+		}
+		return count;
+	}
+
+	/**
+	 * Sets the listener which receives the entries evicted from the store
+	 *
+	 * @param evictionListener listener to be notified, or null to drop evicted entries silently
+	 */
+	public void setEvictionListener(EvictionListener<K, V> evictionListener) {
+		this.evictionListener = evictionListener;
+	}
+
+	/**
+	 * Gives the maximum number of entries of the store
+	 *
+	 * @return maximum size
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gives the policy used to select the entries to be evicted
+	 *
+	 * @return eviction policy
+	 */
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	private Segment<K, V> segmentFor(K key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[hash & segmentMask];
+	}
+
+	/**
+	 * Entry of a segment, linked into the eviction order of the segment
+	 */
+	private static final class Node<K, V> {
+
+		final K key;
+
+		V value;
+
+		int frequency;
+
+		Node<K, V> prev;
+
+		Node<K, V> next;
+
+		Node(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A lock guarded partition of the store. The list starting from the head sentinel holds the entries from the
+	 * first to be evicted to the last.
+	 */
+	private static final class Segment<K, V> extends ReentrantLock {
+
+		private static final long serialVersionUID = 6462371982215537582L;
+
+		final Map<K, Node<K, V>> map;
+
+		final Node<K, V> head = new Node<K, V>(null, null);
+
+		final int capacity;
+
+		final EvictionPolicy policy;
+
+		volatile long evictionCount;
+
+		Segment(int capacity, EvictionPolicy policy) {
+			this.capacity = capacity;
+			this.policy = policy;
+			this.map = new HashMap<K, Node<K, V>>(Math.min(capacity, 1 << 16) * 4 / 3 + 1);
+			head.prev = head;
+			head.next = head;
+		}
+
+		V get(K key) {
+			lock();
+			try {
+				Node<K, V> node = map.get(key);
+				if (node == null) {
+					return null;
+				}
+				recordAccess(node);
+				return node.value;
+			} finally {
+				unlock();
+			}
+		}
+
+		V put(K key, V value, EvictionListener<K, V> listener) {
+			V previous = null;
+			Node<K, V> victim = null;
+			lock();
+			try {
+				Node<K, V> node = map.get(key);
+				if (node != null) {
+					previous = node.value;
+					node.value = value;
+					recordAccess(node);
+				} else {
+					node = new Node<K, V>(key, value);
+					map.put(key, node);
+					linkLast(node);
+					if (map.size() > capacity) {
+						victim = selectVictim();
+						unlink(victim);
+						map.remove(victim.key);
+						evictionCount++;
+					}
+				}
+			} finally {
+				unlock();
+			}
+			if (victim != null && listener != null) {
+				listener.onEviction(victim.key, victim.value);
+			}
+			return previous;
+		}
+
+		V putIfAbsent(K key, V value, EvictionListener<K, V> listener) {
+			Node<K, V> victim = null;
+			lock();
+			try {
+				Node<K, V> node = map.get(key);
+				if (node != null) {
+					return node.value;
+				}
+				node = new Node<K, V>(key, value);
+				map.put(key, node);
+				linkLast(node);
+				if (map.size() > capacity) {
+					victim = selectVictim();
+					unlink(victim);
+					map.remove(victim.key);
+					evictionCount++;
+				}
+			} finally {
+				unlock();
+			}
+			if (victim != null && listener != null) {
+				listener.onEviction(victim.key, victim.value);
+			}
+			return null;
+		}
+
+		Map<K, V> copy() {
+			lock();
+			try {
+				Map<K, V> entries = new LinkedHashMap<K, V>(map.size() * 4 / 3 + 1);
+				for (Node<K, V> node = head.next; node != head; node = node.next) {
+					entries.put(node.key, node.value);
+				}
+				return entries;
+			} finally {
+				unlock();
+			}
+		}
+
+		V remove(K key) {
+			lock();
+			try {
+				Node<K, V> node = map.remove(key);
+				if (node == null) {
+					return null;
+				}
+				unlink(node);
+				return node.value;
+			} finally {
+				unlock();
+			}
+		}
+
+		boolean remove(K key, V value) {
+			lock();
+			try {
+				Node<K, V> node = map.get(key);
+				if (node == null || node.value != value) {
+					return false;
+				}
+				map.remove(key);
+				unlink(node);
+				return true;
+			} finally {
+				unlock();
+			}
+		}
+
+		private void recordAccess(Node<K, V> node) {
+			switch (policy) {
+				case LRU:
+					unlink(node);
+					linkLast(node);
+					break;
+				case LFU:
+					if (node.frequency < Integer.MAX_VALUE) {
+						node.frequency++;
+					}
+					break;
+				default:
+					break;
+			}
+		}
+
+		private Node<K, V> selectVictim() {
+			Node<K, V> victim = head.next;
+			if (policy == EvictionPolicy.LFU) {
+				// the entry which has just been added is never sampled, it has not had a chance to be used yet
+				Node<K, V> candidate = victim.next;
+				for (int i = 1; i < LFU_SAMPLE_SIZE && candidate != head.prev; i++) {
+					if (candidate.frequency < victim.frequency) {
+						victim = candidate;
+					}
+					candidate = candidate.next;
+				}
+			}
+			return victim;
+		}
+
+		private void linkLast(Node<K, V> node) {
+			node.prev = head.prev;
+			node.next = head;
+			head.prev.next = node;
+			head.prev = node;
+		}
+
+		private void unlink(Node<K, V> node) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = null;
+			node.next = null;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.store;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A slab allocator of off heap memory for cached payloads. Memory is reserved from the JVM in direct slabs, each of
+ * which is carved into equally sized chunks of one power of two size class. Freed chunks are pooled per size class
+ * and reused, so the slabs are never handed back and the garbage collector never sees the cached bytes.
+ * <p/>
+ * The arena is bounded by the total size of its slabs. Once the bound is reached and the pool of a size class is
+ * empty, allocations of that class fail and the caller is expected to keep the payload elsewhere.
+ */
+public class PayloadArena {
+
+	/**
+	 * Size of the smallest chunk size class
+	 */
+	public static final int MIN_CHUNK_SIZE = 1024;
+
+	/**
+	 * Size of the largest chunk size class. Larger payloads are not kept in the arena.
+	 */
+	public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * Size of a slab, which holds at least four chunks of the largest size class
+	 */
+	private static final int SLAB_SIZE = 4 * MAX_CHUNK_SIZE;
+
+	private static final int MIN_CHUNK_SHIFT = Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+
+	private final long capacity;
+
+	private final Queue<ByteBuffer>[] freeChunks;
+
+	private final AtomicLong reserved = new AtomicLong();
+
+	private final AtomicLong inUse = new AtomicLong();
+
+	/**
+	 * Creates an arena which reserves at most the given number of bytes of direct memory
+	 *
+	 * @param capacity maximum size of the slabs of the arena in bytes
+	 */
+	@SuppressWarnings("unchecked")
+	public PayloadArena(long capacity) {
+		if (capacity < SLAB_SIZE) {
+			throw new IllegalArgumentException("Capacity of the payload arena must be at least " + SLAB_SIZE +
+			                                   " bytes : " + capacity);
+		}
+		this.capacity = capacity;
+		int classCount = Integer.numberOfTrailingZeros(MAX_CHUNK_SIZE) - MIN_CHUNK_SHIFT + 1;
+		this.freeChunks = new Queue[classCount];
+		for (int i = 0; i < classCount; i++) {
+			freeChunks[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+
+	/**
+	 * Allocates a chunk which can hold the given number of bytes. The limit of the returned buffer is set to the
+	 * requested size, while its capacity is the size of its class.
+	 *
+	 * @param size number of bytes to be held
+	 * @return the allocated chunk, or null if the size is too large or the arena is exhausted
+	 */
+	public ByteBuffer allocate(int size) {
+		if (size > MAX_CHUNK_SIZE) {
+			return null;
+		}
+		int sizeClass = sizeClassOf(size);
+		ByteBuffer chunk = freeChunks[sizeClass].poll();
+		if (chunk == null) {
+			chunk = allocateSlab(sizeClass);
+			if (chunk == null) {
+				return null;
+			}
+		}
+		inUse.addAndGet(chunk.capacity());
+		chunk.clear();
+		chunk.limit(size);
+		return chunk;
+	}
+
+	/**
+	 * Returns a chunk given by {@link #allocate(int)} to the pool of its size class. The chunk must not be used
+	 * after it is freed.
+	 *
+	 * @param chunk chunk to be freed
+	 */
+	public void free(ByteBuffer chunk) {
+		inUse.addAndGet(-chunk.capacity());
+		freeChunks[sizeClassOf(chunk.capacity())].offer(chunk);
+	}
+
+	/**
+	 * Gives the number of bytes of the chunks handed out by the arena and not freed yet
+	 *
+	 * @return bytes in use
+	 */
+	public long getUsedBytes() {
+		return inUse.get();
+	}
+
+	/**
+	 * Gives the number of bytes of direct memory reserved by the arena
+	 *
+	 * @return reserved bytes
+	 */
+	public long getReservedBytes() {
+		return reserved.get();
+	}
+
+	/**
+	 * Gives the maximum number of bytes of direct memory the arena may reserve
+	 *
+	 * @return capacity in bytes
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Reserves a new slab for the given size class, keeps the first chunk for the caller and pools the rest
+	 */
+	private ByteBuffer allocateSlab(int sizeClass) {
+		long current;
+		do {
+			current = reserved.get();
+			if (current + SLAB_SIZE > capacity) {
+				return null;
+			}
+		} while (!reserved.compareAndSet(current, current + SLAB_SIZE));
+
+		int chunkSize = MIN_CHUNK_SIZE << sizeClass;
+		ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+		ByteBuffer first = null;
+		for (int offset = 0; offset + chunkSize <= SLAB_SIZE; offset += chunkSize) {
+			slab.limit(offset + chunkSize);
+			slab.position(offset);
+			ByteBuffer chunk = slab.slice();
+			if (first == null) {
+				first = chunk;
+			} else {
+				freeChunks[sizeClass].offer(chunk);
+			}
+		}
+		return first;
+	}
+
+	private static int sizeClassOf(int size) {
+		if (size <= MIN_CHUNK_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CHUNK_SHIFT;
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.util;
+
+/**
+ * Defines how the freshness lifetime given by the Cache-Control and Expires headers of a backend response is combined
+ * with the timeout configured on the cache mediator.
+ */
+public enum CacheControlPolicy {
+
+	/**
+	 * The lifetime given by the headers is ignored and every response is cached for the configured timeout, unless
+	 * it is marked no-store or private
+	 */
+	IGNORE,
+
+	/**
+	 * Responses are cached for the lifetime given by the headers, but never longer than the configured timeout
+	 */
+	CEILING,
+
+	/**
+	 * Responses are cached for the lifetime given by the headers, but never shorter than the configured timeout
+	 */
+	FLOOR
+}
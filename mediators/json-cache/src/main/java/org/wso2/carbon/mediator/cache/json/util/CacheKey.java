@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.util;
+
+import org.wso2.carbon.mediator.cache.json.digest.Murmur3Hasher;
+
+import java.io.Serializable;
+
+/**
+ * The 128 bit key under which a cached response is indexed. The key is held in two longs with a precomputed hash
+ * code, so looking it up costs two comparisons and no string is kept per cached response.
+ * <p/>
+ * The 32 lower case hex digit digests of the Murmur3HashGenerator are taken as they are, while the digests of other
+ * generators are hashed down to 128 bits with MurmurHash3.
+ */
+public final class CacheKey implements Serializable {
+
+	private static final long serialVersionUID = -6184328839015470823L;
+
+	private static final int HEX_LENGTH = 32;
+
+	private static final ThreadLocal<Murmur3Hasher> HASHER = new ThreadLocal<Murmur3Hasher>() {
+		@Override
+		protected Murmur3Hasher initialValue() {
+			return new Murmur3Hasher();
+		}
+	};
+
+	private final long high;
+
+	private final long low;
+
+	private final int hash;
+
+	/**
+	 * Creates a key of the given halves
+	 *
+	 * @param high first half of the key
+	 * @param low  second half of the key
+	 */
+	public CacheKey(long high, long low) {
+		this.high = high;
+		this.low = low;
+		this.hash = (int) (high ^ (high >>> 32) ^ low ^ (low >>> 32));
+	}
+
+	/**
+	 * Gives the key of a request digest computed by a DigestGenerator
+	 *
+	 * @param digest digest of the request
+	 * @return key of the digest
+	 */
+	public static CacheKey of(String digest) {
+		if (isHex(digest)) {
+			return new CacheKey(parseHex(digest, 0), parseHex(digest, HEX_LENGTH / 2));
+		}
+		return of(HASHER.get().reset().update(digest));
+	}
+
+	/**
+	 * Gives the key of the input fed to the given hasher, which is reset afterwards
+	 *
+	 * @param hasher hasher fed with the identity of a request
+	 * @return key of the hash
+	 */
+	public static CacheKey of(Murmur3Hasher hasher) {
+		long[] hash = hasher.finish(new long[2]);
+		return new CacheKey(hash[0], hash[1]);
+	}
+
+	/**
+	 * Gives a key derived from this key and the given salt. Salting a key with a different salt gives a different
+	 * key, which keeps the keys of different cache partitions apart.
+	 *
+	 * @param salt key of the partition
+	 * @return salted key
+	 */
+	public CacheKey salt(CacheKey salt) {
+		return new CacheKey(high ^ salt.high, low ^ salt.low);
+	}
+
+	/**
+	 * Gives the first half of this key
+	 *
+	 * @return high 64 bits
+	 */
+	public long getHigh() {
+		return high;
+	}
+
+	/**
+	 * Gives the second half of this key
+	 *
+	 * @return low 64 bits
+	 */
+	public long getLow() {
+		return low;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof CacheKey)) {
+			return false;
+		}
+		CacheKey that = (CacheKey) o;
+		return high == that.high && low == that.low;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Gives the fixed width string representation of this key
+	 *
+	 * @return string of 32 hex digits
+	 */
+	@Override
+	public String toString() {
+		return Murmur3Hasher.toHex(high, low);
+	}
+
+	private static boolean isHex(String digest) {
+		if (digest.length() != HEX_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < HEX_LENGTH; i++) {
+			char c = digest.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long parseHex(String digest, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + HEX_LENGTH / 2; i++) {
+			char c = digest.charAt(i);
+			value = (value << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+		}
+		return value;
+	}
+}
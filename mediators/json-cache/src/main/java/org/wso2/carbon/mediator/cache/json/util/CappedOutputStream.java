@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An OutputStream which collects the bytes written into a growing array, up to a size limit. Writing beyond the
+ * limit fails right away, so a payload which is too large to be cached is never buffered in full. The collected
+ * bytes are handed out as a buffer over the array, without copying them again.
+ */
+public class CappedOutputStream extends OutputStream {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int limit;
+
+	private byte[] buffer;
+
+	private int count;
+
+	private boolean exceeded;
+
+	/**
+	 * Creates a stream which accepts up to the given number of bytes
+	 *
+	 * @param limit maximum number of bytes, or 0 for no limit
+	 */
+	public CappedOutputStream(int limit) {
+		this.limit = limit;
+		this.buffer = new byte[limit > 0 ? Math.min(limit, INITIAL_CAPACITY) : INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Creates a stream for a payload of the given expected size
+	 *
+	 * @param limit        maximum number of bytes, or 0 for no limit
+	 * @param expectedSize expected number of bytes, used to size the array up front
+	 */
+	public CappedOutputStream(int limit, int expectedSize) {
+		this.limit = limit;
+		int capacity = Math.max(expectedSize, INITIAL_CAPACITY);
+		this.buffer = new byte[limit > 0 ? Math.min(limit, capacity) : capacity];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureCapacity(1);
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, buffer, count, length);
+		count += length;
+	}
+
+	/**
+	 * Reads the given stream to its end into this stream
+	 *
+	 * @param in stream to be read
+	 * @throws IOException if the stream cannot be read or the limit is crossed
+	 */
+	public void readFrom(InputStream in) throws IOException {
+		while (true) {
+			if (count == buffer.length) {
+				grow(count + 1);
+			}
+			int read = in.read(buffer, count, buffer.length - count);
+			if (read < 0) {
+				return;
+			}
+			count += read;
+			if (limit > 0 && count > limit) {
+				exceeded = true;
+				throw new IOException("Payload exceeds the limit of " + limit + " bytes");
+			}
+		}
+	}
+
+	private void ensureCapacity(int length) throws IOException {
+		if (limit > 0 && count + length > limit) {
+			exceeded = true;
+			throw new IOException("Payload exceeds the limit of " + limit + " bytes");
+		}
+		if (count + length > buffer.length) {
+			grow(count + length);
+		}
+	}
+
+	private void grow(int minCapacity) {
+		// one byte more than the limit is allowed, so that reading a stream can tell whether it crosses the limit
+		int capacity = Math.max(buffer.length << 1, minCapacity);
+		buffer = Arrays.copyOf(buffer, limit > 0 ? Math.min(capacity, limit + 1) : capacity);
+	}
+
+	/**
+	 * Gives whether a write has crossed the limit of this stream
+	 *
+	 * @return true if the limit has been exceeded
+	 */
+	public boolean isExceeded() {
+		return exceeded;
+	}
+
+	/**
+	 * Gives the number of bytes collected
+	 *
+	 * @return size in bytes
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Gives the bytes collected, as a buffer over the array of this stream
+	 *
+	 * @return buffer of the collected bytes
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buffer, 0, count).slice();
+	}
+}
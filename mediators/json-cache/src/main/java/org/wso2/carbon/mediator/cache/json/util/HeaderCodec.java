@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.util;
+
+import org.wso2.carbon.mediator.cache.json.CachingException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Encodes the HTTP headers of a cached response into a compact byte block and decodes them back into a
+ * transport header map. The block is a header count followed by the name and value pairs. The names of the common
+ * headers are written as their index in a fixed dictionary, and the other names as length prefixed strings.
+ * <p/>
+ * The dictionary is part of the encoded form, so names may only be appended to it.
+ */
+public final class HeaderCodec {
+
+	/**
+	 * Header names written as their index in this array plus one, 0 standing for a name written in full
+	 */
+	private static final String[] DICTIONARY = {
+			"Content-Type", "Content-Length", "Content-Encoding", "Content-Language", "Content-Disposition",
+			"Content-Range", "Cache-Control", "Expires", "Date", "Age", "ETag", "Last-Modified", "Vary", "Server",
+			"Connection", "Keep-Alive", "Transfer-Encoding", "Accept-Ranges", "Location", "Link", "Pragma", "Via",
+			"Set-Cookie", "Strict-Transport-Security", "X-Content-Type-Options", "X-Frame-Options",
+			"X-XSS-Protection", "X-Powered-By", "Access-Control-Allow-Origin", "Access-Control-Allow-Credentials",
+			"Access-Control-Allow-Headers", "Access-Control-Allow-Methods", "Access-Control-Expose-Headers",
+			"Access-Control-Max-Age", "messageType"
+	};
+
+	private static final Map<String, Integer> DICTIONARY_INDEX =
+			new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+
+	static {
+		for (int i = 0; i < DICTIONARY.length; i++) {
+			DICTIONARY_INDEX.put(DICTIONARY[i], i + 1);
+		}
+	}
+
+	private HeaderCodec() {
+	}
+
+	/**
+	 * Encodes the given headers into a byte block. Entries with a null name or value are skipped.
+	 *
+	 * @param headers headers to be encoded
+	 * @return byte block holding the headers
+	 * @throws CachingException if the headers cannot be encoded
+	 */
+	public static byte[] encode(Map<String, ?> headers) throws CachingException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + headers.size() * 24);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			int count = 0;
+			for (Map.Entry<String, ?> header : headers.entrySet()) {
+				if (header.getKey() != null && header.getValue() != null) {
+					count++;
+				}
+			}
+			ResponseCodec.writeVarInt(out, count);
+			for (Map.Entry<String, ?> header : headers.entrySet()) {
+				if (header.getKey() != null && header.getValue() != null) {
+					Integer index = DICTIONARY_INDEX.get(header.getKey());
+					if (index != null) {
+						out.writeByte(index);
+					} else {
+						out.writeByte(0);
+						out.writeUTF(header.getKey());
+					}
+					out.writeUTF(header.getValue().toString());
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new CachingException("Unable to encode the response headers", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a byte block produced by {@link #encode(Map)} into a case insensitive header map, as used for
+	 * the transport headers of a message. The position of the given buffer is not changed.
+	 *
+	 * @param block encoded header block
+	 * @return map of the decoded headers
+	 * @throws CachingException if the block is malformed
+	 */
+	public static Map<String, Object> decode(ByteBuffer block) throws CachingException {
+		Map<String, Object> headers = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+		if (block == null || !block.hasRemaining()) {
+			return headers;
+		}
+		DataInputStream in = new DataInputStream(new ByteBufferInputStream(block.duplicate()));
+		try {
+			int count = ResponseCodec.readVarInt(in);
+			for (int i = 0; i < count; i++) {
+				int index = in.readUnsignedByte();
+				String name;
+				if (index == 0) {
+					name = in.readUTF();
+				} else if (index <= DICTIONARY.length) {
+					name = DICTIONARY[index - 1];
+				} else {
+					throw new IOException("Unknown header name index : " + index);
+				}
+				headers.put(name, in.readUTF());
+			}
+		} catch (IOException e) {
+			throw new CachingException("Unable to decode the cached response headers", e);
+		}
+		return headers;
+	}
+}
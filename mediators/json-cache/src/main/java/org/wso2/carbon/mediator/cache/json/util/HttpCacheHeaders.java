@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.util;
+
+import org.wso2.carbon.mediator.cache.json.digest.Murmur3Hasher;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * Reads the caching directives of the HTTP headers of a backend response, as a shared cache would: s-maxage takes
+ * precedence over max-age, which takes precedence over Expires. The content codings accepted by a client and the
+ * variant of a response selected by a request are read from the request headers as well. The header names are
+ * looked up as given, so the map is expected to be case insensitive like the transport headers of a message.
+ */
+public final class HttpCacheHeaders {
+
+	/**
+	 * Lifetime given for responses without any freshness information
+	 */
+	public static final long UNKNOWN_LIFETIME = -1;
+
+	private static final String CACHE_CONTROL = "Cache-Control";
+
+	private static final String EXPIRES = "Expires";
+
+	private static final String DATE = "Date";
+
+	private static final String AGE = "Age";
+
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+	private static final String VARY = "Vary";
+
+	/**
+	 * The Vary header value of a response which varies by more than the request headers
+	 */
+	private static final String VARY_ANY = "*";
+
+	private static final ThreadLocal<Murmur3Hasher> HASHER = new ThreadLocal<Murmur3Hasher>() {
+		@Override
+		protected Murmur3Hasher initialValue() {
+			return new Murmur3Hasher();
+		}
+	};
+
+	private static final ThreadLocal<SimpleDateFormat> HTTP_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	};
+
+	private HttpCacheHeaders() {
+	}
+
+	/**
+	 * Checks whether a response with the given headers may be kept by a shared cache, which it may not if it is
+	 * marked no-store or private
+	 *
+	 * @param headers headers of the response
+	 * @return true if the response may be cached
+	 */
+	public static boolean isStorable(Map<?, ?> headers) {
+		return !hasDirective(headers, "no-store") && !hasDirective(headers, "private");
+	}
+
+	/**
+	 * Checks whether a response with the given headers is marked no-cache, in which case it has to be revalidated
+	 * before it is served again
+	 *
+	 * @param headers headers of the response
+	 * @return true if the response is marked no-cache
+	 */
+	public static boolean isNoCache(Map<?, ?> headers) {
+		return hasDirective(headers, "no-cache");
+	}
+
+	/**
+	 * Gives the remaining freshness lifetime of a response with the given headers. A response marked no-cache has a
+	 * lifetime of 0, since it has to be revalidated before it is served again.
+	 *
+	 * @param headers headers of the response
+	 * @param now     current time in milliseconds
+	 * @return lifetime in milliseconds, or UNKNOWN_LIFETIME if the headers do not give one
+	 */
+	public static long getFreshnessLifetime(Map<?, ?> headers, long now) {
+		long maxAge = UNKNOWN_LIFETIME;
+		long sharedMaxAge = UNKNOWN_LIFETIME;
+		String cacheControl = getHeader(headers, CACHE_CONTROL);
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				String name = directiveName(directive);
+				if ("no-cache".equalsIgnoreCase(name)) {
+					return 0;
+				} else if ("s-maxage".equalsIgnoreCase(name)) {
+					sharedMaxAge = directiveSeconds(directive);
+				} else if ("max-age".equalsIgnoreCase(name)) {
+					maxAge = directiveSeconds(directive);
+				}
+			}
+		}
+
+		long lifetime;
+		if (sharedMaxAge >= 0) {
+			lifetime = sharedMaxAge * 1000;
+		} else if (maxAge >= 0) {
+			lifetime = maxAge * 1000;
+		} else {
+			Date expires = parseDate(getHeader(headers, EXPIRES));
+			if (expires == null) {
+				// a malformed Expires header, such as "0", means the response is already expired
+				return getHeader(headers, EXPIRES) != null ? 0 : UNKNOWN_LIFETIME;
+			}
+			Date date = parseDate(getHeader(headers, DATE));
+			lifetime = expires.getTime() - (date != null ? date.getTime() : now);
+		}
+
+		String age = getHeader(headers, AGE);
+		if (age != null) {
+			try {
+				lifetime -= Long.parseLong(age.trim()) * 1000;
+			} catch (NumberFormatException ignored) {
+				// an invalid Age header is ignored
+			}
+		}
+		return Math.max(0, lifetime);
+	}
+
+	/**
+	 * Checks whether a request with the given headers accepts a response in the given content coding, according
+	 * to its Accept-Encoding header
+	 *
+	 * @param headers         headers of the request
+	 * @param contentEncoding content coding of the response
+	 * @return true if the coding is listed, or accepted through a wildcard, with a non zero quality
+	 */
+	public static boolean acceptsEncoding(Map<?, ?> headers, String contentEncoding) {
+		String acceptEncoding = getHeader(headers, ACCEPT_ENCODING);
+		if (acceptEncoding == null || contentEncoding == null) {
+			return false;
+		}
+		boolean accepted = false;
+		for (String coding : acceptEncoding.split(",")) {
+			int separator = coding.indexOf(';');
+			String name = (separator < 0 ? coding : coding.substring(0, separator)).trim();
+			boolean exact = name.equalsIgnoreCase(contentEncoding);
+			if (exact || "*".equals(name)) {
+				boolean acceptable = separator < 0 || !isZeroQuality(coding.substring(separator + 1));
+				if (exact) {
+					// an explicit entry for the coding overrides the wildcard
+					return acceptable;
+				}
+				accepted = acceptable;
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Gives the names of the request headers by which a response with the given headers varies, according to its
+	 * Vary header. The names are lower cased and sorted, so the same set of headers always gives the same names.
+	 *
+	 * @param headers headers of the response
+	 * @return names of the request headers, or null if the response does not vary by request headers
+	 */
+	public static String[] getVaryHeaders(Map<?, ?> headers) {
+		String vary = getHeader(headers, VARY);
+		if (vary == null) {
+			return null;
+		}
+		Set<String> names = new TreeSet<String>();
+		for (String name : vary.split(",")) {
+			name = name.trim();
+			if (VARY_ANY.equals(name)) {
+				return new String[] { VARY_ANY };
+			}
+			if (!name.isEmpty()) {
+				names.add(name.toLowerCase(Locale.ENGLISH));
+			}
+		}
+		return names.isEmpty() ? null : names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Checks whether a response with the given headers varies by more than the request headers, in which case a
+	 * shared cache cannot tell which requests it may be served to
+	 *
+	 * @param headers headers of the response
+	 * @return true if the response has a Vary header of *
+	 */
+	public static boolean isVaryAny(Map<?, ?> headers) {
+		String[] varyHeaders = getVaryHeaders(headers);
+		return varyHeaders != null && varyHeaders.length == 1 && VARY_ANY.equals(varyHeaders[0]);
+	}
+
+	/**
+	 * Gives the key under which the variant of a response selected by the given request headers is kept. Requests
+	 * with the same values of the headers the response varies by get the same key.
+	 *
+	 * @param requestKey     key of the request, under which the response is looked up
+	 * @param varyHeaders    names of the request headers by which the response varies, as given by getVaryHeaders
+	 * @param requestHeaders headers of the request
+	 * @return key of the variant
+	 */
+	public static CacheKey getVariantKey(CacheKey requestKey, String[] varyHeaders, Map<?, ?> requestHeaders) {
+		Murmur3Hasher hasher = HASHER.get().reset();
+		hasher.update(requestKey.getHigh()).update(requestKey.getLow());
+		for (String name : varyHeaders) {
+			String value = getHeader(requestHeaders, name);
+			hasher.update(name.length()).update(name);
+			// an absent header selects a different variant than an empty one
+			if (value != null) {
+				value = value.trim();
+				hasher.update(value.length()).update(value);
+			} else {
+				hasher.update(-1);
+			}
+		}
+		return CacheKey.of(hasher);
+	}
+
+	private static boolean isZeroQuality(String parameters) {
+		for (String parameter : parameters.split(";")) {
+			int separator = parameter.indexOf('=');
+			if (separator > 0 && "q".equalsIgnoreCase(parameter.substring(0, separator).trim())) {
+				try {
+					return Double.parseDouble(parameter.substring(separator + 1).trim()) == 0;
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static String getHeader(Map<?, ?> headers, String name) {
+		if (headers == null) {
+			return null;
+		}
+		Object value = headers.get(name);
+		return value != null ? value.toString() : null;
+	}
+
+	private static boolean hasDirective(Map<?, ?> headers, String directiveName) {
+		String cacheControl = getHeader(headers, CACHE_CONTROL);
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				if (directiveName.equalsIgnoreCase(directiveName(directive))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static String directiveName(String directive) {
+		int separator = directive.indexOf('=');
+		return (separator < 0 ? directive : directive.substring(0, separator)).trim();
+	}
+
+	private static long directiveSeconds(String directive) {
+		int separator = directive.indexOf('=');
+		if (separator < 0) {
+			return UNKNOWN_LIFETIME;
+		}
+		String value = directive.substring(separator + 1).trim();
+		if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+			value = value.substring(1, value.length() - 1);
+		}
+		try {
+			return Math.max(0, Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			return UNKNOWN_LIFETIME;
+		}
+	}
+
+	private static Date parseDate(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return HTTP_DATE_FORMAT.get().parse(value.trim());
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Defines how the payloads of the cached responses are compressed. The compressed formats are the ones of the HTTP
+ * content codings of the same name, so a compressed payload can be sent as it is to a client which accepts its
+ * coding. Payloads are compressed for speed rather than size.
+ */
+public enum PayloadCompression {
+
+	/**
+	 * Payloads are kept as they are
+	 */
+	NONE(null),
+
+	/**
+	 * Payloads are kept in the gzip format
+	 */
+	GZIP("gzip"),
+
+	/**
+	 * Payloads are kept in the zlib format of the deflate content coding
+	 */
+	DEFLATE("deflate");
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String contentEncoding;
+
+	PayloadCompression(String contentEncoding) {
+		this.contentEncoding = contentEncoding;
+	}
+
+	/**
+	 * Gives the HTTP content coding of the compressed payloads
+	 *
+	 * @return value of the Content-Encoding header, or null if payloads are not compressed
+	 */
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * Compresses the remaining bytes of the given payload
+	 *
+	 * @param payload payload to be compressed, which is not consumed
+	 * @return buffer of the compressed bytes
+	 * @throws IOException if the payload cannot be compressed
+	 */
+	public ByteBuffer compress(ByteBuffer payload) throws IOException {
+		if (this == NONE) {
+			return payload;
+		}
+		CappedOutputStream compressed = new CappedOutputStream(0, payload.remaining() / 4);
+		Deflater deflater = this == DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+		try {
+			OutputStream out = this == GZIP ? new FastGzipOutputStream(compressed) :
+			                   new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE);
+			ByteBuffer source = payload.duplicate();
+			if (source.hasArray()) {
+				out.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+			} else {
+				byte[] chunk = new byte[Math.min(BUFFER_SIZE, source.remaining())];
+				while (source.hasRemaining()) {
+					int length = Math.min(chunk.length, source.remaining());
+					source.get(chunk, 0, length);
+					out.write(chunk, 0, length);
+				}
+			}
+			out.close();
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+		return compressed.toByteBuffer();
+	}
+
+	/**
+	 * Wraps the given stream of compressed bytes into a stream of the original payload
+	 *
+	 * @param compressed stream of the compressed bytes
+	 * @return stream of the decompressed payload
+	 * @throws IOException if the compressed stream cannot be read
+	 */
+	public InputStream decompress(InputStream compressed) throws IOException {
+		switch (this) {
+			case GZIP:
+				return new GZIPInputStream(compressed, BUFFER_SIZE);
+			case DEFLATE:
+				return new InflaterInputStream(compressed);
+			default:
+				return compressed;
+		}
+	}
+
+	/**
+	 * Gives the compression of the given name, as used in the cache mediator configuration
+	 *
+	 * @param name name of the compression, case insensitive
+	 * @return the compression
+	 * @throws IllegalArgumentException if there is no compression of the given name
+	 */
+	public static PayloadCompression fromName(String name) {
+		return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * A gzip stream which compresses for speed
+	 */
+	private static final class FastGzipOutputStream extends GZIPOutputStream {
+
+		FastGzipOutputStream(OutputStream out) throws IOException {
+			super(out, BUFFER_SIZE);
+			def.setLevel(Deflater.BEST_SPEED);
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mediator.cache.json.util;
+
+import org.wso2.carbon.mediator.cache.json.CachableResponse;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes a cached response into a compact, versioned byte form and decodes it back, without reflection. It is the
+ * form in which responses are replicated among the cluster, broadcast to the peers of a distributed cache and
+ * written to the snapshots.
+ * <p/>
+ * A response is a version byte, a flags byte telling which of the optional fields follow, the payload compression,
+ * the request key, the expiry time relative to a reference time, the timeout, the vary headers and the length
+ * prefixed header block and payload. Lengths, counts and times are variable length integers, so a small response
+ * takes a few dozen bytes on top of its headers and payload. The header block is the one built by the HeaderCodec,
+ * which replaces the common header names by their index in a dictionary.
+ */
+public final class ResponseCodec {
+
+	/**
+	 * Version of the encoded form, which is bumped whenever the form changes
+	 */
+	public static final int VERSION = 1;
+
+	private static final int FLAG_JSON = 1;
+
+	private static final int FLAG_KEY = 2;
+
+	private static final int FLAG_VARY = 4;
+
+	private static final int FLAG_HEADERS = 8;
+
+	private static final int FLAG_PAYLOAD = 16;
+
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	private ResponseCodec() {
+	}
+
+	/**
+	 * Encodes the given response. Its expiry time is written relative to the given reference time, so that it is
+	 * decoded correctly by a node whose clock differs, as long as both take their current time as the reference.
+	 *
+	 * @param response response to be encoded, retained by the caller if it is kept off heap
+	 * @param out      output of the encoded response
+	 * @param now      reference time of the expiry time
+	 * @throws IOException if the output cannot be written
+	 */
+	public static void encode(CachableResponse response, DataOutput out, long now) throws IOException {
+		int flags = (response.isJson() ? FLAG_JSON : 0) | (response.getKey() != null ? FLAG_KEY : 0) |
+		            (response.getVaryHeaders() != null ? FLAG_VARY : 0) |
+		            (response.getHeaderProperties() != null ? FLAG_HEADERS : 0) |
+		            (response.getResponsePayload() != null ? FLAG_PAYLOAD : 0);
+		out.writeByte(VERSION);
+		out.writeByte(flags);
+		out.writeByte(response.getCompression().ordinal());
+		if (response.getKey() != null) {
+			out.writeLong(response.getKey().getHigh());
+			out.writeLong(response.getKey().getLow());
+		}
+		writeVarLong(out, zigZag(response.getExpireTimeMillis() - now));
+		writeVarLong(out, zigZag(response.getTimeout()));
+		if (response.getVaryHeaders() != null) {
+			writeVarInt(out, response.getVaryHeaders().length);
+			for (String header : response.getVaryHeaders()) {
+				out.writeUTF(header);
+			}
+		}
+		if (response.getHeaderProperties() != null) {
+			writeBuffer(out, response.getHeaderProperties());
+		}
+		if (response.getResponsePayload() != null) {
+			writeBuffer(out, response.getResponsePayload());
+		}
+	}
+
+	/**
+	 * Decodes a response encoded by {@link #encode(CachableResponse, DataOutput, long)} into a new response on the
+	 * heap
+	 *
+	 * @param in        input of the encoded response
+	 * @param now       reference time of the expiry time
+	 * @param maxLength largest length of a field, such as the number of bytes left in the input, which keeps a
+	 *                  corrupt length from allocating more than the input can hold
+	 * @return the decoded response
+	 * @throws IOException if the input cannot be read or is not an encoded response
+	 */
+	public static CachableResponse decode(DataInput in, long now, int maxLength) throws IOException {
+		CachableResponse response = new CachableResponse();
+		decode(in, now, maxLength, response);
+		return response;
+	}
+
+	/**
+	 * Decodes a response encoded by {@link #encode(CachableResponse, DataOutput, long)} into the given response
+	 *
+	 * @param in        input of the encoded response
+	 * @param now       reference time of the expiry time
+	 * @param maxLength largest length of a field
+	 * @param response  response receiving the decoded fields
+	 * @throws IOException if the input cannot be read or is not an encoded response
+	 */
+	public static void decode(DataInput in, long now, int maxLength, CachableResponse response) throws IOException {
+		int version = in.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version of the encoded response : " + version);
+		}
+		int flags = in.readUnsignedByte();
+		int compression = in.readUnsignedByte();
+		PayloadCompression[] compressions = PayloadCompression.values();
+		if (compression >= compressions.length) {
+			throw new IOException("Unknown payload compression : " + compression);
+		}
+		response.setJson((flags & FLAG_JSON) != 0);
+		response.setCompression(compressions[compression]);
+		if ((flags & FLAG_KEY) != 0) {
+			response.setKey(new CacheKey(in.readLong(), in.readLong()));
+		}
+		response.setExpireTimeMillis(now + unZigZag(readVarLong(in)));
+		response.setTimeout(unZigZag(readVarLong(in)));
+		if ((flags & FLAG_VARY) != 0) {
+			int count = readLength(in, maxLength);
+			// the names are collected as they are read, rather than into an array of the given count
+			List<String> varyHeaders = new ArrayList<String>(Math.min(count, 16));
+			for (int i = 0; i < count; i++) {
+				varyHeaders.add(in.readUTF());
+			}
+			response.setVaryHeaders(varyHeaders.toArray(new String[varyHeaders.size()]));
+		}
+		if ((flags & FLAG_HEADERS) != 0) {
+			response.setHeaderProperties(readBuffer(in, maxLength));
+		}
+		if ((flags & FLAG_PAYLOAD) != 0) {
+			response.setResponsePayload(readBuffer(in, maxLength));
+		}
+	}
+
+	/**
+	 * Writes an unsigned int in 1 to 5 bytes, 7 bits at a time, lowest first
+	 *
+	 * @param out   output of the int
+	 * @param value int to be written, read back unsigned
+	 * @throws IOException if the output cannot be written
+	 */
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Reads an int written by {@link #writeVarInt(DataOutput, int)}
+	 *
+	 * @param in input of the int
+	 * @return the int
+	 * @throws IOException if the input cannot be read or the int is malformed
+	 */
+	public static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length int");
+	}
+
+	private static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length long");
+	}
+
+	/**
+	 * Maps signed longs to unsigned ones so that small negative values stay short
+	 */
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int readLength(DataInput in, int maxLength) throws IOException {
+		int length = readVarInt(in);
+		if (length < 0 || length > maxLength) {
+			throw new IOException("Invalid length : " + (length & 0xFFFFFFFFL));
+		}
+		return length;
+	}
+
+	private static void writeBuffer(DataOutput out, ByteBuffer buffer) throws IOException {
+		ByteBuffer source = buffer.duplicate();
+		writeVarInt(out, source.remaining());
+		if (source.hasArray()) {
+			out.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+			return;
+		}
+		// direct and memory mapped buffers are copied out in pieces
+		byte[] copy = new byte[Math.min(COPY_BUFFER_SIZE, source.remaining())];
+		while (source.hasRemaining()) {
+			int length = Math.min(copy.length, source.remaining());
+			source.get(copy, 0, length);
+			out.write(copy, 0, length);
+		}
+	}
+
+	private static ByteBuffer readBuffer(DataInput in, int maxLength) throws IOException {
+		byte[] bytes = new byte[readLength(in, maxLength)];
+		in.readFully(bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+}
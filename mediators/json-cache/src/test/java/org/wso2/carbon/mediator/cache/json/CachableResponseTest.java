@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json;
+
+import org.junit.Test;
+import org.wso2.carbon.mediator.cache.json.store.PayloadArena;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CachableResponseTest {
+
+	private static final long ARENA_SIZE = 4 * PayloadArena.MAX_CHUNK_SIZE;
+
+	private static final String HEADERS = "headers";
+
+	private static final String PAYLOAD = "{\"id\":42}";
+
+	@Test
+	public void testMoveToArenaKeepsTheHeadersAndThePayload() {
+		PayloadArena arena = new PayloadArena(ARENA_SIZE);
+		CachableResponse response = newResponse();
+
+		assertTrue(response.moveToArena(arena));
+
+		assertTrue(response.isOffHeap());
+		assertTrue(response.getResponsePayload().isDirect());
+		assertEquals(HEADERS, toString(response.getHeaderProperties()));
+		assertEquals(PAYLOAD, toString(response.getResponsePayload()));
+		assertEquals(PayloadArena.MIN_CHUNK_SIZE, arena.getUsedBytes());
+		assertFalse("a response is moved once", response.moveToArena(arena));
+	}
+
+	@Test
+	public void testChunkIsNotFreedWhileAReaderHoldsAReference() {
+		PayloadArena arena = new PayloadArena(ARENA_SIZE);
+		CachableResponse response = newResponse();
+		response.moveToArena(arena);
+
+		// a cache hit takes a reference, then the response is evicted while the hit is written
+		assertTrue(response.retain());
+		response.release();
+
+		assertEquals(PayloadArena.MIN_CHUNK_SIZE, arena.getUsedBytes());
+		assertEquals(PAYLOAD, toString(response.getResponsePayload()));
+
+		response.release();
+
+		assertEquals(0, arena.getUsedBytes());
+		assertNull(response.getResponsePayload());
+		assertFalse(response.isOffHeap());
+		assertFalse("a freed response cannot be retained", response.retain());
+	}
+
+	@Test
+	public void testFreedChunkIsReusedByTheNextResponse() {
+		PayloadArena arena = new PayloadArena(ARENA_SIZE);
+		CachableResponse first = newResponse();
+		first.moveToArena(arena);
+		first.release();
+
+		CachableResponse second = newResponse();
+		second.moveToArena(arena);
+
+		assertEquals(PayloadArena.MIN_CHUNK_SIZE, arena.getUsedBytes());
+		assertEquals(PAYLOAD, toString(second.getResponsePayload()));
+	}
+
+	@Test
+	public void testHeapResponseKeepsItsPayloadWhenReleased() {
+		CachableResponse response = newResponse();
+
+		response.release();
+
+		assertEquals(PAYLOAD, toString(response.getResponsePayload()));
+		assertFalse(response.retain());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReleaseBeyondTheReferencesIsRejected() {
+		CachableResponse response = newResponse();
+		response.release();
+		response.release();
+	}
+
+	private static CachableResponse newResponse() {
+		CachableResponse response = new CachableResponse();
+		response.setTimeout(60000);
+		response.setExpireTimeMillis(System.currentTimeMillis() + 60000);
+		response.setHeaderProperties(ByteBuffer.wrap(HEADERS.getBytes()));
+		response.setResponsePayload(ByteBuffer.wrap(PAYLOAD.getBytes()));
+		return response;
+	}
+
+	private static String toString(ByteBuffer buffer) {
+		ByteBuffer source = buffer.duplicate();
+		byte[] bytes = new byte[source.remaining()];
+		source.get(bytes);
+		return new String(bytes);
+	}
+}
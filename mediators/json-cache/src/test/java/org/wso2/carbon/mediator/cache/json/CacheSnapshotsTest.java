@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wso2.carbon.mediator.cache.json.store.EvictionPolicy;
+import org.wso2.carbon.mediator.cache.json.store.MemoryCacheStore;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheSnapshotsTest {
+
+	private static final int MAX_SIZE = 4096;
+
+	/**
+	 * Number of responses of the partitions, which is several times the number of segments of their stores
+	 */
+	private static final int RESPONSE_COUNT = 2000;
+
+	private static final long RESTORE_TIMEOUT = 5000;
+
+	private File directory;
+
+	private final List<CacheSnapshots> snapshots = new ArrayList<CacheSnapshots>();
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = File.createTempFile("cache-snapshots", "");
+		assertTrue(directory.delete() && directory.mkdir());
+	}
+
+	@After
+	public void deleteDirectory() {
+		for (CacheSnapshots snapshot : snapshots) {
+			snapshot.shutdown();
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testRoundTripKeepsTheResponsesInEvictionOrder() throws Exception {
+		CachePartition written = new CachePartition("host", true, MAX_SIZE, EvictionPolicy.LRU);
+		for (int i = 0; i < RESPONSE_COUNT; i++) {
+			written.getStore().put(key(i), newResponse(i, 60000));
+		}
+		// reading some of the responses moves them to the end of the eviction order
+		for (int i = 0; i < RESPONSE_COUNT; i += 3) {
+			written.getStore().get(key(i));
+		}
+		open().write(written);
+
+		CachePartition restored = restore("host", true, RESPONSE_COUNT);
+
+		MemoryCacheStore<CacheKey, CachableResponse> store = written.getStore();
+		for (int i = 0; i < store.getSegmentCount(); i++) {
+			assertEquals(new ArrayList<CacheKey>(store.copySegment(i).keySet()),
+			             new ArrayList<CacheKey>(restored.getStore().copySegment(i).keySet()));
+		}
+		CachableResponse response = restored.getStore().get(key(42));
+		assertEquals("payload-42", payloadOf(response));
+		assertEquals(key(42), response.getKey());
+		assertEquals(60000, response.getTimeout());
+	}
+
+	@Test
+	public void testResponsesExpiredSinceTheSnapshotAreSkipped() throws Exception {
+		CachePartition written = new CachePartition("orders", false, MAX_SIZE, EvictionPolicy.LRU);
+		for (int i = 0; i < RESPONSE_COUNT; i++) {
+			// every other response expires between the snapshot and the restore
+			written.getStore().put(key(i), newResponse(i, i % 2 == 0 ? 200 : 60000));
+		}
+		open().write(written);
+		Thread.sleep(300);
+
+		CachePartition restored = restore("orders", false, RESPONSE_COUNT / 2);
+
+		assertNull(restored.getStore().get(key(0)));
+		assertEquals("payload-1", payloadOf(restored.getStore().get(key(1))));
+	}
+
+	@Test
+	public void testResponsesExpiredBeforeTheSnapshotAreNotWritten() throws Exception {
+		CachePartition written = new CachePartition("host", true, MAX_SIZE, EvictionPolicy.LRU);
+		CachableResponse expired = newResponse(0, 60000);
+		expired.setExpireTimeMillis(System.currentTimeMillis() - 1);
+		written.getStore().put(key(0), expired);
+		written.getStore().put(key(1), newResponse(1, 60000));
+		open().write(written);
+
+		CachePartition restored = restore("host", true, 1);
+
+		assertNull(restored.getStore().get(key(0)));
+	}
+
+	@Test
+	public void testRestoredResponsesNeverReplaceNewerOnes() throws Exception {
+		CachePartition written = new CachePartition("host", true, MAX_SIZE, EvictionPolicy.LRU);
+		written.getStore().put(key(1), newResponse(1, 60000));
+		written.getStore().put(key(2), newResponse(2, 60000));
+		open().write(written);
+
+		CachePartition restored = new CachePartition("host", true, MAX_SIZE, EvictionPolicy.LRU);
+		CachableResponse newer = newResponse(1, 60000);
+		newer.setResponsePayload(ByteBuffer.wrap("newer".getBytes()));
+		restored.getStore().put(key(1), newer);
+		open().restore(restored);
+		awaitSize(restored, 2);
+
+		assertEquals("newer", payloadOf(restored.getStore().get(key(1))));
+	}
+
+	/**
+	 * Opens the snapshots of the directory, as a new run of the gateway would
+	 */
+	private CacheSnapshots open() throws IOException {
+		CacheSnapshots snapshot = new CacheSnapshots(directory, 0, Collections.<CachePartition>emptyList(),
+		                                             new CacheSnapshots.Loader() {
+			@Override
+			public void onRestore(CachePartition partition, CachableResponse response) {
+				partition.getStore().putIfAbsent(response.getKey(), response);
+			}
+		});
+		snapshots.add(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Restores a new partition of the given name and waits for the given number of responses to be restored
+	 */
+	private CachePartition restore(String name, boolean host, int size) throws Exception {
+		CachePartition restored = new CachePartition(name, host, MAX_SIZE, EvictionPolicy.LRU);
+		open().restore(restored);
+		awaitSize(restored, size);
+		return restored;
+	}
+
+	private static void awaitSize(CachePartition partition, int size) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + RESTORE_TIMEOUT;
+		while (partition.getSize() < size && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// gives a response which should have been skipped the time to show up
+		Thread.sleep(50);
+		assertEquals(size, partition.getSize());
+	}
+
+	private static CacheKey key(int i) {
+		return CacheKey.of("request-" + i);
+	}
+
+	private static CachableResponse newResponse(int i, long timeout) {
+		CachableResponse response = new CachableResponse();
+		response.setKey(key(i));
+		response.setJson(true);
+		response.setTimeout(timeout);
+		response.setExpireTimeMillis(System.currentTimeMillis() + timeout);
+		response.setResponsePayload(ByteBuffer.wrap(("payload-" + i).getBytes()));
+		return response;
+	}
+
+	private static String payloadOf(CachableResponse response) {
+		ByteBuffer payload = response.getResponsePayload().duplicate();
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		return new String(bytes);
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wso2.carbon.mediator.cache.json.util.CacheKey;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a few buses on the loopback interface, on ports picked by the system
+ */
+public class InvalidationBusTest {
+
+	private static final byte[] SECRET = "s3cret".getBytes();
+
+	private static final long FLUSH_INTERVAL = 10;
+
+	/**
+	 * Time in milliseconds given to a change to reach a peer
+	 */
+	private static final long DELIVERY_TIMEOUT = 5000;
+
+	/**
+	 * Time in milliseconds after which a change which was sent, but not applied, is taken as rejected
+	 */
+	private static final long REJECTION_DELAY = 300;
+
+	private static final CacheKey KEY = CacheKey.of("5d41402abc4b2a76b9719d911017c592");
+
+	private final List<InvalidationBus> buses = new ArrayList<InvalidationBus>();
+
+	@After
+	public void shutdown() {
+		for (InvalidationBus bus : buses) {
+			bus.shutdown();
+		}
+	}
+
+	@Test
+	public void testPutsAndInvalidationsReachEveryPeer() throws Exception {
+		List<InetSocketAddress> cluster = Arrays.asList(localAddress(), localAddress(), localAddress());
+		RecordingListener first = new RecordingListener();
+		RecordingListener second = new RecordingListener();
+		RecordingListener third = new RecordingListener();
+		InvalidationBus publisher = start(cluster.get(0), cluster, SECRET, first);
+		start(cluster.get(1), cluster, SECRET, second);
+		start(cluster.get(2), cluster, SECRET, third);
+
+		publisher.publishPut(KEY, newResponse("v1"));
+
+		assertTrue(second.awaitPut(KEY));
+		assertTrue(third.awaitPut(KEY));
+		assertEquals("v1", second.puts.get(KEY));
+		assertEquals("v1", third.puts.get(KEY));
+		assertTrue("a node does not apply its own changes", first.puts.isEmpty());
+
+		publisher.publishInvalidate(KEY);
+
+		assertTrue(second.awaitInvalidate(KEY));
+		assertTrue(third.awaitInvalidate(KEY));
+	}
+
+	@Test
+	public void testFramesWithAnInvalidMacAreRejected() throws Exception {
+		List<InetSocketAddress> cluster = Arrays.asList(localAddress(), localAddress());
+		RecordingListener peer = new RecordingListener();
+		InvalidationBus publisher = start(cluster.get(0), cluster, "wrong".getBytes(), new RecordingListener());
+		InvalidationBus receiver = start(cluster.get(1), cluster, SECRET, peer);
+
+		publisher.publishPut(KEY, newResponse("v1"));
+
+		assertTrue("the frame was sent", awaitSent(publisher));
+		Thread.sleep(REJECTION_DELAY);
+		assertTrue(peer.puts.isEmpty());
+		assertEquals(0, receiver.getReceivedCount());
+	}
+
+	@Test
+	public void testConnectionsOfOtherHostsAreRejected() throws Exception {
+		InetSocketAddress peerAddress = localAddress();
+		// any address of 127.0.0.0/8 is the loopback interface, but a different host to the bus
+		InetSocketAddress outsiderAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.2"),
+		                                                          localAddress().getPort());
+		RecordingListener peer = new RecordingListener();
+		InvalidationBus receiver = start(peerAddress, Arrays.asList(peerAddress), SECRET, peer);
+		InvalidationBus outsider = start(outsiderAddress, Arrays.asList(outsiderAddress, peerAddress), SECRET,
+		                                 new RecordingListener());
+
+		outsider.publishPut(KEY, newResponse("v1"));
+
+		Thread.sleep(REJECTION_DELAY);
+		assertTrue(peer.puts.isEmpty());
+		assertEquals(0, receiver.getReceivedCount());
+	}
+
+	@Test
+	public void testReplayedFramesAreRejected() throws Exception {
+		InetSocketAddress publisherAddress = localAddress();
+		InetSocketAddress receiverAddress = localAddress();
+		ServerSocket eavesdropper = new ServerSocket(0, 1, publisherAddress.getAddress());
+		try {
+			InetSocketAddress eavesdropperAddress =
+					new InetSocketAddress(publisherAddress.getAddress(), eavesdropper.getLocalPort());
+			InvalidationBus publisher = start(publisherAddress, Arrays.asList(eavesdropperAddress), SECRET,
+			                                  new RecordingListener());
+			RecordingListener peer = new RecordingListener();
+			InvalidationBus receiver = start(receiverAddress, Arrays.asList(publisherAddress), SECRET, peer);
+
+			publisher.publishPut(KEY, newResponse("v1"));
+			byte[] frame = readFrame(eavesdropper);
+
+			Socket socket = new Socket();
+			try {
+				socket.bind(new InetSocketAddress(publisherAddress.getAddress(), 0));
+				socket.connect(receiverAddress);
+				OutputStream out = socket.getOutputStream();
+				out.write(frame);
+				out.flush();
+				assertTrue(peer.awaitPut(KEY));
+
+				peer.puts.clear();
+				out.write(frame);
+				out.flush();
+				Thread.sleep(REJECTION_DELAY);
+			} finally {
+				socket.close();
+			}
+			assertFalse("the replayed frame was applied", peer.puts.containsKey(KEY));
+			assertEquals(1, receiver.getReceivedCount());
+		} finally {
+			eavesdropper.close();
+		}
+	}
+
+	private InvalidationBus start(InetSocketAddress bindAddress, List<InetSocketAddress> peers, byte[] secret,
+	                              InvalidationBus.Listener listener) throws IOException {
+		InvalidationBus bus = new InvalidationBus(bindAddress, peers, secret, FLUSH_INTERVAL, listener);
+		buses.add(bus);
+		return bus;
+	}
+
+	/**
+	 * Waits for the pending changes of the given bus to be sent to a peer
+	 */
+	private static boolean awaitSent(InvalidationBus bus) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT;
+		while (bus.getSentCount() == 0) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Gives an address of the loopback interface on a port which is free at the time of the call
+	 */
+	private static InetSocketAddress localAddress() throws IOException {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		ServerSocket socket = new ServerSocket(0, 1, loopback);
+		try {
+			return new InetSocketAddress(loopback, socket.getLocalPort());
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Accepts the connection of a bus and reads the first frame it sends, with its length
+	 */
+	private static byte[] readFrame(ServerSocket server) throws IOException {
+		server.setSoTimeout((int) DELIVERY_TIMEOUT);
+		Socket socket = server.accept();
+		try {
+			socket.setSoTimeout((int) DELIVERY_TIMEOUT);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			int length = in.readInt();
+			byte[] frame = new byte[4 + length];
+			ByteBuffer.wrap(frame).putInt(length);
+			in.readFully(frame, 4, length);
+			return frame;
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static CachableResponse newResponse(String payload) {
+		CachableResponse response = new CachableResponse();
+		response.setKey(KEY);
+		response.setTimeout(60000);
+		response.setExpireTimeMillis(System.currentTimeMillis() + 60000);
+		response.setResponsePayload(ByteBuffer.wrap(payload.getBytes()));
+		return response;
+	}
+
+	/**
+	 * Records the payloads put by the peers and the keys they invalidated
+	 */
+	private static final class RecordingListener implements InvalidationBus.Listener {
+
+		final Map<CacheKey, String> puts = new ConcurrentHashMap<CacheKey, String>();
+
+		final Map<CacheKey, Boolean> invalidations = new ConcurrentHashMap<CacheKey, Boolean>();
+
+		@Override
+		public void onPut(CacheKey requestKey, CachableResponse response) {
+			ByteBuffer payload = response.getResponsePayload().duplicate();
+			byte[] bytes = new byte[payload.remaining()];
+			payload.get(bytes);
+			puts.put(requestKey, new String(bytes));
+		}
+
+		@Override
+		public void onInvalidate(CacheKey requestKey) {
+			invalidations.put(requestKey, Boolean.TRUE);
+		}
+
+		boolean awaitPut(CacheKey requestKey) throws InterruptedException {
+			return await(puts, requestKey);
+		}
+
+		boolean awaitInvalidate(CacheKey requestKey) throws InterruptedException {
+			return await(invalidations, requestKey);
+		}
+
+		private static boolean await(Map<CacheKey, ?> changes, CacheKey requestKey) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT;
+			while (!changes.containsKey(requestKey)) {
+				if (System.currentTimeMillis() > deadline) {
+					return false;
+				}
+				Thread.sleep(10);
+			}
+			return true;
+		}
+	}
+}
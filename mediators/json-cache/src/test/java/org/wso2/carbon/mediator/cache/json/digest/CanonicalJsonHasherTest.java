@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.digest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CanonicalJsonHasherTest {
+
+	private static final List<String> NO_PATHS = Collections.emptyList();
+
+	@Test
+	public void testWhitespaceIsIgnored() throws IOException {
+		assertSameHash("{\"a\":[1,2,{\"b\":null}],\"c\":true}",
+		               " {\n\t\"a\" : [ 1 , 2 , { \"b\" : null } ] ,\r\n \"c\" : true } ");
+	}
+
+	@Test
+	public void testOrderOfTheMembersIsIgnored() throws IOException {
+		assertSameHash("{\"a\":1,\"b\":{\"x\":\"1\",\"y\":\"2\"},\"c\":[]}",
+		               "{\"c\":[],\"b\":{\"y\":\"2\",\"x\":\"1\"},\"a\":1}");
+	}
+
+	@Test
+	public void testEscapingOfTheCharactersIsIgnored() throws IOException {
+		assertSameHash("{\"name\":\"A/\u00e9\u20ac\"}", "{\"n\\u0061me\":\"\\u0041\\/\\u00e9\\u20AC\"}");
+		assertSameHash("[\"\\ud83d\\ude00\"]", "[\"\ud83d\ude00\"]");
+	}
+
+	@Test
+	public void testOrderOfTheElementsIsKept() throws IOException {
+		assertDifferentHash("[1,2]", "[2,1]");
+	}
+
+	@Test
+	public void testValuesAreToldApart() throws IOException {
+		assertDifferentHash("{\"a\":1}", "{\"a\":\"1\"}");
+		assertDifferentHash("{\"a\":1}", "{\"a\":1.0}");
+		assertDifferentHash("{\"a\":null}", "{\"a\":false}");
+		assertDifferentHash("{\"a\":{}}", "{\"a\":[]}");
+		assertDifferentHash("{\"a\":1}", "{\"b\":1}");
+		// moving a member into another object changes the hash
+		assertDifferentHash("{\"a\":{\"b\":1},\"c\":{}}", "{\"a\":{},\"c\":{\"b\":1}}");
+		assertDifferentHash("[[1],[]]", "[[],[1]]");
+	}
+
+	@Test
+	public void testExcludedMembersAreLeftOut() throws IOException {
+		CanonicalJsonHasher hasher = new CanonicalJsonHasher(Arrays.asList("$.requestId", "$.meta.timestamp"));
+
+		assertEquals(hash(hasher, "{\"q\":\"shoes\",\"meta\":{\"page\":1}}"),
+		             hash(hasher, "{\"requestId\":\"7d1c\",\"q\":\"shoes\",\"meta\":{\"timestamp\":1444,\"page\":1}}"));
+		assertFalse(hash(hasher, "{\"q\":\"shoes\"}").equals(hash(hasher, "{\"q\":\"boots\",\"requestId\":\"7d1c\"}")));
+		// the paths are matched from the root only
+		assertFalse(hash(hasher, "{\"a\":{}}").equals(hash(hasher, "{\"a\":{\"requestId\":1}}")));
+	}
+
+	@Test
+	public void testExcludedElementsAreLeftOut() throws IOException {
+		CanonicalJsonHasher hasher = new CanonicalJsonHasher(Arrays.asList("$.items[*].ts", "$.tags[0]"));
+
+		assertEquals(hash(hasher, "{\"items\":[{\"id\":1},{\"id\":2}],\"tags\":[\"z\",\"b\"]}"),
+		             hash(hasher, "{\"items\":[{\"id\":1,\"ts\":5},{\"ts\":6,\"id\":2}],\"tags\":[\"a\",\"b\"]}"));
+		assertFalse(hash(hasher, "{\"tags\":[\"a\",\"b\"]}").equals(hash(hasher, "{\"tags\":[\"a\",\"c\"]}")));
+	}
+
+	@Test
+	public void testQuotedAndWildcardSegmentsAreMatched() throws IOException {
+		CanonicalJsonHasher hasher = new CanonicalJsonHasher(Arrays.asList("$['trace id']", "$.*.nonce"));
+
+		assertEquals(hash(hasher, "{\"a\":{},\"b\":{\"x\":1}}"),
+		             hash(hasher, "{\"trace id\":1,\"a\":{\"nonce\":2},\"b\":{\"nonce\":3,\"x\":1}}"));
+	}
+
+	@Test
+	public void testExcludedValuesAreStillValidated() {
+		CanonicalJsonHasher hasher = new CanonicalJsonHasher(Collections.singletonList("$.skipped"));
+		assertMalformed(hasher, "{\"skipped\":[1,,2]}");
+		assertMalformed(hasher, "{\"skipped\":--1}");
+	}
+
+	@Test
+	public void testValidNumbersAreAccepted() throws IOException {
+		for (String number : new String[]{"0", "-0", "12", "-12", "0.5", "-0.5", "1.25e10", "1E+2", "1e-2", "10E0"}) {
+			hash(new CanonicalJsonHasher(NO_PATHS), "[" + number + "]");
+			hash(new CanonicalJsonHasher(NO_PATHS), number);
+		}
+	}
+
+	@Test
+	public void testMalformedNumbersAreRejected() {
+		CanonicalJsonHasher hasher = new CanonicalJsonHasher(NO_PATHS);
+		for (String number : new String[]{"--1", "1-2", "-", "01", "-01", "1.", ".5", "1.e2", "1e", "1e+", "+1",
+		                                  "1..2", "1e2e3", "1.2.3", "0x10"}) {
+			assertMalformed(hasher, number);
+			assertMalformed(hasher, "[" + number + "]");
+			assertMalformed(hasher, "{\"a\":" + number + "}");
+		}
+	}
+
+	@Test
+	public void testControlCharactersInStringsAreRejected() {
+		CanonicalJsonHasher hasher = new CanonicalJsonHasher(NO_PATHS);
+		assertMalformed(hasher, "[\"a\nb\"]");
+		assertMalformed(hasher, "{\"a\tb\":1}");
+		assertMalformed(hasher, "[\"\u0000\"]");
+	}
+
+	@Test
+	public void testMalformedDocumentsAreRejected() {
+		CanonicalJsonHasher hasher = new CanonicalJsonHasher(NO_PATHS);
+		for (String document : new String[]{"{", "[", "{\"a\":1", "[1,]", "{\"a\" 1}", "{\"a\":1,}", "{a:1}",
+		                                    "[1 2]", "tru", "nul", "\"open", "[\"\\x\"]", "[\"\\u12\"]", "{} {}",
+		                                    "name=value", "<a/>"}) {
+			assertMalformed(hasher, document);
+		}
+	}
+
+	@Test
+	public void testHasherIsReusableAfterAMalformedDocument() throws IOException {
+		CanonicalJsonHasher hasher = new CanonicalJsonHasher(NO_PATHS);
+		String expected = hash(new CanonicalJsonHasher(NO_PATHS), "[[1,2],3]");
+
+		assertMalformed(hasher, "[[1,2");
+
+		assertEquals(expected, hash(hasher, "[[1,2],3]"));
+	}
+
+	@Test
+	public void testBlankDocumentIsNotHashed() throws IOException {
+		assertFalse(new CanonicalJsonHasher(NO_PATHS).hash(stream(" \n "), new long[2]));
+	}
+
+	@Test
+	public void testDeeplyNestedDocumentIsRejected() {
+		StringBuilder document = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			document.append('[');
+		}
+		assertMalformed(new CanonicalJsonHasher(NO_PATHS), document.toString());
+	}
+
+	@Test
+	public void testMalformedPathsAreRejected() {
+		for (String path : new String[]{"a", "$", "$.", "$..a", "$[", "$[x]", "$a"}) {
+			try {
+				new CanonicalJsonHasher(Collections.singletonList(path));
+				fail("Compiled the excluded path : " + path);
+			} catch (IllegalArgumentException expected) {
+				// the path is reported with the configuration
+			}
+		}
+	}
+
+	private static void assertSameHash(String first, String second) throws IOException {
+		assertEquals(hash(new CanonicalJsonHasher(NO_PATHS), first), hash(new CanonicalJsonHasher(NO_PATHS), second));
+	}
+
+	private static void assertDifferentHash(String first, String second) throws IOException {
+		assertFalse(first + " and " + second + " have the same hash",
+		            hash(new CanonicalJsonHasher(NO_PATHS), first).equals(
+				            hash(new CanonicalJsonHasher(NO_PATHS), second)));
+	}
+
+	private static void assertMalformed(CanonicalJsonHasher hasher, String document) {
+		try {
+			hasher.hash(stream(document), new long[2]);
+			fail("Hashed the malformed document : " + document);
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().startsWith("Malformed JSON payload"));
+		}
+	}
+
+	private static String hash(CanonicalJsonHasher hasher, String document) throws IOException {
+		long[] hash = new long[2];
+		assertTrue(hasher.hash(stream(document), hash));
+		return Long.toHexString(hash[0]) + Long.toHexString(hash[1]);
+	}
+
+	private static ByteArrayInputStream stream(String document) {
+		try {
+			return new ByteArrayInputStream(document.getBytes("UTF-8"));
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
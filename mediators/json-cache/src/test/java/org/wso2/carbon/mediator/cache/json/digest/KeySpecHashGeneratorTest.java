@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.digest;
+
+import org.apache.axis2.addressing.EndpointReference;
+import org.apache.axis2.context.MessageContext;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class KeySpecHashGeneratorTest {
+
+	private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+	@Test
+	public void testQueryParametersAreSorted() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+
+		assertSameKey(generator, "http://api.example.com/items?b=2&a=1&c", "http://api.example.com/items?c&a=1&b=2");
+		assertSameKey(generator, "http://api.example.com/items?a=2&a=1", "http://api.example.com/items?a=1&a=2");
+		assertDifferentKey(generator, "http://api.example.com/items?a=1&b=2", "http://api.example.com/items?a=2&b=1");
+		// a parameter without a value is not a parameter with an empty value
+		assertDifferentKey(generator, "http://api.example.com/items?a", "http://api.example.com/items?a=");
+	}
+
+	@Test
+	public void testExcludedParametersAreLeftOut() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+		generator.setExcludedParameters(Arrays.asList("_", "utm_*"));
+
+		assertSameKey(generator, "http://api.example.com/items?q=shoes",
+		              "http://api.example.com/items?utm_source=mail&q=shoes&_=1444000000&utm_medium=web");
+		assertDifferentKey(generator, "http://api.example.com/items?q=shoes", "http://api.example.com/items?q=boots");
+		assertDifferentKey(generator, "http://api.example.com/items?q=shoes",
+		                   "http://api.example.com/items?q=shoes&utm=1");
+	}
+
+	@Test
+	public void testOnlyIncludedParametersAreTaken() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+		generator.setIncludedParameters(Arrays.asList("q", "page*"));
+
+		assertSameKey(generator, "http://api.example.com/items?q=shoes&pageSize=10",
+		              "http://api.example.com/items?session=7d1c&pageSize=10&q=shoes");
+		assertDifferentKey(generator, "http://api.example.com/items?q=shoes&page=1",
+		                   "http://api.example.com/items?q=shoes&page=2");
+	}
+
+	@Test
+	public void testDefaultPortIsDropped() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+
+		assertSameKey(generator, "http://api.example.com:80/items", "http://api.example.com/items");
+		assertSameKey(generator, "https://api.example.com:443/items", "https://api.example.com/items");
+		assertSameKey(generator, "http://api.example.com:/items", "http://api.example.com/items");
+		assertSameKey(generator, "http://[::1]:80/items", "http://[::1]/items");
+		assertDifferentKey(generator, "http://api.example.com:443/items", "http://api.example.com/items");
+		assertDifferentKey(generator, "https://api.example.com:80/items", "https://api.example.com/items");
+		assertDifferentKey(generator, "http://api.example.com:8080/items", "http://api.example.com/items");
+		assertDifferentKey(generator, "http://[::1]/items", "http://[::2]/items");
+	}
+
+	@Test
+	public void testSchemeAndHostCaseIsIgnored() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+
+		assertSameKey(generator, "HTTP://API.Example.COM/items", "http://api.example.com/items");
+		assertDifferentKey(generator, "http://api.example.com/Items", "http://api.example.com/items");
+		assertDifferentKey(generator, "http://User@api.example.com/items", "http://user@api.example.com/items");
+	}
+
+	@Test
+	public void testPathCaseIsIgnoredIfConfigured() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+		generator.setIgnorePathCase(true);
+
+		assertSameKey(generator, "http://api.example.com/Items/ABC", "http://api.example.com/items/abc");
+		assertSameKey(generator, "http://api.example.com/%49tems", "http://api.example.com/items");
+		assertDifferentKey(generator, "http://api.example.com/items?q=ABC", "http://api.example.com/items?q=abc");
+	}
+
+	@Test
+	public void testTrailingSlashIsIgnoredIfConfigured() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+		assertDifferentKey(generator, "http://api.example.com/items/", "http://api.example.com/items");
+
+		generator.setIgnoreTrailingSlash(true);
+
+		assertSameKey(generator, "http://api.example.com/items/", "http://api.example.com/items");
+		assertSameKey(generator, "http://api.example.com/", "http://api.example.com");
+		assertSameKey(generator, "http://api.example.com/?q=1", "http://api.example.com?q=1");
+	}
+
+	@Test
+	public void testPercentEncodingIsNormalized() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+
+		// escaped unreserved characters are decoded
+		assertSameKey(generator, "http://api.example.com/%7Euser/%61-%2E_", "http://api.example.com/~user/a-._");
+		assertSameKey(generator, "http://api.example.com/items?q=%73hoes", "http://api.example.com/items?q=shoes");
+		assertSameKey(generator, "http://api.example.com/items?%71=shoes", "http://api.example.com/items?q=shoes");
+		// the other escapes are upper cased, but kept
+		assertSameKey(generator, "http://api.example.com/a%2fb", "http://api.example.com/a%2Fb");
+		assertSameKey(generator, "http://api.example.com/items?q=a%26b", "http://api.example.com/items?q=a%26b");
+		assertDifferentKey(generator, "http://api.example.com/a%2Fb", "http://api.example.com/a/b");
+		assertDifferentKey(generator, "http://api.example.com/items?q=a%26b", "http://api.example.com/items?q=a&b");
+		// a broken escape is taken as it is
+		assertDifferentKey(generator, "http://api.example.com/a%2", "http://api.example.com/a%20");
+	}
+
+	@Test
+	public void testFragmentIsIgnored() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+
+		assertSameKey(generator, "http://api.example.com/items?q=1#top", "http://api.example.com/items?q=1");
+		assertSameKey(generator, "http://api.example.com/items#top?q=1", "http://api.example.com/items");
+	}
+
+	@Test
+	public void testHeaderNamesAreCaseInsensitive() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+		generator.setHeaders(Arrays.asList("X-Tenant", "Accept-Language"));
+
+		assertEquals(getDigest(generator, "http://api.example.com/items",
+		                       headers("x-tenant", "acme", "ACCEPT-LANGUAGE", "en")),
+		             getDigest(generator, "http://api.example.com/items",
+		                       headers("X-Tenant", " acme ", "Accept-Language", "en", "X-Other", "1")));
+		assertFalse(getDigest(generator, "http://api.example.com/items", headers("X-Tenant", "acme")).equals(
+				getDigest(generator, "http://api.example.com/items", headers("X-Tenant", "ACME"))));
+	}
+
+	@Test
+	public void testHeaderOrderAndCaseOfTheConfigurationAreIgnored() {
+		KeySpecHashGenerator first = new KeySpecHashGenerator();
+		first.setHeaders(Arrays.asList("X-Tenant", "Accept-Language"));
+		KeySpecHashGenerator second = new KeySpecHashGenerator();
+		second.setHeaders(Arrays.asList("accept-language", "x-tenant", "X-TENANT"));
+
+		assertEquals(Arrays.asList("accept-language", "x-tenant"), second.getHeaders());
+		Map<String, String> headers = headers("X-Tenant", "acme", "Accept-Language", "en");
+		assertEquals(getDigest(first, "http://api.example.com/items", headers),
+		             getDigest(second, "http://api.example.com/items", headers));
+	}
+
+	@Test
+	public void testAbsentHeaderIsNotAnEmptyHeader() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+		generator.setHeaders(Collections.singletonList("X-Tenant"));
+
+		assertEquals(getDigest(generator, "http://api.example.com/items", NO_HEADERS),
+		             getDigest(generator, "http://api.example.com/items", null));
+		assertFalse(getDigest(generator, "http://api.example.com/items", NO_HEADERS).equals(
+				getDigest(generator, "http://api.example.com/items", headers("X-Tenant", ""))));
+	}
+
+	@Test
+	public void testRequestWithoutAnAddressHasNoKey() {
+		KeySpecHashGenerator generator = new KeySpecHashGenerator();
+		generator.setHeaders(Collections.singletonList("X-Tenant"));
+
+		assertNull(getDigest(generator, null, headers("X-Tenant", "acme")));
+	}
+
+	private static void assertSameKey(KeySpecHashGenerator generator, String first, String second) {
+		assertEquals(first + " and " + second + " have different keys",
+		             getDigest(generator, first, NO_HEADERS), getDigest(generator, second, NO_HEADERS));
+	}
+
+	private static void assertDifferentKey(KeySpecHashGenerator generator, String first, String second) {
+		assertFalse(first + " and " + second + " have the same key",
+		            getDigest(generator, first, NO_HEADERS).equals(getDigest(generator, second, NO_HEADERS)));
+	}
+
+	private static String getDigest(KeySpecHashGenerator generator, String address, Map<String, String> headers) {
+		MessageContext msgContext = new MessageContext();
+		if (address != null) {
+			msgContext.setTo(new EndpointReference(address));
+		}
+		if (headers != null) {
+			msgContext.setProperty(MessageContext.TRANSPORT_HEADERS, headers);
+		}
+		return generator.getDigest(msgContext);
+	}
+
+	private static Map<String, String> headers(String... namesAndValues) {
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			headers.put(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return headers;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wso2.carbon.mediator.cache.json.CachableResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheTierTest {
+
+	/**
+	 * Size of a segment of the tier, which holds two responses
+	 */
+	private static final int SEGMENT_SIZE = 100;
+
+	private static final int SEGMENT_COUNT = 4;
+
+	private static final int PAYLOAD_SIZE = 40;
+
+	private File directory;
+
+	private DiskCacheTier<String> tier;
+
+	@Before
+	public void createTier() throws IOException {
+		directory = File.createTempFile("disk-cache-tier", "");
+		assertTrue(directory.delete() && directory.mkdir());
+		tier = new DiskCacheTier<String>(directory, SEGMENT_SIZE * SEGMENT_COUNT);
+	}
+
+	@After
+	public void deleteTier() {
+		tier.close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testStoredResponseIsReadFromTheSegment() {
+		assertTrue(tier.put("k0", newResponse('a')));
+
+		CachableResponse stored = tier.get("k0");
+
+		assertEquals(payloadOf('a'), payloadOf(stored));
+		assertTrue(stored.getResponsePayload().isReadOnly());
+		assertEquals(60000, stored.getTimeout());
+		assertEquals(1, tier.size());
+	}
+
+	@Test
+	public void testWrapRecyclesTheOldestSegment() {
+		// two responses per segment fill the ring
+		for (int i = 0; i < SEGMENT_COUNT * 2; i++) {
+			assertTrue(tier.put("k" + i, newResponse((char) ('a' + i))));
+		}
+		assertEquals(SEGMENT_COUNT, segmentFiles().length);
+		String[] filesBeforeWrap = segmentFiles();
+		CachableResponse read = tier.get("k0");
+
+		assertTrue(tier.put("k8", newResponse('z')));
+
+		assertNull(tier.get("k0"));
+		assertNull(tier.get("k1"));
+		assertEquals(payloadOf('c'), payloadOf(tier.get("k2")));
+		assertEquals(payloadOf('z'), payloadOf(tier.get("k8")));
+		assertEquals(SEGMENT_COUNT * 2 - 1, tier.size());
+		// the file of the first segment is replaced, and a slice handed out before stays readable
+		String[] filesAfterWrap = segmentFiles();
+		assertEquals(SEGMENT_COUNT, filesAfterWrap.length);
+		assertFalse(Arrays.asList(filesAfterWrap).contains(filesBeforeWrap[0]));
+		assertEquals(payloadOf('a'), payloadOf(read));
+	}
+
+	@Test
+	public void testRecyclingKeepsTheKeysRewrittenSince() {
+		tier.put("k0", newResponse('a'));
+		tier.put("k1", newResponse('b'));
+		for (int i = 2; i < SEGMENT_COUNT * 2 - 1; i++) {
+			tier.put("k" + i, newResponse('c'));
+		}
+		// the last slot of the ring takes a newer copy of a key of the first segment
+		tier.put("k1", newResponse('d'));
+
+		tier.put("k8", newResponse('z'));
+
+		assertNull(tier.get("k0"));
+		assertEquals(payloadOf('d'), payloadOf(tier.get("k1")));
+	}
+
+	@Test
+	public void testOversizedResponseIsRejected() {
+		CachableResponse response = newResponse('a');
+		response.setResponsePayload(ByteBuffer.wrap(new byte[SEGMENT_SIZE - 1]));
+		response.setHeaderProperties(ByteBuffer.wrap(new byte[2]));
+
+		assertFalse(tier.put("k0", response));
+		assertNull(tier.get("k0"));
+		assertEquals(1, tier.getRejectedCount());
+
+		response.setHeaderProperties(null);
+		assertTrue(tier.put("k0", response));
+	}
+
+	@Test
+	public void testResponseWithoutPayloadIsRejected() {
+		CachableResponse response = newResponse('a');
+		response.setResponsePayload(null);
+
+		assertFalse(tier.put("k0", response));
+		assertEquals(1, tier.getRejectedCount());
+	}
+
+	@Test
+	public void testRemoveDropsTheIndexEntry() {
+		tier.put("k0", newResponse('a'));
+
+		tier.remove("k0");
+
+		assertNull(tier.get("k0"));
+		assertEquals(0, tier.size());
+	}
+
+	@Test
+	public void testCloseDeletesTheSegmentFiles() {
+		for (int i = 0; i < SEGMENT_COUNT * 2 + 1; i++) {
+			tier.put("k" + i, newResponse('a'));
+		}
+
+		tier.close();
+
+		assertEquals(0, segmentFiles().length);
+		assertEquals(0, tier.size());
+		assertFalse("a closed tier stores nothing", tier.put("k0", newResponse('a')));
+	}
+
+	@Test
+	public void testSegmentFilesOfAPreviousRunAreDeleted() throws Exception {
+		tier.put("k0", newResponse('a'));
+		tier.put("k1", newResponse('b'));
+		tier.put("k2", newResponse('c'));
+		assertEquals(2, segmentFiles().length);
+
+		DiskCacheTier<String> next = new DiskCacheTier<String>(directory, SEGMENT_SIZE * SEGMENT_COUNT);
+		try {
+			// only the first segment of the new ring is mapped
+			assertEquals(1, segmentFiles().length);
+			assertNull(next.get("k0"));
+		} finally {
+			next.close();
+		}
+	}
+
+	private String[] segmentFiles() {
+		String[] names = directory.list();
+		Arrays.sort(names);
+		return names;
+	}
+
+	private static CachableResponse newResponse(char fill) {
+		CachableResponse response = new CachableResponse();
+		response.setTimeout(60000);
+		response.setExpireTimeMillis(System.currentTimeMillis() + 60000);
+		response.setResponsePayload(ByteBuffer.wrap(payloadOf(fill).getBytes()));
+		return response;
+	}
+
+	private static String payloadOf(char fill) {
+		char[] payload = new char[PAYLOAD_SIZE];
+		Arrays.fill(payload, fill);
+		return new String(payload);
+	}
+
+	private static String payloadOf(CachableResponse response) {
+		ByteBuffer payload = response.getResponsePayload().duplicate();
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		return new String(bytes);
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryCacheStoreTest {
+
+	@Test
+	public void testEachSegmentIsBoundedByItsShare() {
+		MemoryCacheStore<Integer, String> store = new MemoryCacheStore<Integer, String>(8, EvictionPolicy.FIFO, 4);
+		RecordingListener listener = new RecordingListener();
+		store.setEvictionListener(listener);
+
+		assertEquals(4, store.getSegmentCount());
+		// the keys 0, 4, 8 and so on share a segment, whose share of the maximum size is 2
+		for (int i = 0; i < 5; i++) {
+			store.put(i * 4, "v" + i);
+		}
+
+		assertEquals(2, store.size());
+		assertEquals(2, store.copySegment(0).size());
+		assertEquals(3, store.getEvictionCount());
+		assertEquals("[0, 4, 8]", listener.keys.toString());
+	}
+
+	@Test
+	public void testSegmentsNeverOutnumberTheMaximumSize() {
+		MemoryCacheStore<Integer, String> store = new MemoryCacheStore<Integer, String>(3, EvictionPolicy.LRU, 16);
+
+		assertEquals(2, store.getSegmentCount());
+		for (int i = 0; i < 100; i++) {
+			store.put(i, "v" + i);
+			assertTrue(store.size() <= 3);
+		}
+	}
+
+	@Test
+	public void testLruEvictsTheLeastRecentlyUsedEntry() {
+		MemoryCacheStore<Integer, String> store = newStore(EvictionPolicy.LRU);
+		store.get(1);
+
+		store.put(4, "v4");
+
+		assertNull(store.get(2));
+		assertEquals("v1", store.get(1));
+	}
+
+	@Test
+	public void testFifoEvictsTheOldestEntry() {
+		MemoryCacheStore<Integer, String> store = newStore(EvictionPolicy.FIFO);
+		store.get(1);
+
+		store.put(4, "v4");
+
+		assertNull(store.get(1));
+		assertEquals("v2", store.get(2));
+	}
+
+	@Test
+	public void testLfuEvictsTheLeastFrequentlyUsedEntry() {
+		MemoryCacheStore<Integer, String> store = newStore(EvictionPolicy.LFU);
+		store.get(1);
+		store.get(1);
+		store.get(2);
+		store.get(2);
+		store.get(3);
+
+		store.put(4, "v4");
+
+		// the least recently used entry is kept, as it is used more often
+		assertNull(store.get(3));
+		assertEquals("v1", store.get(1));
+		assertEquals("v4", store.get(4));
+	}
+
+	@Test
+	public void testPutReplacesWithoutEvicting() {
+		MemoryCacheStore<Integer, String> store = newStore(EvictionPolicy.LRU);
+
+		assertEquals("v1", store.put(1, "w1"));
+
+		assertEquals(3, store.size());
+		assertEquals(0, store.getEvictionCount());
+		assertEquals("w1", store.get(1));
+	}
+
+	@Test
+	public void testPutIfAbsentKeepsTheMappedValue() {
+		MemoryCacheStore<Integer, String> store = newStore(EvictionPolicy.LRU);
+
+		assertEquals("v1", store.putIfAbsent(1, "w1"));
+		assertEquals("v1", store.get(1));
+		assertNull(store.putIfAbsent(4, "v4"));
+		assertEquals("v4", store.get(4));
+		assertEquals(1, store.getEvictionCount());
+	}
+
+	@Test
+	public void testRemoveOfAValueOnlyRemovesThatValue() {
+		MemoryCacheStore<Integer, String> store = newStore(EvictionPolicy.LRU);
+
+		assertFalse(store.remove(1, "w1"));
+		assertEquals("v1", store.get(1));
+		assertFalse(store.remove(4, "v4"));
+		assertTrue(store.remove(1, store.get(1)));
+		assertNull(store.get(1));
+		assertEquals(2, store.size());
+		assertEquals("v2", store.remove(2));
+		assertNull(store.remove(2));
+	}
+
+	@Test
+	public void testCopyOfASegmentIsInEvictionOrder() {
+		MemoryCacheStore<Integer, String> store = newStore(EvictionPolicy.LRU);
+		store.get(1);
+
+		assertEquals("[2, 3, 1]", store.copySegment(0).keySet().toString());
+	}
+
+	@Test
+	public void testEvictionListenerIsCalledOutsideTheLock() throws InterruptedException {
+		final MemoryCacheStore<Integer, String> store = newStore(EvictionPolicy.FIFO);
+		final AtomicBoolean unlocked = new AtomicBoolean();
+		store.setEvictionListener(new EvictionListener<Integer, String>() {
+			@Override
+			public void onEviction(Integer key, String value) {
+				// another thread can only reach the segment if the evicting thread does not hold its lock
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						store.get(2);
+						unlocked.set(true);
+					}
+				});
+				reader.start();
+				try {
+					reader.join(5000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		store.put(4, "v4");
+
+		assertTrue(unlocked.get());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testNullValuesAreRejected() {
+		newStore(EvictionPolicy.LRU).put(1, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMaximumSizeMustBePositive() {
+		new MemoryCacheStore<Integer, String>(0, EvictionPolicy.LRU);
+	}
+
+	/**
+	 * Creates a single segment store of three entries, holding 1, 2 and 3 in that order
+	 */
+	private static MemoryCacheStore<Integer, String> newStore(EvictionPolicy policy) {
+		MemoryCacheStore<Integer, String> store = new MemoryCacheStore<Integer, String>(3, policy, 1);
+		for (int i = 1; i <= 3; i++) {
+			store.put(i, "v" + i);
+		}
+		return store;
+	}
+
+	/**
+	 * Records the keys of the evicted entries
+	 */
+	private static final class RecordingListener implements EvictionListener<Integer, String> {
+
+		final List<Integer> keys = new ArrayList<Integer>();
+
+		@Override
+		public void onEviction(Integer key, String value) {
+			keys.add(key);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.store;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadArenaTest {
+
+	/**
+	 * Capacity of a single slab
+	 */
+	private static final int SLAB_SIZE = 4 * PayloadArena.MAX_CHUNK_SIZE;
+
+	@Test
+	public void testSizesAreRoundedUpToTheirClass() {
+		PayloadArena arena = new PayloadArena(4 * SLAB_SIZE);
+
+		assertChunk(arena.allocate(1), 1, PayloadArena.MIN_CHUNK_SIZE);
+		assertChunk(arena.allocate(PayloadArena.MIN_CHUNK_SIZE), PayloadArena.MIN_CHUNK_SIZE,
+		            PayloadArena.MIN_CHUNK_SIZE);
+		assertChunk(arena.allocate(PayloadArena.MIN_CHUNK_SIZE + 1), PayloadArena.MIN_CHUNK_SIZE + 1,
+		            2 * PayloadArena.MIN_CHUNK_SIZE);
+		assertChunk(arena.allocate(3000), 3000, 4096);
+		assertChunk(arena.allocate(PayloadArena.MAX_CHUNK_SIZE), PayloadArena.MAX_CHUNK_SIZE,
+		            PayloadArena.MAX_CHUNK_SIZE);
+		assertEquals(1024 + 1024 + 2048 + 4096 + PayloadArena.MAX_CHUNK_SIZE, arena.getUsedBytes());
+		// a slab is reserved per size class in use
+		assertEquals(4 * SLAB_SIZE, arena.getReservedBytes());
+	}
+
+	@Test
+	public void testPayloadsLargerThanTheLargestClassAreNotKept() {
+		PayloadArena arena = new PayloadArena(SLAB_SIZE);
+
+		assertNull(arena.allocate(PayloadArena.MAX_CHUNK_SIZE + 1));
+		assertEquals(0, arena.getReservedBytes());
+	}
+
+	@Test
+	public void testAllocationsFailOnceTheSlabsAreExhausted() {
+		PayloadArena arena = new PayloadArena(SLAB_SIZE);
+		for (int i = 0; i < SLAB_SIZE / PayloadArena.MAX_CHUNK_SIZE; i++) {
+			assertNotNull(arena.allocate(PayloadArena.MAX_CHUNK_SIZE));
+		}
+
+		assertNull(arena.allocate(PayloadArena.MAX_CHUNK_SIZE));
+		// the other classes have no slab of their own, and no room is left for one
+		assertNull(arena.allocate(1));
+		assertEquals(SLAB_SIZE, arena.getReservedBytes());
+		assertEquals(SLAB_SIZE, arena.getUsedBytes());
+	}
+
+	@Test
+	public void testFreedChunksAreReused() {
+		PayloadArena arena = new PayloadArena(SLAB_SIZE);
+		ByteBuffer[] chunks = new ByteBuffer[SLAB_SIZE / PayloadArena.MAX_CHUNK_SIZE];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = arena.allocate(PayloadArena.MAX_CHUNK_SIZE);
+		}
+
+		arena.free(chunks[2]);
+		assertEquals(SLAB_SIZE - PayloadArena.MAX_CHUNK_SIZE, arena.getUsedBytes());
+		ByteBuffer reused = arena.allocate(PayloadArena.MAX_CHUNK_SIZE - 1);
+
+		assertSame(chunks[2], reused);
+		assertEquals(0, reused.position());
+		assertEquals(PayloadArena.MAX_CHUNK_SIZE - 1, reused.limit());
+		assertEquals(SLAB_SIZE, arena.getReservedBytes());
+		assertEquals(SLAB_SIZE, arena.getUsedBytes());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCapacityMustHoldASlab() {
+		new PayloadArena(SLAB_SIZE - 1);
+	}
+
+	private static void assertChunk(ByteBuffer chunk, int limit, int capacity) {
+		assertNotNull(chunk);
+		assertTrue(chunk.isDirect());
+		assertEquals(0, chunk.position());
+		assertEquals(limit, chunk.limit());
+		assertEquals(capacity, chunk.capacity());
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.util;
+
+import org.junit.Test;
+import org.wso2.carbon.mediator.cache.json.CachingException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HeaderCodecTest {
+
+	@Test
+	public void testRoundTripOfDictionaryAndCustomHeaders() {
+		Map<String, Object> headers = new LinkedHashMap<String, Object>();
+		headers.put("Content-Type", "application/json; charset=UTF-8");
+		headers.put("ETag", "\"5f3a\"");
+		headers.put("Vary", "Accept, Accept-Encoding");
+		headers.put("X-Request-Id", "7d1c62e0");
+		headers.put("messageType", "application/json");
+
+		Map<String, Object> decoded = HeaderCodec.decode(ByteBuffer.wrap(HeaderCodec.encode(headers)));
+
+		assertEquals(headers, new LinkedHashMap<String, Object>(decoded));
+	}
+
+	@Test
+	public void testDictionaryNamesTakeOneByte() {
+		Map<String, Object> known = new HashMap<String, Object>();
+		known.put("Content-Type", "a");
+		Map<String, Object> custom = new HashMap<String, Object>();
+		custom.put("X-Custom", "a");
+
+		// the count, the index and the value, against the count, the marker, the name and the value
+		assertEquals(1 + 1 + 3, HeaderCodec.encode(known).length);
+		assertEquals(1 + 1 + 10 + 3, HeaderCodec.encode(custom).length);
+	}
+
+	@Test
+	public void testDecodedHeadersAreCaseInsensitive() {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("content-type", "application/json");
+		headers.put("X-Custom", "value");
+
+		Map<String, Object> decoded = HeaderCodec.decode(ByteBuffer.wrap(HeaderCodec.encode(headers)));
+
+		assertEquals("application/json", decoded.get("Content-Type"));
+		assertEquals("value", decoded.get("x-custom"));
+	}
+
+	@Test
+	public void testNullNamesAndValuesAreSkipped() {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put(null, "value");
+		headers.put("X-Null", null);
+		headers.put("X-Kept", 42);
+
+		Map<String, Object> decoded = HeaderCodec.decode(ByteBuffer.wrap(HeaderCodec.encode(headers)));
+
+		assertEquals(1, decoded.size());
+		assertEquals("42", decoded.get("X-Kept"));
+	}
+
+	@Test
+	public void testEmptyAndAbsentBlocksDecodeToNoHeaders() {
+		assertTrue(HeaderCodec.decode(null).isEmpty());
+		assertTrue(HeaderCodec.decode(ByteBuffer.allocate(0)).isEmpty());
+		assertTrue(HeaderCodec.decode(ByteBuffer.wrap(HeaderCodec.encode(new HashMap<String, Object>())))
+		                      .isEmpty());
+	}
+
+	@Test
+	public void testDecodingDoesNotMoveTheBlock() {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("ETag", "\"5f3a\"");
+		ByteBuffer block = ByteBuffer.wrap(HeaderCodec.encode(headers));
+
+		HeaderCodec.decode(block);
+
+		assertEquals(0, block.position());
+		assertEquals("\"5f3a\"", HeaderCodec.decode(block).get("ETag"));
+	}
+
+	@Test(expected = CachingException.class)
+	public void testUnknownDictionaryIndexIsRejected() {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("ETag", "\"5f3a\"");
+		byte[] encoded = HeaderCodec.encode(headers);
+		encoded[1] = (byte) 0xFF;
+		HeaderCodec.decode(ByteBuffer.wrap(encoded));
+	}
+
+	@Test
+	public void testTruncatedBlockIsRejected() {
+		Map<String, Object> headers = new LinkedHashMap<String, Object>();
+		headers.put("Content-Type", "application/json");
+		headers.put("X-Custom", "value");
+		byte[] encoded = HeaderCodec.encode(headers);
+		// an empty block stands for no headers, so the truncation starts at one byte
+		for (int length = 1; length < encoded.length; length++) {
+			try {
+				HeaderCodec.decode(ByteBuffer.wrap(Arrays.copyOf(encoded, length)));
+				fail("Decoded a header block truncated to " + length + " of " + encoded.length + " bytes");
+			} catch (CachingException expected) {
+				// the block ends before the headers
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.util;
+
+import org.junit.Test;
+import org.wso2.carbon.mediator.cache.json.CachableResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the size of the ResponseCodec with the default Java serialization of the response as it was held before
+ * the codec: a String payload, a String request hash and a header map.
+ */
+public class ResponseCodecComparisonTest {
+
+	private static final long NOW = 1444000000000L;
+
+	@Test
+	public void testCodecIsSmallerThanJavaSerialization() throws IOException {
+		for (int payloadSize : new int[]{64, 1024, 16 * 1024}) {
+			Map<String, Object> headers = newHeaders();
+			String payload = newPayload(payloadSize);
+			byte[] encoded = encode(newResponse(headers, payload));
+			byte[] serialized = serialize(newSerializedResponse(headers, payload));
+
+			assertTrue("encoded " + encoded.length + " bytes, serialized " + serialized.length,
+			           encoded.length < serialized.length);
+			// the overhead of the codec is a small fraction of that of the serialization
+			int payloadLength = payload.getBytes("UTF-8").length;
+			assertTrue((encoded.length - payloadLength) * 2 < serialized.length - payloadLength);
+		}
+	}
+
+	/**
+	 * The response as it was serialized before the codec
+	 */
+	private static final class SerializedResponse implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String responsePayload;
+
+		private AtomicBoolean inUse = new AtomicBoolean(false);
+
+		private String requestHash;
+
+		private long expireTimeMillis;
+
+		private long timeout;
+
+		private Map<String, Object> headerProperties;
+	}
+
+	private static Map<String, Object> newHeaders() {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("Content-Type", "application/json; charset=UTF-8");
+		headers.put("Date", "Mon, 05 Oct 2015 10:15:30 GMT");
+		headers.put("ETag", "\"5f3a9c\"");
+		headers.put("Server", "WSO2-PassThrough-HTTP");
+		headers.put("X-Request-Id", "7d1c62e0-4f1b-4b9e-a3a2-0c9e5d2f1a77");
+		return headers;
+	}
+
+	private static String newPayload(int size) {
+		StringBuilder payload = new StringBuilder("[");
+		for (int i = 0; payload.length() < size - 32; i++) {
+			payload.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"name\":\"item-").append(i)
+			       .append("\"}");
+		}
+		return payload.append(']').toString();
+	}
+
+	private static CachableResponse newResponse(Map<String, Object> headers, String payload)
+			throws IOException {
+		CachableResponse response = new CachableResponse();
+		response.setKey(CacheKey.of("5d41402abc4b2a76b9719d911017c592"));
+		response.setJson(true);
+		response.setTimeout(60000);
+		response.setExpireTimeMillis(NOW + 60000);
+		response.setHeaderProperties(ByteBuffer.wrap(HeaderCodec.encode(headers)));
+		response.setResponsePayload(ByteBuffer.wrap(payload.getBytes("UTF-8")));
+		return response;
+	}
+
+	private static SerializedResponse newSerializedResponse(Map<String, Object> headers, String payload) {
+		SerializedResponse response = new SerializedResponse();
+		response.requestHash = "5d41402abc4b2a76b9719d911017c592";
+		response.timeout = 60000;
+		response.expireTimeMillis = NOW + 60000;
+		response.headerProperties = new HashMap<String, Object>(headers);
+		response.responsePayload = payload;
+		return response;
+	}
+
+	private static byte[] encode(CachableResponse response) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ResponseCodec.encode(response, new DataOutputStream(bytes), NOW);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] serialize(SerializedResponse response) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(response);
+		out.close();
+		return bytes.toByteArray();
+	}
+}
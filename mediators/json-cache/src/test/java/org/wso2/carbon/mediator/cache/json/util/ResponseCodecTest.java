@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2015, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.mediator.cache.json.util;
+
+import org.junit.Test;
+import org.wso2.carbon.mediator.cache.json.CachableResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResponseCodecTest {
+
+	private static final long NOW = 1444000000000L;
+
+	/**
+	 * Flags of the encoded fields, as written by the ResponseCodec
+	 */
+	private static final int FLAG_VARY = 4;
+
+	private static final int FLAG_PAYLOAD = 16;
+
+	private static final byte[] PAYLOAD = "{\"id\":42,\"name\":\"cached\",\"tags\":[\"a\",\"b\",\"c\"]}".getBytes();
+
+	@Test
+	public void testRoundTripOfAFullResponse() throws IOException {
+		CachableResponse response = newResponse();
+		response.setVaryHeaders(new String[]{"Accept", "Accept-Language"});
+
+		CachableResponse decoded = roundTrip(response, NOW);
+
+		assertEquals(response.getKey(), decoded.getKey());
+		assertTrue(decoded.isJson());
+		assertEquals(PayloadCompression.NONE, decoded.getCompression());
+		assertEquals(response.getExpireTimeMillis(), decoded.getExpireTimeMillis());
+		assertEquals(response.getTimeout(), decoded.getTimeout());
+		assertArrayEquals(new String[]{"Accept", "Accept-Language"}, decoded.getVaryHeaders());
+		assertArrayEquals(toBytes(response.getHeaderProperties()), toBytes(decoded.getHeaderProperties()));
+		assertArrayEquals(PAYLOAD, toBytes(decoded.getResponsePayload()));
+	}
+
+	@Test
+	public void testRoundTripWithoutOptionalFields() throws IOException {
+		CachableResponse response = new CachableResponse();
+		response.setExpireTimeMillis(NOW);
+
+		CachableResponse decoded = roundTrip(response, NOW);
+
+		assertNull(decoded.getKey());
+		assertFalse(decoded.isJson());
+		assertNull(decoded.getVaryHeaders());
+		assertNull(decoded.getHeaderProperties());
+		assertNull(decoded.getResponsePayload());
+		assertEquals(NOW, decoded.getExpireTimeMillis());
+		assertEquals(0, decoded.getTimeout());
+	}
+
+	@Test
+	public void testRoundTripOfEmptyFields() throws IOException {
+		CachableResponse response = newResponse();
+		response.setVaryHeaders(new String[0]);
+		response.setHeaderProperties(ByteBuffer.allocate(0));
+		response.setResponsePayload(ByteBuffer.allocate(0));
+
+		CachableResponse decoded = roundTrip(response, NOW);
+
+		assertArrayEquals(new String[0], decoded.getVaryHeaders());
+		assertEquals(0, decoded.getHeaderProperties().remaining());
+		assertEquals(0, decoded.getResponsePayload().remaining());
+	}
+
+	@Test
+	public void testRoundTripOfEachCompression() throws IOException {
+		for (PayloadCompression compression : PayloadCompression.values()) {
+			CachableResponse response = newResponse();
+			response.setCompression(compression);
+			response.setResponsePayload(compression.compress(ByteBuffer.wrap(PAYLOAD)));
+
+			CachableResponse decoded = roundTrip(response, NOW);
+
+			assertEquals(compression, decoded.getCompression());
+			byte[] decompressed = readFully(compression.decompress(
+					new ByteBufferInputStream(decoded.getResponsePayload())));
+			assertArrayEquals(compression.name(), PAYLOAD, decompressed);
+		}
+	}
+
+	@Test
+	public void testRoundTripOfADirectPayload() throws IOException {
+		CachableResponse response = newResponse();
+		ByteBuffer direct = ByteBuffer.allocateDirect(PAYLOAD.length);
+		direct.put(PAYLOAD).flip();
+		response.setResponsePayload(direct);
+
+		CachableResponse decoded = roundTrip(response, NOW);
+
+		assertArrayEquals(PAYLOAD, toBytes(decoded.getResponsePayload()));
+		assertEquals("the payload of the response is not consumed", PAYLOAD.length, direct.remaining());
+	}
+
+	@Test
+	public void testExpiryIsRelativeToTheReferenceTime() throws IOException {
+		CachableResponse response = newResponse();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ResponseCodec.encode(response, new DataOutputStream(bytes), NOW);
+
+		// a node whose clock is ahead decodes the same remaining time to live
+		long later = NOW + 5000;
+		CachableResponse decoded = ResponseCodec.decode(input(bytes.toByteArray()), later, bytes.size());
+
+		assertEquals(response.getExpireTimeMillis() - NOW, decoded.getExpireTimeMillis() - later);
+	}
+
+	@Test
+	public void testRoundTripOfAnExpiredResponse() throws IOException {
+		CachableResponse response = newResponse();
+		response.setExpireTimeMillis(NOW - 1000);
+
+		assertEquals(NOW - 1000, roundTrip(response, NOW).getExpireTimeMillis());
+	}
+
+	@Test
+	public void testVarIntRoundTrip() throws IOException {
+		int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int value : values) {
+			ResponseCodec.writeVarInt(out, value);
+		}
+		DataInputStream in = input(bytes.toByteArray());
+		for (int value : values) {
+			assertEquals(value, ResponseCodec.readVarInt(in));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownVersionIsRejected() throws IOException {
+		byte[] encoded = encode(newResponse());
+		encoded[0] = (byte) (ResponseCodec.VERSION + 1);
+		ResponseCodec.decode(input(encoded), NOW, encoded.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownCompressionIsRejected() throws IOException {
+		byte[] encoded = encode(newResponse());
+		encoded[2] = (byte) PayloadCompression.values().length;
+		ResponseCodec.decode(input(encoded), NOW, encoded.length);
+	}
+
+	@Test
+	public void testTruncatedInputIsRejected() throws IOException {
+		CachableResponse response = newResponse();
+		response.setVaryHeaders(new String[]{"Accept"});
+		byte[] encoded = encode(response);
+		for (int length = 0; length < encoded.length; length++) {
+			try {
+				ResponseCodec.decode(input(Arrays.copyOf(encoded, length)), NOW, encoded.length);
+				fail("Decoded a response truncated to " + length + " of " + encoded.length + " bytes");
+			} catch (EOFException expected) {
+				// the input ends before the response
+			}
+		}
+	}
+
+	@Test
+	public void testLengthBeyondTheMaximumIsRejectedBeforeAllocating() throws IOException {
+		CachableResponse response = newResponse();
+		response.setResponsePayload(null);
+		// the payload claims 2 GB, while the input holds a few bytes
+		byte[] corrupt = appendLength(response, FLAG_PAYLOAD, Integer.MAX_VALUE);
+		try {
+			ResponseCodec.decode(input(corrupt), NOW, corrupt.length);
+			fail("Decoded a payload longer than the input");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().startsWith("Invalid length"));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNegativeLengthIsRejected() throws IOException {
+		CachableResponse response = newResponse();
+		response.setHeaderProperties(null);
+		response.setResponsePayload(null);
+		byte[] corrupt = appendLength(response, FLAG_VARY, -1);
+		ResponseCodec.decode(input(corrupt), NOW, Integer.MAX_VALUE);
+	}
+
+	static CachableResponse newResponse() {
+		Map<String, Object> headers = new LinkedHashMap<String, Object>();
+		headers.put("Content-Type", "application/json");
+		headers.put("ETag", "\"5f3a\"");
+		headers.put("X-Request-Id", "7d1c62e0");
+		CachableResponse response = new CachableResponse();
+		response.setKey(new CacheKey(0x1234567890ABCDEFL, -42L));
+		response.setJson(true);
+		response.setTimeout(60000);
+		response.setExpireTimeMillis(NOW + 60000);
+		response.setHeaderProperties(ByteBuffer.wrap(HeaderCodec.encode(headers)));
+		response.setResponsePayload(ByteBuffer.wrap(PAYLOAD));
+		return response;
+	}
+
+	static byte[] encode(CachableResponse response) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ResponseCodec.encode(response, new DataOutputStream(bytes), NOW);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encodes the given response with the flag of a field it does not have, followed by the given length of that
+	 * field, which must be the last one of the encoded form
+	 */
+	private static byte[] appendLength(CachableResponse response, int flag, int length) throws IOException {
+		byte[] encoded = encode(response);
+		encoded[1] |= flag;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(encoded);
+		ResponseCodec.writeVarInt(out, length);
+		return bytes.toByteArray();
+	}
+
+	private static CachableResponse roundTrip(CachableResponse response, long now) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ResponseCodec.encode(response, new DataOutputStream(bytes), now);
+		DataInputStream in = input(bytes.toByteArray());
+		CachableResponse decoded = ResponseCodec.decode(in, now, bytes.size());
+		assertEquals("the whole input is read", -1, in.read());
+		return decoded;
+	}
+
+	private static DataInputStream input(byte[] bytes) {
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+
+	private static byte[] toBytes(ByteBuffer buffer) {
+		ByteBuffer source = buffer.duplicate();
+		byte[] bytes = new byte[source.remaining()];
+		source.get(bytes);
+		return bytes;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] chunk = new byte[256];
+		int read;
+		while ((read = in.read(chunk)) != -1) {
+			out.write(chunk, 0, read);
+		}
+		return out.toByteArray();
+	}
+}